@@ -33,6 +33,10 @@ class CacheWeakReference extends WeakReference
     private long mOID;
     /** Pre-modification image of the object. */
     private byte[] mSavedImage;
+    /** Image of the object as it is currently stored in the database, if tracked. */
+    private byte[] mBaseImage;
+    /** True if the object's values were retained from a previous transaction and must be validated. */
+    private boolean mIsRetained = false;
     
 
     /**
@@ -77,4 +81,50 @@ class CacheWeakReference extends WeakReference
     {
         return mSavedImage;
     }
+
+
+    /**
+     * Sets the image of the object as it is currently stored in the database.
+     *
+     * @param anImage the byte[] representing the image. This may be null to 
+     *  clear the base image.
+     */
+    void setBaseImage(byte[] anImage)
+    {
+        mBaseImage = anImage;
+    }
+
+
+    /**
+     * Gets the image of the object as it is currently stored in the database.
+     *
+     * @return the byte[] representing the image. This may be null if the image
+     *  is not being tracked.
+     */
+    byte[] getBaseImage()
+    {
+        return mBaseImage;
+    }
+
+
+    /**
+     * Sets whether the object's values were retained from a previous transaction.
+     *
+     * @param isRetained true if the values were retained and must be validated before use.
+     */
+    void setRetained(boolean isRetained)
+    {
+        mIsRetained = isRetained;
+    }
+
+
+    /**
+     * Determines whether the object's values were retained from a previous transaction.
+     *
+     * @return true if the values were retained and must be validated before use.
+     */
+    boolean isRetained()
+    {
+        return mIsRetained;
+    }
 }
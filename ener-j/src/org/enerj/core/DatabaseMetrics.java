@@ -0,0 +1,476 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.core;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.odmg.ODMGException;
+
+/**
+ * Client-side metrics of an EnerJDatabase. The counters are updated by the database's hot paths
+ * and read through JMX, where this is registered under the domain "org.enerj" with
+ * type "DatabaseMetrics". Metrics are only collected while they are enabled on the database
+ * (see {@link EnerJDatabase#setMetricsEnabled(boolean)}). Otherwise the hot paths only test for a null
+ * reference.<p>
+ * 
+ * Counters are thread-safe, and may be read while they are updated.
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+public class DatabaseMetrics implements DatabaseMetricsMBean
+{
+    /** JMX domain of registered metrics. */
+    public static final String JMX_DOMAIN = "org.enerj";
+    
+    /** Used to make the ObjectNames of databases with the same name unique. */
+    private static AtomicInteger sNextId = new AtomicInteger(1);
+    
+    private AtomicLong mCacheHits = new AtomicLong();
+    private AtomicLong mCacheMisses = new AtomicLong();
+    private AtomicLong mHollowFaults = new AtomicLong();
+    /** Hollow faults keyed by class name. */
+    private ConcurrentMap<String, AtomicLong> mHollowFaultsByClass = new ConcurrentHashMap<String, AtomicLong>();
+    private AtomicLong mObjectsPrefetched = new AtomicLong();
+    private AtomicLong mObjectsLoaded = new AtomicLong();
+    private AtomicLong mObjectsSerialized = new AtomicLong();
+    private AtomicLong mBytesSerialized = new AtomicLong();
+    private AtomicLong mFlushes = new AtomicLong();
+    private LatencyHistogram mLoadObjectsLatency = new LatencyHistogram();
+    private LatencyHistogram mStoreObjectsLatency = new LatencyHistogram();
+    /** The name this is registered under, or null if it is not registered. */
+    private ObjectName mObjectName = null;
+
+
+    /**
+     * Constructs a DatabaseMetrics with all counters at zero.
+     */
+    public DatabaseMetrics()
+    {
+    }
+
+
+    /**
+     * Registers this with the platform MBeanServer.
+     *
+     * @param aDatabaseName the name of the database. Databases with the same name are registered 
+     *  with different ids.
+     * 
+     * @return the ObjectName that this was registered under.
+     * 
+     * @throws ODMGException if this cannot be registered.
+     */
+    public synchronized ObjectName register(String aDatabaseName) throws ODMGException
+    {
+        if (mObjectName != null) {
+            return mObjectName;
+        }
+        
+        try {
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=DatabaseMetrics,database=" + 
+                            ObjectName.quote(aDatabaseName) + ",id=" + sNextId.getAndIncrement());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            mObjectName = name;
+        }
+        catch (JMException e) {
+            throw new ODMGException("Cannot register metrics for database " + aDatabaseName, e);
+        }
+        
+        return mObjectName;
+    }
+
+
+    /**
+     * Unregisters this from the platform MBeanServer, if it is registered.
+     */
+    public synchronized void unregister()
+    {
+        if (mObjectName == null) {
+            return;
+        }
+        
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(mObjectName)) {
+                server.unregisterMBean(mObjectName);
+            }
+        }
+        catch (JMException e) {
+            // Already gone.
+        }
+        finally {
+            mObjectName = null;
+        }
+    }
+
+
+    /**
+     * Gets the ObjectName that this is registered under.
+     *
+     * @return the ObjectName, or null if this is not registered.
+     */
+    public synchronized ObjectName getObjectName()
+    {
+        return mObjectName;
+    }
+
+
+    /**
+     * Records the result of looking up an object by OID in the client cache.
+     *
+     * @param isHit true if the object was in the cache.
+     */
+    void recordCacheLookup(boolean isHit)
+    {
+        if (isHit) {
+            mCacheHits.incrementAndGet();
+        }
+        else {
+            mCacheMisses.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * Records a hollow fault.
+     *
+     * @param aPersistable the object that was faulted in.
+     * @param aLoadCount the number of objects loaded for the fault, including aPersistable.
+     */
+    void recordHollowFault(Persistable aPersistable, int aLoadCount)
+    {
+        mHollowFaults.incrementAndGet();
+        if (aLoadCount > 1) {
+            mObjectsPrefetched.addAndGet(aLoadCount - 1);
+        }
+
+        String className = aPersistable.getClass().getName();
+        AtomicLong count = mHollowFaultsByClass.get(className);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = mHollowFaultsByClass.putIfAbsent(className, newCount);
+            if (count == null) {
+                count = newCount;
+            }
+        }
+        
+        count.incrementAndGet();
+    }
+
+
+    /**
+     * Records objects that were prefetched explicitly.
+     *
+     * @param aCount the number of objects.
+     */
+    void recordPrefetch(int aCount)
+    {
+        mObjectsPrefetched.addAndGet(aCount);
+    }
+
+
+    /**
+     * Records a request to the server to load objects.
+     *
+     * @param aCount the number of objects loaded.
+     * @param aStartNanos the value of System.nanoTime() when the request started.
+     */
+    void recordLoadObjects(int aCount, long aStartNanos)
+    {
+        mObjectsLoaded.addAndGet(aCount);
+        mLoadObjectsLatency.record(System.nanoTime() - aStartNanos);
+    }
+
+
+    /**
+     * Records an object image that was serialized to be stored.
+     *
+     * @param aLength the length of the image.
+     */
+    void recordSerializedImage(int aLength)
+    {
+        mObjectsSerialized.incrementAndGet();
+        mBytesSerialized.addAndGet(aLength);
+    }
+
+
+    /**
+     * Records a flush of modified objects.
+     */
+    void recordFlush()
+    {
+        mFlushes.incrementAndGet();
+    }
+
+
+    /**
+     * Records a request to the server to store objects.
+     *
+     * @param aStartNanos the value of System.nanoTime() when the request started.
+     */
+    void recordStoreObjects(long aStartNanos)
+    {
+        mStoreObjectsLatency.record(System.nanoTime() - aStartNanos);
+    }
+
+
+    /**
+     * Gets the number of hollow faults for a class.
+     *
+     * @param aClassName the class name.
+     * 
+     * @return the number of hollow faults.
+     */
+    public long getHollowFaults(String aClassName)
+    {
+        AtomicLong count = mHollowFaultsByClass.get(aClassName);
+        return (count == null ? 0 : count.get());
+    }
+
+
+    public long getCacheHits()
+    {
+        return mCacheHits.get();
+    }
+
+
+    public long getCacheMisses()
+    {
+        return mCacheMisses.get();
+    }
+
+
+    public double getCacheHitRatio()
+    {
+        long hits = mCacheHits.get();
+        long lookups = hits + mCacheMisses.get();
+        return (lookups == 0 ? 0. : (double)hits / lookups);
+    }
+
+
+    public long getHollowFaults()
+    {
+        return mHollowFaults.get();
+    }
+
+
+    public String[] getHollowFaultsByClass()
+    {
+        List<Map.Entry<String, AtomicLong>> entries = new ArrayList<Map.Entry<String, AtomicLong>>( mHollowFaultsByClass.entrySet() );
+        Collections.sort(entries, new Comparator<Map.Entry<String, AtomicLong>>() {
+            public int compare(Map.Entry<String, AtomicLong> anEntry1, Map.Entry<String, AtomicLong> anEntry2)
+            {
+                long count1 = anEntry1.getValue().get();
+                long count2 = anEntry2.getValue().get();
+                return (count1 > count2 ? -1 : (count1 == count2 ? anEntry1.getKey().compareTo(anEntry2.getKey()) : 1));
+            }
+        });
+        
+        String[] result = new String[ entries.size() ];
+        int idx = 0;
+        for (Map.Entry<String, AtomicLong> entry : entries) {
+            result[idx++] = entry.getKey() + '=' + entry.getValue().get();
+        }
+        
+        return result;
+    }
+
+
+    public long getObjectsPrefetched()
+    {
+        return mObjectsPrefetched.get();
+    }
+
+
+    public long getObjectsLoaded()
+    {
+        return mObjectsLoaded.get();
+    }
+
+
+    public long getLoadObjectsRequests()
+    {
+        return mLoadObjectsLatency.getCount();
+    }
+
+
+    public double getLoadObjectsMeanLatencyMicros()
+    {
+        return mLoadObjectsLatency.getMeanMicros();
+    }
+
+
+    public long getLoadObjectsMaxLatencyMicros()
+    {
+        return mLoadObjectsLatency.getMaxMicros();
+    }
+
+
+    public long[] getLoadObjectsLatencyHistogram()
+    {
+        return mLoadObjectsLatency.getBuckets();
+    }
+
+
+    public long getObjectsSerialized()
+    {
+        return mObjectsSerialized.get();
+    }
+
+
+    public long getBytesSerialized()
+    {
+        return mBytesSerialized.get();
+    }
+
+
+    public long getFlushes()
+    {
+        return mFlushes.get();
+    }
+
+
+    public long getStoreObjectsRequests()
+    {
+        return mStoreObjectsLatency.getCount();
+    }
+
+
+    public double getStoreObjectsMeanLatencyMicros()
+    {
+        return mStoreObjectsLatency.getMeanMicros();
+    }
+
+
+    public long getStoreObjectsMaxLatencyMicros()
+    {
+        return mStoreObjectsLatency.getMaxMicros();
+    }
+
+
+    public long[] getStoreObjectsLatencyHistogram()
+    {
+        return mStoreObjectsLatency.getBuckets();
+    }
+
+
+    public void reset()
+    {
+        mCacheHits.set(0);
+        mCacheMisses.set(0);
+        mHollowFaults.set(0);
+        mHollowFaultsByClass.clear();
+        mObjectsPrefetched.set(0);
+        mObjectsLoaded.set(0);
+        mObjectsSerialized.set(0);
+        mBytesSerialized.set(0);
+        mFlushes.set(0);
+        mLoadObjectsLatency.reset();
+        mStoreObjectsLatency.reset();
+    }
+    
+    
+    /**
+     * A histogram of latencies with power-of-two microsecond buckets.
+     */
+    private static final class LatencyHistogram
+    {
+        /** Bucket i counts latencies less than 2^i microseconds. The last bucket is unbounded. */
+        private static final int sNumBuckets = 24;
+        
+        private AtomicLongArray mBuckets = new AtomicLongArray(sNumBuckets);
+        private AtomicLong mCount = new AtomicLong();
+        private AtomicLong mTotalNanos = new AtomicLong();
+        private AtomicLong mMaxNanos = new AtomicLong();
+        
+        void record(long aNanos)
+        {
+            long micros = aNanos / 1000;
+            // Number of bits needed for micros, so micros < 2^bucket.
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            if (bucket >= sNumBuckets) {
+                bucket = sNumBuckets - 1;
+            }
+            
+            mBuckets.incrementAndGet(bucket);
+            mCount.incrementAndGet();
+            mTotalNanos.addAndGet(aNanos);
+            
+            long max;
+            while (aNanos > (max = mMaxNanos.get()) && !mMaxNanos.compareAndSet(max, aNanos)) {
+                // Retry.
+            }
+        }
+        
+        long getCount()
+        {
+            return mCount.get();
+        }
+        
+        double getMeanMicros()
+        {
+            long count = mCount.get();
+            return (count == 0 ? 0. : mTotalNanos.get() / 1000. / count);
+        }
+        
+        long getMaxMicros()
+        {
+            return mMaxNanos.get() / 1000;
+        }
+        
+        long[] getBuckets()
+        {
+            long[] buckets = new long[sNumBuckets];
+            for (int i = 0; i < sNumBuckets; i++) {
+                buckets[i] = mBuckets.get(i);
+            }
+            
+            return buckets;
+        }
+        
+        void reset()
+        {
+            for (int i = 0; i < sNumBuckets; i++) {
+                mBuckets.set(i, 0);
+            }
+            
+            mCount.set(0);
+            mTotalNanos.set(0);
+            mMaxNanos.set(0);
+        }
+    }
+}
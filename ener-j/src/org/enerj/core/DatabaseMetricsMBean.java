@@ -0,0 +1,165 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.core;
+
+/**
+ * JMX management interface of {@link DatabaseMetrics}. 
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+public interface DatabaseMetricsMBean
+{
+    /**
+     * Gets the number of object lookups by OID that were satisfied by the client cache.
+     *
+     * @return the number of cache hits.
+     */
+    long getCacheHits();
+
+    /**
+     * Gets the number of object lookups by OID that had to create a new hollow object.
+     *
+     * @return the number of cache misses.
+     */
+    long getCacheMisses();
+
+    /**
+     * Gets the ratio of cache hits to cache lookups.
+     *
+     * @return the ratio, from 0 to 1. This is 0 if there were no lookups.
+     */
+    double getCacheHitRatio();
+
+    /**
+     * Gets the number of hollow objects that were faulted in by accessing them.
+     *
+     * @return the number of hollow faults.
+     */
+    long getHollowFaults();
+
+    /**
+     * Gets the number of hollow faults for each class, in descending order of count.
+     *
+     * @return an array of strings of the form "className=count".
+     */
+    String[] getHollowFaultsByClass();
+
+    /**
+     * Gets the number of objects that were loaded ahead of being accessed, either as prefetch 
+     * candidates loaded along with a hollow fault or by {@link EnerJDatabase#prefetch(Object, String, int)}. 
+     *
+     * @return the number of prefetched objects.
+     */
+    long getObjectsPrefetched();
+
+    /**
+     * Gets the number of objects loaded from the server.
+     *
+     * @return the number of objects loaded.
+     */
+    long getObjectsLoaded();
+
+    /**
+     * Gets the number of requests to the server to load objects.
+     *
+     * @return the number of load requests.
+     */
+    long getLoadObjectsRequests();
+
+    /**
+     * Gets the mean latency of requests to the server to load objects.
+     *
+     * @return the mean latency in microseconds.
+     */
+    double getLoadObjectsMeanLatencyMicros();
+
+    /**
+     * Gets the maximum latency of requests to the server to load objects.
+     *
+     * @return the maximum latency in microseconds.
+     */
+    long getLoadObjectsMaxLatencyMicros();
+
+    /**
+     * Gets the latency histogram of requests to the server to load objects. 
+     *
+     * @return the counts of each bucket. Bucket i counts latencies less than 2^i microseconds 
+     *  that were not counted by a lower bucket. The last bucket also counts all longer latencies.
+     */
+    long[] getLoadObjectsLatencyHistogram();
+
+    /**
+     * Gets the number of objects serialized to be stored.
+     *
+     * @return the number of objects serialized.
+     */
+    long getObjectsSerialized();
+
+    /**
+     * Gets the number of bytes serialized to be stored. For delta images, this is the size of the delta.
+     *
+     * @return the number of bytes serialized.
+     */
+    long getBytesSerialized();
+
+    /**
+     * Gets the number of times that the modified objects of a transaction were flushed to the server.
+     *
+     * @return the number of flushes.
+     */
+    long getFlushes();
+
+    /**
+     * Gets the number of requests to the server to store objects.
+     *
+     * @return the number of store requests.
+     */
+    long getStoreObjectsRequests();
+
+    /**
+     * Gets the mean latency of requests to the server to store objects.
+     *
+     * @return the mean latency in microseconds.
+     */
+    double getStoreObjectsMeanLatencyMicros();
+
+    /**
+     * Gets the maximum latency of requests to the server to store objects.
+     *
+     * @return the maximum latency in microseconds.
+     */
+    long getStoreObjectsMaxLatencyMicros();
+
+    /**
+     * Gets the latency histogram of requests to the server to store objects. 
+     *
+     * @return the counts of each bucket, as for {@link #getLoadObjectsLatencyHistogram()}.
+     */
+    long[] getStoreObjectsLatencyHistogram();
+
+    /**
+     * Resets all counters and histograms to zero.
+     */
+    void reset();
+}
@@ -207,6 +207,48 @@ public class DefaultPersistableObjectCache implements PersistableObjectCache
     }
 
 
+    /** 
+     * {@inheritDoc}
+     * @see org.enerj.core.PersistableObjectCache#setBaseImage(long, byte[])
+     */
+    public void setBaseImage(long anOID, byte[] anImage)
+    {
+        CacheWeakReference ref = findEntry(anOID);
+        if (ref == null) {
+            return;
+        }
+        
+        ref.setBaseImage(anImage);
+    }
+
+
+    /** 
+     * {@inheritDoc}
+     * @see org.enerj.core.PersistableObjectCache#getBaseImage(long)
+     */
+    public byte[] getBaseImage(long anOID)
+    {
+        CacheWeakReference ref = findEntry(anOID);
+        if (ref == null) {
+            return null;
+        }
+        
+        return ref.getBaseImage();
+    }
+
+
+    /** 
+     * {@inheritDoc}
+     * @see org.enerj.core.PersistableObjectCache#clearBaseImages()
+     */
+    public void clearBaseImages()
+    {
+        for (CacheWeakReference ref : mCache.values()) {
+            ref.setBaseImage(null);
+        }
+    }
+
+
     /** 
      * {@inheritDoc}
      * @see org.enerj.core.PersistableObjectCache#hollowObjects()
@@ -216,6 +258,7 @@ public class DefaultPersistableObjectCache implements PersistableObjectCache
         cleanup();
         
         for (CacheWeakReference ref : mCache.values()) {
+            ref.setBaseImage(null);
             Persistable persistable = (Persistable)ref.get();
             if (persistable != null) {
                 persistable.enerj_Hollow();
@@ -242,6 +285,53 @@ public class DefaultPersistableObjectCache implements PersistableObjectCache
     }
     
 
+    /** 
+     * {@inheritDoc}
+     * @see org.enerj.core.PersistableObjectCache#retainObjects()
+     */
+    public void retainObjects()
+    {
+        cleanup();
+        
+        for (CacheWeakReference ref : mCache.values()) {
+            ref.setSavedImage(null);
+            Persistable persistable = (Persistable)ref.get();
+            if (persistable != null) {
+                if (persistable.enerj_IsLoaded() && !persistable.enerj_IsNew() && !persistable.enerj_IsModified()) {
+                    // Keep the values, but force PersistableHelper.checkLoaded() to go back to the Persister.
+                    persistable.enerj_SetLoaded(false);
+                    ref.setRetained(true);
+                }
+                
+                PersistableHelper.setNonTransactional(persistable);
+            }
+        }
+    }
+    
+
+    /** 
+     * {@inheritDoc}
+     * @see org.enerj.core.PersistableObjectCache#getAndClearRetainedObjects()
+     */
+    public List<Persistable> getAndClearRetainedObjects()
+    {
+        cleanup();
+        
+        List<Persistable> retained = new ArrayList<Persistable>();
+        for (CacheWeakReference ref : mCache.values()) {
+            if (ref.isRetained()) {
+                ref.setRetained(false);
+                Persistable persistable = (Persistable)ref.get();
+                if (persistable != null && !persistable.enerj_IsLoaded() && !persistable.enerj_IsNew()) {
+                    retained.add(persistable);
+                }
+            }
+        }
+        
+        return retained;
+    }
+    
+
     /** 
      * {@inheritDoc}
      * @see org.enerj.core.PersistableObjectCache#cleanup()
@@ -42,29 +42,45 @@ import java.lang.reflect.Method;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.enerj.annotations.Index;
 import org.enerj.annotations.Indexes;
 import org.enerj.annotations.SchemaAnnotation;
 import org.enerj.server.ClassInfo;
 import org.enerj.server.DBIterator;
+import org.enerj.server.DBObjectIterator;
 import org.enerj.server.ObjectServerSession;
 import org.enerj.server.PluginHelper;
 import org.enerj.server.SerializedObject;
 import org.enerj.util.ClassUtil;
+import org.enerj.util.ImageDeltaUtil;
 import org.enerj.util.OIDUtil;
 import org.enerj.util.URIUtil;
 import org.odmg.ClassNotPersistenceCapableException;
 import org.odmg.Database;
 import org.odmg.DatabaseClosedException;
+import org.odmg.DatabaseIsReadOnlyException;
 import org.odmg.DatabaseOpenException;
 import org.odmg.LockNotGrantedException;
 import org.odmg.ODMGException;
@@ -83,8 +99,17 @@ import org.odmg.TransactionNotInProgressException;
  */
 public class EnerJDatabase implements Database, Persister
 {
+    private static final Logger sLogger = Logger.getLogger(EnerJDatabase.class.getName()); 
+
     /** Maximum size of mSerializedObjectQueue. TODO make this configurable */
     private static final int sMaxSerializedObjectQueueSize = 100000;
+    /** Maximum size of mSerializedObjectQueue during a bulk load. Each batch is committed separately. */
+    private static final int sMaxBulkLoadQueueSize = 4000000;
+    /** Minimum and maximum number of OIDXs requested from the server at once. */
+    private static final int sMinOIDXBlockSize = 10;
+    private static final int sMaxOIDXBlockSize = 10000;
+    /** Maximum number of queued batches that may be outstanding when write-behind is enabled. */
+    private static final int sMaxWriteBehindBatches = 4;
 
     /** Current Open Database for JVM. Used when no current open thread database exists. (i.e.,
      * Database was opened in a thread, but now the thread is gone). Entry exists until
@@ -105,6 +130,10 @@ public class EnerJDatabase implements Database, Persister
      * grabbing a DatabaseRoot and read-locking it. */
     private Set<Long> mKnownSchemaCIDs;
     
+    /** CIDs added to the schema during the current transaction or bulk load. They are only added to 
+     * mKnownSchemaCIDs, which may be shared with other databases, once it commits. */
+    private Set<Long> mNewSchemaCIDs;
+    
     /** Cache of ClassInfo keyed by CIDX.
      * TODO SchemaEvolution must not proxy classes for this to work. It must upgrade the class to the latest version. */
     private Map<Integer, ClassInfo> mCachedClassInfoByCIDX; 
@@ -126,25 +155,73 @@ public class EnerJDatabase implements Database, Persister
     /** True if this instance allows non-transactional reads. */
     private boolean mAllowNontransactionalReads = false;
     
+    /** Nesting depth of lazy SCO contents being decoded. See {@link #beginLazySCODecoding()}. */
+    private int mLazySCODecodingDepth = 0;
+    
     /** ObjectServerSession we're bound to. */
     private ObjectServerSession mObjectServerSession = null;
 
     /** Cache of new OIDs to be used. Only available during a transaction. */
     private long[] mOIDXCache = null;
     private int mOIDXCachePosition = 0;
+    /** Number of OIDXs requested in the next block. It grows while a transaction creates many new objects. */
+    private int mOIDXBlockSize = sMinOIDXBlockSize;
     
     /** Queue of serialized objects waiting to be flushed to database. */
     private List<SerializedObject> mSerializedObjectQueue;
+    /** Buffer holding the images in mSerializedObjectQueue. */
+    private ImageWriter mImageWriter;
     /** Number of bytes in mSerializedObjectQueue. */
     private int mSerializedObjectQueueSize = 0;
 
     /** Non-null if the transaction is in the process of flushing objects. This
      * represents the current position in mModifiedObjects. */
     private ListIterator<Persistable> mFlushIterator = null;
+    /** Non-null while modified objects are being serialized in parallel. New objects reached
+     * during serialization are collected here rather than in mFlushIterator. It is also the lock
+     * used to assign OIDs to these objects. */
+    private List<Persistable> mParallelFlushAdditions = null;
+    /** Non-null while bulkLoad() is in progress. New objects that have been assigned OIDs but have not been
+     * stored yet. */
+    private List<Persistable> mBulkLoadQueue = null;
+    /** Non-null while bulkLoad() is in progress. Objects whose images are in mSerializedObjectQueue. */
+    private List<Persistable> mBulkLoadQueuedObjects = null;
+    /** Number of threads used to serialize modified objects during a flush. */
+    private int mFlushThreadCount = 1;
+    /** Executor used to serialize objects in parallel. Created on demand. */
+    private ExecutorService mFlushExecutor = null;
+    /** ImageWriter for each thread serializing objects in parallel. */
+    private static ThreadLocal<ImageWriter> sParallelImageWriter = new ThreadLocal<ImageWriter>();
+    /** Parallel serialization is only used if at least this many objects are to be serialized at once. */
+    private static final int sMinParallelFlushSize = 64;
     
-    /** The high-water mark for flushing. */
-    // TODO This should be settable.
-    private int mFlushLevel = 500;
+    /** Estimated number of bytes held by the transaction at which memory is released. */
+    private long mHighWatermark = 1024 * 1024;
+    /** Estimated number of bytes held by the transaction that releasing memory tries to reach. */
+    private long mLowWatermark = 256 * 1024;
+    /** Estimated number of bytes held by the modified list and the in-memory saved images. */
+    private long mTransactionBytes = 0;
+    /** Moving average of the stored image lengths, used to estimate the size of modified objects. */
+    private int mAverageImageLength = 100;
+    /** Saved images that were moved out of memory during the transaction. Null if none were. */
+    private SavedImageFile mSavedImageFile = null;
+    
+    /** True if loaded object values are retained in the cache across transactions. */
+    private boolean mSecondLevelCacheEnabled = false;
+    /** True if the cache contains objects retained from a previous transaction that have not been validated. */
+    private boolean mHasRetainedObjects = false;
+    /** True if modified objects are sent to the server as deltas against their stored images. */
+    private boolean mDeltaImagesEnabled = false;
+    /** True if queued objects are stored by a background thread. */
+    private boolean mWriteBehindEnabled = false;
+    /** True if mSerializedObjectQueue has an object whose index keys can only be created on the transaction's thread. */
+    private boolean mIsQueueStoredInThread = false;
+    /** Whether the index keys of each class can be decoded from its images, by class. */
+    private Map<Class, Boolean> mAreIndexKeysDecodable = new HashMap<Class, Boolean>();
+    /** Metrics of this database. Null if metrics are not enabled. */
+    private DatabaseMetrics mMetrics = null;
+    /** Name of the database. Only valid if the database is open. */
+    private String mDatabaseName = null;
     
     /**
      * Construct a unopened EnerJDatabase.
@@ -250,10 +327,19 @@ public class EnerJDatabase implements Database, Persister
      */
     public Persistable[] getObjectsForOIDs(long[] someOIDs)
     {
-        checkBoundTransaction(true);
+        boolean isDecodingRetainedSCO = (mLazySCODecodingDepth > 0 && mBoundToTransaction == null);
+        if (isDecodingRetainedSCO) {
+            if (!mIsOpen) {
+                throw new DatabaseClosedException("Database has not been opened");
+            }
+        }
+        else {
+            checkBoundTransaction(true);
+        }
 
         Persistable[] objects = new Persistable[someOIDs.length];
         long[] oidsToRetrieveClassInfoFor = new long[someOIDs.length];
+        int numClassInfosToRetrieve = 0;
         // Some of these may be null - corresponds to someOIDs.
         ClassInfo[] cachedClasses = new ClassInfo[someOIDs.length];
         
@@ -269,6 +355,10 @@ public class EnerJDatabase implements Database, Persister
                 checkPersistable = mModifiedObjects.getModifiedObjectByOID(oid);
             }
             
+            if (mMetrics != null) {
+                mMetrics.recordCacheLookup(checkPersistable != null);
+            }
+            
             if (checkPersistable != null) {
                 if (isNontransactionalReadMode()) {
                     // If we're in non-transactional read mode and this object was
@@ -286,6 +376,7 @@ public class EnerJDatabase implements Database, Persister
             else {
                 foundAllInCache = false;
                 oidsToRetrieveClassInfoFor[i] = oid;
+                ++numClassInfosToRetrieve;
             }
         }
         
@@ -293,16 +384,31 @@ public class EnerJDatabase implements Database, Persister
             return objects;
         }
 
-        // Retrieve ClassInfo for these OIDs.
-        ClassInfo[] classInfos;
-        try {
-            classInfos = mObjectServerSession.getClassInfoForOIDs(oidsToRetrieveClassInfoFor);
-        }
-        catch (RuntimeException e) {
-            throw e;
-        }
-        catch (Exception e) {
-            throw new ODMGRuntimeException("Could not get ClassInfo for OIDs", e);
+        // Retrieve ClassInfo for OIDs whose class isn't cached. Only go to the server if we have to.
+        ClassInfo[] classInfos = new ClassInfo[someOIDs.length];
+        if (numClassInfosToRetrieve > 0) {
+            try {
+                if (isDecodingRetainedSCO && !mAllowNontransactionalReads) {
+                    // ClassInfo comes from the schema, which doesn't change once a class is in it,
+                    // so it can be read without a transaction.
+                    mObjectServerSession.setAllowNontransactionalReads(true);
+                    try {
+                        classInfos = mObjectServerSession.getClassInfoForOIDs(oidsToRetrieveClassInfoFor);
+                    }
+                    finally {
+                        mObjectServerSession.setAllowNontransactionalReads(false);
+                    }
+                }
+                else {
+                    classInfos = mObjectServerSession.getClassInfoForOIDs(oidsToRetrieveClassInfoFor);
+                }
+            }
+            catch (RuntimeException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                throw new ODMGRuntimeException("Could not get ClassInfo for OIDs", e);
+            }
         }
 
         for (int i = 0; i < someOIDs.length; i++) {
@@ -313,8 +419,14 @@ public class EnerJDatabase implements Database, Persister
             long oid = someOIDs[i];
             int cidx = OIDUtil.getCIDX(oid);
             
+            // The same OID may appear more than once. Don't create a second instance.
+            Persistable persistable = (Persistable)mClientCache.get(oid);
+            if (persistable != null) {
+                objects[i] = persistable;
+                continue;
+            }
+
             ClassInfo classInfo = classInfos[i];
-            Persistable persistable = null;
             if (classInfo != null && classInfo.getClassName() != null) {
                 persistable = PersistableHelper.createHollowPersistable(classInfo, oid, this);                
 
@@ -365,8 +477,16 @@ public class EnerJDatabase implements Database, Persister
         }
         
         long oid = persistable.enerj_GetPrivateOID();
-        if (oid == ObjectSerializer.NULL_OID && persistable.enerj_IsNew() && mBoundToTransaction != null) {
-            oid = addNewPersistable(persistable);
+        if (oid == ObjectSerializer.NULL_OID && persistable.enerj_IsNew() && mBulkLoadQueue != null) {
+            oid = addBulkLoadPersistable(persistable);
+        }
+        else if (oid == ObjectSerializer.NULL_OID && persistable.enerj_IsNew() && mBoundToTransaction != null) {
+            if (mParallelFlushAdditions != null) {
+                oid = addNewPersistableDuringParallelFlush(persistable);
+            }
+            else {
+                oid = addNewPersistable(persistable);
+            }
         }
         
         return oid;
@@ -380,22 +500,161 @@ public class EnerJDatabase implements Database, Persister
     {
         checkBoundTransaction(true);
         
+        if (mHasRetainedObjects) {
+            validateRetainedObjects();
+            if (aPersistable.enerj_IsLoaded()) {
+                return;
+            }
+        }
+        
         // Make sure that the requested object is in the cache. This will also cause it to come back
         // in the prefetch list.
         long oid = getOID(aPersistable);
         mClientCache.add(oid, aPersistable);
 
-        List<Persistable> prefetches = mClientCache.getAndClearPrefetches();
-        long[] oids = new long[prefetches.size()];
+        List<Persistable> persistables = mClientCache.getAndClearPrefetches();
+        loadPersistables(persistables);
+        if (mMetrics != null) {
+            mMetrics.recordHollowFault(aPersistable, persistables.size());
+        }
+    }
+    
+
+    /**
+     * Prefetches the objects reachable from aRoot along a path of field names. The objects at
+     * each step of the path are loaded with a single request to the server, breadth-first, so 
+     * traversing the graph afterwards does not fault objects in one at a time.
+     * <p>
+     * The path is a dot-separated list of field names, for example "parts.connections.to". A field
+     * may reference a persistable object, an array, a Collection, or a Map. The elements of arrays and 
+     * Collections and the values of Maps are followed. Objects that do not have the named field are 
+     * skipped. The path is followed aDepth times, starting each time from the objects reached by the 
+     * previous pass. This allows recursive structures to be prefetched with a self-referencing path, 
+     * for example prefetch(rootAssembly, "subAssemblies", 5).
+     *
+     * @param aRoot the object to start from.
+     * @param aPath the dot-separated path of field names.
+     * @param aDepth the number of times to follow the path.
+     * 
+     * @throws ODMGRuntimeException if an error occurs.
+     */
+    public void prefetch(Object aRoot, String aPath, int aDepth)
+    {
+        checkBoundTransaction(true);
+        
+        if (mHasRetainedObjects) {
+            validateRetainedObjects();
+        }
+        
+        String[] fieldNames = aPath.split("\\.");
+        Map<String, Field> fieldCache = new HashMap<String, Field>();
+        List<Object> level = new ArrayList<Object>();
+        level.add(aRoot);
+        for (int depth = 0; depth < aDepth && !level.isEmpty(); depth++) {
+            for (String fieldName : fieldNames) {
+                loadHollowPersistables(level);
+                
+                List<Object> values = new ArrayList<Object>();
+                for (Object obj : level) {
+                    if (obj == null) {
+                        continue;
+                    }
+
+                    String key = obj.getClass().getName() + '.' + fieldName;
+                    Field field = fieldCache.get(key);
+                    if (field == null && !fieldCache.containsKey(key)) {
+                        field = ClassUtil.findDeclaredField(obj.getClass(), fieldName);
+                        fieldCache.put(key, field);
+                    }
+                    
+                    if (field == null) {
+                        continue;
+                    }
+                    
+                    try {
+                        Object value = field.get(obj);
+                        if (value != null) {
+                            values.add(value);
+                        }
+                    }
+                    catch (IllegalAccessException e) {
+                        throw new ODMGRuntimeException("Cannot access field " + key, e);
+                    }
+                }
+                
+                // Persistable Collections and Maps must be loaded before their elements can be reached.
+                loadHollowPersistables(values);
+                
+                level = new ArrayList<Object>(values.size());
+                for (Object value : values) {
+                    if (value instanceof Object[]) {
+                        for (Object element : (Object[])value) {
+                            level.add(element);
+                        }
+                    }
+                    else if (value instanceof Collection) {
+                        level.addAll((Collection)value);
+                    }
+                    else if (value instanceof Map) {
+                        level.addAll( ((Map)value).values() );
+                    }
+                    else {
+                        level.add(value);
+                    }
+                }
+            }
+        }
+        
+        loadHollowPersistables(level);
+    }
+    
+
+    /**
+     * Loads the hollow Persistables owned by this database in the given list with a single request.
+     * Other objects in the list are ignored.
+     *
+     * @param someObjects the objects to be loaded.
+     */
+    private void loadHollowPersistables(List<Object> someObjects)
+    {
+        Map<Persistable, Persistable> hollowObjects = new IdentityHashMap<Persistable, Persistable>();
+        for (Object obj : someObjects) {
+            if (obj instanceof Persistable) {
+                Persistable persistable = (Persistable)obj;
+                if (!persistable.enerj_IsLoaded() && !persistable.enerj_IsNew() && 
+                    persistable.enerj_GetPersister() == this) {
+                    hollowObjects.put(persistable, persistable);
+                }
+            }
+        }
+        
+        if (!hollowObjects.isEmpty()) {
+            loadPersistables( new ArrayList<Persistable>(hollowObjects.keySet()) );
+            if (mMetrics != null) {
+                mMetrics.recordPrefetch( hollowObjects.size() );
+            }
+        }
+    }
+    
+
+    /**
+     * Loads the given Persistables from the database in a single request.
+     *
+     * @param somePersistables the hollow Persistables to be loaded.
+     */
+    private void loadPersistables(List<Persistable> somePersistables)
+    {
+        long[] oids = new long[somePersistables.size()];
         int idx = 0;
-        for (Persistable prefetch : prefetches) {
-            oids[idx++] = getOID(prefetch);
+        for (Persistable persistable : somePersistables) {
+            oids[idx++] = getOID(persistable);
         }
         
         // Look it up in the DB.
-        byte[][] objects;
+        long startNanos = (mMetrics == null ? 0L : System.nanoTime());
+        SerializedObject[] objects;
         try {
-            objects = mObjectServerSession.loadObjects(oids);
+            objects = mObjectServerSession.loadSerializedObjects(oids);
         }
         catch (RuntimeException e) {
             throw e;
@@ -404,15 +663,128 @@ public class EnerJDatabase implements Database, Persister
             throw new ODMGRuntimeException("Could not load object", e);
         }
 
+        if (mMetrics != null) {
+            mMetrics.recordLoadObjects(oids.length, startNanos);
+        }
+
         idx = 0;
-        for (Persistable prefetch : prefetches) {
-            PersistableHelper.loadSerializedImage(this, prefetch, objects[idx++]);
+        for (Persistable persistable : somePersistables) {
+            loadSerializedObject(persistable, objects[idx++]);
+        }
+    }
+    
 
-            if ( !isNontransactionalReadMode() && !EnerJDatabase.isAtLockLevel(prefetch, EnerJTransaction.READ)) {
-                // loadObject() obtains a READ lock.
-                prefetch.enerj_SetLockLevel(EnerJTransaction.READ);
+    /**
+     * Loads a hollow Persistable from its SerializedObject.
+     *
+     * @param aPersistable the hollow Persistable.
+     * @param anObject the SerializedObject returned from the server for aPersistable.
+     */
+    private void loadSerializedObject(Persistable aPersistable, SerializedObject anObject)
+    {
+        PersistableHelper.loadSerializedImage(this, aPersistable, anObject.getImageBuffer(), anObject.getImageOffset(), 
+                    anObject.getImageLength(), anObject.getImageFormat());
+        aPersistable.enerj_SetVersion( anObject.getVersion() );
+        if (mDeltaImagesEnabled) {
+            mClientCache.setBaseImage(anObject.getOID(), anObject.getImage());
+        }
+
+        if ( !isNontransactionalReadMode() && !EnerJDatabase.isAtLockLevel(aPersistable, EnerJTransaction.READ)) {
+            // loadObject() obtains a READ lock.
+            aPersistable.enerj_SetLockLevel(EnerJTransaction.READ);
+        }
+    }
+    
+
+    /**
+     * Gets the Persistables for objects whose images were returned by the server, such as 
+     * from a {@link DBObjectIterator}. Persistables that are hollow are loaded from the images, 
+     * so they will not be faulted in later. Persistables that are already loaded are left as they are.
+     * For Ener-J internal use only.
+     *
+     * @param someObjects the SerializedObjects returned by the server.
+     * 
+     * @return the Persistables, corresponding to someObjects. 
+     */
+    Persistable[] getObjectsForSerializedObjects(SerializedObject[] someObjects)
+    {
+        long[] oids = new long[someObjects.length];
+        for (int i = 0; i < someObjects.length; i++) {
+            oids[i] = someObjects[i].getOID();
+        }
+        
+        Persistable[] persistables = getObjectsForOIDs(oids);
+        int numLoaded = 0;
+        for (int i = 0; i < persistables.length; i++) {
+            Persistable persistable = persistables[i];
+            if (persistable != null && !persistable.enerj_IsNew() && !persistable.enerj_IsLoaded()) {
+                loadSerializedObject(persistable, someObjects[i]);
+                ++numLoaded;
             }
         }
+        
+        if (mMetrics != null) {
+            mMetrics.recordPrefetch(numLoaded);
+        }
+
+        return persistables;
+    }
+    
+
+    /**
+     * Validates the objects whose values were retained from a previous transaction. The versions
+     * of all retained objects are checked with a single request to the server. Objects that 
+     * are still current become loaded again without reloading their images. Stale objects are
+     * refreshed from the database with a single request.
+     */
+    private void validateRetainedObjects()
+    {
+        mHasRetainedObjects = false;
+        
+        List<Persistable> retained = mClientCache.getAndClearRetainedObjects();
+        if (retained.isEmpty()) {
+            return;
+        }
+        
+        long[] oids = new long[retained.size()];
+        int idx = 0;
+        for (Persistable persistable : retained) {
+            oids[idx++] = getOID(persistable);
+        }
+        
+        long[] versions;
+        try {
+            versions = mObjectServerSession.getObjectVersions(oids);
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new ODMGRuntimeException("Could not validate cached objects", e);
+        }
+        
+        List<Persistable> staleObjects = new ArrayList<Persistable>();
+        idx = 0;
+        for (Persistable persistable : retained) {
+            long version = versions[idx++];
+            if (version == persistable.enerj_GetVersion()) {
+                persistable.enerj_SetLoaded(true);
+                if ( !isNontransactionalReadMode() && !EnerJDatabase.isAtLockLevel(persistable, EnerJTransaction.READ)) {
+                    persistable.enerj_SetLockLevel(EnerJTransaction.READ);
+                }
+            }
+            else {
+                persistable.enerj_Hollow();
+                // Objects that no longer exist are left hollow.
+                if (version != SerializedObject.NO_VERSION) {
+                    staleObjects.add(persistable);
+                }
+            }
+        }
+        
+        if (!staleObjects.isEmpty()) {
+            loadPersistables(staleObjects);
+        }
     }
     
 
@@ -427,24 +799,31 @@ public class EnerJDatabase implements Database, Persister
         if (txn == null) {
             return; // Ignore if txn not active.
         }
+        
+        if (txn.isReadOnly()) {
+            // Thrown before the object is changed.
+            throw new DatabaseIsReadOnlyException("Cannot modify an object in a read-only transaction");
+        }
 
         boolean restoreValues = txn.getRestoreValues();
         
         if (!aPersistable.enerj_IsNew() && restoreValues) {
-            savePersistableImage(aPersistable);
+            mTransactionBytes += savePersistableImage(aPersistable);
         }
         
         // Note that if we were to just call storePersistable() here, we could get
         // into a very deep recursion. See EnerJTransaction.flushAndKeepModifiedList() for more details.
         // If we're flushing, we need to add it to the iterator rather than the list.
-        if (mFlushIterator != null) {
+        if (mParallelFlushAdditions != null) {
+            mParallelFlushAdditions.add(aPersistable);
+        }
+        else if (mFlushIterator != null) {
             mFlushIterator.add(aPersistable);
         }
         else {
-            // Only flush if not restore values. Otherwise we have to keep them locally.
-            // TODO We could still flush if we loaded values back from the database.
-            if (!restoreValues && mModifiedObjects.getSize() >= mFlushLevel) {
-                flush();
+            mTransactionBytes += mAverageImageLength;
+            if (mTransactionBytes >= mHighWatermark) {
+                releaseMemory(aPersistable, restoreValues);
             }
 
             // This must be added AFTER any flush occurs otherwise PersistableHelper will mark this
@@ -453,50 +832,415 @@ public class EnerJDatabase implements Database, Persister
         }
     }
 
-    
+    
+
+    /** 
+     * 
+     * {@inheritDoc}
+     * @see org.enerj.core.Persister#clearModifiedList()
+     */
+    public void clearModifiedList()
+    {
+        mModifiedObjects.clearModifiedList();
+        mTransactionBytes = 0;
+    }
+
+
+    /**
+     * Releases memory held by the transaction once it reaches the high watermark. 
+     * See {@link #setMemoryWatermarks(long, long)}.
+     *
+     * @param aPersistable the object that is about to be modified. It is not on the modified list yet.
+     * @param restoreValues true if the transaction restores values on abort.
+     */
+    private void releaseMemory(Persistable aPersistable, boolean restoreValues)
+    {
+        if (restoreValues) {
+            if (mSavedImageFile == null) {
+                mSavedImageFile = new SavedImageFile();
+            }
+            
+            // Move the saved images to the file. 
+            spillSavedImage(aPersistable);
+            for (Iterator<Persistable> iter = getModifiedListIterator(); iter.hasNext(); ) {
+                spillSavedImage( iter.next() );
+            }
+            
+            if (mTransactionBytes <= mLowWatermark) {
+                return;
+            }
+            
+            // Flushed new objects are no longer on the modified list. Rollback needs to know about them. 
+            for (Iterator<Persistable> iter = getModifiedListIterator(); iter.hasNext(); ) {
+                Persistable persistable = iter.next();
+                if (persistable.enerj_IsNew()) {
+                    mSavedImageFile.putNewObject( persistable.enerj_GetPrivateOID() );
+                }
+            }
+        }
+        
+        // Cached objects are not hollowed. The application may hold SCOs of a clean object, and 
+        // hollowing it would detach them, so that later updates through them would be lost.
+        flush();
+    }
+
+
+    /**
+     * Moves the saved image of a Persistable, if it is in memory, to mSavedImageFile.
+     *
+     * @param aPersistable the Persistable.
+     */
+    private void spillSavedImage(Persistable aPersistable)
+    {
+        long oid = aPersistable.enerj_GetPrivateOID();
+        byte[] image = mClientCache.getAndClearSavedImage(oid);
+        if (image != null) {
+            mSavedImageFile.putImage(oid, image);
+            mTransactionBytes -= image.length;
+        }
+    }
+
+
+    /**
+     * Discards the saved images that were moved out of memory, if any.
+     */
+    private void discardSavedImageFile()
+    {
+        if (mSavedImageFile != null) {
+            mSavedImageFile.close();
+            mSavedImageFile = null;
+        }
+    }
+
+    
+
+    /** 
+     * {@inheritDoc}
+     * @see org.enerj.core.Persister#getModifiedList()
+     */
+    public ListIterator<Persistable> getModifiedListIterator()
+    {
+        return mModifiedObjects.getIterator();
+    }
+
+
+    // ...End of Persister interface.
+
+
+
+    /**
+     * Marks the start of decoding the contents of a lazy SCO (see {@link org.enerj.sco.LazySCO}) of an object
+     * of this database. The contents are decoded when the application first accesses them, which may be after 
+     * the transaction that loaded the owner if the owner's values were retained. While decoding, FCO 
+     * references are therefore resolved even if a transaction is not active. They are only resolved to 
+     * cached or hollow objects, which doesn't read the objects. Each call must be matched by a call
+     * to {@link #endLazySCODecoding()}.
+     */
+    void beginLazySCODecoding()
+    {
+        ++mLazySCODecodingDepth;
+    }
+
+
+    /**
+     * Marks the end of decoding the contents of a lazy SCO.
+     * 
+     * @see #beginLazySCODecoding()
+     */
+    void endLazySCODecoding()
+    {
+        --mLazySCODecodingDepth;
+    }
+
+
+    /**
+     * Sets whether this database instance allows non-transactional (dirty) reads.  
+     *
+     * @param isNontransactional true if non-transactional reads are allowed, other false if
+     *  reads must occur within a transaction.
+     *  
+     * @throws ODMGException if an error occurs.
+     */
+    public void setAllowNontransactionalReads(boolean isNontransactional) throws ODMGException
+    {
+        if (!mIsOpen) {
+            throw new DatabaseClosedException("Database has not been opened");
+        }
+        
+        mObjectServerSession.setAllowNontransactionalReads(isNontransactional);
+        mAllowNontransactionalReads = isNontransactional;
+    }
+
+
+    /**
+     * Sets whether the values of loaded objects are retained in the cache across transactions 
+     * (a second-level cache). When enabled, commit and abort do not discard the values of 
+     * unmodified loaded objects. The first time a retained object is accessed in a later transaction,
+     * all retained objects are validated against their commit versions on the server with a single
+     * request, and stale objects are refreshed with another single request.
+     * This may only be called if a transaction is not active. The default is false.
+     *
+     * @param isEnabled true to retain object values across transactions.
+     *
+     * @throws TransactionInProgressException if a transaction is in progress.
+     */
+    public void setSecondLevelCacheEnabled(boolean isEnabled)
+    {
+        if (isTransactionActive()) {
+            throw new TransactionInProgressException("setSecondLevelCacheEnabled can only be called when a transaction is not active");
+        }
+        
+        if (!isEnabled && mHasRetainedObjects) {
+            // The retained values can no longer be validated.
+            for (Persistable persistable : mClientCache.getAndClearRetainedObjects()) {
+                persistable.enerj_Hollow();
+            }
+            
+            mHasRetainedObjects = false;
+        }
+        
+        mSecondLevelCacheEnabled = isEnabled;
+    }
+
+
+    /**
+     * Sets whether modified objects are sent to the server as deltas. When enabled, the image 
+     * of each loaded object is kept in the cache. When a modified object is stored, only the
+     * ranges of its image that changed are sent to the server, which applies them to the stored image.
+     * Small changes to large objects then cost much less to write. The full image is sent if the 
+     * delta would not be significantly smaller. The default is false.
+     *
+     * @param isEnabled true to send deltas for modified objects.
+     */
+    public void setDeltaImagesEnabled(boolean isEnabled)
+    {
+        if (!isEnabled && mClientCache != null) {
+            mClientCache.clearBaseImages();
+        }
+        
+        mDeltaImagesEnabled = isEnabled;
+    }
+
+
+    /**
+     * Sets the memory watermarks for a transaction. The memory held by a transaction is estimated
+     * from the size of its modified objects and their saved images. When it reaches the high watermark,
+     * memory is released until it is at or below the low watermark: <p>
+     * <ul>
+     * <li>If the transaction restores values on abort, saved images are moved to a temporary file. 
+     * They are read back if the transaction is aborted.</li>
+     * <li>If that is not enough, or values are not restored, the modified objects are flushed to the server,
+     * which releases their serialized images.</li>
+     * </ul>
+     * Cached objects are not hollowed, so objects and SCOs that the application still references remain
+     * valid. Objects that the application no longer references are released by the client cache as usual.
+     * The defaults are 1MB and 256KB. 
+     *
+     * @param aHighWatermark the high watermark, in bytes.
+     * @param aLowWatermark the low watermark, in bytes. This must not be greater than aHighWatermark.
+     * 
+     * @throws IllegalArgumentException if a watermark is negative or aLowWatermark is greater than aHighWatermark.
+     */
+    public void setMemoryWatermarks(long aHighWatermark, long aLowWatermark)
+    {
+        if (aLowWatermark < 0 || aLowWatermark > aHighWatermark) {
+            throw new IllegalArgumentException("Watermarks must satisfy 0 <= low watermark <= high watermark");
+        }
+        
+        mHighWatermark = aHighWatermark;
+        mLowWatermark = aLowWatermark;
+    }
+
+
+    /**
+     * Gets the high memory watermark for a transaction.
+     *
+     * @return the high watermark, in bytes.
+     * 
+     * @see #setMemoryWatermarks(long, long)
+     */
+    public long getHighWatermark()
+    {
+        return mHighWatermark;
+    }
+
+
+    /**
+     * Gets the low memory watermark for a transaction.
+     *
+     * @return the low watermark, in bytes.
+     * 
+     * @see #setMemoryWatermarks(long, long)
+     */
+    public long getLowWatermark()
+    {
+        return mLowWatermark;
+    }
+
+
+    /**
+     * Sets whether queued objects are stored to the server by a background thread. When enabled,
+     * each batch of serialized objects is handed to the background thread and the application
+     * continues while it is stored. A limited number of batches may be outstanding. Other requests 
+     * to the server, including commit, wait for the outstanding batches. An object stored again
+     * before its previous batch is sent replaces the previous image. A batch containing an object
+     * whose index keys cannot be decoded from its image by the server is stored by the calling 
+     * thread, after the outstanding batches, because the server loads the object using this 
+     * database. This may only be called if a transaction is not active. The default is false.
+     *
+     * @param isEnabled true to store objects in the background.
+     *
+     * @throws TransactionInProgressException if a transaction is in progress.
+     */
+    public void setWriteBehindEnabled(boolean isEnabled)
+    {
+        if (isTransactionActive()) {
+            throw new TransactionInProgressException("setWriteBehindEnabled can only be called when a transaction is not active");
+        }
+        
+        if (mObjectServerSession != null && isEnabled != mWriteBehindEnabled) {
+            if (isEnabled) {
+                mObjectServerSession = WriteBehindSessionProxy.newInstance(mObjectServerSession, this, sMaxWriteBehindBatches);
+            }
+            else {
+                WriteBehindSessionProxy proxy = WriteBehindSessionProxy.getWriteBehindProxy(mObjectServerSession);
+                try {
+                    proxy.shutdown();
+                }
+                finally {
+                    mObjectServerSession = proxy.getProxiedSession();
+                }
+            }
+        }
+        
+        mWriteBehindEnabled = isEnabled;
+    }
+
+
+    /**
+     * Sets whether client-side metrics are collected for this database. When enabled, a new
+     * {@link DatabaseMetrics} is created and, while the database is open, registered with the platform 
+     * MBeanServer. Disabling metrics unregisters and discards it. When metrics are disabled, collecting
+     * them costs only a null test on each hot path. The default is false.
+     *
+     * @param isEnabled true to collect metrics.
+     * 
+     * @throws ODMGRuntimeException if the metrics cannot be registered.
+     */
+    public void setMetricsEnabled(boolean isEnabled)
+    {
+        if (isEnabled == (mMetrics != null)) {
+            return;
+        }
+        
+        if (isEnabled) {
+            DatabaseMetrics metrics = new DatabaseMetrics();
+            if (mIsOpen) {
+                try {
+                    metrics.register(mDatabaseName);
+                }
+                catch (ODMGException e) {
+                    throw new ODMGRuntimeException(e);
+                }
+            }
+            
+            mMetrics = metrics;
+        }
+        else {
+            mMetrics.unregister();
+            mMetrics = null;
+        }
+    }
+
+
+    /**
+     * Determines whether client-side metrics are collected for this database.
+     *
+     * @return true if metrics are collected.
+     */
+    public boolean isMetricsEnabled()
+    {
+        return mMetrics != null;
+    }
+
+
+    /**
+     * Gets the client-side metrics for this database.
+     *
+     * @return the metrics, or null if metrics are not enabled.
+     */
+    public DatabaseMetrics getMetrics()
+    {
+        return mMetrics;
+    }
+
+
+    /**
+     * Determines whether queued objects are stored to the server by a background thread.
+     *
+     * @return true if objects are stored in the background.
+     */
+    public boolean isWriteBehindEnabled()
+    {
+        return mWriteBehindEnabled;
+    }
+
 
-    /** 
+    /**
+     * Sets the number of threads used to serialize modified objects when they are flushed to the 
+     * server. Objects are serialized independently of each other, so a large flush or commit can 
+     * use multiple processors. New objects that are first reached while serializing other objects 
+     * are serialized in a subsequent pass. The serialized images are always queued in OID order. 
+     * The default is 1, which serializes the objects on the caller's thread.
+     *
+     * @param aThreadCount the number of threads, which must be at least 1.
      * 
-     * {@inheritDoc}
-     * @see org.enerj.core.Persister#clearModifiedList()
+     * @throws IllegalArgumentException if aThreadCount is less than 1.
      */
-    public void clearModifiedList()
+    public void setFlushThreadCount(int aThreadCount)
     {
-        mModifiedObjects.clearModifiedList();
+        if (aThreadCount < 1) {
+            throw new IllegalArgumentException("Flush thread count must be at least 1");
+        }
+        
+        if (aThreadCount != mFlushThreadCount) {
+            shutdownFlushExecutor();
+        }
+        
+        mFlushThreadCount = aThreadCount;
     }
 
-    
 
-    /** 
-     * {@inheritDoc}
-     * @see org.enerj.core.Persister#getModifiedList()
+    /**
+     * Gets the number of threads used to serialize modified objects when they are flushed to the server.
+     *
+     * @return the number of threads.
      */
-    public ListIterator<Persistable> getModifiedListIterator()
+    public int getFlushThreadCount()
     {
-        return mModifiedObjects.getIterator();
+        return mFlushThreadCount;
     }
 
 
-    // ...End of Persister interface.
-
+    /**
+     * Determines whether modified objects are sent to the server as deltas.
+     *
+     * @return true if deltas are sent for modified objects.
+     */
+    public boolean isDeltaImagesEnabled()
+    {
+        return mDeltaImagesEnabled;
+    }
 
 
     /**
-     * Sets whether this database instance allows non-transactional (dirty) reads.  
+     * Determines whether the values of loaded objects are retained in the cache across transactions.
      *
-     * @param isNontransactional true if non-transactional reads are allowed, other false if
-     *  reads must occur within a transaction.
-     *  
-     * @throws ODMGException if an error occurs.
+     * @return true if object values are retained across transactions.
      */
-    public void setAllowNontransactionalReads(boolean isNontransactional) throws ODMGException
+    public boolean isSecondLevelCacheEnabled()
     {
-        if (!mIsOpen) {
-            throw new DatabaseClosedException("Database has not been opened");
-        }
-        
-        mObjectServerSession.setAllowNontransactionalReads(isNontransactional);
-        mAllowNontransactionalReads = isNontransactional;
+        return mSecondLevelCacheEnabled;
     }
 
 
@@ -521,7 +1265,25 @@ public class EnerJDatabase implements Database, Persister
             return;
         }
 
-        long cid = aPersistable.enerj_GetClassId();
+        long oid = prepareToStore(aPersistable);
+
+        // The image is written to the batch buffer, which is reset when the queue is flushed.
+        int imageOffset = mImageWriter.write(aPersistable);
+        queueImage(aPersistable, oid, mImageWriter.getBuffer(), imageOffset, mImageWriter.size() - imageOffset);
+    }
+
+
+    /**
+     * Verifies that a Persistable can be stored and assigns its OID and Persister if necessary.
+     *
+     * @param aPersistable the persistable object to be stored.
+     * 
+     * @return the OID of aPersistable.
+     * 
+     * @throws ODMGRuntimeException if the object cannot be stored.
+     */
+    private long prepareToStore(Persistable aPersistable)
+    {
         long oid = getOID(aPersistable);
 
         // Error if object is not loaded or not new at this point.
@@ -544,10 +1306,59 @@ public class EnerJDatabase implements Database, Persister
         if (oid == ObjectSerializer.NULL_OID) {
             throw new ODMGRuntimeException("OID for object " + aPersistable.getClass() + " is null.");
         }
+        
+        return oid;
+    }
 
-        byte[] objectBytes = PersistableHelper.createSerializedImage(aPersistable);
+
+    /**
+     * Queues the serialized image of a Persistable to be stored and marks the Persistable as stored.
+     *
+     * @param aPersistable the persistable object being stored.
+     * @param anOID the OID of aPersistable.
+     * @param aBuffer the buffer containing the image, in the format written by mImageWriter. 
+     *  It must <em>NOT</em> be modified until the queue is flushed.
+     * @param anOffset the offset of the image in aBuffer.
+     * @param aLength the length of the image.
+     */
+    private void queueImage(Persistable aPersistable, long anOID, byte[] aBuffer, int anOffset, int aLength)
+    {
+        long cid = aPersistable.enerj_GetClassId();
+        long version = aPersistable.enerj_GetVersion() + 1;
+        mAverageImageLength += (aLength - mAverageImageLength) / 8;
         try {
-            addToSerializedObjectQueue(aPersistable.enerj_GetClassId(), oid, objectBytes, aPersistable.enerj_IsNew() );
+            byte[] delta = null;
+            if (mDeltaImagesEnabled) {
+                byte[] objectBytes = aBuffer;
+                if (anOffset != 0 || aLength != aBuffer.length) {
+                    objectBytes = new byte[aLength];
+                    System.arraycopy(aBuffer, anOffset, objectBytes, 0, aLength);
+                }
+                
+                byte[] baseImage = mClientCache.getBaseImage(anOID);
+                if (baseImage != null && !aPersistable.enerj_IsNew()) {
+                    delta = ImageDeltaUtil.createDelta(baseImage, objectBytes);
+                }
+                
+                mClientCache.setBaseImage(anOID, objectBytes);
+            }
+            
+            SerializedObject serializedObject;
+            if (delta != null) {
+                serializedObject = new SerializedObject(anOID, cid, delta, false, version);
+                serializedObject.setIsDelta(true);
+            }
+            else {
+                serializedObject = new SerializedObject(anOID, cid, aBuffer, anOffset, aLength, 
+                                aPersistable.enerj_IsNew(), version);
+            }
+            
+            serializedObject.setImageFormat( mImageWriter.getFormat() );
+            
+            checkIndexKeysDecodable( aPersistable.getClass() );
+            addToSerializedObjectQueue(serializedObject);
+            
+            aPersistable.enerj_SetVersion(version);
             // This will be write-locked by the server.
             aPersistable.enerj_SetLockLevel(EnerJTransaction.WRITE); 
         }
@@ -555,7 +1366,7 @@ public class EnerJDatabase implements Database, Persister
             throw e;
         }
         catch (Exception e) {
-            throw new ODMGRuntimeException("Could not store object. OID=" + oid, e);
+            throw new ODMGRuntimeException("Could not store object. OID=" + anOID, e);
         }
 
         // It's not modified or new anymore (to the client's view), but it is loaded.
@@ -571,24 +1382,23 @@ public class EnerJDatabase implements Database, Persister
      * The method {@link #flushSerializedObjectQueue()} must be 
      * called after the caller has finished storing objects. 
      *
-     * @param aCID the CID for the object.
-     * @param anOID the OID of the object.
-     * @param aSerializedObject the object serialized to a byte array. This
-     *  array must <em>NOT</em> be reused by the caller after this call completes.
-     *  I.e., the caller should allocate a new byte array for each call to this method.
-     * @param isNew true if this is a new object in the database.
+     * @param aSerializedObject the serialized object. Its image buffer must <em>NOT</em> be 
+     *  modified by the caller until the queue is flushed.
      *
      * @throws ODMGException in the event of an error.
      * 
      * TODO This and {@link #flushSerializedObjectQueue()} should be its own class.
      */
-    private void addToSerializedObjectQueue(long aCID, long anOID, byte[] aSerializedObject, boolean isNew)
-        throws ODMGException
+    private void addToSerializedObjectQueue(SerializedObject aSerializedObject) throws ODMGException
     {
-        mSerializedObjectQueue.add( new SerializedObject(anOID, aCID, aSerializedObject, isNew) );
-        mSerializedObjectQueueSize += aSerializedObject.length;
+        mSerializedObjectQueue.add(aSerializedObject);
+        mSerializedObjectQueueSize += aSerializedObject.getImageLength();
+        if (mMetrics != null) {
+            mMetrics.recordSerializedImage( aSerializedObject.getImageLength() );
+        }
         
-        if (mSerializedObjectQueueSize >= sMaxSerializedObjectQueueSize) {
+        int maxSize = (mBulkLoadQueue == null ? sMaxSerializedObjectQueueSize : sMaxBulkLoadQueueSize);
+        if (mSerializedObjectQueueSize >= maxSize) {
             flushSerializedObjectQueue();
         }
     }
@@ -605,8 +1415,29 @@ public class EnerJDatabase implements Database, Persister
     public void flushSerializedObjectQueue() throws ODMGException
     {
         SerializedObject[] objects = mSerializedObjectQueue.toArray(new SerializedObject[ mSerializedObjectQueue.size() ]);
+        long startNanos = (mMetrics == null ? 0L : System.nanoTime());
         try {
-            mObjectServerSession.storeObjects(objects);
+            WriteBehindSessionProxy proxy = null;
+            if (mIsQueueStoredInThread) {
+                proxy = WriteBehindSessionProxy.getWriteBehindProxy(mObjectServerSession);
+            }
+            
+            if (proxy != null) {
+                // The Persister is needed to create index keys, and it may only be used by this thread.
+                proxy.waitForOutstandingBatches();
+                proxy.getProxiedSession().storeObjects(objects);
+            }
+            else {
+                mObjectServerSession.storeObjects(objects);
+            }
+            
+            if (mMetrics != null) {
+                mMetrics.recordStoreObjects(startNanos);
+            }
+            
+            if (mBulkLoadQueuedObjects != null) {
+                mBulkLoadQueuedObjects.clear();
+            }
         }
         catch (RuntimeException e) {
             throw new ODMGException("Could not store object.", e);
@@ -614,6 +1445,80 @@ public class EnerJDatabase implements Database, Persister
         finally {
             mSerializedObjectQueue.clear();
             mSerializedObjectQueueSize = 0;
+            mIsQueueStoredInThread = false;
+            if (mWriteBehindEnabled && mImageWriter.size() > 0) {
+                // The queued images still refer to the buffer until they are stored in the background.
+                mImageWriter = new ImageWriter( mImageWriter.getFormat() );
+            }
+            else {
+                mImageWriter.reset();
+            }
+        }
+    }
+    
+
+    /**
+     * Checks whether the index keys of an object being queued can be decoded from its image by 
+     * the server. If they can't, the server loads the object using this database as the Persister, 
+     * so the queue must be stored on this thread rather than by the write-behind thread. 
+     *
+     * @param aPersistableClass the class of the object.
+     */
+    private void checkIndexKeysDecodable(Class aPersistableClass)
+    {
+        if (!mWriteBehindEnabled || mIsQueueStoredInThread) {
+            return;
+        }
+        
+        Boolean areDecodable = mAreIndexKeysDecodable.get(aPersistableClass);
+        if (areDecodable == null) {
+            areDecodable = Boolean.TRUE;
+            List<IndexSchema> indexes = new ArrayList<IndexSchema>();
+            for (Class cls = aPersistableClass; cls != null && Persistable.class.isAssignableFrom(cls); cls = cls.getSuperclass()) {
+                collectIndexAnnotations(cls, null, indexes);
+                for (Field field : cls.getDeclaredFields()) {
+                    collectIndexAnnotations(field, field.getName(), indexes);
+                }
+                
+                for (Method method : cls.getDeclaredMethods()) {
+                    collectIndexAnnotations(method, method.getName(), indexes);
+                }
+            }
+            
+            for (IndexSchema index : indexes) {
+                if (PartialImageDecoder.create(aPersistableClass, index.getProperties()) == null) {
+                    areDecodable = Boolean.FALSE;
+                    break;
+                }
+            }
+            
+            mAreIndexKeysDecodable.put(aPersistableClass, areDecodable);
+        }
+        
+        mIsQueueStoredInThread = !areDecodable;
+    }
+    
+    /**
+     * Collects the indexes defined by the @Index and @Indexes annotations on the given element.
+     *
+     * @param anAnnotatedElement the element to be examined.
+     * @param aPropertyName if not null, defines the single property for this index.
+     * @param someIndexes the list receiving the indexes.
+     */
+    private static void collectIndexAnnotations(AnnotatedElement anAnnotatedElement, String aPropertyName, List<IndexSchema> someIndexes)
+    {
+        Index indexAnn = anAnnotatedElement.getAnnotation(Index.class);
+        if (indexAnn != null && (indexAnn.properties().length > 0 || aPropertyName != null)) {
+            someIndexes.add( new IndexSchema(indexAnn, aPropertyName) );
+        }
+        
+        Indexes indexesAnn = anAnnotatedElement.getAnnotation(Indexes.class);
+        if (indexesAnn != null) {
+            for (Index anno : indexesAnn.value()) {
+                if (anno.properties().length > 0 || aPropertyName != null) {
+                    someIndexes.add( new IndexSchema(anno, aPropertyName) );
+                }
+            }
         }
     }
     
@@ -645,7 +1550,7 @@ public class EnerJDatabase implements Database, Persister
 
         // Check if we already know that the database has this CID in the schema.
         long cid = schemaAnn.classID();
-        if (mKnownSchemaCIDs.contains(cid)) {
+        if (mKnownSchemaCIDs.contains(cid) || mNewSchemaCIDs.contains(cid)) {
             return;
         }
         
@@ -677,8 +1582,9 @@ public class EnerJDatabase implements Database, Persister
             throw new ODMGRuntimeException("Error adding new ClassVersionSchema", e);
         }
         
-        // Cache the fact that it is known in the schema.
-        mKnownSchemaCIDs.add(cid);
+        // Cache the fact that it is known in the schema. Other databases sharing mKnownSchemaCIDs 
+        // only see it after commit.
+        mNewSchemaCIDs.add(cid);
 
         // Loop thru super types of this class and add schema/index for them too.
         for (String superTypeName : superTypeNames) {
@@ -747,8 +1653,10 @@ public class EnerJDatabase implements Database, Persister
      * Saves a serialized image of the Persistable in the cache.
      *
      * @param aPersistable the Persistable to be saved.
+     * 
+     * @return the length of the saved image.
      */
-    void savePersistableImage(Persistable aPersistable)
+    int savePersistableImage(Persistable aPersistable)
     {
         checkBoundTransaction();
         
@@ -759,6 +1667,7 @@ public class EnerJDatabase implements Database, Persister
         }
         
         mClientCache.setSavedImage(oid, objectBytes);
+        return objectBytes.length;
     }
     
 
@@ -778,6 +1687,10 @@ public class EnerJDatabase implements Database, Persister
         }
         
         byte[] image = mClientCache.getAndClearSavedImage(oid);
+        if (image == null && mSavedImageFile != null) {
+            image = mSavedImageFile.removeImage(oid);
+        }
+        
         if (image != null) {
             PersistableHelper.loadSerializedImage(this, aPersistable, image);
         }
@@ -899,14 +1812,71 @@ public class EnerJDatabase implements Database, Persister
      */
     private long addNewPersistable(Persistable aPersistable)
     {
-        checkBoundTransaction();
+        checkWritableTransaction();
+
+        return registerNewPersistable(aPersistable);
+    }
+
+
+    /**
+     * Adds a new Persistable to this database while modified objects are being serialized in
+     * parallel. This may be called by any of the serializing threads, which are not bound to the 
+     * transaction.
+     *
+     * @param aPersistable the persistable object to be added.
+     *
+     * @return the OID of the persistable.
+     */
+    private long addNewPersistableDuringParallelFlush(Persistable aPersistable)
+    {
+        synchronized (mParallelFlushAdditions) {
+            // Another thread may have added it while we were waiting.
+            long oid = aPersistable.enerj_GetPrivateOID();
+            if (oid != ObjectSerializer.NULL_OID) {
+                return oid;
+            }
+            
+            return registerNewPersistable(aPersistable);
+        }
+    }
+
 
+    /**
+     * Assigns an OID to a new Persistable, adds it to the modified list, and caches it.
+     *
+     * @param aPersistable the persistable object to be added.
+     *
+     * @return the OID of the persistable.
+     */
+    private long registerNewPersistable(Persistable aPersistable)
+    {
         // Make sure that the schema has this persistable's class version.
         updateSchema(aPersistable);
 
-        long oidx = getNewOIDX();
-        // We need to get the CIDX to create the OID. Check the cache first.
-        // Retrieve ClassInfo for these OIDs.
+        long oid = OIDUtil.createOID(getCIDX(aPersistable), getNewOIDX());
+        
+        PersistableHelper.setOID(this, oid, aPersistable);
+
+        // Add it to modified list. Must be done _after_ OID is set.
+        addToModifiedList(aPersistable);
+        
+        // Cache it
+        mClientCache.add(oid, aPersistable);
+        
+        return oid;
+    }
+
+
+    /**
+     * Gets the CIDX of a Persistable's class, which is needed to create an OID.
+     *
+     * @param aPersistable the persistable object.
+     *
+     * @return the CIDX.
+     */
+    private int getCIDX(Persistable aPersistable)
+    {
+        // Check the cache first.
         long cid = aPersistable.enerj_GetClassId();
         int cidx = 0;
         if (SystemCIDMap.isSystemCID(cid)) {
@@ -933,17 +1903,175 @@ public class EnerJDatabase implements Database, Persister
             cidx = classInfo.getCIDX();
         }
         
-        long oid = OIDUtil.createOID(cidx, oidx);
-        
+        return cidx;
+    }
+
+
+    /**
+     * Assigns an OID to a new Persistable reached during a bulk load, caches it, and queues it to be stored.
+     *
+     * @param aPersistable the persistable object to be added.
+     *
+     * @return the OID of the persistable.
+     */
+    private long addBulkLoadPersistable(Persistable aPersistable)
+    {
+        updateSchema(aPersistable);
+
+        long oid = OIDUtil.createOID(getCIDX(aPersistable), getNewOIDX());
         PersistableHelper.setOID(this, oid, aPersistable);
+        mBulkLoadQueue.add(aPersistable);
+        mClientCache.add(oid, aPersistable);
+        return oid;
+    }
 
-        // Add it to modified list. Must be done _after_ OID is set.
-        addToModifiedList(aPersistable);
+
+    /**
+     * Stores a large number of new objects, along with the new objects reachable from them, much faster
+     * than makePersistent() in a transaction. The objects are streamed from an Iterator, so the caller
+     * does not need to hold them all in memory. Objects are not added to the modified list, OIDs are allocated
+     * in large blocks, and the server stores them in OID order using bulk-load mode (see 
+     * {@link ObjectServerSession#beginBulkLoad(boolean)}).
+     * <p>
+     * A transaction must not be active on this database. The load is not atomic: if it fails, some of
+     * the objects may have been stored. Stored objects become non-transactional, as if they were retained after
+     * a commit. Objects that were not stored are new again. The caller must bind the stored objects, or 
+     * reference them from other persistent objects, in a later transaction for them to be reachable by name. 
+     * <p>
+     * If index updates are deferred, indexes are rebuilt once after all objects are stored. This is
+     * faster for large loads, but the bulk load waits until no other transactions are active and 
+     * blocks other transactions until it completes.
+     *
+     * @param someObjects an Iterator of new persistable objects. Objects that were already stored because
+     *  they were reachable from a previous object are skipped.
+     * @param shouldDeferIndexes if true, index updates are deferred until all objects are stored.
+     * 
+     * @return the number of objects stored, including the reachable objects.
+     * 
+     * @throws DatabaseClosedException if the database is not open.
+     * @throws TransactionInProgressException if a transaction is active on this database.
+     * @throws ClassNotPersistenceCapableException if an object is not persistable.
+     * @throws ODMGException if an error occurs.
+     */
+    public long bulkLoad(Iterator<?> someObjects, boolean shouldDeferIndexes) throws ODMGException
+    {
+        if (!mIsOpen) {
+            throw new DatabaseClosedException("Database has not been opened");
+        }
         
-        // Cache it
-        mClientCache.add(oid, aPersistable);
+        if (mBoundToTransaction != null) {
+            throw new TransactionInProgressException("Transaction is in progress on the database");
+        }
         
-        return oid;
+        mObjectServerSession.beginBulkLoad(shouldDeferIndexes);
+        mNewSchemaCIDs.clear();
+        mBulkLoadQueue = new ArrayList<Persistable>();
+        mBulkLoadQueuedObjects = new ArrayList<Persistable>();
+        mOIDXBlockSize = sMaxOIDXBlockSize;
+        long count = 0;
+        boolean isStored = false;
+        try {
+            while (someObjects.hasNext()) {
+                Object object = someObjects.next();
+                if ( !(object instanceof Persistable)) {
+                    throw new ClassNotPersistenceCapableException("Object of class " + object.getClass().getName() + " is not persistable");
+                }
+                
+                Persistable persistable = (Persistable)object;
+                if (!persistable.enerj_IsNew()) {
+                    if (persistable.enerj_GetPersister() == this) {
+                        continue; // Already stored.
+                    }
+                    
+                    throw new ODMGRuntimeException("Only new objects can be bulk loaded");
+                }
+                
+                getOID(persistable);
+                
+                // Storing an object may queue the new objects that it references.
+                for (int i = 0; i < mBulkLoadQueue.size(); i++) {
+                    storeBulkLoadPersistable( mBulkLoadQueue.get(i) );
+                }
+                
+                count += mBulkLoadQueue.size();
+                mBulkLoadQueue.clear();
+            }
+            
+            flushSerializedObjectQueue();
+            isStored = true;
+        }
+        finally {
+            if (!isStored) {
+                mSerializedObjectQueue.clear();
+                mSerializedObjectQueueSize = 0;
+                mImageWriter.reset();
+                resetUnstoredBulkLoadObjects();
+            }
+            
+            mBulkLoadQueue = null;
+            mBulkLoadQueuedObjects = null;
+            
+            try {
+                returnUnusedOIDXs();
+            }
+            finally {
+                mObjectServerSession.endBulkLoad();
+            }
+        }
+        
+        publishNewSchemaCIDs();
+        return count;
+    }
+
+
+    /**
+     * Queues the image of a new object during a bulk load, and makes the object non-transactional.
+     *
+     * @param aPersistable the object to be stored.
+     * 
+     * @throws ODMGException if an error occurs.
+     */
+    private void storeBulkLoadPersistable(Persistable aPersistable) throws ODMGException
+    {
+        long version = aPersistable.enerj_GetVersion() + 1;
+        int imageOffset = mImageWriter.write(aPersistable);
+        SerializedObject serializedObject = new SerializedObject(aPersistable.enerj_GetPrivateOID(), 
+                        aPersistable.enerj_GetClassId(), mImageWriter.getBuffer(), imageOffset, 
+                        mImageWriter.size() - imageOffset, true, version);
+        serializedObject.setImageFormat( mImageWriter.getFormat() );
+        checkIndexKeysDecodable( aPersistable.getClass() );
+
+        aPersistable.enerj_SetVersion(version);
+        aPersistable.enerj_SetNew(false);
+        aPersistable.enerj_SetModified(false);
+        aPersistable.enerj_SetLoaded(true);
+        PersistableHelper.setNonTransactional(aPersistable);
+        
+        // Queueing the image may flush the queue, which includes this object.
+        mBulkLoadQueuedObjects.add(aPersistable);
+        addToSerializedObjectQueue(serializedObject);
+    }
+
+
+    /**
+     * Makes the objects of a failed bulk load whose images were not stored new again. They are evicted 
+     * from the cache and their OIDs are cleared, so that they can be stored again.
+     */
+    private void resetUnstoredBulkLoadObjects()
+    {
+        List<Persistable> unstoredObjects = new ArrayList<Persistable>(mBulkLoadQueuedObjects);
+        for (Persistable persistable : mBulkLoadQueue) {
+            // Objects that were not queued yet are still new.
+            if (persistable.enerj_IsNew()) {
+                unstoredObjects.add(persistable);
+            }
+        }
+        
+        for (Persistable persistable : unstoredObjects) {
+            mClientCache.evict( persistable.enerj_GetPrivateOID() );
+            PersistableHelper.initPersistable(persistable);
+            persistable.enerj_SetVersion(0);
+        }
     }
 
 
@@ -961,6 +2089,24 @@ public class EnerJDatabase implements Database, Persister
     }
 
 
+    /**
+     * Checks that the database is open, it currently bound to a transaction that
+     * is not read-only, and that the transaction is current for the caller's thread.
+     *
+     * @throws TransactionNotInProgressException if a transaction is not bound,
+     * or the transaction belongs to a different thread.
+     * @throws DatabaseClosedException if the database has not been opened yet.
+     * @throws DatabaseIsReadOnlyException if the transaction is read-only.
+     */
+    private void checkWritableTransaction()
+    {
+        checkBoundTransaction();
+        if (mBoundToTransaction.isReadOnly()) {
+            throw new DatabaseIsReadOnlyException("Transaction is read-only");
+        }
+    }
+
+
     /**
      * Checks that the database is open, it currently bound to a transaction,
      * and that the transaction is current for the caller's thread.
@@ -978,8 +2124,8 @@ public class EnerJDatabase implements Database, Persister
         }
         
         if (mBoundToTransaction == null) {
-            if (readOnly && mAllowNontransactionalReads) {
-                return; // That's all we need to check
+            if (readOnly && (mAllowNontransactionalReads || mBulkLoadQueue != null)) {
+                return; // That's all we need to check. Index keys are created from objects during a bulk load.
             }
 
             throw new TransactionNotInProgressException("Transaction not in progress on the database");
@@ -1008,6 +2154,58 @@ public class EnerJDatabase implements Database, Persister
     }
     
 
+    /**
+     * Returns the unused OIDXs of the current block to the server. The block size is reduced
+     * if most of the block was not used.
+     */
+    private void returnUnusedOIDXs()
+    {
+        if (mOIDXCache == null) {
+            return;
+        }
+        
+        int numUnused = mOIDXCache.length - mOIDXCachePosition;
+        if (numUnused > mOIDXCache.length / 2) {
+            mOIDXBlockSize = Math.max(mOIDXBlockSize / 2, sMinOIDXBlockSize);
+        }
+        
+        if (numUnused > 0) {
+            long[] unusedOIDXs = new long[numUnused];
+            System.arraycopy(mOIDXCache, mOIDXCachePosition, unusedOIDXs, 0, numUnused);
+            try {
+                mObjectServerSession.returnUnusedOIDXs(unusedOIDXs);
+            }
+            catch (RuntimeException e) {
+                throw e;
+            }
+            catch (Exception e) {
+                throw new ODMGRuntimeException("Could not return unused OIDs", e);
+            }
+        }
+        
+        mOIDXCache = null;
+        mOIDXCachePosition = 0;
+    }
+
+
+    /**
+     * Returns the unused OIDXs of the current block to the server after the transaction has ended. 
+     * The outcome of the transaction doesn't depend on this, so a failure is only logged and the 
+     * block is discarded. Its unused OIDXs are then never allocated.
+     */
+    private void returnUnusedOIDXsAfterTransaction()
+    {
+        try {
+            returnUnusedOIDXs();
+        }
+        catch (RuntimeException e) {
+            sLogger.log(Level.WARNING, "Could not return unused OIDs", e);
+            mOIDXCache = null;
+            mOIDXCachePosition = 0;
+        }
+    }
+
+
     /**
      * Gets a new OID.
      *
@@ -1019,8 +2217,13 @@ public class EnerJDatabase implements Database, Persister
     private long getNewOIDX()
     {
         if (mOIDXCache == null || mOIDXCachePosition >= mOIDXCache.length) {
+            if (mOIDXCache != null) {
+                // The transaction used a whole block, so it may create many more objects.
+                mOIDXBlockSize = Math.min(mOIDXBlockSize * 2, sMaxOIDXBlockSize);
+            }
+            
             try {
-                mOIDXCache = mObjectServerSession.getNewOIDXBlock(10);
+                mOIDXCache = mObjectServerSession.getNewOIDXBlock(mOIDXBlockSize);
             }
             catch (RuntimeException e) {
                 throw e;
@@ -1184,14 +2387,20 @@ public class EnerJDatabase implements Database, Persister
         props.setProperty(ENERJ_CLIENT_LOCAL, Boolean.toString(mIsLocal));
         
         mObjectServerSession = (ObjectServerSession)PluginHelper.connect(null, props);
+        if (mWriteBehindEnabled) {
+            mObjectServerSession = WriteBehindSessionProxy.newInstance(mObjectServerSession, this, sMaxWriteBehindBatches);
+        }
 
         // TODO Allow cache size to be set.
         mClientCache = new DefaultPersistableObjectCache(5000);
         mModifiedObjects = new ModifiedPersistableList();
         mSerializedObjectQueue = new ArrayList<SerializedObject>(100);
-        mKnownSchemaCIDs = new HashSet<Long>(127);
-        mCachedClassInfoByCIDX = new HashMap<Integer, ClassInfo>(100);
-        mCachedClassInfoByCID = new HashMap<Long, ClassInfo>(100);
+        mImageWriter = new ImageWriter(ObjectSerializer.IMAGE_FORMAT_V2);
+        // These may be shared with other databases by shareSchemaCaches(), so they must be thread-safe.
+        mKnownSchemaCIDs = Collections.synchronizedSet( new HashSet<Long>(127) );
+        mNewSchemaCIDs = new HashSet<Long>();
+        mCachedClassInfoByCIDX = new ConcurrentHashMap<Integer, ClassInfo>(100);
+        mCachedClassInfoByCID = new ConcurrentHashMap<Long, ClassInfo>(100);
 
         // Initialize CID map with known system CIDs.
         // This is so we don't try to update the schema with system CIDs, since they
@@ -1216,9 +2425,74 @@ public class EnerJDatabase implements Database, Persister
         sCurrentDatabaseForThread.set(this);
 
         PersisterRegistry.pushPersisterForThread(this);
+        mDatabaseName = dbname;
         mIsOpen = true;
+        
+        if (mMetrics != null) {
+            try {
+                mMetrics.register(mDatabaseName);
+            }
+            catch (ODMGException e) {
+                close();
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * Adds the CIDs added to the schema by the committed transaction or bulk load to the known CIDs, 
+     * which may be shared with other databases.
+     */
+    private void publishNewSchemaCIDs()
+    {
+        mKnownSchemaCIDs.addAll(mNewSchemaCIDs);
+        mNewSchemaCIDs.clear();
+    }
+
+
+    /**
+     * Makes this database use the schema and ClassInfo caches of another open database of the same
+     * database name. The caches only hold information that does not change once it is in the schema.
+     *
+     * @param aDatabase the database whose caches are shared.
+     * 
+     * @throws DatabaseClosedException if either database is not open.
+     */
+    void shareSchemaCaches(EnerJDatabase aDatabase)
+    {
+        if (!mIsOpen || !aDatabase.mIsOpen) {
+            throw new DatabaseClosedException("Database is not open");
+        }
+        
+        mKnownSchemaCIDs = aDatabase.mKnownSchemaCIDs;
+        mCachedClassInfoByCIDX = aDatabase.mCachedClassInfoByCIDX;
+        mCachedClassInfoByCID = aDatabase.mCachedClassInfoByCID;
+    }
+
+
+    /**
+     * Makes this database the current database and Persister for the caller's thread, as 
+     * open() does for the opening thread.
+     */
+    void attachToThread()
+    {
+        sCurrentDatabaseForThread.set(this);
+        PersisterRegistry.pushPersisterForThread(this);
+    }
+
+
+    /**
+     * Reverses attachToThread() for the caller's thread.
+     */
+    void detachFromThread()
+    {
+        PersisterRegistry.popPersisterForThread(this);
+        if (sCurrentDatabaseForThread.get() == this) {
+            sCurrentDatabaseForThread.remove();
+        }
     }
     
+    
     /** 
      * {@inheritDoc}
      * @see org.odmg.Database#close()
@@ -1241,10 +2515,19 @@ public class EnerJDatabase implements Database, Persister
             mClientCache = null;
             mModifiedObjects = null;
             mSerializedObjectQueue = null;
+            mImageWriter = null;
+            shutdownFlushExecutor();
+            discardSavedImageFile();
             mBoundToTransaction = null;
             mKnownSchemaCIDs = null;
+            mNewSchemaCIDs = null;
             mCachedClassInfoByCIDX = null;
             mCachedClassInfoByCID = null;
+            if (mMetrics != null) {
+                mMetrics.unregister();
+            }
+            
+            mDatabaseName = null;
             mIsOpen = false;
             mIsLocal = false;
         
@@ -1268,7 +2551,7 @@ public class EnerJDatabase implements Database, Persister
 
     public void bind(Object object, String name) throws ObjectNameNotUniqueException 
     {
-        checkBoundTransaction();
+        checkWritableTransaction();
         
         if ( !(object instanceof Persistable)) {
             throw new ClassNotPersistenceCapableException("Object is not persistable");
@@ -1280,7 +2563,7 @@ public class EnerJDatabase implements Database, Persister
 
     public void unbind(String name) throws ObjectNameNotFoundException 
     {
-        checkBoundTransaction();
+        checkWritableTransaction();
         mObjectServerSession.unbind(name);
     }
     
@@ -1306,7 +2589,7 @@ public class EnerJDatabase implements Database, Persister
      */
     public void makePersistent(Object object) 
     {
-        checkBoundTransaction();
+        checkWritableTransaction();
         if ( !(object instanceof Persistable)) {
             throw new ClassNotPersistenceCapableException("Object of class " + object.getClass().getName() + " is not persistable");
         }
@@ -1334,7 +2617,7 @@ public class EnerJDatabase implements Database, Persister
      */
     public void deletePersistent(Object object) 
     {
-        checkBoundTransaction();
+        checkWritableTransaction();
         // Force remove from extent, update comment
         if ( !(object instanceof Persistable)) {
             throw new ODMGRuntimeException("Object is not persistable");
@@ -1376,6 +2659,19 @@ public class EnerJDatabase implements Database, Persister
         return new EnerJExtent(this, aPersistentCapableClass, wantSubClassInstances);
     }
     
+    /**
+     * Gets an Extent for a partition of an Extent. The partition may have been 
+     * created by a different EnerJDatabase.
+     *
+     * @param aPartition the partition, returned from {@link Extent#split(int)}.
+     * 
+     * @return the Extent, which contains only the instances in the partition.
+     */
+    public Extent getExtent(ExtentPartition aPartition)
+    {
+        return new EnerJExtent(this, aPartition);
+    }
+    
     /**
      * Get the number of objects in the Extent.
      * 
@@ -1403,6 +2699,41 @@ public class EnerJDatabase implements Database, Persister
         return mObjectServerSession.createExtentIterator(aPersistentCapableClass.getName(), wantSubClassInstances);
     }
     
+    /**
+     * Gets an extent iterator for a partition of an extent. For Ener-J internal use only.
+     * Clients should use getExtent(ExtentPartition).iterator().
+     *
+     * @param aPartition the partition.
+     * 
+     * @return the DBIterator.
+     */
+    DBIterator getExtentIterator(ExtentPartition aPartition)
+    {
+        return mObjectServerSession.createExtentIterator(aPartition.getCandidateClass().getName(), aPartition.hasSubclasses(),
+                    aPartition.getStartOID(), aPartition.getEndOID());
+    }
+    
+    /**
+     * Splits an extent into partitions. For Ener-J internal use only.
+     * Clients should use getExtent().split().
+     *
+     * @param aPersistentCapableClass the class of the extent.
+     * @param wantSubClassInstances true if subclasses should be included in the extent.
+     * @param aMaxNumPartitions the maximum number of partitions.
+     * 
+     * @return the partitions.
+     */
+    List<ExtentPartition> splitExtent(Class<?> aPersistentCapableClass, boolean wantSubClassInstances, int aMaxNumPartitions)
+    {
+        long[] boundaries = mObjectServerSession.splitExtent(aPersistentCapableClass.getName(), wantSubClassInstances, aMaxNumPartitions);
+        List<ExtentPartition> partitions = new ArrayList<ExtentPartition>(aMaxNumPartitions);
+        for (int i = 0; i < boundaries.length - 1; i++) {
+            partitions.add( new ExtentPartition(aPersistentCapableClass, wantSubClassInstances, boundaries[i], boundaries[i + 1]) );
+        }
+        
+        return partitions;
+    }
+    
     /**
      * Determines the number of objects in an Index key range.
      *
@@ -1488,6 +2819,7 @@ public class EnerJDatabase implements Database, Persister
 
         // Clear-out any remnants of a previous transaction. 
         clearModifiedList();
+        mNewSchemaCIDs.clear();
         getClientCache().clearPrefetches();
 
         // On error, this must be cleared.
@@ -1496,7 +2828,15 @@ public class EnerJDatabase implements Database, Persister
         setTransaction(aTransaction);
         
         try {
-            mObjectServerSession.beginTransaction();
+            if (aTransaction.isReadOnly()) {
+                mObjectServerSession.beginReadOnlyTransaction();
+            }
+            else if (aTransaction.isOptimistic()) {
+                mObjectServerSession.beginOptimisticTransaction();
+            }
+            else {
+                mObjectServerSession.beginTransaction();
+            }
         }
         catch (RuntimeException e) {
             setTransaction(null);
@@ -1511,7 +2851,7 @@ public class EnerJDatabase implements Database, Persister
      */
     void flush()
     {
-        if (mFlushIterator != null) {
+        if (mFlushIterator != null || mParallelFlushAdditions != null) {
             return; // Prevent reentrancy
         }
         
@@ -1530,29 +2870,16 @@ public class EnerJDatabase implements Database, Persister
      */
     private void flushAndKeepModifiedList()
     {
+        if (mMetrics != null) {
+            mMetrics.recordFlush();
+        }
+        
         try {
-            // Note that we start an iterator each item. We do this instead of
-            // calling storePersistable() recursively. Such recursion could become
-            // very deep. The iterator allows us to add new objects, 
-            // essentially flattening the recursion.
-            mFlushIterator = getModifiedListIterator();
-            while (mFlushIterator.hasNext()) {
-                Persistable persistable = mFlushIterator.next();
-                int nextIndex = mFlushIterator.nextIndex();
-                
-                // This can indirectly insert objects into the list due to
-                // ObjectSerializer. Note that storePersistable() marks the object as 
-                // not new and and not modified now that it will be flushed.
-                storePersistable(persistable);
-
-                // Objects could have been inserted into the list before
-                // the cursor. We have to back up to the point just after the last
-                // object we retrieved to start processing the list there.
-                // Note that on the next iteration, more objects could be inserted
-                // before these, effectively reproducing recursion.
-                for (int i = mFlushIterator.nextIndex() - nextIndex; i > 0; --i) {
-                    mFlushIterator.previous();
-                }
+            if (mFlushThreadCount > 1) {
+                storeModifiedListInParallel();
+            }
+            else {
+                storeModifiedList();
             }
             
             flushSerializedObjectQueue();
@@ -1562,6 +2889,180 @@ public class EnerJDatabase implements Database, Persister
         }
         finally {
             mFlushIterator = null;
+            mParallelFlushAdditions = null;
+        }
+    }
+
+
+    /**
+     * Stores the objects on the modified list using the caller's thread.
+     */
+    private void storeModifiedList()
+    {
+        // Note that we start an iterator each item. We do this instead of
+        // calling storePersistable() recursively. Such recursion could become
+        // very deep. The iterator allows us to add new objects, 
+        // essentially flattening the recursion.
+        mFlushIterator = getModifiedListIterator();
+        while (mFlushIterator.hasNext()) {
+            Persistable persistable = mFlushIterator.next();
+            int nextIndex = mFlushIterator.nextIndex();
+            
+            // This can indirectly insert objects into the list due to
+            // ObjectSerializer. Note that storePersistable() marks the object as 
+            // not new and and not modified now that it will be flushed.
+            storePersistable(persistable);
+
+            // Objects could have been inserted into the list before
+            // the cursor. We have to back up to the point just after the last
+            // object we retrieved to start processing the list there.
+            // Note that on the next iteration, more objects could be inserted
+            // before these, effectively reproducing recursion.
+            for (int i = mFlushIterator.nextIndex() - nextIndex; i > 0; --i) {
+                mFlushIterator.previous();
+            }
+        }
+    }
+
+
+    /**
+     * Stores the objects on the modified list, serializing them on mFlushExecutor. The objects
+     * are stored in passes. The first pass stores the modified list. New objects reached
+     * while serializing a pass are collected in mParallelFlushAdditions and stored by the next pass.
+     */
+    private void storeModifiedListInParallel()
+    {
+        checkBoundTransaction();
+        
+        List<Persistable> pass = new ArrayList<Persistable>( mModifiedObjects.getSize() );
+        for (Iterator<Persistable> iter = getModifiedListIterator(); iter.hasNext(); ) {
+            pass.add( iter.next() );
+        }
+        
+        while (!pass.isEmpty()) {
+            mParallelFlushAdditions = new ArrayList<Persistable>();
+            
+            List<Persistable> persistables = new ArrayList<Persistable>( pass.size() );
+            for (Persistable persistable : pass) {
+                if (persistable.enerj_IsModified() || persistable.enerj_IsNew()) {
+                    prepareToStore(persistable);
+                    persistables.add(persistable);
+                }
+            }
+
+            // Batches go to the server in OID order.
+            Collections.sort(persistables, new Comparator<Persistable>() {
+                public int compare(Persistable aPersistable1, Persistable aPersistable2)
+                {
+                    long oid1 = aPersistable1.enerj_GetPrivateOID();
+                    long oid2 = aPersistable2.enerj_GetPrivateOID();
+                    return (oid1 < oid2 ? -1 : (oid1 == oid2 ? 0 : 1));
+                }
+            });
+            
+            byte[][] images;
+            List<Persistable> additions = mParallelFlushAdditions;
+            try {
+                images = serializeImages(persistables);
+            }
+            finally {
+                // These must be on the modified list even if serialization failed so that they're rolled back.
+                mParallelFlushAdditions = null;
+                for (Persistable addition : additions) {
+                    mModifiedObjects.addToModifiedList(addition);
+                }
+            }
+            
+            int idx = 0;
+            for (Persistable persistable : persistables) {
+                byte[] image = images[idx++];
+                queueImage(persistable, persistable.enerj_GetPrivateOID(), image, 0, image.length);
+            }
+            
+            pass = additions;
+        }
+    }
+
+
+    /**
+     * Serializes Persistables in parallel. The Persistables are split into ranges that are
+     * serialized by mFlushExecutor. Small lists are serialized on the caller's thread.
+     *
+     * @param somePersistables the Persistables to be serialized. Their OIDs must be assigned.
+     * 
+     * @return the images, in the same order as somePersistables.
+     * 
+     * @throws ODMGRuntimeException if an error occurs.
+     */
+    private byte[][] serializeImages(List<Persistable> somePersistables)
+    {
+        int size = somePersistables.size();
+        byte[][] images = new byte[size][];
+        if (size < sMinParallelFlushSize) {
+            new ImageSerializationTask(somePersistables, images, 0, size).call();
+            return images;
+        }
+        
+        if (mFlushExecutor == null) {
+            mFlushExecutor = Executors.newFixedThreadPool(mFlushThreadCount, new ThreadFactory() {
+                public Thread newThread(Runnable aRunnable)
+                {
+                    Thread thread = new Thread(aRunnable, "EnerJ flush");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        // Several ranges per thread balance the load when object sizes vary.
+        int numRanges = Math.min(size, mFlushThreadCount * 4);
+        List<Future<Object>> futures = new ArrayList<Future<Object>>(numRanges);
+        for (int i = 0; i < numRanges; i++) {
+            int start = (int)(((long)size * i) / numRanges);
+            int end = (int)(((long)size * (i + 1)) / numRanges);
+            futures.add( mFlushExecutor.submit( new ImageSerializationTask(somePersistables, images, start, end) ) );
+        }
+        
+        // Wait for all of them, even if one fails, so that no thread is still serializing when we return.
+        RuntimeException exception = null;
+        for (Future<Object> future : futures) {
+            try {
+                future.get();
+            }
+            catch (ExecutionException e) {
+                if (exception == null) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) {
+                        exception = (RuntimeException)cause;
+                    }
+                    else {
+                        exception = new ODMGRuntimeException("Could not serialize object", cause);
+                    }
+                }
+            }
+            catch (InterruptedException e) {
+                if (exception == null) {
+                    exception = new ODMGRuntimeException("Interrupted while serializing objects", e);
+                }
+            }
+        }
+        
+        if (exception != null) {
+            throw exception;
+        }
+        
+        return images;
+    }
+
+
+    /**
+     * Shuts down mFlushExecutor, if it exists.
+     */
+    private void shutdownFlushExecutor()
+    {
+        if (mFlushExecutor != null) {
+            mFlushExecutor.shutdown();
+            mFlushExecutor = null;
         }
     }
 
@@ -1572,6 +3073,12 @@ public class EnerJDatabase implements Database, Persister
     {
         try {
             mObjectServerSession.rollbackTransaction();
+            returnUnusedOIDXsAfterTransaction();
+            
+            // Images stored during the transaction were rolled back.
+            if (mDeltaImagesEnabled) {
+                getClientCache().clearBaseImages();
+            }
     
             // Rollback modified objects and clear new objects.
             boolean restoreValues = getTransaction().getRestoreValues();
@@ -1582,6 +3089,10 @@ public class EnerJDatabase implements Database, Persister
                     // Restore (rollback) the object
                     restoreAndClearPersistableImage(persistable);
                 }
+                else if (mSecondLevelCacheEnabled && !persistable.enerj_IsNew()) {
+                    // The modified values cannot be retained.
+                    persistable.enerj_Hollow();
+                }
 
                 if (persistable.enerj_IsNew()) {
                     // New objects are evicted from the cache and get their OID cleared.
@@ -1591,9 +3102,17 @@ public class EnerJDatabase implements Database, Persister
             }
 
             clearModifiedList();
+            mNewSchemaCIDs.clear();
+            
+            if (mSavedImageFile != null) {
+                restoreFlushedObjects();
+            }
             
             // See defined behavior on EnerJTransaction.setRestoreValues.
-            if (restoreValues || getTransaction().getRetainValues()) {
+            if (mSecondLevelCacheEnabled) {
+                retainCachedObjects();
+            }
+            else if (restoreValues || getTransaction().getRetainValues() || getTransaction().isReadOnly()) {
                 getClientCache().makeObjectsNonTransactional();
             }
             else {
@@ -1604,10 +3123,48 @@ public class EnerJDatabase implements Database, Persister
             getClientCache().clearPrefetches();
         }
         finally {
+            discardSavedImageFile();
             setTransaction(null);
         }
     }
 
+
+    /**
+     * Restores the objects recorded in mSavedImageFile that are no longer on the modified list
+     * because they were flushed. Objects that are no longer cached don't need to be restored.
+     */
+    private void restoreFlushedObjects()
+    {
+        for (long oid : mSavedImageFile.getOIDs()) {
+            Persistable persistable = mClientCache.get(oid);
+            boolean isNewObject = mSavedImageFile.isNewObject(oid);
+            byte[] image = mSavedImageFile.removeImage(oid);
+            if (persistable == null) {
+                continue;
+            }
+            
+            if (isNewObject) {
+                // Like new objects on the modified list, it is evicted from the cache and gets its OID cleared.
+                mClientCache.evict(oid);
+                persistable.enerj_SetPrivateOID(ObjectSerializer.NULL_OID);
+                persistable.enerj_SetNew(true);
+            }
+            else {
+                PersistableHelper.loadSerializedImage(this, persistable, image);
+            }
+        }
+    }
+
+    /**
+     * Retains the values of loaded objects in the cache so that they can be validated and reused
+     * in a later transaction.
+     */
+    private void retainCachedObjects()
+    {
+        getClientCache().retainObjects();
+        mHasRetainedObjects = true;
+    }
+
     /** 
      * @see org.odmg.Transaction#checkpoint()
      */
@@ -1626,6 +3183,7 @@ public class EnerJDatabase implements Database, Persister
         }
 
         clearModifiedList();
+        discardSavedImageFile();
         mObjectServerSession.checkpointTransaction();
     }
 
@@ -1635,11 +3193,21 @@ public class EnerJDatabase implements Database, Persister
     void commit() 
     {
         try {
-            // Flush pending modified objects out to server.
-            flush();
+            boolean isReadOnly = getTransaction().isReadOnly();
+            boolean isOptimistic = !isReadOnly && getTransaction().isOptimistic();
+            if (isOptimistic) {
+                commitOptimistic();
+            }
+            else if (!isReadOnly) {
+                // Flush pending modified objects out to server.
+                flush();
+            }
     
             // See defined behavior on setRetainValues().
-            if (getTransaction().getRetainValues()) {
+            if (mSecondLevelCacheEnabled) {
+                retainCachedObjects();
+            }
+            else if (getTransaction().getRetainValues() || isReadOnly) {
                 getClientCache().makeObjectsNonTransactional();
             }
             else {
@@ -1648,13 +3216,71 @@ public class EnerJDatabase implements Database, Persister
             }
     
             getClientCache().clearPrefetches();
-            mObjectServerSession.commitTransaction();
+            if (!isOptimistic) {
+                mObjectServerSession.commitTransaction();
+            }
+
+            publishNewSchemaCIDs();
+            returnUnusedOIDXsAfterTransaction();
         }
         finally {
+            discardSavedImageFile();
             setTransaction(null);
         }
     }
 
+    /**
+     * Flushes and commits an optimistic transaction on the server. The modified list is kept until
+     * the server validates the transaction so that, on a conflict, the transaction can be aborted
+     * normally. A conflict may be detected while flushing, when the base version of a delta is not
+     * the stored version, or when the transaction is committed.
+     *
+     * @throws TransactionConflictException if the transaction conflicted with another transaction.
+     *  The transaction has been aborted.
+     */
+    private void commitOptimistic()
+    {
+        try {
+            flushAndKeepModifiedList();
+            mObjectServerSession.commitTransaction();
+        }
+        catch (RuntimeException e) {
+            TransactionConflictException conflict = findTransactionConflict(e);
+            if (conflict == null) {
+                throw e;
+            }
+            
+            abort();
+            if (!mSecondLevelCacheEnabled) {
+                // Retained values may be stale. Retried transactions must reload them. 
+                getClientCache().hollowObjects();
+            }
+            
+            throw conflict;
+        }
+        
+        clearModifiedList();
+    }
+
+    /**
+     * Finds a TransactionConflictException in the causes of an exception. Errors from storing objects 
+     * are wrapped on their way to the caller.
+     *
+     * @param aThrowable the exception.
+     * 
+     * @return the TransactionConflictException, or null if aThrowable was not caused by one.
+     */
+    private static TransactionConflictException findTransactionConflict(Throwable aThrowable)
+    {
+        for (Throwable cause = aThrowable; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TransactionConflictException) {
+                return (TransactionConflictException)cause;
+            }
+        }
+        
+        return null;
+    }
+
     /**
      * {@inheritDoc}
      * <p>
@@ -1711,4 +3337,66 @@ public class EnerJDatabase implements Database, Persister
 
         return true;
     }
+
+
+    /**
+     * Serializes a range of Persistables into separate images. It runs on a thread of mFlushExecutor, 
+     * or the caller's thread. 
+     */
+    private final class ImageSerializationTask implements Callable<Object>
+    {
+        private List<Persistable> mPersistables;
+        private byte[][] mImages;
+        private int mStart;
+        private int mEnd;
+
+
+        /**
+         * Constructs an ImageSerializationTask.
+         *
+         * @param somePersistables the Persistables to be serialized.
+         * @param someImages the array receiving the images. The image of somePersistables[i] is stored in someImages[i].
+         * @param aStart the index of the first Persistable to be serialized.
+         * @param anEnd the index after the last Persistable to be serialized.
+         */
+        ImageSerializationTask(List<Persistable> somePersistables, byte[][] someImages, int aStart, int anEnd)
+        {
+            mPersistables = somePersistables;
+            mImages = someImages;
+            mStart = aStart;
+            mEnd = anEnd;
+        }
+
+
+        /**
+         * {@inheritDoc}
+         */
+        public Object call()
+        {
+            // The images are queued with the format of mImageWriter. The thread's writer may have been 
+            // created for another database.
+            int format = mImageWriter.getFormat();
+            ImageWriter imageWriter = sParallelImageWriter.get();
+            if (imageWriter == null || imageWriter.getFormat() != format) {
+                imageWriter = new ImageWriter(format);
+                sParallelImageWriter.set(imageWriter);
+            }
+
+            // New objects reached by the serializer find this database through the thread.
+            PersisterRegistry.pushPersisterForThread(EnerJDatabase.this);
+            try {
+                for (int i = mStart; i < mEnd; i++) {
+                    imageWriter.reset();
+                    int offset = imageWriter.write( mPersistables.get(i) );
+                    mImages[i] = imageWriter.getImageCopy(offset);
+                }
+            }
+            finally {
+                imageWriter.reset();
+                PersisterRegistry.popPersisterForThread(EnerJDatabase.this);
+            }
+            
+            return null;
+        }
+    }
 }
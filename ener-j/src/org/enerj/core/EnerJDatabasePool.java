@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.core;
+
+import java.util.LinkedList;
+
+import org.odmg.DatabaseClosedException;
+import org.odmg.ODMGException;
+import org.odmg.TransactionInProgressException;
+
+/**
+ * A thread-safe pool of open EnerJDatabases for one database name. A thread acquires a database,
+ * runs one or more transactions on it, and releases it back to the pool. Each pooled database 
+ * keeps its ObjectServerSession and client cache open between leases, so acquiring one that is 
+ * idle costs only a checkout. The schema and ClassInfo caches are shared by all of the pooled 
+ * databases.<p>
+ * 
+ * A leased database is the current database and Persister for the thread that acquired it. It
+ * must be released by the same thread.
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+public class EnerJDatabasePool
+{
+    private String mName;
+    private int mAccessMode;
+    private int mMaxSize;
+    /** Open databases that are not leased. This is also the lock for the pool's state. */
+    private LinkedList<EnerJDatabase> mIdleDatabases = new LinkedList<EnerJDatabase>();
+    /** Number of open databases, leased or idle. */
+    private int mOpenCount = 0;
+    /** The database whose schema caches are shared. Null until the first database is opened. */
+    private EnerJDatabase mSchemaCacheOwner = null;
+    private boolean mIsClosed = false;
+    
+
+    /**
+     * Constructs an EnerJDatabasePool. Databases are opened as they are needed.
+     *
+     * @param aName the name of the database, as given to {@link EnerJDatabase#open(String, int)}.
+     * @param anAccessMode the access mode, as given to {@link EnerJDatabase#open(String, int)}.
+     * @param aMaxSize the maximum number of open databases. 
+     * 
+     * @throws IllegalArgumentException if aMaxSize is less than 1.
+     */
+    public EnerJDatabasePool(String aName, int anAccessMode, int aMaxSize)
+    {
+        if (aMaxSize < 1) {
+            throw new IllegalArgumentException("Maximum pool size must be at least 1");
+        }
+        
+        mName = aName;
+        mAccessMode = anAccessMode;
+        mMaxSize = aMaxSize;
+    }
+    
+
+    /**
+     * Leases a database to the caller's thread. An idle database is used if one is available. 
+     * Otherwise a database is opened if the pool has less than its maximum number of databases.
+     * Otherwise this waits until a database is released.
+     *
+     * @return an open EnerJDatabase with no active transaction.
+     * 
+     * @throws DatabaseClosedException if the pool is closed.
+     * @throws ODMGException if a database cannot be opened.
+     */
+    public EnerJDatabase acquire() throws ODMGException
+    {
+        EnerJDatabase schemaCacheOwner;
+        synchronized (mIdleDatabases) {
+            while (true) {
+                if (mIsClosed) {
+                    throw new DatabaseClosedException("Database pool is closed");
+                }
+                
+                if (!mIdleDatabases.isEmpty()) {
+                    EnerJDatabase database = mIdleDatabases.removeFirst();
+                    database.attachToThread();
+                    return database;
+                }
+                
+                if (mOpenCount < mMaxSize) {
+                    break;
+                }
+                
+                try {
+                    mIdleDatabases.wait();
+                }
+                catch (InterruptedException e) {
+                    // Ignore
+                }
+            }
+
+            // Reserve the slot while the database is opened outside of the lock.
+            ++mOpenCount;
+            schemaCacheOwner = mSchemaCacheOwner;
+        }
+        
+        EnerJDatabase database = new EnerJDatabase();
+        boolean success = false;
+        try {
+            // Opening attaches it to the caller's thread.
+            database.open(mName, mAccessMode);
+            if (schemaCacheOwner != null) {
+                database.shareSchemaCaches(schemaCacheOwner);
+            }
+
+            success = true;
+        }
+        finally {
+            synchronized (mIdleDatabases) {
+                if (!success) {
+                    --mOpenCount;
+                    mIdleDatabases.notifyAll();
+                }
+                else if (mSchemaCacheOwner == null) {
+                    mSchemaCacheOwner = database;
+                }
+            }
+        }
+        
+        return database;
+    }
+    
+
+    /**
+     * Returns a database leased by acquire() to the pool. If the pool has been closed, the
+     * database is closed.
+     *
+     * @param aDatabase the database to be released.
+     * 
+     * @throws TransactionInProgressException if aDatabase has an active transaction.
+     * @throws ODMGException if the database cannot be closed.
+     */
+    public void release(EnerJDatabase aDatabase) throws ODMGException
+    {
+        if (aDatabase.isTransactionActive()) {
+            throw new TransactionInProgressException("Cannot release a database with an active transaction");
+        }
+        
+        synchronized (mIdleDatabases) {
+            if (!mIsClosed) {
+                aDatabase.detachFromThread();
+                mIdleDatabases.addLast(aDatabase);
+                mIdleDatabases.notifyAll();
+                return;
+            }
+
+            --mOpenCount;
+        }
+
+        aDatabase.close();
+    }
+    
+
+    /**
+     * Closes the pool and its idle databases. Leased databases are closed when they are released.
+     *
+     * @throws ODMGException if a database cannot be closed.
+     */
+    public void close() throws ODMGException
+    {
+        LinkedList<EnerJDatabase> databases;
+        synchronized (mIdleDatabases) {
+            mIsClosed = true;
+            databases = new LinkedList<EnerJDatabase>(mIdleDatabases);
+            mOpenCount -= mIdleDatabases.size();
+            mIdleDatabases.clear();
+            mIdleDatabases.notifyAll();
+        }
+        
+        ODMGException exception = null;
+        for (EnerJDatabase database : databases) {
+            // close() requires the database to be the thread's Persister.
+            database.attachToThread();
+            try {
+                database.close();
+            }
+            catch (ODMGException e) {
+                if (exception == null) {
+                    exception = e;
+                }
+            }
+        }
+        
+        if (exception != null) {
+            throw exception;
+        }
+    }
+    
+
+    /**
+     * Gets the number of open databases in the pool, whether leased or idle.
+     *
+     * @return the number of open databases.
+     */
+    public int getOpenCount()
+    {
+        synchronized (mIdleDatabases) {
+            return mOpenCount;
+        }
+    }
+    
+
+    /**
+     * Gets the number of open databases that are not leased.
+     *
+     * @return the number of idle databases.
+     */
+    public int getIdleCount()
+    {
+        synchronized (mIdleDatabases) {
+            return mIdleDatabases.size();
+        }
+    }
+}
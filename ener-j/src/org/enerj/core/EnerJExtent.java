@@ -25,10 +25,13 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
 
 import org.enerj.server.DBIterator;
+import org.enerj.server.DBObjectIterator;
+import org.enerj.server.SerializedObject;
 import org.odmg.ODMGRuntimeException;
 
 
@@ -45,6 +48,8 @@ public class EnerJExtent implements Extent
     private Collection mCollection = null;
     private Set<EnerJExtentIterator> mOpenIterators = new HashSet<EnerJExtentIterator>(5);
     private int mSize = -1; // -1 = not initialized.
+    /** If this extent is a partition of an extent, the partition. Otherwise null. */
+    private ExtentPartition mPartition = null;
 
 
     EnerJExtent(EnerJDatabase aDatabase, Class aCandidateClass, boolean hasSubclasses)
@@ -55,6 +60,13 @@ public class EnerJExtent implements Extent
     }
 
 
+    EnerJExtent(EnerJDatabase aDatabase, ExtentPartition aPartition)
+    {
+        this(aDatabase, aPartition.getCandidateClass(), aPartition.hasSubclasses());
+        mPartition = aPartition;
+    }
+
+
     /**
      * Ensures that the extent iterator has been converted to a Collection in mCollection. 
      */
@@ -149,7 +161,7 @@ public class EnerJExtent implements Extent
     public int size()
     {
         if (mSize < 0) {
-            long size = mDatabase.getExtentSize(mCandidateClass, mHasSubclasses);
+            long size = (mPartition == null ? mDatabase.getExtentSize(mCandidateClass, mHasSubclasses) : getPartitionSize());
             if (size > Integer.MAX_VALUE) {
                 throw new ArrayIndexOutOfBoundsException("Extent size of " + size + " exceeds size of int");
             }
@@ -161,6 +173,28 @@ public class EnerJExtent implements Extent
     }
 
 
+    /**
+     * Counts the objects in the partition. Only the OIDs are retrieved from the server.
+     *
+     * @return the number of objects in the partition.
+     */
+    private long getPartitionSize()
+    {
+        DBIterator iterator = mDatabase.getExtentIterator(mPartition);
+        try {
+            long size = 0;
+            while (iterator.hasNext()) {
+                size += iterator.next(1024).length;
+            }
+            
+            return size;
+        }
+        finally {
+            iterator.close();
+        }
+    }
+
+
     public Object[] toArray()
     {
         ensureCollection();
@@ -226,6 +260,16 @@ public class EnerJExtent implements Extent
      }
 
 
+    public List<ExtentPartition> split(int aMaxNumPartitions)
+    {
+        if (mPartition != null) {
+            throw new UnsupportedOperationException("A partition of an Extent cannot be split");
+        }
+        
+        return mDatabase.splitExtent(mCandidateClass, mHasSubclasses, aMaxNumPartitions);
+    }
+
+
     // ...Extent interface.
 
     
@@ -233,7 +277,10 @@ public class EnerJExtent implements Extent
 
     private final class EnerJExtentIterator implements java.util.Iterator
     {
-        private static final int DEFAULT_CHUNK_SIZE = 50;
+        /** The number of objects requested first. A small first request returns the first object quickly. */
+        private static final int MIN_CHUNK_SIZE = 16;
+        /** The maximum number of objects requested at once. */
+        private static final int MAX_CHUNK_SIZE = 1024;
 
         /** DBIterator returned from the session. */
         private DBIterator mExtentIterator;
@@ -242,11 +289,18 @@ public class EnerJExtent implements Extent
         /** Queue position. */
         private int mObjectIdx = 0; 
         private boolean mIsOpen = true;
+        /** The number of objects to request next. This doubles on each request, up to MAX_CHUNK_SIZE. */
+        private int mChunkSize = MIN_CHUNK_SIZE;
 
 
         EnerJExtentIterator()
         {
-            mExtentIterator = mDatabase.getExtentIterator(mCandidateClass, mHasSubclasses);
+            if (mPartition == null) {
+                mExtentIterator = mDatabase.getExtentIterator(mCandidateClass, mHasSubclasses);
+            }
+            else {
+                mExtentIterator = mDatabase.getExtentIterator(mPartition);
+            }
         }
         
 
@@ -290,10 +344,19 @@ public class EnerJExtent implements Extent
                     return false;
                 }
 
-                long[] oids = mExtentIterator.next(DEFAULT_CHUNK_SIZE);
-                // Put the objects in the prefetch queue.
-                mObjects = mDatabase.getObjectsForOIDs(oids);
+                if (mExtentIterator instanceof DBObjectIterator) {
+                    // Load the objects from the images returned with them.
+                    SerializedObject[] objects = ((DBObjectIterator)mExtentIterator).nextObjects(mChunkSize);
+                    mObjects = mDatabase.getObjectsForSerializedObjects(objects);
+                }
+                else {
+                    long[] oids = mExtentIterator.next(mChunkSize);
+                    // Put the objects in the prefetch queue.
+                    mObjects = mDatabase.getObjectsForOIDs(oids);
+                }
+                
                 mObjectIdx = 0;
+                mChunkSize = Math.min(mChunkSize * 2, MAX_CHUNK_SIZE);
             }
 
             return true;
@@ -58,6 +58,12 @@ public class EnerJTransaction implements Transaction
      * on an abort.
      */
     private boolean mRestoreValues = false;
+    
+    /** True if the transaction cannot modify the database. */
+    private boolean mReadOnly = false;
+    
+    /** True if the transaction uses optimistic concurrency instead of locking. */
+    private boolean mOptimistic = false;
 
 
     /**
@@ -199,6 +205,88 @@ public class EnerJTransaction implements Transaction
     }
     
 
+    /**
+     * Sets whether the transaction is read-only.
+     * This may only be called if a transaction is not active.
+     * The default setting for a transaction is false.
+     * <p>
+     * A read-only transaction reads committed objects without holding locks, so long
+     * running queries do not block writers. Objects are not tracked for modification. Instead,
+     * modifying a persistent object, making a new object persistent, or binding a name throws 
+     * DatabaseIsReadOnlyException before any change is made. Since loaded objects cannot 
+     * have been modified, they keep their values when the transaction ends, regardless of 
+     * getRetainValues(). A read-only transaction is never optimistic.
+     *
+     * @param isReadOnly if true, the transaction is read-only.
+     *
+     * @throws TransactionInProgressException if a transaction is in progress.
+     */
+    public void setReadOnly(boolean isReadOnly)
+    {
+        if (isOpen()) {
+            throw new TransactionInProgressException("setReadOnly can only be called on an inactive transaction");
+        }
+        
+        mReadOnly = isReadOnly;
+    }
+    
+
+    /**
+     * Determines whether the transaction is read-only.
+     * The default setting for a transaction is false.
+     *
+     * @return true if the transaction is read-only.
+     */
+    public boolean isReadOnly()
+    {
+        return mReadOnly;
+    }
+    
+
+    /**
+     * Sets whether the transaction uses optimistic concurrency control.
+     * This may only be called if a transaction is not active.
+     * The default setting for a transaction is false.
+     * <p>
+     * An optimistic transaction holds no locks on objects while it runs. Each read only takes a read
+     * lock while the object is read, so it waits for another transaction that has written the object but
+     * not committed yet. The server records the version of each object that the transaction reads or 
+     * writes, and writes are held by the server until commit. On commit, the recorded versions are validated against the database and the writes are applied
+     * atomically. If another transaction changed one of the objects, the commit fails with a 
+     * {@link TransactionConflictException}, the transaction is rolled back as if abort() were called,
+     * and the transaction may be retried. Explicit calls to lock() only cause the object's version to be 
+     * validated at commit.
+     * <p>
+     * Optimistic transactions work best when conflicts are rare, such as with read-mostly workloads.
+     *
+     * @param isOptimistic if true, the transaction uses optimistic concurrency. If false, objects are 
+     *  locked as they are used.
+     *
+     * @throws TransactionInProgressException if a transaction is in progress.
+     */
+    public void setOptimistic(boolean isOptimistic)
+    {
+        if (isOpen()) {
+            throw new TransactionInProgressException("setOptimistic can only be called on an inactive transaction");
+        }
+        
+        mOptimistic = isOptimistic;
+    }
+    
+
+    /**
+     * Determines whether the transaction uses optimistic concurrency control.
+     * The default setting for a transaction is false.
+     *
+     * @return true if the transaction uses optimistic concurrency, or false if objects are 
+     *  locked as they are used.
+     */
+    public boolean isOptimistic()
+    {
+        return mOptimistic;
+    }
+    
+
     /**
      * Closes the current transaction. Assumes checkIsOpenAndOwnedByThread()
      * has already been called.
@@ -26,6 +26,7 @@ package org.enerj.core;
 
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 
 
 /**
@@ -82,4 +83,18 @@ public interface Extent extends Collection  // TODO implements JDO Extent when w
      * @param an Iterator obtained by the method iterator() on this Extent instance.
      */    
      public void close(Iterator anIterator);
+     
+
+    /** 
+     * Splits this Extent into partitions that each contain roughly the same number of
+     * instances, so that the instances can be processed in parallel. See {@link ExtentPartition}.
+     * A transaction must be active.
+     *
+     * @param aMaxNumPartitions the maximum number of partitions. Must be >= 1.
+     * 
+     * @return the partitions. This is empty if the Extent is empty.
+     * 
+     * @throws UnsupportedOperationException if this Extent is itself a partition.
+     */
+    public List<ExtentPartition> split(int aMaxNumPartitions);
 }
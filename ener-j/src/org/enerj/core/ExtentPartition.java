@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.core;
+
+import java.io.Serializable;
+
+
+/**
+ * A part of an Extent, returned from {@link Extent#split(int)}. The partitions of an Extent 
+ * contain disjoint OID ranges, so they can be iterated in parallel. Each partition is 
+ * normally iterated in its own thread, with its own EnerJDatabase and read-only transaction:
+ * <pre>
+ *   EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+ *   db.open(uri, Database.OPEN_READ_ONLY);
+ *   EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+ *   txn.setReadOnly(true);
+ *   txn.begin(db);
+ *   Extent extent = db.getExtent(partition);
+ *   ...
+ * </pre>
+ * A partition only describes the range, so it may be passed between threads.
+ *
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+public final class ExtentPartition implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+    
+    private Class mCandidateClass;
+    private boolean mHasSubclasses;
+    private long mStartOID;
+    private long mEndOID;
+    
+
+    /**
+     * Constructs an ExtentPartition.
+     *
+     * @param aCandidateClass the candidate class of the Extent.
+     * @param hasSubclasses true if the Extent contains subclass instances.
+     * @param aStartOID the first OID of the partition, inclusive.
+     * @param anEndOID the last OID of the partition, exclusive.
+     */
+    ExtentPartition(Class aCandidateClass, boolean hasSubclasses, long aStartOID, long anEndOID)
+    {
+        mCandidateClass = aCandidateClass;
+        mHasSubclasses = hasSubclasses;
+        mStartOID = aStartOID;
+        mEndOID = anEndOID;
+    }
+
+
+    /**
+     * @return the candidate class of the Extent.
+     */
+    public Class getCandidateClass()
+    {
+        return mCandidateClass;
+    }
+
+
+    /**
+     * @return true if the Extent contains subclass instances.
+     */
+    public boolean hasSubclasses()
+    {
+        return mHasSubclasses;
+    }
+
+
+    /**
+     * @return the first OID of the partition, inclusive.
+     */
+    public long getStartOID()
+    {
+        return mStartOID;
+    }
+
+
+    /**
+     * @return the last OID of the partition, exclusive.
+     */
+    public long getEndOID()
+    {
+        return mEndOID;
+    }
+    
+
+    public String toString()
+    {
+        return "ExtentPartition[" + mCandidateClass.getName() + (mHasSubclasses ? "+subclasses" : "") + 
+            ", OIDs " + mStartOID + " to " + mEndOID + ']';
+    }
+}
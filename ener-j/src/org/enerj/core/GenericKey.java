@@ -55,36 +55,62 @@ public class GenericKey implements Comparable<GenericKey>, Comparator<GenericKey
      */
     public static GenericKey createKey(IndexSchema anIndexSchema, Object anIndexedObject)
     {
-        // Build the key. All the capabilities of Apache Beanutils are available for a property.
-        // TODO Remove reliance on BeanUtils. It also has dependencies on commons-logging.
         String[] properties = anIndexSchema.getProperties();
-        Object[] components = new Object[ properties.length ];
+        Object[] components;
         if (anIndexedObject != null) {
+            components = anIndexSchema.getKeyExtractor( anIndexedObject.getClass() ).getComponents(anIndexedObject);
+            if (components == null) {
+                components = getPropertyComponents(properties, anIndexedObject);
+            }
+
             for (int i = 0; i < properties.length; i++) {
-                try {
-                    components[i] = PropertyUtils.getProperty(anIndexedObject, properties[i]);
-                }
-                catch (IllegalAccessException e) {
-                    throw new ODMGRuntimeException(e);
-                }
-                catch (InvocationTargetException e) {
-                    throw new ODMGRuntimeException(e.getCause());
-                }
-                catch (NoSuchMethodException e) {
-                    throw new ODMGRuntimeException(e);
-                }
-                
                 if (components[i] != null && !(components[i] instanceof Comparable)) {
                     throw new ODMGRuntimeException("Property \"" + properties[i] + "\" must be a Comparable.");
                 }
             }
         }
+        else {
+            components = new Object[ properties.length ];
+        }
         
         // TODO Handle this. anIndexSchema.getComparatorClassName(); Use it to compare elements.
         
         return new GenericKey(components);
     }
     
+    /**
+     * Gets the key components by resolving each property by reflection. This is used when 
+     * a KeyExtractor cannot be generated for the indexed object's class, or cannot traverse 
+     * a nested property.
+     *
+     * @param someProperties the indexed properties.
+     * @param anIndexedObject the indexed object. 
+     * 
+     * @return the key components.
+     */
+    private static Object[] getPropertyComponents(String[] someProperties, Object anIndexedObject)
+    {
+        // All the capabilities of Apache Beanutils are available for a property.
+        // TODO Remove reliance on BeanUtils. It also has dependencies on commons-logging.
+        Object[] components = new Object[ someProperties.length ];
+        for (int i = 0; i < someProperties.length; i++) {
+            try {
+                components[i] = PropertyUtils.getProperty(anIndexedObject, someProperties[i]);
+            }
+            catch (IllegalAccessException e) {
+                throw new ODMGRuntimeException(e);
+            }
+            catch (InvocationTargetException e) {
+                throw new ODMGRuntimeException(e.getCause());
+            }
+            catch (NoSuchMethodException e) {
+                throw new ODMGRuntimeException(e);
+            }
+        }
+        
+        return components;
+    }
+    
     /**
      * Construct a GenericKey from components 
      *
@@ -149,9 +175,7 @@ public class GenericKey implements Comparable<GenericKey>, Comparator<GenericKey
         for (int i = 0; i < components1.length && i < components2.length; i++) {
             Object o1 = components1[i];
             Object o2 = components2[i];
-            Class o1Class = o1.getClass();
-            Class o2Class = o2.getClass();
-            if (o1 != null && o2 != null && o1Class != o2Class) {
+            if (o1 != null && o2 != null && o1.getClass() != o2.getClass()) {
                 // Must perform type conversion.
                 Object[] objs = new Object[] { o1, o2 };
                 TypeUtil.makeComparable(objs);
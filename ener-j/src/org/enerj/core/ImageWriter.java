@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.core;
+
+import java.io.IOException;
+
+import org.enerj.util.ByteArrayDataOutput;
+import org.enerj.util.CompactDataOutput;
+import org.odmg.ODMGRuntimeException;
+
+/**
+ * Serializes the images of Persistables into a single reusable buffer. The same buffer, 
+ * DataOutput and ObjectSerializer are used for every image, so writing an image does not 
+ * allocate unless the buffer must grow. Each image is a slice of the buffer starting at 
+ * the offset returned by {@link #write(Persistable)}. Slices remain valid until {@link #reset()}
+ * is called. <p>
+ * 
+ * An ImageWriter is not thread-safe.
+ *
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+public class ImageWriter
+{
+    private static final int sInitialCapacity = 8192;
+    /** Buffers that grew larger than this are discarded on reset so that one huge image is not retained. */
+    private static final int sMaxRetainedCapacity = 1024 * 1024;
+    
+    private int mFormat;
+    private ByteArrayDataOutput mOutput;
+    private ObjectSerializer mSerializer;
+    
+
+    /**
+     * Constructs an ImageWriter that writes the {@link ObjectSerializer#IMAGE_FORMAT_V1} format.
+     */
+    public ImageWriter()
+    {
+        this(ObjectSerializer.IMAGE_FORMAT_V1);
+    }
+
+
+    /**
+     * Constructs an ImageWriter.
+     * 
+     * @param aFormat the image format to be written, {@link ObjectSerializer#IMAGE_FORMAT_V1} or 
+     *  {@link ObjectSerializer#IMAGE_FORMAT_V2}.
+     */
+    public ImageWriter(int aFormat)
+    {
+        mFormat = aFormat;
+        createOutput();
+    }
+
+
+    /**
+     * Creates the output buffer and serializer.
+     */
+    private void createOutput()
+    {
+        if (mFormat == ObjectSerializer.IMAGE_FORMAT_V2) {
+            mOutput = new CompactDataOutput(sInitialCapacity);
+        }
+        else {
+            mOutput = new ByteArrayDataOutput(sInitialCapacity);
+        }
+        
+        mSerializer = new ObjectSerializer(mOutput);
+    }
+
+
+    /**
+     * Gets the image format written by this ImageWriter.
+     *
+     * @return {@link ObjectSerializer#IMAGE_FORMAT_V1} or {@link ObjectSerializer#IMAGE_FORMAT_V2}.
+     */
+    public int getFormat()
+    {
+        return mFormat;
+    }
+
+
+    /**
+     * Appends the serialized image of aPersistable to the buffer.
+     *
+     * @param aPersistable the Persistable to be serialized.
+     * 
+     * @return the offset of the image in the buffer. The image ends at {@link #size()}.
+     * 
+     * @throws ODMGRuntimeException if an error occurs.
+     */
+    public int write(Persistable aPersistable)
+    {
+        int offset = mOutput.size();
+        try {
+            mSerializer.reset();
+            mSerializer.setOwnerOID( aPersistable.enerj_GetPrivateOID() );
+            aPersistable.enerj_WriteObject(mSerializer);
+        }
+        catch (IOException e) {
+            throw new ODMGRuntimeException("Error writing object: " + e);
+        }
+        
+        return offset;
+    }
+
+
+    /**
+     * Gets the buffer containing the images. The buffer may change when it grows, so this must be 
+     * called after {@link #write(Persistable)}.
+     *
+     * @return the buffer.
+     */
+    public byte[] getBuffer()
+    {
+        return mOutput.getBuffer();
+    }
+
+
+    /**
+     * Gets the number of bytes written to the buffer.
+     *
+     * @return the number of bytes written.
+     */
+    public int size()
+    {
+        return mOutput.size();
+    }
+
+
+    /**
+     * Gets a copy of an image in the buffer.
+     *
+     * @param anOffset the offset returned by {@link #write(Persistable)} for the last image written.
+     * 
+     * @return a new array containing the image.
+     */
+    public byte[] getImageCopy(int anOffset)
+    {
+        return mOutput.toByteArray(anOffset);
+    }
+    
+
+    /**
+     * Resets the buffer so that it may be reused. Slices of the buffer previously written become
+     * invalid.
+     */
+    public void reset()
+    {
+        if (mOutput.getBuffer().length > sMaxRetainedCapacity) {
+            createOutput();
+        }
+        else {
+            mOutput.reset();
+        }
+    }
+}
@@ -23,6 +23,8 @@
 package org.enerj.core;
 
 import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.enerj.annotations.Index;
 import org.enerj.annotations.Persist;
@@ -44,6 +46,16 @@ public class IndexSchema implements Cloneable
     /** The Key Comparator class name, if any. */
     private String mComparatorClassName;
     private Date mCreateDate;
+    /** Cache of KeyExtractors by indexed class. Initialized lazily. */
+    private transient volatile Map<Class, KeyExtractor> mKeyExtractors = null;
+    
+    /** Cached when a KeyExtractor cannot be generated for a class. */
+    private static final KeyExtractor sNoKeyExtractor = new KeyExtractor() {
+        public Object[] getComponents(Object anIndexedObject)
+        {
+            return null;
+        }
+    };
     
     /**
      * Construct a IndexSchema from an annotation. 
@@ -151,6 +163,42 @@ public class IndexSchema implements Cloneable
         return Index.Type.values()[mType];
     }
 
+    /**
+     * Gets the KeyExtractor for objects of the given class. The KeyExtractor is generated 
+     * the first time a class is seen.
+     *
+     * @param aClass the class of the indexed object.
+     * 
+     * @return the KeyExtractor. If one cannot be generated for aClass, the KeyExtractor 
+     *  returns null for every object.
+     */
+    KeyExtractor getKeyExtractor(Class aClass)
+    {
+        Map<Class, KeyExtractor> extractors = mKeyExtractors;
+        if (extractors == null) {
+            synchronized (this) {
+                if (mKeyExtractors == null) {
+                    mKeyExtractors = new ConcurrentHashMap<Class, KeyExtractor>();
+                }
+                
+                extractors = mKeyExtractors;
+            }
+        }
+        
+        KeyExtractor extractor = extractors.get(aClass);
+        if (extractor == null) {
+            // A race may generate more than one extractor, but they're equivalent.
+            extractor = KeyExtractorGenerator.generate(aClass, getProperties());
+            if (extractor == null) {
+                extractor = sNoKeyExtractor;
+            }
+            
+            extractors.put(aClass, extractor);
+        }
+        
+        return extractor;
+    }
+
     @Override
     public IndexSchema clone()
     {
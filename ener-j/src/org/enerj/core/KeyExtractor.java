@@ -0,0 +1,44 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.core;
+
+/**
+ * Extracts the key components of an index from an indexed object. Implementations are 
+ * generated by KeyExtractorGenerator to call the indexed properties' getters directly. <p>
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+public interface KeyExtractor
+{
+    /**
+     * Gets the key components of an indexed object.
+     *
+     * @param anIndexedObject the indexed object. Must not be null and must be an instance of the class
+     *  that the extractor was generated for.
+     * 
+     * @return the key components, one per indexed property. Primitive values are boxed. Returns null
+     *  if a nested property could not be traversed because an intermediate value is null.
+     */
+    public Object[] getComponents(Object anIndexedObject);
+}
@@ -0,0 +1,314 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.core;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Generates KeyExtractors that call the getters of the indexed properties directly, 
+ * rather than resolving them by reflection for each indexed object. <p>
+ * 
+ * A KeyExtractor can only be generated if the indexed class, and the type of each intermediate 
+ * nested property, are public and each property is a simple (or nested) property with a public getter. 
+ * Indexed and mapped properties are not supported.
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+final class KeyExtractorGenerator implements Opcodes
+{
+    private static final Logger sLogger = Logger.getLogger(KeyExtractorGenerator.class.getName()); 
+    private static final String sKeyExtractorName = Type.getInternalName(KeyExtractor.class);
+    private static final String sGetComponentsDescr = "(Ljava/lang/Object;)[Ljava/lang/Object;";
+    /** Used to make generated class names unique. */
+    private static int sClassCounter = 0;
+
+    
+    /**
+     * Construct a KeyExtractorGenerator.
+     */
+    private KeyExtractorGenerator()
+    {
+    }
+    
+
+    /**
+     * Generates a KeyExtractor.
+     *
+     * @param anIndexedClass the class of the indexed objects.
+     * @param someProperties the indexed properties. These may be nested properties, such as "address.city".
+     * 
+     * @return the KeyExtractor, or null if one cannot be generated for anIndexedClass and someProperties.
+     */
+    static KeyExtractor generate(Class anIndexedClass, String[] someProperties)
+    {
+        if (!isAccessible(anIndexedClass)) {
+            return null;
+        }
+        
+        // Resolve the getters for each property.
+        Method[][] getters = new Method[someProperties.length][];
+        for (int i = 0; i < someProperties.length; i++) {
+            String[] names = someProperties[i].split("\\.");
+            getters[i] = new Method[names.length];
+            Class type = anIndexedClass;
+            for (int j = 0; j < names.length; j++) {
+                if (j > 0 && (type.isPrimitive() || !isAccessible(type))) {
+                    return null;
+                }
+                
+                Method getter = getReadMethod(type, names[j]);
+                if (getter == null) {
+                    return null;
+                }
+                
+                getters[i][j] = getter;
+                type = getter.getReturnType();
+            }
+        }
+
+        String className;
+        synchronized (KeyExtractorGenerator.class) {
+            className = KeyExtractor.class.getName() + "$Generated" + (++sClassCounter);
+        }
+        
+        byte[] classBytes = generateClass(className.replace('.', '/'), anIndexedClass, getters);
+        try {
+            ExtractorClassLoader loader = new ExtractorClassLoader(anIndexedClass.getClassLoader());
+            return (KeyExtractor)loader.defineExtractor(className, classBytes).newInstance();
+        }
+        catch (Exception e) {
+            sLogger.log(Level.FINE, "Cannot generate KeyExtractor for " + anIndexedClass.getName(), e);
+        }
+        catch (LinkageError e) {
+            // E.g., KeyExtractor is not visible from the indexed class' loader.
+            sLogger.log(Level.FINE, "Cannot generate KeyExtractor for " + anIndexedClass.getName(), e);
+        }
+        
+        return null;
+    }
+    
+
+    /**
+     * Determines if a generated class can access a class.
+     *
+     * @param aClass the class.
+     * 
+     * @return true if aClass, and any class enclosing it, is public.
+     */
+    private static boolean isAccessible(Class aClass)
+    {
+        for (Class cls = aClass; cls != null; cls = cls.getEnclosingClass()) {
+            if (!Modifier.isPublic(cls.getModifiers())) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+
+    /**
+     * Gets the public getter of a property.
+     *
+     * @param aClass the class of the bean.
+     * @param aName the name of the property.
+     * 
+     * @return the getter, or null if the property does not have a public getter.
+     */
+    private static Method getReadMethod(Class aClass, String aName)
+    {
+        try {
+            BeanInfo beanInfo = Introspector.getBeanInfo(aClass);
+            for (PropertyDescriptor descriptor : beanInfo.getPropertyDescriptors()) {
+                if (descriptor.getName().equals(aName)) {
+                    Method getter = descriptor.getReadMethod();
+                    if (getter != null && Modifier.isPublic(getter.getModifiers()) && !Modifier.isStatic(getter.getModifiers())) {
+                        return getter;
+                    }
+                    
+                    return null;
+                }
+            }
+        }
+        catch (IntrospectionException e) {
+            // Fall thru.
+        }
+        
+        return null;
+    }
+    
+
+    /**
+     * Generates the class bytes of a KeyExtractor. The generated getComponents() is equivalent to:
+     * <pre>
+     * IndexedClass obj = (IndexedClass)anIndexedObject;
+     * Object[] components = new Object[n];
+     * Address address = obj.getAddress();
+     * if (address == null) return null;
+     * components[0] = address.getCity();
+     * components[1] = Integer.valueOf( obj.getNumber() );
+     * ...
+     * return components;
+     * </pre>
+     *
+     * @param aClassName the internal name of the generated class.
+     * @param anIndexedClass the class of the indexed objects.
+     * @param someGetters for each property, the getters to call starting with the getter on anIndexedClass.
+     * 
+     * @return the class bytes.
+     */
+    private static byte[] generateClass(String aClassName, Class anIndexedClass, Method[][] someGetters)
+    {
+        ClassWriter classWriter = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        classWriter.visit(V1_5, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, aClassName, null, "java/lang/Object", 
+            new String[] { sKeyExtractorName });
+        
+        MethodVisitor mv = classWriter.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 0);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        mv.visitInsn(RETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        
+        // Local 1 is the indexed object, 2 is the components array.
+        mv = classWriter.visitMethod(ACC_PUBLIC, "getComponents", sGetComponentsDescr, null, null);
+        mv.visitCode();
+        mv.visitVarInsn(ALOAD, 1);
+        mv.visitTypeInsn(CHECKCAST, Type.getInternalName(anIndexedClass));
+        mv.visitVarInsn(ASTORE, 1);
+        mv.visitLdcInsn(someGetters.length);
+        mv.visitTypeInsn(ANEWARRAY, "java/lang/Object");
+        mv.visitVarInsn(ASTORE, 2);
+        
+        Label nestedNull = new Label();
+        for (int i = 0; i < someGetters.length; i++) {
+            mv.visitVarInsn(ALOAD, 2);
+            mv.visitLdcInsn(i);
+            mv.visitVarInsn(ALOAD, 1);
+            Class owner = anIndexedClass;
+            for (int j = 0; j < someGetters[i].length; j++) {
+                if (j > 0) {
+                    // Leaves the array and index on the stack, but they're discarded by returning.
+                    mv.visitInsn(DUP);
+                    mv.visitJumpInsn(IFNULL, nestedNull);
+                }
+                
+                Method getter = someGetters[i][j];
+                mv.visitMethodInsn(owner.isInterface() ? INVOKEINTERFACE : INVOKEVIRTUAL, 
+                    Type.getInternalName(owner), getter.getName(), Type.getMethodDescriptor(getter));
+                owner = getter.getReturnType();
+            }
+            
+            box(mv, owner);
+            mv.visitInsn(AASTORE);
+        }
+        
+        mv.visitVarInsn(ALOAD, 2);
+        mv.visitInsn(ARETURN);
+        
+        mv.visitLabel(nestedNull);
+        mv.visitInsn(ACONST_NULL);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        
+        classWriter.visitEnd();
+        return classWriter.toByteArray();
+    }
+    
+
+    /**
+     * Emits code to box a primitive value on the top of the stack.
+     *
+     * @param mv the MethodVisitor.
+     * @param aType the type of the value. Nothing is emitted if this is not a primitive type.
+     */
+    private static void box(MethodVisitor mv, Class aType)
+    {
+        if (!aType.isPrimitive()) {
+            return;
+        }
+        
+        Class wrapper;
+        if (aType == Integer.TYPE) {
+            wrapper = Integer.class;
+        }
+        else if (aType == Long.TYPE) {
+            wrapper = Long.class;
+        }
+        else if (aType == Boolean.TYPE) {
+            wrapper = Boolean.class;
+        }
+        else if (aType == Double.TYPE) {
+            wrapper = Double.class;
+        }
+        else if (aType == Float.TYPE) {
+            wrapper = Float.class;
+        }
+        else if (aType == Short.TYPE) {
+            wrapper = Short.class;
+        }
+        else if (aType == Byte.TYPE) {
+            wrapper = Byte.class;
+        }
+        else {
+            wrapper = Character.class;
+        }
+        
+        mv.visitMethodInsn(INVOKESTATIC, Type.getInternalName(wrapper), "valueOf", 
+            "(" + Type.getDescriptor(aType) + ")" + Type.getDescriptor(wrapper));
+    }
+
+    
+    /**
+     * ClassLoader for a generated KeyExtractor. Its parent is the indexed class' loader so that the
+     * extractor can reference the indexed class. 
+     */
+    private static final class ExtractorClassLoader extends ClassLoader
+    {
+        ExtractorClassLoader(ClassLoader aParent)
+        {
+            super(aParent);
+        }
+        
+        Class defineExtractor(String aClassName, byte[] someClassBytes)
+        {
+            return defineClass(aClassName, someClassBytes, 0, someClassBytes.length);
+        }
+    }
+}
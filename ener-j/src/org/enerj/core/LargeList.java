@@ -108,5 +108,20 @@ public interface LargeList<E> extends LargeCollection<E>, java.util.List<E>
      */
     public long lastIndexOfAsLong(Object anObject);
 
+
+    /**
+     * Splits the list into index ranges that each contain roughly the same number of elements, 
+     * so that the elements can be processed in parallel. Each range is normally processed in its own 
+     * thread, with its own database and read-only transaction, using getAtIndex(). The ranges are
+     * aligned to the list's storage so that the ranges do not share any persistent objects
+     * other than the elements.
+     *
+     * @param aMaxNumPartitions the maximum number of ranges. Must be >= 1.
+     *
+     * @return the boundaries of the ranges, in ascending order. Range i starts at element i, inclusive,
+     *  and ends at element i + 1, exclusive. The first element is 0 and the last is sizeAsLong(). 
+     *  An empty list returns { 0 }. 
+     */
+    public long[] split(int aMaxNumPartitions);
 }
 
@@ -301,6 +301,32 @@ public class LargePersistentArrayList<E>
     }
     
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The boundaries fall on leaf node boundaries, so each leaf node is only loaded for one range.
+     */
+    public long[] split(int aMaxNumPartitions)
+    {
+        if (aMaxNumPartitions < 1) {
+            throw new IllegalArgumentException("Maximum number of partitions must be >= 1");
+        }
+        
+        // Round the range size up to a whole number of leaf nodes.
+        long rangeSize = (mSize + aMaxNumPartitions - 1) / aMaxNumPartitions;
+        rangeSize = ((rangeSize + mNodeSize - 1) / mNodeSize) * mNodeSize;
+        int numRanges = (rangeSize == 0 ? 0 : (int)((mSize + rangeSize - 1) / rangeSize));
+        
+        long[] boundaries = new long[numRanges + 1];
+        for (int i = 1; i < numRanges; i++) {
+            boundaries[i] = i * rangeSize;
+        }
+        
+        boundaries[numRanges] = mSize;
+        return boundaries;
+    }
+    
+
     // ...End of LargeList interface.
 
 
@@ -54,8 +54,13 @@ import org.enerj.sco.JavaUtilStackSCO;
 import org.enerj.sco.JavaUtilTreeMapSCO;
 import org.enerj.sco.JavaUtilTreeSetSCO;
 import org.enerj.sco.JavaUtilVectorSCO;
+import org.enerj.sco.LazySCO;
 import org.enerj.sco.SCOTracker;
+import org.enerj.util.ByteArrayDataInput;
+import org.enerj.util.ByteArrayDataOutput;
 import org.enerj.util.ByteArrayUtil;
+import org.enerj.util.CompactDataInput;
+import org.enerj.util.CompactDataOutput;
 
 /**
  * Helper class for Persistable.enerj_ReadObject and enerj_WriteObject. 
@@ -76,6 +81,16 @@ import org.enerj.util.ByteArrayUtil;
  * its class. Both CIDX and OIDX are sequential numbers that start at one and increment by one. Given the
  * bit segmentation of the OID, Ener-J can store (2^20 - 1) (1,048,575) class versions and (2^44 - 1) (17,592,186,044,415; 17 trillion)
  * objects within a single database.
+ * <p>
+ * There are two image formats. {@link #IMAGE_FORMAT_V1} writes primitives, lengths, and OIDs at 
+ * their full DataOutput width and Strings as modified UTF-8. {@link #IMAGE_FORMAT_V2} is used when
+ * the stream is a {@link CompactDataOutput} or {@link CompactDataInput}. It writes shorts, ints, longs,
+ * lengths and counts as zig-zag varints and Strings as Latin-1 when possible. FCO references are 
+ * written as varint deltas from the OID of the object being serialized (see {@link #setOwnerOID(long)}).
+ * Primitive array elements are fixed-width in both formats, except that int and long arrays in V2
+ * may be packed as varint deltas between elements. Large ArrayLists and HashMaps are only written 
+ * so that they can be decoded lazily (see {@link org.enerj.sco.LazySCO}) in V2.
+ * The format of an image is not recorded in the image itself, so it must be stored with the image.
  * 
  * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
  */
@@ -89,6 +104,10 @@ public class ObjectSerializer
     public static final long NULL_OID = 0L;
     /** Null Class Id (CID). */
     public static final long NULL_CID = 0L;
+    /** Original image format. */
+    public static final int IMAGE_FORMAT_V1 = 1;
+    /** Compact image format. */
+    public static final int IMAGE_FORMAT_V2 = 2;
     
     private static final Object PLACEHOLDER = new Object();
 
@@ -137,8 +156,20 @@ public class ObjectSerializer
     private static final byte sJava_util_IdentityHashMap_TypeId   =  40;
     private static final byte sJava_lang_Class_TypeId             =  41;  
     private static final byte sEnerj_GenericKey_TypeId            =  42;  
+    private static final byte sJava_util_ArrayList_Lazy_TypeId    =  43;  
+    private static final byte sJava_util_HashMap_Lazy_TypeId      =  44;  
+
+    /** Collections with at least this many elements are written so that they can be decoded lazily. */
+    private static final int sMinLazySCOSize = 64;
 
     private static final Serializer sObjectArraySerializer = new ObjectArraySerializer();
+    private static final Serializer sArrayListSerializer = new Java_util_ArrayList_Serializer();
+    private static final Serializer sHashMapSerializer = new Java_util_HashMap_Serializer();
+    
+    private static final LazySCOSerializer[] sLazySCOSerializers = {
+        new Java_util_ArrayList_Lazy_Serializer(sArrayListSerializer),
+        new Java_util_HashMap_Lazy_Serializer(sHashMapSerializer),
+    };
     
     private static final Serializer[] sSCOSerializers = {
         new ByteArraySerializer(),
@@ -167,14 +198,14 @@ public class ObjectSerializer
         new Java_sql_Date_Serializer(),
         new Java_sql_Time_Serializer(),
         new Java_sql_Timestamp_Serializer(),
-        new Java_util_ArrayList_Serializer(),
+        sArrayListSerializer,
         new Java_util_LinkedList_Serializer(),
         new Java_util_TreeSet_Serializer(),
         new Java_util_Vector_Serializer(),
         new Java_util_Stack_Serializer(),
         new Java_util_HashSet_Serializer(),
         new Java_util_LinkedHashSet_Serializer(),
-        new Java_util_HashMap_Serializer(),
+        sHashMapSerializer,
         new Java_util_Hashtable_Serializer(),
         new Java_util_LinkedHashMap_Serializer(),
         new Java_util_Properties_Serializer(),
@@ -196,6 +227,8 @@ public class ObjectSerializer
     private static HashMap sTypeIdToSerializer = new HashMap(sSCOSerializers.length);
     /** HashMap mapping SCO class to corresponding Serializer object */
     private static HashMap sClassToSerializer = new HashMap(sSCOSerializers.length);
+    /** HashMap mapping SCO class to corresponding LazySCOSerializer object */
+    private static HashMap sClassToLazySerializer = new HashMap(sLazySCOSerializers.length * 2);
     
 
     // Initialize HashMaps and array class types
@@ -224,6 +257,12 @@ public class ObjectSerializer
                 sClassToSerializer.put(proxy, sSCOSerializers[i]);
             }
         }
+
+        for (int i = 0; i < sLazySCOSerializers.length; i++) {
+            sTypeIdToSerializer.put( new Byte(sLazySCOSerializers[i].getTypeId()), sLazySCOSerializers[i]);
+            sClassToLazySerializer.put(sLazySCOSerializers[i].getRepresentingClass(), sLazySCOSerializers[i]);
+            sClassToLazySerializer.put(sLazySCOSerializers[i].getProxyClass(), sLazySCOSerializers[i]);
+        }
     }
     
     private ReadContext mReadContext;
@@ -233,6 +272,12 @@ public class ObjectSerializer
     private IdentityHashMap<Object, Object> mResolvedObjects;
     /** Current recursion depth of {@link #resolveObject(Object, boolean)}. */
     private int mResolveDepth = 0;
+    /** OID of the object whose image is being read or written. FCO references are relative to it in the V2 format. */
+    private long mOwnerOID = NULL_OID;
+    /** If true, FCO references are read as null rather than being resolved by the Persister. */
+    private boolean mIsSkippingFCOs = false;
+    /** Current nesting depth of objects being read. Lazy collection SCOs are only left undecoded at depth 1 (a field of the owner). */
+    private int mReadDepth = 0;
 
     /**
      * Construct a new ObjectSerializer for resolving objects.
@@ -266,6 +311,69 @@ public class ObjectSerializer
     }
     
 
+    /**
+     * Sets the OID of the object whose image is being read or written. In the {@link #IMAGE_FORMAT_V2}
+     * format, FCO references are written relative to this OID, so it must be the same when the image 
+     * is read.
+     *
+     * @param anOID the OID.
+     */
+    public void setOwnerOID(long anOID)
+    {
+        mOwnerOID = anOID;
+    }
+    
+
+    /**
+     * Sets whether FCO references are skipped when they are read. Skipped references are read as null,
+     * so an image can be read without a Persister as long as the FCOs are not needed.
+     *
+     * @param isSkippingFCOs true to skip FCO references.
+     */
+    void setSkippingFCOs(boolean isSkippingFCOs)
+    {
+        mIsSkippingFCOs = isSkippingFCOs;
+    }
+    
+
+    /**
+     * Marks this serializer as reading the contents of a collection rather than the fields of an 
+     * owner, so that the collection SCOs it reads are decoded immediately.
+     */
+    void setReadingContents()
+    {
+        mReadDepth = 1;
+    }
+    
+
+    /**
+     * Gets the image format that this serializer reads or writes.
+     *
+     * @return {@link #IMAGE_FORMAT_V1} or {@link #IMAGE_FORMAT_V2}.
+     */
+    public int getImageFormat()
+    {
+        boolean isCompact = (mWriteContext != null ? mWriteContext.mIsCompact : (mReadContext != null && mReadContext.mIsCompact));
+        return (isCompact ? IMAGE_FORMAT_V2 : IMAGE_FORMAT_V1);
+    }
+    
+
+    /**
+     * Resets this serializer so that it can be used to read or write another object 
+     * on the same stream.
+     */
+    public void reset()
+    {
+        if (mReadContext != null) {
+            mReadContext.reset();
+        }
+
+        if (mWriteContext != null) {
+            mWriteContext.reset();
+        }
+    }
+    
+
     /**
      * Gets the DataInput stream associated with this serializer.
      * 
@@ -333,6 +441,13 @@ public class ObjectSerializer
                     throw new org.odmg.ClassNotPersistenceCapableException("A persistent field of " + aPersistable.getClass() + " does not refer to a FCO nor SCO. Rather it refers to " + valueClass);
                 }
             }
+            
+            // Lazily decoded collections are only written in the V2 format. An undecoded collection is 
+            // decoded by its regular serializer.
+            LazySCOSerializer lazySerializer = (mWriteContext.mIsCompact ? (LazySCOSerializer)sClassToLazySerializer.get(valueClass) : null);
+            if (lazySerializer != null && lazySerializer.shouldWrite(aValue)) {
+                serializer = lazySerializer;
+            }
 
             mWriteContext.mStream.writeByte( serializer.getTypeId() );
             serializer.write(mWriteContext, aValue, aPersistable);
@@ -451,8 +566,23 @@ public class ObjectSerializer
      */
     public Object readObject(Persistable aPersistable) throws IOException
     {
-        byte typeId = mReadContext.mStream.readByte();
-        switch (typeId) {
+        return readObject(mReadContext.mStream.readByte(), aPersistable);
+    }
+
+
+    /**
+     * Reads a Object from a stream after its type id has been read.
+     *
+     * @param aTypeId the type id of the object.
+     * @param aPersistable the calling Persistable object (used for a Database context).
+     *
+     * @return the value (either a SCO or FCO).
+     *
+     * @throws IOException if an error occurs
+     */
+    private Object readObject(byte aTypeId, Persistable aPersistable) throws IOException
+    {
+        switch (aTypeId) {
         case sNull_TypeId:
             return null;
 
@@ -469,12 +599,20 @@ public class ObjectSerializer
             }
 
         default:
-            Serializer serializer = (Serializer)sTypeIdToSerializer.get( new Byte(typeId) );
+            Serializer serializer = (Serializer)sTypeIdToSerializer.get( new Byte(aTypeId) );
             if (serializer == null) {
-                throw new org.odmg.ODMGRuntimeException("Internal: unknown type id=" + typeId);
+                throw new org.odmg.ODMGRuntimeException("Internal: unknown type id=" + aTypeId);
+            }
+            
+            Object obj;
+            ++mReadDepth;
+            try {
+                obj = serializer.read(mReadContext, aPersistable);
+            }
+            finally {
+                --mReadDepth;
             }
             
-            Object obj = serializer.read(mReadContext, aPersistable);
             // Add SCO to Id array
             mReadContext.getSCOArray().add(obj);
             return obj;
@@ -493,7 +631,33 @@ public class ObjectSerializer
      */
     private void writeFCO(Object aValue) throws IOException
     {
-        mWriteContext.mStream.writeLong( EnerJImplementation.getEnerJObjectId(aValue) );
+        long oid = EnerJImplementation.getEnerJObjectId(aValue);
+        if (mWriteContext.mIsCompact) {
+            // Zero is reserved for the null OID, so deltas are offset by one.
+            long delta = (oid == NULL_OID ? 0L : CompactDataOutput.encodeZigZag(oid - mOwnerOID) + 1);
+            ((CompactDataOutput)mWriteContext.mStream).writeUnsignedVarLong(delta);
+        }
+        else {
+            mWriteContext.mStream.writeLong(oid);
+        }
+    }
+
+
+    /**
+     * Reads a FCO OID written by {@link #writeFCO(Object)}.
+     *
+     * @return the OID.
+     *
+     * @throws IOException if an error occurs
+     */
+    private long readFCOOID() throws IOException
+    {
+        if (mReadContext.mIsCompact) {
+            long delta = ((CompactDataInput)mReadContext.mStream).readUnsignedVarLong();
+            return (delta == 0L ? NULL_OID : CompactDataInput.decodeZigZag(delta - 1) + mOwnerOID);
+        }
+
+        return mReadContext.mStream.readLong();
     }
 
 
@@ -508,8 +672,8 @@ public class ObjectSerializer
      */
     private Object readFCO(Persistable aPersistable) throws IOException
     {
-       long oid = mReadContext.mStream.readLong();
-        if (oid == ObjectSerializer.NULL_OID) {
+        long oid = readFCOOID();
+        if (oid == ObjectSerializer.NULL_OID || mIsSkippingFCOs) {
             // Because of the type ID, we shouldn't normally get a NULL_OID unless
             // the OID was cleared in the database. If we get a sNull_TypeID, we never
             // get to this method.
@@ -521,6 +685,56 @@ public class ObjectSerializer
     }
 
 
+    /**
+     * Reads anObjectCount Objects from a stream into someObjects. References to FCOs are 
+     * collected and resolved with a single Persister request rather than a request per reference.
+     *
+     * @param someObjects the array to load. It must have at least anObjectCount elements.
+     * @param anObjectCount the number of objects to read.
+     * @param aPersistable the owner Persistable object.
+     *
+     * @throws IOException if an error occurs.
+     */
+    private void readObjects(Object[] someObjects, int anObjectCount, Persistable aPersistable) throws IOException
+    {
+        long[] oids = null;
+        int[] oidIndexes = null;
+        int oidCount = 0;
+        for (int i = 0; i < anObjectCount; i++) {
+            byte typeId = mReadContext.mStream.readByte();
+            if (typeId == sFCO_TypeId) {
+                long oid = readFCOOID();
+                // See readFCO regarding NULL_OID. The element is left null.
+                if (oid != ObjectSerializer.NULL_OID && !mIsSkippingFCOs) {
+                    if (oids == null) {
+                        oids = new long[anObjectCount - i];
+                        oidIndexes = new int[anObjectCount - i];
+                    }
+                    
+                    oids[oidCount] = oid;
+                    oidIndexes[oidCount++] = i;
+                }
+            }
+            else {
+                someObjects[i] = readObject(typeId, aPersistable);
+            }
+        }
+        
+        if (oidCount > 0) {
+            if (oidCount < oids.length) {
+                long[] trimmedOIDs = new long[oidCount];
+                System.arraycopy(oids, 0, trimmedOIDs, 0, oidCount);
+                oids = trimmedOIDs;
+            }
+            
+            Persistable[] fcos = aPersistable.enerj_GetPersister().getObjectsForOIDs(oids);
+            for (int i = 0; i < oidCount; i++) {
+                someObjects[ oidIndexes[i] ] = fcos[i];
+            }
+        }
+    }
+
+
     /**
      * Writes all of the Objects in a Collection to a stream.
      *
@@ -551,10 +765,12 @@ public class ObjectSerializer
      *
      * @throws IOException if an error occurs.
      */
-    private void readCollection(Collection aCollection, int anObjectCount, Persistable aPersistable) throws IOException
+    void readCollection(Collection aCollection, int anObjectCount, Persistable aPersistable) throws IOException
     {
+        Object[] objects = new Object[anObjectCount];
+        readObjects(objects, anObjectCount, aPersistable);
         for (int i = 0; i < anObjectCount; i++) {
-            aCollection.add( readObject(aPersistable) );
+            aCollection.add(objects[i]);
         }
     }
     
@@ -591,12 +807,13 @@ public class ObjectSerializer
      *
      * @throws IOException if an error occurs.
      */
-    private void readMap(Map aMap, int anObjectCount, Persistable aPersistable) throws IOException
+    void readMap(Map aMap, int anObjectCount, Persistable aPersistable) throws IOException
     {
-        for (int i = 0; i < anObjectCount; i++) {
-            Object key = readObject(aPersistable);
-            Object value = readObject(aPersistable);
-            aMap.put(key, value);
+        // Keys and values are interleaved.
+        Object[] objects = new Object[anObjectCount * 2];
+        readObjects(objects, objects.length, aPersistable);
+        for (int i = 0; i < objects.length; i += 2) {
+            aMap.put(objects[i], objects[i + 1]);
         }
     }
     
@@ -613,6 +830,8 @@ public class ObjectSerializer
         /** DataInput stream for reading. */
         public DataInput mStream;
         public ObjectSerializer mSerializer;
+        /** True if the stream is in the {@link ObjectSerializer#IMAGE_FORMAT_V2} format. */
+        public boolean mIsCompact;
 
         /** Array of SCOs already read from the stream. Null if zero SCOs
          * have been read. Array is ordered by the SCO Id.
@@ -624,6 +843,7 @@ public class ObjectSerializer
         {
             mStream = aStream;
             mSerializer = aSerializer;
+            mIsCompact = (aStream instanceof CompactDataInput);
         }
         
 
@@ -658,6 +878,8 @@ public class ObjectSerializer
         /** DataOutput stream for writing. */
         public DataOutput mStream;
         public ObjectSerializer mSerializer;
+        /** True if the stream is in the {@link ObjectSerializer#IMAGE_FORMAT_V2} format. */
+        public boolean mIsCompact;
 
         /** IdentityHashMap of SCOs already written from the stream. Null if zero SCOs
          * have been written. Key is the SCO object, value is the SCO Id as an Integer.
@@ -669,6 +891,7 @@ public class ObjectSerializer
         {
             mStream = aStream;
             mSerializer = aSerializer;
+            mIsCompact = (aStream instanceof CompactDataOutput);
         }
         
 
@@ -852,8 +1075,14 @@ public class ObjectSerializer
         {
             boolean[] aValue = (boolean[])anObject;
             aContext.mStream.writeInt(aValue.length);
-            for (int i = 0; i < aValue.length; i++) {
-                aContext.mStream.writeBoolean(aValue[i]);
+            if (aContext.mStream instanceof ByteArrayDataOutput) {
+                // Fixed-width in both formats.
+                ((ByteArrayDataOutput)aContext.mStream).writeBooleanArray(aValue);
+            }
+            else {
+                for (int i = 0; i < aValue.length; i++) {
+                    aContext.mStream.writeBoolean(aValue[i]);
+                }
             }
         }
 
@@ -862,8 +1091,13 @@ public class ObjectSerializer
         {
             int len = aContext.mStream.readInt();
             boolean[] array = new boolean[len];
-            for (int i = 0; i < len; i++) {
-                array[i] = aContext.mStream.readBoolean();
+            if (aContext.mStream instanceof ByteArrayDataInput) {
+                ((ByteArrayDataInput)aContext.mStream).readBooleanArray(array);
+            }
+            else {
+                for (int i = 0; i < len; i++) {
+                    array[i] = aContext.mStream.readBoolean();
+                }
             }
 
             return array;
@@ -908,8 +1142,14 @@ public class ObjectSerializer
         {
             char[] aValue = (char[])anObject;
             aContext.mStream.writeInt(aValue.length);
-            for (int i = 0; i < aValue.length; i++) {
-                aContext.mStream.writeChar(aValue[i]);
+            if (aContext.mStream instanceof ByteArrayDataOutput) {
+                // Fixed-width in both formats.
+                ((ByteArrayDataOutput)aContext.mStream).writeCharArray(aValue);
+            }
+            else {
+                for (int i = 0; i < aValue.length; i++) {
+                    aContext.mStream.writeChar(aValue[i]);
+                }
             }
         }
 
@@ -918,8 +1158,13 @@ public class ObjectSerializer
         {
             int len = aContext.mStream.readInt();
             char[] array = new char[len];
-            for (int i = 0; i < len; i++) {
-                array[i] = aContext.mStream.readChar();
+            if (aContext.mStream instanceof ByteArrayDataInput) {
+                ((ByteArrayDataInput)aContext.mStream).readCharArray(array);
+            }
+            else {
+                for (int i = 0; i < len; i++) {
+                    array[i] = aContext.mStream.readChar();
+                }
             }
 
             return array;
@@ -964,8 +1209,14 @@ public class ObjectSerializer
         {
             short[] aValue = (short[])anObject;
             aContext.mStream.writeInt(aValue.length);
-            for (int i = 0; i < aValue.length; i++) {
-                aContext.mStream.writeShort(aValue[i]);
+            if (aContext.mStream instanceof ByteArrayDataOutput) {
+                // Fixed-width in both formats.
+                ((ByteArrayDataOutput)aContext.mStream).writeShortArray(aValue);
+            }
+            else {
+                for (int i = 0; i < aValue.length; i++) {
+                    aContext.mStream.writeShort(aValue[i]);
+                }
             }
         }
 
@@ -974,8 +1225,13 @@ public class ObjectSerializer
         {
             int len = aContext.mStream.readInt();
             short[] array = new short[len];
-            for (int i = 0; i < len; i++) {
-                array[i] = aContext.mStream.readShort();
+            if (aContext.mStream instanceof ByteArrayDataInput) {
+                ((ByteArrayDataInput)aContext.mStream).readShortArray(array);
+            }
+            else {
+                for (int i = 0; i < len; i++) {
+                    array[i] = aContext.mStream.readShort();
+                }
             }
 
             return array;
@@ -1020,8 +1276,16 @@ public class ObjectSerializer
         {
             int[] aValue = (int[])anObject;
             aContext.mStream.writeInt(aValue.length);
-            for (int i = 0; i < aValue.length; i++) {
-                aContext.mStream.writeInt(aValue[i]);
+            if (aContext.mIsCompact) {
+                ((CompactDataOutput)aContext.mStream).writePackedIntArray(aValue);
+            }
+            else if (aContext.mStream instanceof ByteArrayDataOutput) {
+                ((ByteArrayDataOutput)aContext.mStream).writeIntArray(aValue);
+            }
+            else {
+                for (int i = 0; i < aValue.length; i++) {
+                    aContext.mStream.writeInt(aValue[i]);
+                }
             }
         }
 
@@ -1030,8 +1294,16 @@ public class ObjectSerializer
         {
             int len = aContext.mStream.readInt();
             int[] array = new int[len];
-            for (int i = 0; i < len; i++) {
-                array[i] = aContext.mStream.readInt();
+            if (aContext.mIsCompact) {
+                ((CompactDataInput)aContext.mStream).readPackedIntArray(array);
+            }
+            else if (aContext.mStream instanceof ByteArrayDataInput) {
+                ((ByteArrayDataInput)aContext.mStream).readIntArray(array);
+            }
+            else {
+                for (int i = 0; i < len; i++) {
+                    array[i] = aContext.mStream.readInt();
+                }
             }
 
             return array;
@@ -1076,8 +1348,16 @@ public class ObjectSerializer
         {
             long[] aValue = (long[])anObject;
             aContext.mStream.writeInt(aValue.length);
-            for (int i = 0; i < aValue.length; i++) {
-                aContext.mStream.writeLong(aValue[i]);
+            if (aContext.mIsCompact) {
+                ((CompactDataOutput)aContext.mStream).writePackedLongArray(aValue);
+            }
+            else if (aContext.mStream instanceof ByteArrayDataOutput) {
+                ((ByteArrayDataOutput)aContext.mStream).writeLongArray(aValue);
+            }
+            else {
+                for (int i = 0; i < aValue.length; i++) {
+                    aContext.mStream.writeLong(aValue[i]);
+                }
             }
         }
 
@@ -1086,8 +1366,16 @@ public class ObjectSerializer
         {
             int len = aContext.mStream.readInt();
             long[] array = new long[len];
-            for (int i = 0; i < len; i++) {
-                array[i] = aContext.mStream.readLong();
+            if (aContext.mIsCompact) {
+                ((CompactDataInput)aContext.mStream).readPackedLongArray(array);
+            }
+            else if (aContext.mStream instanceof ByteArrayDataInput) {
+                ((ByteArrayDataInput)aContext.mStream).readLongArray(array);
+            }
+            else {
+                for (int i = 0; i < len; i++) {
+                    array[i] = aContext.mStream.readLong();
+                }
             }
 
             return array;
@@ -1132,8 +1420,14 @@ public class ObjectSerializer
         {
             float[] aValue = (float[])anObject;
             aContext.mStream.writeInt(aValue.length);
-            for (int i = 0; i < aValue.length; i++) {
-                aContext.mStream.writeFloat(aValue[i]);
+            if (aContext.mStream instanceof ByteArrayDataOutput) {
+                // Fixed-width in both formats.
+                ((ByteArrayDataOutput)aContext.mStream).writeFloatArray(aValue);
+            }
+            else {
+                for (int i = 0; i < aValue.length; i++) {
+                    aContext.mStream.writeFloat(aValue[i]);
+                }
             }
         }
 
@@ -1142,8 +1436,13 @@ public class ObjectSerializer
         {
             int len = aContext.mStream.readInt();
             float[] array = new float[len];
-            for (int i = 0; i < len; i++) {
-                array[i] = aContext.mStream.readFloat();
+            if (aContext.mStream instanceof ByteArrayDataInput) {
+                ((ByteArrayDataInput)aContext.mStream).readFloatArray(array);
+            }
+            else {
+                for (int i = 0; i < len; i++) {
+                    array[i] = aContext.mStream.readFloat();
+                }
             }
 
             return array;
@@ -1188,8 +1487,14 @@ public class ObjectSerializer
         {
             double[] aValue = (double[])anObject;
             aContext.mStream.writeInt(aValue.length);
-            for (int i = 0; i < aValue.length; i++) {
-                aContext.mStream.writeDouble(aValue[i]);
+            if (aContext.mStream instanceof ByteArrayDataOutput) {
+                // Fixed-width in both formats.
+                ((ByteArrayDataOutput)aContext.mStream).writeDoubleArray(aValue);
+            }
+            else {
+                for (int i = 0; i < aValue.length; i++) {
+                    aContext.mStream.writeDouble(aValue[i]);
+                }
             }
         }
 
@@ -1198,8 +1503,13 @@ public class ObjectSerializer
         {
             int len = aContext.mStream.readInt();
             double[] array = new double[len];
-            for (int i = 0; i < len; i++) {
-                array[i] = aContext.mStream.readDouble();
+            if (aContext.mStream instanceof ByteArrayDataInput) {
+                ((ByteArrayDataInput)aContext.mStream).readDoubleArray(array);
+            }
+            else {
+                for (int i = 0; i < len; i++) {
+                    array[i] = aContext.mStream.readDouble();
+                }
             }
 
             return array;
@@ -1285,9 +1595,7 @@ public class ObjectSerializer
             
             int len = aContext.mStream.readInt();
             Object[] array = (Object[])Array.newInstance(componentClass, len);
-            for (int i = 0; i < len; i++) {
-                array[i] = aContext.mSerializer.readObject(anOwner);
-            }
+            aContext.mSerializer.readObjects(array, len, anOwner);
 
             return array;
         }
@@ -1716,6 +2024,17 @@ public class ObjectSerializer
         public void write(WriteContext aContext, Object anObject, Persistable anOwner) throws IOException
         {
             java.lang.String aValue = (java.lang.String)anObject;
+            if (aContext.mIsCompact) {
+                ((CompactDataOutput)aContext.mStream).writeCompactString(aValue);
+                return;
+            }
+            
+            if (aContext.mStream instanceof ByteArrayDataOutput) {
+                // Encode directly into the buffer without a scratch array.
+                ((ByteArrayDataOutput)aContext.mStream).writeIntLengthModifiedUTF8(aValue);
+                return;
+            }
+            
             byte[] bytes = new byte[ aValue.length() * 3 ];
             int length = ByteArrayUtil.putModifiedUTF8(bytes, 0, aValue);
             aContext.mStream.writeInt(length);
@@ -1725,6 +2044,10 @@ public class ObjectSerializer
 
         public Object read(ReadContext aContext, Persistable anOwner) throws IOException
         {
+            if (aContext.mIsCompact) {
+                return ((CompactDataInput)aContext.mStream).readCompactString();
+            }
+            
             int length = aContext.mStream.readInt();
             byte[] bytes = new byte[length];
             aContext.mStream.readFully(bytes);
@@ -2851,6 +3174,179 @@ public class ObjectSerializer
         }
     }
 
+    /** 
+     * Base class of serializers that write a large collection SCO so that its contents can be decoded 
+     * on first access rather than when the owner is loaded. The image is the length of the contents
+     * followed by the contents as written by the collection's regular serializer. The contents are written
+     * with a separate SCO context, so they do not share SCOs with the rest of the owner's image and can
+     * be skipped. Only used for {@link ObjectSerializer#IMAGE_FORMAT_V2} images.
+     */
+    private static abstract class LazySCOSerializer implements Serializer
+    {
+        private Serializer mSerializer;
+        
+        
+        LazySCOSerializer(Serializer aSerializer)
+        {
+            mSerializer = aSerializer;
+        }
+
+
+        /**
+         * Determines whether anObject should be written by this serializer rather than its
+         * regular serializer.
+         *
+         * @param anObject the collection.
+         * 
+         * @return true if anObject has not been decoded, or if it is large.
+         */
+        boolean shouldWrite(Object anObject)
+        {
+            if (anObject instanceof LazySCO && ((LazySCO)anObject).getUnloadedImage() != null) {
+                return true;
+            }
+            
+            return getSize(anObject) >= sMinLazySCOSize;
+        }
+
+        
+        /**
+         * Gets the number of elements in the collection.
+         *
+         * @param anObject the collection.
+         * 
+         * @return the number of elements.
+         */
+        abstract int getSize(Object anObject);
+
+        
+        /**
+         * Creates a SCO whose contents are decoded from anImage on first access.
+         *
+         * @param anImage the image of the contents.
+         * @param anOwner the owner FCO.
+         * 
+         * @return the SCO.
+         */
+        abstract Object createSCO(SCOImage anImage, Persistable anOwner);
+
+
+        public Class getRepresentingClass()
+        {
+            return mSerializer.getRepresentingClass();
+        }
+        
+
+        public Class getProxyClass()
+        {
+            return mSerializer.getProxyClass();
+        }
+
+
+        public void write(WriteContext aContext, Object anObject, Persistable anOwner) throws IOException
+        {
+            ObjectSerializer serializer = aContext.mSerializer;
+            SCOImage image = (anObject instanceof LazySCO ? ((LazySCO)anObject).getUnloadedImage() : null);
+            if (image != null && image.isCompatible(serializer.getImageFormat(), serializer.mOwnerOID)) {
+                // Still not decoded, so it could not have changed.
+                byte[] contents = image.getImage();
+                aContext.mStream.writeInt(contents.length);
+                aContext.mStream.write(contents);
+                return;
+            }
+            
+            ByteArrayDataOutput output = (aContext.mIsCompact ? new CompactDataOutput(1024) : new ByteArrayDataOutput(1024));
+            ObjectSerializer contentSerializer = new ObjectSerializer(output);
+            contentSerializer.setOwnerOID(serializer.mOwnerOID);
+            mSerializer.write(contentSerializer.mWriteContext, anObject, anOwner);
+            aContext.mStream.writeInt( output.size() );
+            aContext.mStream.write(output.getBuffer(), 0, output.size());
+        }
+
+
+        public Object read(ReadContext aContext, Persistable anOwner) throws IOException
+        {
+            byte[] contents = new byte[ aContext.mStream.readInt() ];
+            aContext.mStream.readFully(contents);
+            ObjectSerializer serializer = aContext.mSerializer;
+            SCOImage image = new SCOImage(contents, serializer.getImageFormat(), serializer.mOwnerOID, serializer.mIsSkippingFCOs);
+            Object sco = createSCO(image, anOwner);
+            if (serializer.mReadDepth > 1) {
+                // Nested in another collection, so the application could reach it without going
+                // through a field accessor. Decode it now.
+                ((LazySCO)sco).load();
+            }
+            
+            return sco;
+        }
+
+        public void resolve(ObjectSerializer anObjectSerializer, Object anObject, boolean shouldDisassociate) throws IOException
+        {
+            mSerializer.resolve(anObjectSerializer, anObject, shouldDisassociate);
+        }
+    }
+
+
+    /** Internal serializer for a large java.util.ArrayList SCO that is decoded lazily.
+     */
+    private static final class Java_util_ArrayList_Lazy_Serializer extends LazySCOSerializer
+    {
+
+        Java_util_ArrayList_Lazy_Serializer(Serializer aSerializer)
+        {
+            super(aSerializer);
+        }
+
+
+        public byte getTypeId()
+        {
+            return sJava_util_ArrayList_Lazy_TypeId;
+        }
+
+
+        int getSize(Object anObject)
+        {
+            return ((Collection)anObject).size();
+        }
+
+
+        Object createSCO(SCOImage anImage, Persistable anOwner)
+        {
+            return new JavaUtilArrayListSCO(anImage, anOwner);
+        }
+    }
+
+
+    /** Internal serializer for a large java.util.HashMap SCO that is decoded lazily.
+     */
+    private static final class Java_util_HashMap_Lazy_Serializer extends LazySCOSerializer
+    {
+
+        Java_util_HashMap_Lazy_Serializer(Serializer aSerializer)
+        {
+            super(aSerializer);
+        }
+
+
+        public byte getTypeId()
+        {
+            return sJava_util_HashMap_Lazy_TypeId;
+        }
+
+
+        int getSize(Object anObject)
+        {
+            return ((Map)anObject).size();
+        }
+
+
+        Object createSCO(SCOImage anImage, Persistable anOwner)
+        {
+            return new JavaUtilHashMapSCO(anImage, anOwner);
+        }
+    }
+
+
     /** Internal serializer for a org.enerj.core.GenericKey SCO.
      */
     private static final class Org_enerj_core_GenericKey_Serializer implements Serializer 
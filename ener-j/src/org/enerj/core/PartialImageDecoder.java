@@ -0,0 +1,453 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.core;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.io.DataInput;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.enerj.annotations.SchemaAnnotation;
+import org.enerj.util.ByteArrayDataInput;
+import org.enerj.util.CompactDataInput;
+import org.objectweb.asm.ClassAdapter;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodAdapter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.odmg.ODMGRuntimeException;
+
+/**
+ * Decodes the values of indexed properties directly from a serialized image, without loading
+ * the image into an object. <p>
+ * 
+ * The image of an object is its persistent fields, in the order of the persistentFieldNames of the 
+ * {@link SchemaAnnotation}, starting with the top-level Persistable class. The decoder reads fields in 
+ * that order up to the last indexed field, so the rest of the image is never read. A decoder can 
+ * only be created if each indexed property is a simple property whose getter just returns a persistent
+ * field of a primitive, primitive wrapper, String, or Date type. This is verified from the original 
+ * bytecodes of the class declaring the getter, so that the decoded value is the same as the 
+ * value that the getter would return.
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+public final class PartialImageDecoder
+{
+    /** Types of the persistent fields in image order, up to the last indexed field. */
+    private Class[] mFieldTypes;
+    /** Whether the value of each field in mFieldTypes is needed. */
+    private boolean[] mIsNeeded;
+    /** For each key component, the index of its field in mFieldTypes. */
+    private int[] mComponentFields;
+    
+    
+    /**
+     * Construct a PartialImageDecoder. 
+     */
+    private PartialImageDecoder(Class[] someFieldTypes, int[] someComponentFields)
+    {
+        mComponentFields = someComponentFields;
+        int numFields = 0;
+        for (int field : someComponentFields) {
+            numFields = Math.max(numFields, field + 1);
+        }
+        
+        mFieldTypes = new Class[numFields];
+        System.arraycopy(someFieldTypes, 0, mFieldTypes, 0, numFields);
+        mIsNeeded = new boolean[numFields];
+        for (int field : someComponentFields) {
+            mIsNeeded[field] = true;
+        }
+    }
+    
+
+    /**
+     * Creates a PartialImageDecoder for the indexed properties of a class.
+     *
+     * @param aPersistableClass the enhanced class of the objects whose images are decoded.
+     * @param someProperties the indexed properties.
+     * 
+     * @return a PartialImageDecoder, or null if the properties cannot be decoded from the image. 
+     */
+    public static PartialImageDecoder create(Class aPersistableClass, String[] someProperties)
+    {
+        // Build the field layout starting at the top-level Persistable.
+        List<Class> classes = new ArrayList<Class>();
+        for (Class cls = aPersistableClass; cls != null && cls.isAnnotationPresent(SchemaAnnotation.class); cls = cls.getSuperclass()) {
+            classes.add(0, cls);
+        }
+        
+        if (classes.isEmpty()) {
+            return null;
+        }
+        
+        List<java.lang.reflect.Field> fields = new ArrayList<java.lang.reflect.Field>();
+        try {
+            for (Class cls : classes) {
+                SchemaAnnotation schema = (SchemaAnnotation)cls.getAnnotation(SchemaAnnotation.class);
+                for (String name : schema.persistentFieldNames()) {
+                    fields.add( cls.getDeclaredField(name) );
+                }
+            }
+        }
+        catch (NoSuchFieldException e) {
+            return null;
+        }
+        
+        Class[] fieldTypes = new Class[ fields.size() ];
+        for (int i = 0; i < fieldTypes.length; i++) {
+            fieldTypes[i] = fields.get(i).getType();
+        }
+        
+        int[] componentFields = new int[someProperties.length];
+        for (int i = 0; i < someProperties.length; i++) {
+            java.lang.reflect.Field field = getReturnedField(aPersistableClass, someProperties[i]);
+            componentFields[i] = fields.indexOf(field);
+            if (field == null || componentFields[i] < 0 || !isDecodable(field.getType())) {
+                return null;
+            }
+        }
+        
+        return new PartialImageDecoder(fieldTypes, componentFields);
+    }
+    
+
+    /**
+     * Determines if a field type can be decoded as a key component.
+     *
+     * @param aType the type of the field.
+     * 
+     * @return true if aType is a primitive, primitive wrapper, String, or Date.
+     */
+    private static boolean isDecodable(Class aType)
+    {
+        return aType.isPrimitive() || aType == Boolean.class || aType == Byte.class || aType == Short.class || 
+            aType == Integer.class || aType == Long.class || aType == Float.class || aType == Double.class || 
+            aType == Character.class || aType == String.class || Date.class.isAssignableFrom(aType);
+    }
+    
+
+    /**
+     * Gets the field returned by a property's getter. 
+     *
+     * @param aClass the class of the object.
+     * @param aProperty the property name.
+     * 
+     * @return the field, or null if the property isn't a simple property with a getter 
+     *  that just returns a field of an enhanced class.
+     */
+    private static java.lang.reflect.Field getReturnedField(Class aClass, String aProperty)
+    {
+        Method getter = null;
+        try {
+            BeanInfo beanInfo = Introspector.getBeanInfo(aClass);
+            for (PropertyDescriptor descriptor : beanInfo.getPropertyDescriptors()) {
+                if (descriptor.getName().equals(aProperty)) {
+                    getter = descriptor.getReadMethod();
+                    break;
+                }
+            }
+        }
+        catch (IntrospectionException e) {
+            return null;
+        }
+        
+        if (getter == null) {
+            return null;
+        }
+        
+        // The original bytecodes are those of the un-enhanced getter.
+        Class declaringClass = getter.getDeclaringClass();
+        SchemaAnnotation schema = (SchemaAnnotation)declaringClass.getAnnotation(SchemaAnnotation.class);
+        if (schema == null) {
+            return null;
+        }
+        
+        GetterAnalyzer analyzer = new GetterAnalyzer(getter.getName(), Type.getMethodDescriptor(getter));
+        new ClassReader( schema.originalByteCodes() ).accept(analyzer, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        if (analyzer.mFieldOwner == null) {
+            return null;
+        }
+
+        // Find the field starting at the class named by the instruction.
+        ClassLoader loader = declaringClass.getClassLoader();
+        try {
+            for (Class cls = Class.forName(analyzer.mFieldOwner.replace('/', '.'), false, loader); cls != null; cls = cls.getSuperclass()) {
+                try {
+                    return cls.getDeclaredField(analyzer.mFieldName);
+                }
+                catch (NoSuchFieldException e) {
+                    // Try the superclass.
+                }
+            }
+        }
+        catch (ClassNotFoundException e) {
+            // Fall thru.
+        }
+        
+        return null;
+    }
+    
+
+    /**
+     * Decodes the key components from an image. No Persister is needed. FCO references in the 
+     * fields read before the indexed fields are skipped, and values read have no owner.
+     *
+     * @param anOID the OID of the object that the image belongs to.
+     * @param anImage the serialized image. There may be trailing bytes after the image.
+     * @param aFormat the format of anImage, {@link ObjectSerializer#IMAGE_FORMAT_V1} or 
+     *  {@link ObjectSerializer#IMAGE_FORMAT_V2}.
+     * 
+     * @return the key components, one per indexed property. Primitive values are boxed.
+     * 
+     * @throws ODMGRuntimeException if an error occurs.
+     */
+    public Object[] decode(long anOID, byte[] anImage, int aFormat) throws ODMGRuntimeException
+    {
+        ObjectSerializer readContext;
+        if (aFormat == ObjectSerializer.IMAGE_FORMAT_V2) {
+            readContext = new ObjectSerializer( new CompactDataInput(anImage, 0, anImage.length) );
+            readContext.setOwnerOID(anOID);
+        }
+        else {
+            readContext = new ObjectSerializer( new ByteArrayDataInput(anImage, 0, anImage.length) );
+        }
+
+        readContext.setSkippingFCOs(true);
+        DataInput stream = readContext.getDataInput();
+        Object[] values = new Object[mFieldTypes.length];
+        try {
+            for (int i = 0; i < mFieldTypes.length; i++) {
+                Class type = mFieldTypes[i];
+                // Fields that are not needed must still be read to get to the next field.
+                if (!type.isPrimitive()) {
+                    values[i] = readContext.readObject(null);
+                }
+                else if (type == Integer.TYPE) {
+                    int value = stream.readInt();
+                    values[i] = (mIsNeeded[i] ? Integer.valueOf(value) : null);
+                }
+                else if (type == Long.TYPE) {
+                    long value = stream.readLong();
+                    values[i] = (mIsNeeded[i] ? Long.valueOf(value) : null);
+                }
+                else if (type == Boolean.TYPE) {
+                    boolean value = stream.readBoolean();
+                    values[i] = (mIsNeeded[i] ? Boolean.valueOf(value) : null);
+                }
+                else if (type == Double.TYPE) {
+                    double value = stream.readDouble();
+                    values[i] = (mIsNeeded[i] ? Double.valueOf(value) : null);
+                }
+                else if (type == Float.TYPE) {
+                    float value = stream.readFloat();
+                    values[i] = (mIsNeeded[i] ? Float.valueOf(value) : null);
+                }
+                else if (type == Short.TYPE) {
+                    short value = stream.readShort();
+                    values[i] = (mIsNeeded[i] ? Short.valueOf(value) : null);
+                }
+                else if (type == Byte.TYPE) {
+                    byte value = stream.readByte();
+                    values[i] = (mIsNeeded[i] ? Byte.valueOf(value) : null);
+                }
+                else {
+                    char value = stream.readChar();
+                    values[i] = (mIsNeeded[i] ? Character.valueOf(value) : null);
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new ODMGRuntimeException("Error decoding image for OID " + anOID, e);
+        }
+        
+        Object[] components = new Object[mComponentFields.length];
+        for (int i = 0; i < components.length; i++) {
+            components[i] = values[ mComponentFields[i] ];
+        }
+        
+        return components;
+    }
+    
+
+    /**
+     * Determines the field returned by a getter. The getter must consist only of
+     * <code>return this.field;</code>.
+     */
+    private static final class GetterAnalyzer extends ClassAdapter
+    {
+        private String mGetterName;
+        private String mGetterDescr;
+        /** The owner and name of the field, if the getter just returns a field. Otherwise null. */
+        String mFieldOwner = null;
+        String mFieldName = null;
+
+        
+        GetterAnalyzer(String aGetterName, String aGetterDescr)
+        {
+            super( new ClassWriter(0) );
+            mGetterName = aGetterName;
+            mGetterDescr = aGetterDescr;
+        }
+        
+        @Override
+        public MethodVisitor visitMethod(int someAccess, String aName, String aDescr, String aSignature, String[] someExceptions)
+        {
+            MethodVisitor mv = super.visitMethod(someAccess, aName, aDescr, aSignature, someExceptions);
+            if (!aName.equals(mGetterName) || !aDescr.equals(mGetterDescr)) {
+                return mv;
+            }
+            
+            return new MethodAdapter(mv) {
+                // The number of instructions seen.
+                private int mNumInsns = 0;
+                private boolean mIsSimple = true;
+                private String mOwner;
+                private String mName;
+                
+                private void visitOther()
+                {
+                    mIsSimple = false;
+                    ++mNumInsns;
+                }
+                
+                @Override
+                public void visitVarInsn(int anOpcode, int aVar)
+                {
+                    mIsSimple &= (mNumInsns == 0 && anOpcode == Opcodes.ALOAD && aVar == 0);
+                    ++mNumInsns;
+                    super.visitVarInsn(anOpcode, aVar);
+                }
+                
+                @Override
+                public void visitFieldInsn(int anOpcode, String anOwner, String aName, String aDescr)
+                {
+                    mIsSimple &= (mNumInsns == 1 && anOpcode == Opcodes.GETFIELD);
+                    mOwner = anOwner;
+                    mName = aName;
+                    ++mNumInsns;
+                    super.visitFieldInsn(anOpcode, anOwner, aName, aDescr);
+                }
+
+                @Override
+                public void visitInsn(int anOpcode)
+                {
+                    mIsSimple &= (mNumInsns == 2 && anOpcode >= Opcodes.IRETURN && anOpcode <= Opcodes.ARETURN);
+                    ++mNumInsns;
+                    super.visitInsn(anOpcode);
+                }
+                
+                @Override
+                public void visitIntInsn(int anOpcode, int anOperand)
+                {
+                    visitOther();
+                    super.visitIntInsn(anOpcode, anOperand);
+                }
+                
+                @Override
+                public void visitTypeInsn(int anOpcode, String aDescr)
+                {
+                    visitOther();
+                    super.visitTypeInsn(anOpcode, aDescr);
+                }
+                
+                @Override
+                public void visitMethodInsn(int anOpcode, String anOwner, String aName, String aDescr)
+                {
+                    visitOther();
+                    super.visitMethodInsn(anOpcode, anOwner, aName, aDescr);
+                }
+
+                @Override
+                public void visitJumpInsn(int anOpcode, Label aLabel)
+                {
+                    visitOther();
+                    super.visitJumpInsn(anOpcode, aLabel);
+                }
+
+                @Override
+                public void visitLdcInsn(Object aConstant)
+                {
+                    visitOther();
+                    super.visitLdcInsn(aConstant);
+                }
+
+                @Override
+                public void visitIincInsn(int aVar, int anIncrement)
+                {
+                    visitOther();
+                    super.visitIincInsn(aVar, anIncrement);
+                }
+
+                @Override
+                public void visitTableSwitchInsn(int aMin, int aMax, Label aDefault, Label[] someLabels)
+                {
+                    visitOther();
+                    super.visitTableSwitchInsn(aMin, aMax, aDefault, someLabels);
+                }
+
+                @Override
+                public void visitLookupSwitchInsn(Label aDefault, int[] someKeys, Label[] someLabels)
+                {
+                    visitOther();
+                    super.visitLookupSwitchInsn(aDefault, someKeys, someLabels);
+                }
+
+                @Override
+                public void visitMultiANewArrayInsn(String aDescr, int someDims)
+                {
+                    visitOther();
+                    super.visitMultiANewArrayInsn(aDescr, someDims);
+                }
+
+                @Override
+                public void visitTryCatchBlock(Label aStart, Label anEnd, Label aHandler, String aType)
+                {
+                    visitOther();
+                    super.visitTryCatchBlock(aStart, anEnd, aHandler, aType);
+                }
+
+                @Override
+                public void visitEnd()
+                {
+                    if (mIsSimple && mNumInsns == 3) {
+                        mFieldOwner = mOwner;
+                        mFieldName = mName;
+                    }
+                    
+                    super.visitEnd();
+                }
+            };
+        }
+    }
+}
@@ -24,14 +24,13 @@
 
 package org.enerj.core;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.lang.reflect.Constructor;
 
+import org.enerj.sco.LazySCO;
 import org.enerj.server.ClassInfo;
+import org.enerj.util.ByteArrayDataInput;
+import org.enerj.util.CompactDataInput;
 import org.odmg.ODMGException;
 import org.odmg.ODMGRuntimeException;
 import org.odmg.TransactionNotInProgressException;
@@ -46,6 +45,8 @@ public class PersistableHelper
 {
     private static final Class[] sPeristerArgType = { Persister.class };
     private static final Object[] sPersisterArg = { null };
+    /** Per-thread ImageWriter used by createSerializedImage. */
+    private static final ThreadLocal<ImageWriter> sImageWriter = new ThreadLocal<ImageWriter>();
 
     /**
      * Initializes a new Persistable. Called from the top-level 
@@ -179,6 +180,23 @@ public class PersistableHelper
     }
 
 
+    /**
+     * This method is called by a Persistable.enerj_Get_* method of a field that can
+     * hold a collection SCO. If the value is a LazySCO whose contents have not been decoded,
+     * they are decoded now, so that methods that the SCO cannot override see the contents.
+     *
+     * @param aValue the value of the field.
+     *
+     * @throws ODMGRuntimeException if an error occurs.
+     */
+    public static final void loadLazySCO(Object aValue)
+    {
+        if (aValue instanceof LazySCO) {
+            ((LazySCO)aValue).load();
+        }
+    }
+
+
     /**
      * This method is called by a Persistable.enerj_Set_* method just prior to the
      * first modification of the object.
@@ -320,7 +338,8 @@ public class PersistableHelper
     }
 
     /**
-     * Loads the contents of aPersistable from a serialized image. 
+     * Loads the contents of aPersistable from a serialized image in the 
+     * {@link ObjectSerializer#IMAGE_FORMAT_V1} format. 
      *
      * @param aPersister the persister responsible for this Persistable.
      * @param aPersistable the persistable to be loaded.
@@ -330,7 +349,50 @@ public class PersistableHelper
      */
     public static void loadSerializedImage(Persister aPersister, Persistable aPersistable, byte[] anImage)
     {
-        ObjectSerializer readContext = new ObjectSerializer( new DataInputStream( new ByteArrayInputStream(anImage) ) );
+        loadSerializedImage(aPersister, aPersistable, anImage, ObjectSerializer.IMAGE_FORMAT_V1);
+    }
+
+    /**
+     * Loads the contents of aPersistable from a serialized image. The OID of aPersistable must 
+     * already be set.
+     *
+     * @param aPersister the persister responsible for this Persistable.
+     * @param aPersistable the persistable to be loaded.
+     * @param anImage the serialized image of the persistable. There may be trailing bytes after the image.
+     * @param aFormat the format of anImage, {@link ObjectSerializer#IMAGE_FORMAT_V1} or 
+     *  {@link ObjectSerializer#IMAGE_FORMAT_V2}.
+     *
+     * @throws ODMGRuntimeException if an error occurs.
+     */
+    public static void loadSerializedImage(Persister aPersister, Persistable aPersistable, byte[] anImage, int aFormat)
+    {
+        loadSerializedImage(aPersister, aPersistable, anImage, 0, anImage.length, aFormat);
+    }
+
+    /**
+     * Loads the contents of aPersistable from a serialized image that is a slice of a larger 
+     * buffer. The OID of aPersistable must already be set.
+     *
+     * @param aPersister the persister responsible for this Persistable.
+     * @param aPersistable the persistable to be loaded.
+     * @param aBuffer the buffer containing the serialized image of the persistable.
+     * @param anOffset the offset of the image in aBuffer.
+     * @param aLength the length of the image.
+     * @param aFormat the format of the image, {@link ObjectSerializer#IMAGE_FORMAT_V1} or 
+     *  {@link ObjectSerializer#IMAGE_FORMAT_V2}.
+     *
+     * @throws ODMGRuntimeException if an error occurs.
+     */
+    public static void loadSerializedImage(Persister aPersister, Persistable aPersistable, byte[] aBuffer, int anOffset, int aLength, int aFormat)
+    {
+        ObjectSerializer readContext;
+        if (aFormat == ObjectSerializer.IMAGE_FORMAT_V2) {
+            readContext = new ObjectSerializer( new CompactDataInput(aBuffer, anOffset, aLength) );
+            readContext.setOwnerOID( aPersistable.enerj_GetPrivateOID() );
+        }
+        else {
+            readContext = new ObjectSerializer( new ByteArrayDataInput(aBuffer, anOffset, aLength) );
+        }
 
         try {
             aPersistable.enerj_SetPersister(aPersister);
@@ -360,21 +422,23 @@ public class PersistableHelper
      */
     public static byte[] createSerializedImage(Persistable aPersistable)
     {
-        // TODOLOW Maybe have a shared pool of these later?
-        ByteArrayOutputStream byteOutputStream = new ByteArrayOutputStream(1000);
-        DataOutputStream dataOutput = new DataOutputStream(byteOutputStream);
+        // Take the thread's writer so that a reentrant call gets its own.
+        ImageWriter imageWriter = sImageWriter.get();
+        if (imageWriter == null) {
+            imageWriter = new ImageWriter();
+        }
+        else {
+            sImageWriter.set(null);
+        }
         
         try {
-            byteOutputStream.reset();
-            ObjectSerializer writeContext = new ObjectSerializer(dataOutput);
-            aPersistable.enerj_WriteObject(writeContext);
-            dataOutput.flush();
+            imageWriter.reset();
+            int offset = imageWriter.write(aPersistable);
+            return imageWriter.getImageCopy(offset);
         }
-        catch (IOException e) {
-            throw new ODMGRuntimeException("Error writing object: " + e);
+        finally {
+            sImageWriter.set(imageWriter);
         }
-        
-        return byteOutputStream.toByteArray();
     }
     
     /**
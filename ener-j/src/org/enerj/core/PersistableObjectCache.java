@@ -101,7 +101,35 @@ public interface PersistableObjectCache
 
 
     /**
-     * Hollow all objects in the cache. The cached objects are preserved.
+     * Sets the image of this object as it is currently stored in the database. This is
+     * used to create delta images when the object is stored.
+     *
+     * @param anOID the OID of the object already in the cache.
+     * @param anImage the byte[] representing the image. This may be null to 
+     *  clear the base image.
+     */
+    void setBaseImage(long anOID, byte[] anImage);
+
+
+    /**
+     * Gets the image of this object as it is currently stored in the database.
+     *
+     * @param anOID the OID of the object already in the cache.
+     *
+     * @return the byte[] representing the image, or null if anOID was not found
+     *  or has no base image.
+     */
+    byte[] getBaseImage(long anOID);
+
+
+    /**
+     * Clears the base images of all objects in the cache.
+     */
+    void clearBaseImages();
+
+
+    /**
+     * Hollow all objects in the cache. Base images are cleared. The cached objects are preserved.
      */
     void hollowObjects();
 
@@ -113,6 +141,26 @@ public interface PersistableObjectCache
     void makeObjectsNonTransactional();
 
 
+    /**
+     * Retains the values of loaded objects in the cache across a transaction boundary. 
+     * Loaded objects are marked as not loaded, but their values are preserved so that they can be
+     * validated against the database and reused in a later transaction. The objects are made 
+     * non-transactional and any saved image is cleared. Objects that are not loaded are left as is.
+     *
+     * @see #getAndClearRetainedObjects()
+     */
+    void retainObjects();
+
+
+    /**
+     * Gets the objects whose values were retained by {@link #retainObjects()} and which have not
+     * been validated yet. The retained state is cleared.
+     *
+     * @return a list of Persistables whose values must be validated before they are used.
+     */
+    List<Persistable> getAndClearRetainedObjects();
+
+
     /**
      * Clean up the cache by removing GCed entries.
      */
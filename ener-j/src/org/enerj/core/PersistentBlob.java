@@ -0,0 +1,541 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.enerj.annotations.Persist;
+
+/**
+ * A large binary value stored out-of-line from the objects that reference it. The content is 
+ * split into chunks, each of which is a separate persistent object. The owner only stores a reference
+ * to the PersistentBlob, and the PersistentBlob only stores its length and references to its chunks. So
+ * loading the owner, or the PersistentBlob itself, does not read the content. Chunks are loaded
+ * on demand when a range of the content is read, and only the chunks that are written are stored
+ * again.<p>
+ * 
+ * The content is accessed by position, either with byte arrays and ByteBuffers, or through 
+ * InputStreams and OutputStreams. Writing beyond the end of the content extends it. Any gap
+ * reads as zeros. Large Strings can be stored by wrapping the streams in a Reader or Writer.<p>
+ * 
+ * Like other persistent objects, a PersistentBlob must only be accessed within a transaction 
+ * (unless non-transactional reads are enabled) and must not be shared by threads. 
+ *
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+@Persist
+public class PersistentBlob
+{
+    /** The default chunk size, in bytes. */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    
+    /** The length of the content. */
+    private long mLength;
+    /** The maximum number of bytes in each chunk. */
+    private int mChunkSize;
+    /** The chunks, each of which is a Chunk. */
+    private Object[] mChunks;
+    
+
+    /**
+     * Constructs an empty PersistentBlob with the default chunk size.
+     */
+    public PersistentBlob()
+    {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+    
+
+    /**
+     * Constructs an empty PersistentBlob.
+     *
+     * @param aChunkSize the maximum number of bytes in each chunk. Larger chunks require fewer 
+     *  objects for the same content, but more is read and written to access a small range.
+     *  
+     * @throws IllegalArgumentException if aChunkSize is not positive.
+     */
+    public PersistentBlob(int aChunkSize)
+    {
+        if (aChunkSize <= 0) {
+            throw new IllegalArgumentException("Chunk size must be positive");
+        }
+        
+        mLength = 0;
+        mChunkSize = aChunkSize;
+        mChunks = new Object[0];
+    }
+
+
+    /**
+     * Gets the length of the content.
+     *
+     * @return the length, in bytes.
+     */
+    public long length()
+    {
+        return mLength;
+    }
+
+
+    /**
+     * Gets the maximum number of bytes in each chunk.
+     *
+     * @return the chunk size, in bytes.
+     */
+    public int getChunkSize()
+    {
+        return mChunkSize;
+    }
+    
+
+    /**
+     * Reads a range of the content into a byte array. Only the chunks covering the range are loaded.
+     *
+     * @param aPosition the position of the first byte to read.
+     * @param aBuffer the buffer to read into.
+     * @param anOffset the offset in aBuffer of the first byte.
+     * @param aLength the maximum number of bytes to read.
+     * 
+     * @return the number of bytes read, which is less than aLength only if the end of the content is
+     *  reached, or -1 if aPosition is at or beyond the end of the content and aLength is not zero.
+     *  
+     * @throws IndexOutOfBoundsException if aPosition is negative or the range is not within aBuffer.
+     */
+    public int read(long aPosition, byte[] aBuffer, int anOffset, int aLength)
+    {
+        checkRange(aPosition, aBuffer, anOffset, aLength);
+        if (aLength == 0) {
+            return 0;
+        }
+        
+        if (aPosition >= mLength) {
+            return -1;
+        }
+        
+        int count = (int)Math.min(aLength, mLength - aPosition);
+        int numRead = 0;
+        while (numRead < count) {
+            long position = aPosition + numRead;
+            int chunkOffset = (int)(position % mChunkSize);
+            int length = Math.min(count - numRead, mChunkSize - chunkOffset);
+            Chunk chunk = (Chunk)mChunks[ (int)(position / mChunkSize) ];
+            chunk.read(chunkOffset, aBuffer, anOffset + numRead, length);
+            numRead += length;
+        }
+        
+        return count;
+    }
+
+
+    /**
+     * Reads a range of the content into a ByteBuffer. Bytes are read from aPosition until the buffer
+     * is full or the end of the content is reached. The buffer's position is advanced by 
+     * the number of bytes read.
+     *
+     * @param aPosition the position of the first byte to read.
+     * @param aBuffer the buffer to read into.
+     * 
+     * @return the number of bytes read, or -1 if aPosition is at or beyond the end of the content and
+     *  aBuffer is not full.
+     *  
+     * @throws IndexOutOfBoundsException if aPosition is negative.
+     */
+    public int read(long aPosition, ByteBuffer aBuffer)
+    {
+        int numRead;
+        if (aBuffer.hasArray()) {
+            numRead = read(aPosition, aBuffer.array(), aBuffer.arrayOffset() + aBuffer.position(), aBuffer.remaining());
+            if (numRead > 0) {
+                aBuffer.position(aBuffer.position() + numRead);
+            }
+        }
+        else {
+            byte[] bytes = new byte[ (int)Math.max(0, Math.min(aBuffer.remaining(), mLength - aPosition)) ];
+            numRead = read(aPosition, bytes, 0, bytes.length);
+            if (numRead > 0) {
+                aBuffer.put(bytes, 0, numRead);
+            }
+            else if (aBuffer.hasRemaining()) {
+                numRead = -1;
+            }
+        }
+        
+        return numRead;
+    }
+
+
+    /**
+     * Writes a range of the content from a byte array. Only the chunks covering the range are
+     * loaded and modified. The content is extended if the range ends beyond it.
+     *
+     * @param aPosition the position of the first byte to write.
+     * @param aBuffer the buffer to write from.
+     * @param anOffset the offset in aBuffer of the first byte.
+     * @param aLength the number of bytes to write.
+     * 
+     * @throws IndexOutOfBoundsException if aPosition is negative or the range is not within aBuffer.
+     */
+    public void write(long aPosition, byte[] aBuffer, int anOffset, int aLength)
+    {
+        checkRange(aPosition, aBuffer, anOffset, aLength);
+        if (aLength == 0) {
+            return;
+        }
+        
+        long end = aPosition + aLength;
+        int numChunks = (int)((end + mChunkSize - 1) / mChunkSize);
+        if (numChunks > mChunks.length) {
+            Object[] chunks = new Object[numChunks];
+            System.arraycopy(mChunks, 0, chunks, 0, mChunks.length);
+            for (int i = mChunks.length; i < numChunks; i++) {
+                chunks[i] = new Chunk();
+            }
+            
+            mChunks = chunks;
+        }
+        
+        int numWritten = 0;
+        while (numWritten < aLength) {
+            long position = aPosition + numWritten;
+            int chunkOffset = (int)(position % mChunkSize);
+            int length = Math.min(aLength - numWritten, mChunkSize - chunkOffset);
+            Chunk chunk = (Chunk)mChunks[ (int)(position / mChunkSize) ];
+            chunk.write(chunkOffset, aBuffer, anOffset + numWritten, length);
+            numWritten += length;
+        }
+        
+        if (end > mLength) {
+            mLength = end;
+        }
+    }
+
+
+    /**
+     * Writes a range of the content from a ByteBuffer. The remaining bytes of the buffer are written 
+     * and its position is advanced to its limit. The content is extended if the range ends beyond it.
+     *
+     * @param aPosition the position of the first byte to write.
+     * @param aBuffer the buffer to write from.
+     * 
+     * @throws IndexOutOfBoundsException if aPosition is negative.
+     */
+    public void write(long aPosition, ByteBuffer aBuffer)
+    {
+        int length = aBuffer.remaining();
+        if (aBuffer.hasArray()) {
+            write(aPosition, aBuffer.array(), aBuffer.arrayOffset() + aBuffer.position(), length);
+            aBuffer.position( aBuffer.limit() );
+        }
+        else {
+            byte[] bytes = new byte[length];
+            aBuffer.get(bytes);
+            write(aPosition, bytes, 0, length);
+        }
+    }
+
+
+    /**
+     * Truncates the content. Chunks beyond the new length are no longer referenced.
+     *
+     * @param aLength the new length.
+     * 
+     * @throws IllegalArgumentException if aLength is negative or greater than the current length.
+     */
+    public void truncate(long aLength)
+    {
+        if (aLength < 0 || aLength > mLength) {
+            throw new IllegalArgumentException("Length must be between 0 and " + mLength);
+        }
+
+        if (aLength == mLength) {
+            return;
+        }
+        
+        int numChunks = (int)((aLength + mChunkSize - 1) / mChunkSize);
+        if (numChunks < mChunks.length) {
+            Object[] chunks = new Object[numChunks];
+            System.arraycopy(mChunks, 0, chunks, 0, numChunks);
+            mChunks = chunks;
+        }
+        
+        if (numChunks > 0) {
+            // Bytes beyond the end must read as zeros if the content is extended again.
+            ((Chunk)mChunks[numChunks - 1]).truncate( (int)(aLength - (long)(numChunks - 1) * mChunkSize) );
+        }
+        
+        mLength = aLength;
+    }
+
+
+    /**
+     * Gets an InputStream that reads the content from the beginning.
+     *
+     * @return an InputStream.
+     */
+    public InputStream getInputStream()
+    {
+        return getInputStream(0L);
+    }
+
+
+    /**
+     * Gets an InputStream that reads the content from a position. The stream supports mark()
+     * and reset(). It reads the content as it is when each read is made.
+     *
+     * @param aPosition the position of the first byte to read.
+     * 
+     * @return an InputStream.
+     * 
+     * @throws IndexOutOfBoundsException if aPosition is negative.
+     */
+    public InputStream getInputStream(long aPosition)
+    {
+        if (aPosition < 0) {
+            throw new IndexOutOfBoundsException("Position must not be negative");
+        }
+
+        return new BlobInputStream(this, aPosition);
+    }
+
+
+    /**
+     * Gets an OutputStream that writes the content from a position. Writes are buffered
+     * for up to one chunk, so the content may not be updated until the stream is 
+     * flushed or closed. 
+     *
+     * @param aPosition the position of the first byte to write.
+     * 
+     * @return an OutputStream.
+     * 
+     * @throws IndexOutOfBoundsException if aPosition is negative.
+     */
+    public OutputStream getOutputStream(long aPosition)
+    {
+        if (aPosition < 0) {
+            throw new IndexOutOfBoundsException("Position must not be negative");
+        }
+
+        return new BlobOutputStream(this, aPosition);
+    }
+
+
+    /**
+     * Validates the arguments of read and write.
+     * 
+     * @throws IndexOutOfBoundsException if aPosition is negative or the range is not within aBuffer.
+     */
+    private static void checkRange(long aPosition, byte[] aBuffer, int anOffset, int aLength)
+    {
+        if (aPosition < 0 || anOffset < 0 || aLength < 0 || anOffset + aLength > aBuffer.length) {
+            throw new IndexOutOfBoundsException("Position or buffer range is invalid");
+        }
+    }
+    
+    
+    /** 
+     * A chunk of the content. This is a separate object so that it is demand-loaded and 
+     * stored separately from the PersistentBlob. 
+     */
+    @Persist
+    private static final class Chunk
+    {
+        /** The bytes of this chunk. Bytes beyond the end read as zeros. */
+        private byte[] mData;
+        
+
+        Chunk()
+        {
+            mData = new byte[0];
+        }
+        
+        
+        void read(int anOffset, byte[] aBuffer, int aBufferOffset, int aLength)
+        {
+            int length = Math.max(0, Math.min(aLength, mData.length - anOffset));
+            System.arraycopy(mData, anOffset, aBuffer, aBufferOffset, length);
+            Arrays.fill(aBuffer, aBufferOffset + length, aBufferOffset + aLength, (byte)0);
+        }
+        
+        
+        void write(int anOffset, byte[] aBuffer, int aBufferOffset, int aLength)
+        {
+            byte[] data = mData;
+            if (anOffset + aLength > data.length) {
+                data = new byte[anOffset + aLength];
+                System.arraycopy(mData, 0, data, 0, mData.length);
+            }
+            
+            System.arraycopy(aBuffer, aBufferOffset, data, anOffset, aLength);
+            mData = data;
+            // The array's contents may have changed without the field changing.
+            EnerJImplementation.setModified(this);
+        }
+        
+        
+        void truncate(int aLength)
+        {
+            if (aLength < mData.length) {
+                byte[] data = new byte[aLength];
+                System.arraycopy(mData, 0, data, 0, aLength);
+                mData = data;
+            }
+        }
+    }
+    
+    
+    /**
+     * InputStream over the content of a PersistentBlob. 
+     */
+    private static final class BlobInputStream extends InputStream
+    {
+        private PersistentBlob mBlob;
+        private long mPosition;
+        private long mMark;
+        
+        
+        BlobInputStream(PersistentBlob aBlob, long aPosition)
+        {
+            mBlob = aBlob;
+            mPosition = aPosition;
+            mMark = aPosition;
+        }
+        
+        
+        public int read() throws IOException
+        {
+            byte[] b = new byte[1];
+            return (read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff));
+        }
+        
+        
+        public int read(byte[] aBuffer, int anOffset, int aLength) throws IOException
+        {
+            int numRead = mBlob.read(mPosition, aBuffer, anOffset, aLength);
+            if (numRead > 0) {
+                mPosition += numRead;
+            }
+            
+            return numRead;
+        }
+
+
+        public long skip(long aCount) throws IOException
+        {
+            long count = Math.max(0, Math.min(aCount, mBlob.length() - mPosition));
+            mPosition += count;
+            return count;
+        }
+
+
+        public int available() throws IOException
+        {
+            return (int)Math.max(0, Math.min(Integer.MAX_VALUE, mBlob.length() - mPosition));
+        }
+
+
+        public boolean markSupported()
+        {
+            return true;
+        }
+
+
+        public void mark(int aReadLimit)
+        {
+            mMark = mPosition;
+        }
+
+
+        public void reset() throws IOException
+        {
+            mPosition = mMark;
+        }
+    }
+    
+    
+    /**
+     * OutputStream over the content of a PersistentBlob. Writes are buffered for up to one chunk. 
+     */
+    private static final class BlobOutputStream extends OutputStream
+    {
+        private PersistentBlob mBlob;
+        private long mPosition;
+        private byte[] mBuffer;
+        private int mCount = 0;
+        
+        
+        BlobOutputStream(PersistentBlob aBlob, long aPosition)
+        {
+            mBlob = aBlob;
+            mPosition = aPosition;
+            mBuffer = new byte[ aBlob.getChunkSize() ];
+        }
+
+
+        public void write(int aByte) throws IOException
+        {
+            if (mCount == mBuffer.length) {
+                flush();
+            }
+            
+            mBuffer[mCount++] = (byte)aByte;
+        }
+
+
+        public void write(byte[] aBuffer, int anOffset, int aLength) throws IOException
+        {
+            if (aLength > mBuffer.length - mCount) {
+                flush();
+            }
+            
+            if (aLength >= mBuffer.length) {
+                mBlob.write(mPosition, aBuffer, anOffset, aLength);
+                mPosition += aLength;
+            }
+            else {
+                System.arraycopy(aBuffer, anOffset, mBuffer, mCount, aLength);
+                mCount += aLength;
+            }
+        }
+
+
+        public void flush() throws IOException
+        {
+            if (mCount > 0) {
+                mBlob.write(mPosition, mBuffer, 0, mCount);
+                mPosition += mCount;
+                mCount = 0;
+            }
+        }
+
+
+        public void close() throws IOException
+        {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+
+import org.enerj.util.ByteArrayDataInput;
+import org.enerj.util.CompactDataInput;
+import org.odmg.ODMGRuntimeException;
+
+/**
+ * The serialized contents of a large SCO collection that have not been decoded yet. The image 
+ * is the range of the owner's image that holds the collection's size and elements. It is 
+ * decoded on the first access to the collection (see {@link org.enerj.sco.LazySCO}). 
+ * If the collection is still not decoded when its owner is stored again, the image is 
+ * copied into the owner's new image unchanged.
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+public final class SCOImage
+{
+    private byte[] mImage;
+    private int mFormat;
+    /** OID that FCO references are relative to in the {@link ObjectSerializer#IMAGE_FORMAT_V2} format. */
+    private long mOwnerOID;
+    /** If true, FCO references are decoded as null. */
+    private boolean mIsSkippingFCOs;
+    
+
+    /**
+     * Constructs a SCOImage.
+     *
+     * @param anImage the image of the collection's size and elements.
+     * @param aFormat the image format.
+     * @param anOwnerOID the OID that FCO references are relative to.
+     * @param isSkippingFCOs true if FCO references are decoded as null, as they were for the owner's image.
+     */
+    SCOImage(byte[] anImage, int aFormat, long anOwnerOID, boolean isSkippingFCOs)
+    {
+        mImage = anImage;
+        mFormat = aFormat;
+        mOwnerOID = anOwnerOID;
+        mIsSkippingFCOs = isSkippingFCOs;
+    }
+
+
+    /**
+     * Gets the image of the collection's size and elements.
+     *
+     * @return the image.
+     */
+    byte[] getImage()
+    {
+        return mImage;
+    }
+
+
+    /**
+     * Determines whether the image can be copied unchanged into an image being written.
+     *
+     * @param aFormat the format of the image being written.
+     * @param anOwnerOID the OID that FCO references are relative to in the image being written.
+     * 
+     * @return true if the image can be copied.
+     */
+    boolean isCompatible(int aFormat, long anOwnerOID)
+    {
+        return aFormat == mFormat && (mFormat == ObjectSerializer.IMAGE_FORMAT_V1 || anOwnerOID == mOwnerOID);
+    }
+
+
+    /**
+     * Decodes the elements into a Collection.
+     *
+     * @param aCollection the collection to add the elements to. 
+     * @param anOwner the owner FCO, whose Persister resolves FCO references.
+     * 
+     * @throws ODMGRuntimeException if an error occurs.
+     */
+    public void readCollection(Collection aCollection, Persistable anOwner)
+    {
+        ObjectSerializer serializer = createSerializer();
+        EnerJDatabase database = beginDecoding(anOwner);
+        try {
+            int size = serializer.getDataInput().readInt();
+            if (aCollection instanceof ArrayList) {
+                ((ArrayList)aCollection).ensureCapacity(size);
+            }
+            
+            serializer.readCollection(aCollection, size, anOwner);
+        }
+        catch (IOException e) {
+            throw new ODMGRuntimeException("Error loading collection of OID " + mOwnerOID, e);
+        }
+        finally {
+            endDecoding(database);
+        }
+    }
+
+
+    /**
+     * Decodes the entries into a Map.
+     *
+     * @param aMap the map to put the entries into. 
+     * @param anOwner the owner FCO, whose Persister resolves FCO references.
+     * 
+     * @throws ODMGRuntimeException if an error occurs.
+     */
+    public void readMap(Map aMap, Persistable anOwner)
+    {
+        ObjectSerializer serializer = createSerializer();
+        EnerJDatabase database = beginDecoding(anOwner);
+        try {
+            int size = serializer.getDataInput().readInt();
+            serializer.readMap(aMap, size, anOwner);
+        }
+        catch (IOException e) {
+            throw new ODMGRuntimeException("Error loading map of OID " + mOwnerOID, e);
+        }
+        finally {
+            endDecoding(database);
+        }
+    }
+
+
+    /**
+     * Tells the owner's database, if it is a client database, that the image is being decoded, so that
+     * FCO references are resolved even if the owner's values were retained after its transaction.
+     *
+     * @param anOwner the owner FCO.
+     * 
+     * @return the database, or null if the owner doesn't belong to a client database.
+     */
+    private static EnerJDatabase beginDecoding(Persistable anOwner)
+    {
+        Persister persister = (anOwner == null ? null : anOwner.enerj_GetPersister());
+        if ( !(persister instanceof EnerJDatabase)) {
+            return null;
+        }
+        
+        EnerJDatabase database = (EnerJDatabase)persister;
+        database.beginLazySCODecoding();
+        return database;
+    }
+
+
+    /**
+     * Ends decoding started by {@link #beginDecoding(Persistable)}.
+     *
+     * @param aDatabase the database returned by beginDecoding, or null.
+     */
+    private static void endDecoding(EnerJDatabase aDatabase)
+    {
+        if (aDatabase != null) {
+            aDatabase.endLazySCODecoding();
+        }
+    }
+
+
+    /**
+     * Creates an ObjectSerializer that reads the image.
+     *
+     * @return the ObjectSerializer.
+     */
+    private ObjectSerializer createSerializer()
+    {
+        ObjectSerializer serializer;
+        if (mFormat == ObjectSerializer.IMAGE_FORMAT_V2) {
+            serializer = new ObjectSerializer( new CompactDataInput(mImage, 0, mImage.length) );
+            serializer.setOwnerOID(mOwnerOID);
+        }
+        else {
+            serializer = new ObjectSerializer( new ByteArrayDataInput(mImage, 0, mImage.length) );
+        }
+        
+        serializer.setSkippingFCOs(mIsSkippingFCOs);
+        serializer.setReadingContents();
+        return serializer;
+    }
+}
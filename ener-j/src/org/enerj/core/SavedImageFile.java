@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.enerj.util.ByteArrayUtil;
+import org.odmg.ODMGRuntimeException;
+
+/**
+ * A temporary file holding the saved (pre-modification) images of objects so that they do not
+ * have to be kept in memory during a long transaction. The file also records new objects that
+ * have been flushed, so that they can be made transient again on rollback. The file
+ * is deleted when it is closed. The database closes it when the transaction ends or the database
+ * is closed. It is not registered with File.deleteOnExit(), which would retain the name of every 
+ * file for the life of the VM.<p>
+ * 
+ * Each record is the int image length, or -1 for a new object, followed by the image bytes.
+ * Records are only appended. Removed records are dropped from the index.
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+class SavedImageFile
+{
+    private static final int NEW_OBJECT_LENGTH = -1;
+    
+    private File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    /** Record offsets keyed by OID. */
+    private Map<Long, Long> mOffsets = new HashMap<Long, Long>(1024);
+    
+    
+    /**
+     * Constructs a SavedImageFile and creates its temporary file.
+     *
+     * @throws ODMGRuntimeException if the file cannot be created.
+     */
+    SavedImageFile()
+    {
+        try {
+            mFile = File.createTempFile("enerj", ".img");
+            mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+        }
+        catch (IOException e) {
+            if (mFile != null) {
+                mFile.delete();
+            }
+            
+            throw new ODMGRuntimeException("Could not create saved image file", e);
+        }
+    }
+    
+
+    /**
+     * Saves the image of an object. If the object already has a record, it is kept because it
+     * holds the earliest image.
+     *
+     * @param anOID the OID of the object.
+     * @param anImage the saved image.
+     */
+    void putImage(long anOID, byte[] anImage)
+    {
+        if (mOffsets.containsKey(anOID)) {
+            return;
+        }
+        
+        try {
+            // Written as one record so that the file is written with a single call.
+            byte[] record = new byte[4 + anImage.length];
+            ByteArrayUtil.putInt(record, 0, anImage.length);
+            System.arraycopy(anImage, 0, record, 4, anImage.length);
+            long offset = mRandomAccessFile.length();
+            mRandomAccessFile.seek(offset);
+            mRandomAccessFile.write(record);
+            mOffsets.put(anOID, offset);
+        }
+        catch (IOException e) {
+            throw new ODMGRuntimeException("Could not write saved image file", e);
+        }
+    }
+    
+
+    /**
+     * Records that a new object was flushed.
+     *
+     * @param anOID the OID of the object.
+     */
+    void putNewObject(long anOID)
+    {
+        if (mOffsets.containsKey(anOID)) {
+            return;
+        }
+        
+        try {
+            long offset = mRandomAccessFile.length();
+            mRandomAccessFile.seek(offset);
+            mRandomAccessFile.writeInt(NEW_OBJECT_LENGTH);
+            mOffsets.put(anOID, offset);
+        }
+        catch (IOException e) {
+            throw new ODMGRuntimeException("Could not write saved image file", e);
+        }
+    }
+
+
+    /**
+     * Determines whether the file has a record for an object.
+     *
+     * @param anOID the OID of the object.
+     * 
+     * @return true if the file has a record for anOID.
+     */
+    boolean contains(long anOID)
+    {
+        return mOffsets.containsKey(anOID);
+    }
+    
+
+    /**
+     * Determines whether the record for an object is for a flushed new object.
+     *
+     * @param anOID the OID of the object.
+     * 
+     * @return true if the record for anOID is for a new object, false if it is an image or
+     *  there is no record.
+     */
+    boolean isNewObject(long anOID)
+    {
+        return getLength(anOID) == NEW_OBJECT_LENGTH;
+    }
+    
+
+    /**
+     * Reads and removes the saved image of an object. A record for a new object is not removed.
+     *
+     * @param anOID the OID of the object.
+     * 
+     * @return the image, or null if there is no record or the record is for a new object.
+     */
+    byte[] removeImage(long anOID)
+    {
+        int length = getLength(anOID);
+        if (length <= 0) {
+            return null;
+        }
+        
+        mOffsets.remove(anOID);
+        try {
+            byte[] image = new byte[length];
+            mRandomAccessFile.readFully(image);
+            return image;
+        }
+        catch (IOException e) {
+            throw new ODMGRuntimeException("Could not read saved image file", e);
+        }
+    }
+    
+
+    /**
+     * Gets the OIDs of the objects that have records.
+     *
+     * @return a new list of OIDs.
+     */
+    List<Long> getOIDs()
+    {
+        return new ArrayList<Long>( mOffsets.keySet() );
+    }
+    
+
+    /**
+     * Closes and deletes the file.
+     */
+    void close()
+    {
+        mOffsets.clear();
+        try {
+            mRandomAccessFile.close();
+        }
+        catch (IOException e) {
+            // Ignore - the file is being discarded.
+        }
+        
+        mFile.delete();
+    }
+
+
+    /**
+     * Gets the length of an object's record.
+     *
+     * @param anOID the OID of the object.
+     * 
+     * @return the image length, NEW_OBJECT_LENGTH, or 0 if there is no record.
+     */
+    private int getLength(long anOID)
+    {
+        Long offset = mOffsets.get(anOID);
+        if (offset == null) {
+            return 0;
+        }
+        
+        try {
+            mRandomAccessFile.seek(offset);
+            return mRandomAccessFile.readInt();
+        }
+        catch (IOException e) {
+            throw new ODMGRuntimeException("Could not read saved image file", e);
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.core;
+
+import org.odmg.ODMGRuntimeException;
+
+/**
+ * Indicates that an optimistic transaction could not be committed because an object that it 
+ * read or wrote was changed by another transaction. Nothing was committed, so the transaction
+ * may be retried. <p>
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ * @see EnerJTransaction#setOptimistic(boolean)
+ */
+public class TransactionConflictException extends ODMGRuntimeException
+{
+
+    /**
+     * Construct a TransactionConflictException. 
+     *
+     */
+    public TransactionConflictException()
+    {
+    }
+
+    /**
+     * Construct a TransactionConflictException. 
+     *
+     * @param someMsg
+     */
+    public TransactionConflictException(String someMsg)
+    {
+        super(someMsg);
+    }
+
+    /**
+     * Construct a TransactionConflictException. 
+     *
+     * @param someMsg
+     * @param someCause
+     */
+    public TransactionConflictException(String someMsg, Throwable someCause)
+    {
+        super(someMsg, someCause);
+    }
+
+    /**
+     * Construct a TransactionConflictException. 
+     *
+     * @param someCause
+     */
+    public TransactionConflictException(Throwable someCause)
+    {
+        super(someCause);
+    }
+
+}
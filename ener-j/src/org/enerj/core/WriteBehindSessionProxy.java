@@ -0,0 +1,417 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.core;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.enerj.server.ObjectServerSession;
+import org.enerj.server.SerializedObject;
+import org.enerj.util.RequestProcessor;
+import org.odmg.ODMGException;
+import org.odmg.ODMGRuntimeException;
+
+/**
+ * Proxies an ObjectServerSession so that stored objects are written behind the caller. 
+ * Calls to storeObjects() queue the batch to a RequestProcessor thread and return immediately,
+ * unless the maximum number of outstanding batches are already queued. Any other session method
+ * first waits for the outstanding batches to be stored, so the session is only used by one 
+ * thread at a time and reads see the stored objects. rollbackTransaction() discards the batches 
+ * that have not been started.<p>
+ * 
+ * While a batch is waiting to be sent, a later full image of the same object replaces its image 
+ * in the batch. A delta image cannot replace an earlier image because the delta is relative to it.<p>
+ * 
+ * If a batch fails to be stored, the next call on the session throws the failure. It is cleared by
+ * rollbackTransaction().<p>
+ * 
+ * The Persister owning the session is the current Persister of the write-behind thread while a 
+ * batch is stored, because the server may need it to resolve objects while it updates indexes.
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+public class WriteBehindSessionProxy implements InvocationHandler
+{
+    private ObjectServerSession mSession;
+    private Persister mPersister;
+    private RequestProcessor mRequestProcessor;
+    private int mMaxOutstandingBatches;
+    /** Batches that have been queued but not started. This is also the lock for the following fields. */
+    private LinkedList<StoreRequest> mPendingRequests = new LinkedList<StoreRequest>();
+    /** Number of batches that have been queued but not completed. */
+    private int mOutstandingCount = 0;
+    /** The first exception thrown while storing a batch. */
+    private Exception mStoreException = null;
+    
+
+    /**
+     * Constructs a WriteBehindSessionProxy.
+     *
+     * @param aSession the session being proxied.
+     * @param aPersister the Persister that owns aSession. May be null.
+     * @param aMaxOutstandingBatches the maximum number of batches that may be queued
+     *  before storeObjects() waits.
+     */
+    private WriteBehindSessionProxy(ObjectServerSession aSession, Persister aPersister, int aMaxOutstandingBatches)
+    {
+        mSession = aSession;
+        mPersister = aPersister;
+        mMaxOutstandingBatches = aMaxOutstandingBatches;
+        mRequestProcessor = new RequestProcessor("EnerJ write-behind", true);
+    }
+
+
+    /**
+     * Creates a new write-behind proxy for an ObjectServerSession.
+     *
+     * @param aSession the session being proxied.
+     * @param aPersister the Persister that owns aSession. It is made the current Persister of the
+     *  write-behind thread while batches are stored. May be null.
+     * @param aMaxOutstandingBatches the maximum number of batches that may be queued
+     *  before storeObjects() waits.
+     *  
+     * @return the proxied session.
+     */
+    public static ObjectServerSession newInstance(ObjectServerSession aSession, Persister aPersister, 
+                int aMaxOutstandingBatches)
+    {
+        return (ObjectServerSession)Proxy.newProxyInstance(
+            ObjectServerSession.class.getClassLoader(),
+            new Class[] { ObjectServerSession.class },
+            new WriteBehindSessionProxy(aSession, aPersister, aMaxOutstandingBatches) );
+    }
+
+
+    /**
+     * Gets the WriteBehindSessionProxy for a session.
+     *
+     * @param aSession a session.
+     * 
+     * @return the WriteBehindSessionProxy, or null if aSession is not a write-behind proxy.
+     */
+    public static WriteBehindSessionProxy getWriteBehindProxy(ObjectServerSession aSession)
+    {
+        if (!Proxy.isProxyClass( aSession.getClass() )) {
+            return null;
+        }
+        
+        InvocationHandler handler = Proxy.getInvocationHandler(aSession);
+        if (handler instanceof WriteBehindSessionProxy) {
+            return (WriteBehindSessionProxy)handler;
+        }
+        
+        return null;
+    }
+    
+
+    /**
+     * Gets the session proxied by this proxy.
+     *
+     * @return the proxied session.
+     */
+    public ObjectServerSession getProxiedSession()
+    {
+        return mSession;
+    }
+
+
+    /**
+     * Waits for the outstanding batches to be stored.
+     * 
+     * @throws ODMGRuntimeException if a batch could not be stored.
+     */
+    public void waitForOutstandingBatches()
+    {
+        synchronized (mPendingRequests) {
+            waitForCompletion();
+            if (mStoreException != null) {
+                throw new ODMGRuntimeException("Could not store object.", mStoreException);
+            }
+        }
+    }
+
+
+    /**
+     * Waits for the outstanding batches to be stored and stops the write-behind thread. 
+     * The proxy must not be used afterwards.
+     * 
+     * @throws ODMGRuntimeException if a batch could not be stored.
+     */
+    public void shutdown()
+    {
+        try {
+            waitForOutstandingBatches();
+        }
+        finally {
+            mRequestProcessor.shutdown();
+        }
+    }
+    
+
+    /**
+     * Waits until no batches are outstanding. The caller must hold the lock on mPendingRequests.
+     */
+    private void waitForCompletion()
+    {
+        while (mOutstandingCount > 0) {
+            try {
+                mPendingRequests.wait();
+            }
+            catch (InterruptedException e) {
+                // Ignore
+            }
+        }
+    }
+    
+
+    public Object invoke(Object aProxy, Method aMethod, Object[] someArgs) throws Throwable
+    {
+        String methodName = aMethod.getName();
+        if (methodName.equals("storeObjects")) {
+            queueBatch( (SerializedObject[])someArgs[0] );
+            return null;
+        }
+        
+        if (methodName.equals("rollbackTransaction")) {
+            discardPendingBatches();
+        }
+
+        try {
+            waitForOutstandingBatches();
+            return aMethod.invoke(mSession, someArgs);
+        }
+        catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+        finally {
+            if (methodName.equals("disconnect")) {
+                mRequestProcessor.shutdown();
+            }
+        }
+    }
+
+
+    /**
+     * Queues a batch to be stored, waiting if the maximum number of batches are outstanding.
+     *
+     * @param someObjects the batch. The array is owned by the proxy after this call.
+     * 
+     * @throws ODMGException if a previous batch could not be stored.
+     */
+    private void queueBatch(SerializedObject[] someObjects) throws ODMGException
+    {
+        if (someObjects.length == 0) {
+            return;
+        }
+        
+        synchronized (mPendingRequests) {
+            while (mOutstandingCount >= mMaxOutstandingBatches && mStoreException == null) {
+                try {
+                    mPendingRequests.wait();
+                }
+                catch (InterruptedException e) {
+                    // Ignore
+                }
+            }
+
+            if (mStoreException != null) {
+                throw new ODMGException("Could not store object.", mStoreException);
+            }
+            
+            coalesce(someObjects);
+            
+            StoreRequest request = new StoreRequest(someObjects);
+            mPendingRequests.addLast(request);
+            ++mOutstandingCount;
+            // Queued while holding the lock so that batches are stored in the order they were queued.
+            mRequestProcessor.queueRequest(request);
+        }
+    }
+
+
+    /**
+     * Removes images that are replaced by later full images of the same object. Replaced images 
+     * are set to null. If a replaced image was for a new object, the replacing image is marked new. 
+     * The caller must hold the lock on mPendingRequests.
+     *
+     * @param someObjects the batch being queued.
+     */
+    private void coalesce(SerializedObject[] someObjects)
+    {
+        // The first image for each OID in the batch, after replacements within the batch.
+        Map<Long, Integer> firstIndexes = new HashMap<Long, Integer>(someObjects.length * 2);
+        for (int i = 0; i < someObjects.length; i++) {
+            SerializedObject object = someObjects[i];
+            Integer prevIndex = firstIndexes.get( object.getOID() );
+            if (prevIndex == null) {
+                firstIndexes.put(object.getOID(), i);
+            }
+            else if (!object.isDelta()) {
+                replace(someObjects, prevIndex, object);
+                firstIndexes.put(object.getOID(), i);
+            }
+        }
+        
+        for (StoreRequest request : mPendingRequests) {
+            SerializedObject[] pendingObjects = request.mObjects;
+            for (int i = 0; i < pendingObjects.length; i++) {
+                if (pendingObjects[i] == null) {
+                    continue;
+                }
+                
+                Integer index = firstIndexes.get( pendingObjects[i].getOID() );
+                if (index != null && !someObjects[index].isDelta()) {
+                    replace(pendingObjects, i, someObjects[index]);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Replaces an earlier image of an object.
+     *
+     * @param someObjects the batch containing the earlier image.
+     * @param anIndex the index of the earlier image in someObjects.
+     * @param aReplacement the image replacing it.
+     */
+    private static void replace(SerializedObject[] someObjects, int anIndex, SerializedObject aReplacement)
+    {
+        if (someObjects[anIndex].isNew()) {
+            aReplacement.setIsNew(true);
+        }
+
+        someObjects[anIndex] = null;
+    }
+
+
+    /**
+     * Discards the batches that have not been started, waits for the batch being stored, if any,
+     * and clears any store failure.
+     */
+    private void discardPendingBatches()
+    {
+        synchronized (mPendingRequests) {
+            for (StoreRequest request : mPendingRequests) {
+                request.mIsDiscarded = true;
+            }
+            
+            mPendingRequests.clear();
+            waitForCompletion();
+            mStoreException = null;
+        }
+    }
+
+
+
+    /**
+     * Stores a batch on the RequestProcessor thread.
+     */
+    private final class StoreRequest extends RequestProcessor.Request
+    {
+        /** The batch. Replaced images are null. */
+        private SerializedObject[] mObjects;
+        private boolean mIsDiscarded = false;
+        
+
+        /**
+         * Constructs a StoreRequest.
+         *
+         * @param someObjects the batch.
+         */
+        StoreRequest(SerializedObject[] someObjects)
+        {
+            mObjects = someObjects;
+            // Completion is tracked by mOutstandingCount.
+            setMonitored(false);
+        }
+
+
+        public void run()
+        {
+            List<SerializedObject> objects;
+            synchronized (mPendingRequests) {
+                if (mIsDiscarded) {
+                    completeBatch(null);
+                    return;
+                }
+                
+                // Once started, the batch can no longer be coalesced.
+                mPendingRequests.remove(this);
+                objects = new ArrayList<SerializedObject>(mObjects.length);
+                for (SerializedObject object : mObjects) {
+                    if (object != null) {
+                        objects.add(object);
+                    }
+                }
+            }
+            
+            Exception exception = null;
+            if (mPersister != null) {
+                PersisterRegistry.pushPersisterForThread(mPersister);
+            }
+            
+            try {
+                mSession.storeObjects( objects.toArray(new SerializedObject[ objects.size() ]) );
+            }
+            catch (Exception e) {
+                exception = e;
+            }
+            finally {
+                if (mPersister != null) {
+                    PersisterRegistry.popPersisterForThread(mPersister);
+                }
+                
+                completeBatch(exception);
+            }
+        }
+        
+        
+        /**
+         * Marks the batch as complete and wakes up waiting threads.
+         *
+         * @param anException the exception thrown while storing the batch, or null.
+         */
+        private void completeBatch(Exception anException)
+        {
+            synchronized (mPendingRequests) {
+                if (anException != null && mStoreException == null && !mIsDiscarded) {
+                    mStoreException = anException;
+                }
+                
+                --mOutstandingCount;
+                mPendingRequests.notifyAll();
+            }
+            
+            complete(anException);
+        }
+    }
+}
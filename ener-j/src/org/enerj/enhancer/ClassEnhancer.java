@@ -30,10 +30,17 @@ import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.lang.reflect.Modifier;
 import java.security.NoSuchAlgorithmException;
+import java.util.AbstractCollection;
+import java.util.AbstractList;
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
 
 import org.enerj.annotations.SchemaAnnotation;
 import org.enerj.core.ObjectSerializer;
@@ -88,6 +95,17 @@ class ClassEnhancer extends ClassAdapter implements Opcodes
     private static final String sPersisterConstructorSignature = '(' + Type.getDescriptor(Persister.class) + ")V";
     private static final String sReadWriteObjectMethodSignature = '(' + sObjectSerializerClassDescr + ")V";
     private static final String sResolveObjectMethodSignature = '(' + sObjectSerializerClassDescr + "Z)V";
+    /** Descriptors of field types that can hold a lazily decoded collection SCO. */
+    private static final Set<String> sLazySCOFieldDescrs = new HashSet<String>();
+    
+    static {
+        Class[] lazySCOFieldTypes = { Object.class, Cloneable.class, Serializable.class, Iterable.class, 
+            Collection.class, List.class, RandomAccess.class, AbstractCollection.class, AbstractList.class, ArrayList.class, 
+            Map.class, AbstractMap.class, HashMap.class };
+        for (Class type : lazySCOFieldTypes) {
+            sLazySCOFieldDescrs.add( Type.getDescriptor(type) );
+        }
+    }
 
     private byte[] mOriginalClassBytes;
     private MetaData mMetaData;
@@ -645,6 +663,13 @@ class ClassEnhancer extends ClassAdapter implements Opcodes
         mv.visitLabel(label1);
         mv.visitVarInsn(ALOAD, 0);
         mv.visitFieldInsn(GETFIELD, mThisClassNameSlashed, fieldName, fieldType);
+        if (sLazySCOFieldDescrs.contains(fieldType)) {
+            // The value may be a collection whose contents have not been decoded. Decode them
+            // before the caller can use methods that the SCO doesn't override.
+            mv.visitInsn(DUP);
+            mv.visitMethodInsn(INVOKESTATIC, sPersistableHelperClassSlashed, "loadLazySCO", "(Ljava/lang/Object;)V");
+        }
+        
         mv.visitInsn( getReturnOpcodeForDescriptor(fieldType) );
         Label label3 = new Label();
         mv.visitLabel(label3);
@@ -35,9 +35,11 @@ import org.enerj.core.*;
  * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
  */
 public class JavaUtilArrayListSCO extends java.util.ArrayList 
-    implements SCOTracker
+    implements LazySCO
 {
     private Persistable mOwnerFCO;
+    /** Image of the elements if they have not been decoded yet, otherwise null. */
+    private SCOImage mUnloadedImage = null;
     
 
     /**
@@ -54,6 +56,55 @@ public class JavaUtilArrayListSCO extends java.util.ArrayList
     }
 
 
+    /**
+     * Construct a collection whose elements are decoded from anImage on first access.
+     *
+     * @param anImage the image of the elements.
+     * @param anOwnerFCO the owning First Class Object.
+     */
+    public JavaUtilArrayListSCO(SCOImage anImage, Persistable anOwnerFCO)
+    {
+        super(0);
+        mUnloadedImage = anImage;
+        mOwnerFCO = anOwnerFCO;
+    }
+
+
+    // From LazySCO...
+    public SCOImage getUnloadedImage()
+    {
+        return mUnloadedImage;
+    }
+    
+
+    // From LazySCO...
+    public void load()
+    {
+        if (mUnloadedImage == null) {
+            return;
+        }
+        
+        // Cleared first because the elements are added through this object. The owner
+        // is cleared so that it isn't marked modified.
+        SCOImage image = mUnloadedImage;
+        Persistable owner = mOwnerFCO;
+        mUnloadedImage = null;
+        mOwnerFCO = null;
+        boolean isLoaded = false;
+        try {
+            image.readCollection(this, owner);
+            isLoaded = true;
+        }
+        finally {
+            mOwnerFCO = owner;
+            if (!isLoaded) {
+                super.clear();
+                mUnloadedImage = image;
+            }
+        }
+    }
+
+
     // From SCOTracker...
     public Persistable getOwnerFCO()
     {
@@ -84,12 +135,174 @@ public class JavaUtilArrayListSCO extends java.util.ArrayList
      */
     public Object clone()
     {
+        load();
         SCOTracker clone = (SCOTracker)super.clone();
         clone.setOwnerFCO(null);
         return clone;
     }
     
 
+    /**
+     * Decodes the elements before this collection is written by Java serialization, which 
+     * reads the inherited storage directly.
+     *
+     * @return this collection.
+     */
+    private Object writeReplace()
+    {
+        load();
+        return this;
+    }
+    
+
+    // Overridden accessor methods from java.util.ArrayList. These decode the elements.
+
+
+
+    // java.util.Collection
+    public int size() 
+    {
+        load();
+        return super.size();
+    }
+    
+
+    // java.util.Collection
+    public boolean isEmpty() 
+    {
+        load();
+        return super.isEmpty();
+    }
+    
+
+    // java.util.Collection
+    public boolean contains(Object o) 
+    {
+        load();
+        return super.contains(o);
+    }
+    
+
+    // java.util.Collection
+    public boolean containsAll(Collection c) 
+    {
+        load();
+        return super.containsAll(c);
+    }
+    
+
+    // java.util.Collection
+    public Iterator iterator() 
+    {
+        load();
+        return super.iterator();
+    }
+    
+
+    // java.util.Collection
+    public Object[] toArray() 
+    {
+        load();
+        return super.toArray();
+    }
+    
+
+    // java.util.Collection
+    public Object[] toArray(Object[] a) 
+    {
+        load();
+        return super.toArray(a);
+    }
+    
+
+    // java.util.List
+    public Object get(int index) 
+    {
+        load();
+        return super.get(index);
+    }
+    
+
+    // java.util.List
+    public int indexOf(Object o) 
+    {
+        load();
+        return super.indexOf(o);
+    }
+    
+
+    // java.util.List
+    public int lastIndexOf(Object o) 
+    {
+        load();
+        return super.lastIndexOf(o);
+    }
+    
+
+    // java.util.List
+    public ListIterator listIterator() 
+    {
+        load();
+        return super.listIterator();
+    }
+    
+
+    // java.util.List
+    public ListIterator listIterator(int index) 
+    {
+        load();
+        return super.listIterator(index);
+    }
+    
+
+    // java.util.List
+    public List subList(int fromIndex, int toIndex) 
+    {
+        load();
+        return super.subList(fromIndex, toIndex);
+    }
+    
+
+    // java.lang.Object
+    public boolean equals(Object o) 
+    {
+        load();
+        return super.equals(o);
+    }
+    
+
+    // java.lang.Object
+    public int hashCode() 
+    {
+        load();
+        return super.hashCode();
+    }
+    
+
+    // java.lang.Object
+    public String toString() 
+    {
+        load();
+        return super.toString();
+    }
+    
+
+    // java.util.ArrayList
+    public void ensureCapacity(int minCapacity) 
+    {
+        load();
+        super.ensureCapacity(minCapacity);
+    }
+    
+
+    // java.util.ArrayList
+    public void trimToSize() 
+    {
+        load();
+        super.trimToSize();
+    }
+
+
     // Overridden mutator methods from java.util.ArrayList.
 
 
@@ -97,6 +310,7 @@ public class JavaUtilArrayListSCO extends java.util.ArrayList
     // java.util.Collection
     public boolean add(Object o) 
     {
+        load();
         boolean b = super.add(o);
         setOwnerModified();
         return b;
@@ -106,6 +320,7 @@ public class JavaUtilArrayListSCO extends java.util.ArrayList
     // java.util.Collection
     public boolean addAll(Collection c) 
     {
+        load();
         boolean b = super.addAll(c);
         setOwnerModified();
         return b;
@@ -115,6 +330,7 @@ public class JavaUtilArrayListSCO extends java.util.ArrayList
     // java.util.Collection
     public void clear() 
     {
+        mUnloadedImage = null;
         super.clear();
         setOwnerModified();
     }
@@ -123,6 +339,7 @@ public class JavaUtilArrayListSCO extends java.util.ArrayList
     // java.util.Collection
     public boolean remove(Object o) 
     {
+        load();
         boolean b = super.remove(o);
         setOwnerModified();
         return b;
@@ -132,6 +349,7 @@ public class JavaUtilArrayListSCO extends java.util.ArrayList
     // java.util.Collection
     public boolean removeAll(Collection c) 
     {
+        load();
         boolean b = super.removeAll(c);
         setOwnerModified();
         return b;
@@ -141,6 +359,7 @@ public class JavaUtilArrayListSCO extends java.util.ArrayList
     // java.util.Collection
     public boolean retainAll(Collection c) 
     {
+        load();
         boolean b = super.retainAll(c);
         setOwnerModified();
         return b;
@@ -150,6 +369,7 @@ public class JavaUtilArrayListSCO extends java.util.ArrayList
     // java.util.List
     public Object set(int index, Object element) 
     {
+        load();
         Object o = super.set(index, element);
         setOwnerModified();
         return o;
@@ -159,6 +379,7 @@ public class JavaUtilArrayListSCO extends java.util.ArrayList
     // java.util.List
     public Object remove(int index) 
     {
+        load();
         Object o = super.remove(index);
         setOwnerModified();
         return o;
@@ -168,6 +389,7 @@ public class JavaUtilArrayListSCO extends java.util.ArrayList
     // java.util.List
     public boolean addAll(int index, Collection c) 
     {
+        load();
         boolean b = super.addAll(index, c);
         setOwnerModified();
         return b;
@@ -177,6 +399,7 @@ public class JavaUtilArrayListSCO extends java.util.ArrayList
     // java.util.List
     public void add(int index, Object element) 
     {
+        load();
         super.add(index, element);
         setOwnerModified();
     }
@@ -185,6 +408,7 @@ public class JavaUtilArrayListSCO extends java.util.ArrayList
     // java.util.AbstractList
     protected void removeRange(int fromIndex, int toIndex)
     {
+        load();
         super.removeRange(fromIndex, toIndex);
         setOwnerModified();
     }
@@ -34,9 +34,11 @@ import org.enerj.core.*;
  * @version $Id: JavaUtilHashMapSCO.java,v 1.3 2005/08/12 02:56:45 dsyrstad Exp $
  * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
  */
-public class JavaUtilHashMapSCO extends java.util.HashMap implements SCOTracker
+public class JavaUtilHashMapSCO extends java.util.HashMap implements LazySCO
 {
     private Persistable mOwnerFCO;
+    /** Image of the entries if they have not been decoded yet, otherwise null. */
+    private SCOImage mUnloadedImage = null;
     
 
     /**
@@ -53,6 +55,55 @@ public class JavaUtilHashMapSCO extends java.util.HashMap implements SCOTracker
     }
 
 
+    /**
+     * Construct a map whose entries are decoded from anImage on first access.
+     *
+     * @param anImage the image of the entries.
+     * @param anOwnerFCO the owning First Class Object.
+     */
+    public JavaUtilHashMapSCO(SCOImage anImage, Persistable anOwnerFCO)
+    {
+        super();
+        mUnloadedImage = anImage;
+        mOwnerFCO = anOwnerFCO;
+    }
+
+
+    // From LazySCO...
+    public SCOImage getUnloadedImage()
+    {
+        return mUnloadedImage;
+    }
+    
+
+    // From LazySCO...
+    public void load()
+    {
+        if (mUnloadedImage == null) {
+            return;
+        }
+        
+        // Cleared first because the entries are put through this object. The owner
+        // is cleared so that it isn't marked modified.
+        SCOImage image = mUnloadedImage;
+        Persistable owner = mOwnerFCO;
+        mUnloadedImage = null;
+        mOwnerFCO = null;
+        boolean isLoaded = false;
+        try {
+            image.readMap(this, owner);
+            isLoaded = true;
+        }
+        finally {
+            mOwnerFCO = owner;
+            if (!isLoaded) {
+                super.clear();
+                mUnloadedImage = image;
+            }
+        }
+    }
+
+
     // From SCOTracker...
     public Persistable getOwnerFCO()
     {
@@ -83,12 +134,118 @@ public class JavaUtilHashMapSCO extends java.util.HashMap implements SCOTracker
      */
     public Object clone()
     {
+        load();
         SCOTracker clone = (SCOTracker)super.clone();
         clone.setOwnerFCO(null);
         return clone;
     }
     
 
+    /**
+     * Decodes the entries before this collection is written by Java serialization, which 
+     * reads the inherited storage directly.
+     *
+     * @return this collection.
+     */
+    private Object writeReplace()
+    {
+        load();
+        return this;
+    }
+    
+
+    // Overridden accessor methods from java.util.HashMap. These decode the entries.
+
+
+
+    // java.util.Map
+    public int size() 
+    {
+        load();
+        return super.size();
+    }
+    
+
+    // java.util.Map
+    public boolean isEmpty() 
+    {
+        load();
+        return super.isEmpty();
+    }
+    
+
+    // java.util.Map
+    public Object get(Object key) 
+    {
+        load();
+        return super.get(key);
+    }
+    
+
+    // java.util.Map
+    public boolean containsKey(Object key) 
+    {
+        load();
+        return super.containsKey(key);
+    }
+    
+
+    // java.util.Map
+    public boolean containsValue(Object value) 
+    {
+        load();
+        return super.containsValue(value);
+    }
+    
+
+    // java.util.Map
+    public Set keySet() 
+    {
+        load();
+        return super.keySet();
+    }
+    
+
+    // java.util.Map
+    public Collection values() 
+    {
+        load();
+        return super.values();
+    }
+    
+
+    // java.util.Map
+    public Set entrySet() 
+    {
+        load();
+        return super.entrySet();
+    }
+    
+
+    // java.lang.Object
+    public boolean equals(Object o) 
+    {
+        load();
+        return super.equals(o);
+    }
+    
+
+    // java.lang.Object
+    public int hashCode() 
+    {
+        load();
+        return super.hashCode();
+    }
+    
+
+    // java.lang.Object
+    public String toString() 
+    {
+        load();
+        return super.toString();
+    }
+
+
     // Overridden mutator methods from java.util.HashMap.
 
 
@@ -96,6 +253,7 @@ public class JavaUtilHashMapSCO extends java.util.HashMap implements SCOTracker
     // java.util.Map
     public Object put(Object key, Object value) 
     {
+        load();
         Object o = super.put(key, value);
         setOwnerModified();
         return o;
@@ -105,6 +263,7 @@ public class JavaUtilHashMapSCO extends java.util.HashMap implements SCOTracker
     // java.util.Map
     public void putAll(Map t) 
     {
+        load();
         super.putAll(t);
         setOwnerModified();
     }
@@ -113,6 +272,7 @@ public class JavaUtilHashMapSCO extends java.util.HashMap implements SCOTracker
     // java.util.Map
     public void clear() 
     {
+        mUnloadedImage = null;
         super.clear();
         setOwnerModified();
     }
@@ -121,6 +281,7 @@ public class JavaUtilHashMapSCO extends java.util.HashMap implements SCOTracker
     // java.util.Map
     public Object remove(Object key) 
     {
+        load();
         Object o = super.remove(key);
         setOwnerModified();
         return o;
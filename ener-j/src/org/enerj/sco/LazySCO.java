@@ -0,0 +1,66 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.sco;
+
+import org.enerj.core.SCOImage;
+
+/**
+ * Interface for Second Class Object collections whose contents may be decoded on first access
+ * rather than when the owner FCO is loaded. Every method of the collection, except 
+ * those of this interface and SCOTracker, decodes the contents first.<p>
+ * 
+ * Methods that the collection inherits but cannot override (those added to the JDK after the 
+ * collection was written) operate on the inherited storage directly. The contents are therefore 
+ * also decoded when the application reads the owner's field through its enhanced accessor, and when
+ * a lazy collection is nested inside another collection, so that the application can only reach a 
+ * collection whose contents have been decoded. <p>
+ * 
+ * FCOs referenced by the contents are resolved when the contents are decoded. If the owner's values
+ * were retained after its transaction, this may happen outside of a transaction. The FCOs are then 
+ * resolved to cached or hollow objects, which must be loaded in a transaction as usual. <p>
+ * 
+ * The contents are written with their own SCO context. An SCO that is referenced both by the contents
+ * and by the rest of the owner, such as a Date that is an element of the collection and the value of 
+ * another field, is read back as two separate objects. Collections that are written eagerly, because they are
+ * small or the image is in the V1 format, keep such shared references.
+ *
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+public interface LazySCO extends SCOTracker
+{
+    /**
+     * Gets the image of the contents if they have not been decoded yet.
+     *
+     * @return the image, or null if the contents have been decoded.
+     */
+    public SCOImage getUnloadedImage();
+
+
+    /**
+     * Decodes the contents if they have not been decoded yet.
+     *
+     * @throws org.odmg.ODMGRuntimeException if an error occurs.
+     */
+    public void load();
+}
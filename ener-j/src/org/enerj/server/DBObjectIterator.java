@@ -0,0 +1,52 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.server;
+
+import java.util.NoSuchElementException;
+
+import org.odmg.ODMGRuntimeException;
+
+
+/**
+ * A DBIterator that can return the images of the objects along with their OIDs. This 
+ * saves the client a second request to load each object that it iterates over.
+ *
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+public interface DBObjectIterator extends DBIterator
+{
+    /**
+     * Gets, at most, the next N objects from the iterator, where N is aMaxNumObjects.
+     * This may be mixed with calls to {@link #next(int)}.
+     *
+     * @param aMaxNumObjects the maximum number of objects to be retrieved.
+     *
+     * @return an array of SerializedObjects containing the OID, CID, version, and full image of each object. 
+     *  This array may be from 1 to aMaxNumObjects elements in length.
+     *
+     * @throws ODMGRuntimeException if an error occurs.
+     * @throws NoSuchElementException if there are no more objects available from the iterator.
+     */
+    public SerializedObject[] nextObjects(int aMaxNumObjects) throws ODMGRuntimeException, NoSuchElementException;
+}
@@ -147,7 +147,37 @@ public interface ObjectServerSession
      * @throws ODMGException in the event of an error. 
      */
     public byte[][] loadObjects(long[] someOIDs) throws ODMGException;
-    
+
+
+    /**
+     * Loads objects from the database along with their CIDs and commit versions.
+     * A transaction must be active on session, or non-transactional reads must be allowed.
+     * READ locks are automatically taken on the objects.
+     *
+     * @param someOIDs an array of OIDs of the objects to be loaded.
+     *
+     * @return an array of SerializedObjects of the same size and in the same order as someOIDs.
+     *
+     * @throws ODMGException in the event of an error.
+     */
+    public SerializedObject[] loadSerializedObjects(long[] someOIDs) throws ODMGException;
+
+
+    /**
+     * Gets the current commit versions of objects. The version of an object changes each
+     * time it is stored, so this can be used to validate object images cached by the
+     * client without reloading the images.
+     * A transaction must be active on session, or non-transactional reads must be allowed.
+     *
+     * @param someOIDs an array of OIDs of the objects to be checked.
+     *
+     * @return an array of versions of the same size and in the same order as someOIDs. An element
+     *  is {@link SerializedObject#NO_VERSION} if the corresponding object does not exist.
+     *
+     * @throws ODMGException in the event of an error.
+     */
+    public long[] getObjectVersions(long[] someOIDs) throws ODMGException;
+
 
     /**
      * Get a block of unused Object Indexes from the database. No other transaction
@@ -166,6 +196,17 @@ public interface ObjectServerSession
      * @throws ODMGException in the event of an error. 
      */
     public long[] getNewOIDXBlock(int anOIDXCount) throws ODMGException;
+
+
+    /**
+     * Returns OIDXs obtained from getNewOIDXBlock() that were never used to store an object. 
+     * They may be allocated again by any session. A transaction does not need to be active.
+     * 
+     * @param someOIDXs the unused OIDXs.
+     *
+     * @throws ODMGException in the event of an error. 
+     */
+    public void returnUnusedOIDXs(long[] someOIDXs) throws ODMGException;
     
 
     // Transaction support...
@@ -181,6 +222,57 @@ public interface ObjectServerSession
     public void beginTransaction() throws ODMGRuntimeException;
 
 
+    /**
+     * Begins a transaction that uses optimistic concurrency control. No locks on objects are held
+     * while the transaction is active, and getLock() only records the object's version. Reads still 
+     * use read-committed isolation, so a read briefly takes a read lock and waits for an uncommitted write 
+     * of the object.
+     * The version of each object loaded, checked, locked, or stored is recorded and objects that are stored
+     * are held until commit. commitTransaction() validates the recorded versions and applies
+     * the stored objects atomically. If an object was changed by another transaction, commitTransaction()
+     * throws {@link org.enerj.core.TransactionConflictException} and the transaction remains active
+     * so that it can be rolled back.
+     *
+     * @throws ODMGRuntimeException in the event on an error.
+     */
+    public void beginOptimisticTransaction() throws ODMGRuntimeException;
+
+
+    /**
+     * Begins a read-only transaction. Reads are read-committed and do not hold locks, so the
+     * transaction never blocks writers. READ locks requested via getLock() are ignored.
+     * Operations that would modify the database throw {@link org.odmg.DatabaseIsReadOnlyException}.
+     *
+     * @throws ODMGRuntimeException in the event on an error.
+     */
+    public void beginReadOnlyTransaction() throws ODMGRuntimeException;
+
+
+    /**
+     * Begins bulk-load mode, which is used to store a large number of new objects. A transaction must
+     * not be active on session. Until endBulkLoad() is called, each storeObjects() call is committed
+     * separately without waiting for the log to be synced, so a bulk load is not atomic.
+     * Other operations behave as if a transaction is active.
+     * <p>
+     * If index updates are deferred, this waits until no transactions are active, and then other
+     * sessions cannot begin transactions until endBulkLoad() is called. The indexes are rebuilt
+     * once by endBulkLoad().
+     *
+     * @param shouldDeferIndexes if true, index updates are deferred until endBulkLoad().
+     *
+     * @throws ODMGException in the event of an error.
+     */
+    public void beginBulkLoad(boolean shouldDeferIndexes) throws ODMGException;
+
+
+    /**
+     * Ends bulk-load mode. The stored objects are synced to disk and deferred indexes are rebuilt.
+     *
+     * @throws ODMGException in the event of an error.
+     */
+    public void endBulkLoad() throws ODMGException;
+
+
     /**
      * Commits a transaction.
      * A transaction must be active on session.
@@ -305,6 +397,39 @@ public interface ObjectServerSession
      */
     public DBIterator createExtentIterator(String aClassName, boolean wantSubclasses) throws ODMGRuntimeException;
     
+    /**
+     * Splits an extent into OID ranges that each contain roughly the same number of objects.
+     * The ranges can then be iterated in parallel with {@link #createExtentIterator(String, boolean, long, long)},
+     * for example by separate sessions.
+     *
+     * @param aClassName the class name of the extent. If wantSubclasses is true,
+     *  then aClassName does not have to be a persistable class.
+     * @param wantSubclasses if true, all subclasses of aClassName are also included in the extent.
+     * @param aMaxNumRanges the maximum number of ranges to return. Must be >= 1.
+     *
+     * @return the boundaries of the ranges, in ascending order. Range i starts at element i, inclusive,
+     *  and ends at element i + 1, exclusive. The array is empty if the extent is empty.
+     *
+     * @throws ODMGRuntimeException if an error occurs.
+     */
+    public long[] splitExtent(String aClassName, boolean wantSubclasses, int aMaxNumRanges) throws ODMGRuntimeException;
+    
+    /**
+     * Creates an DBIterator for an OID range of an extent.
+     *
+     * @param aClassName the class name to iterate over. If wantSubclasses is true,
+     *  then aClassName does not have to be a persistable class.
+     * @param wantSubclasses if true, all subclasses of aClassName are also included in the iterator.
+     * @param aStartOID the starting OID, inclusive.
+     * @param anEndOID the ending OID, exclusive.
+     *
+     * @return an DBIterator used to iterate over the objects of the extent within the range.
+     *
+     * @throws ODMGRuntimeException if an error occurs.
+     * @see #splitExtent(String, boolean, int)
+     */
+    public DBIterator createExtentIterator(String aClassName, boolean wantSubclasses, long aStartOID, long anEndOID) throws ODMGRuntimeException;
+    
     /**
      * Determines the number of objects in an Index key range.
      *
@@ -22,8 +22,12 @@
 
 package org.enerj.server;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
+import org.enerj.core.ObjectSerializer;
+
 /**
  * Represents an object serialized as a byte[] with its associated OID.
  *
@@ -31,10 +35,25 @@ import java.io.Serializable;
  */
 public class SerializedObject implements Serializable
 {
+    /** Version returned by the server for an object that does not exist. */
+    public static final long NO_VERSION = -1L;
+    /** Version of the first image stored for an object. */
+    public static final long FIRST_VERSION = 1L;
+
     private byte[] mImage;
+    /** Offset of the image in mImage. */
+    private int mImageOffset = 0;
+    /** Length of the image in mImage. */
+    private int mImageLength;
     private long mOID;
     private long mCID;
     private boolean mIsNew;
+    /** The commit version of the image. */
+    private long mVersion = 0L;
+    /** True if mImage is a delta against the currently stored image. */
+    private boolean mIsDelta = false;
+    /** The ObjectSerializer format of the image. */
+    private int mImageFormat = ObjectSerializer.IMAGE_FORMAT_V1;
 
     /**
      * Constructs a SerializedObject.
@@ -49,16 +68,100 @@ public class SerializedObject implements Serializable
         mOID = anOID;
         mCID = aCID;
         mImage = anImage;
+        mImageLength = (anImage == null ? 0 : anImage.length);
         mIsNew = isNew;
     }
 
+    /**
+     * Constructs a SerializedObject with a commit version.
+     *
+     * @param anOID the OID of the object.
+     * @param aCID the CID of the object.
+     * @param anImage the serialized image of the object, as serialized by ObjectSerializer.
+     * @param isNew true if the object is new.
+     * @param aVersion the commit version of the image. When storing, this is the version
+     *  that the image will have once it is written.
+     */
+    public SerializedObject(long anOID, long aCID, byte[] anImage, boolean isNew, long aVersion)
+    {
+        this(anOID, aCID, anImage, isNew);
+        mVersion = aVersion;
+    }
+
 
+    /**
+     * Constructs a SerializedObject whose image is a slice of a larger buffer. The buffer
+     * must not be modified while this object is in use.
+     *
+     * @param anOID the OID of the object.
+     * @param aCID the CID of the object.
+     * @param aBuffer the buffer containing the serialized image of the object.
+     * @param anOffset the offset of the image in aBuffer.
+     * @param aLength the length of the image.
+     * @param isNew true if the object is new.
+     * @param aVersion the commit version of the image.
+     */
+    public SerializedObject(long anOID, long aCID, byte[] aBuffer, int anOffset, int aLength, boolean isNew, long aVersion)
+    {
+        this(anOID, aCID, aBuffer, isNew, aVersion);
+        mImageOffset = anOffset;
+        mImageLength = aLength;
+    }
+
+
+    /**
+     * Gets the image. If the image is a slice of a larger buffer, it is copied 
+     * to an array of its own first. Use {@link #getImageBuffer()}, {@link #getImageOffset()},
+     * and {@link #getImageLength()} to access the image without copying.
+     *
+     * @return the image.
+     */
     public byte[] getImage()
     {
+        if (mImage != null && (mImageOffset != 0 || mImageLength != mImage.length)) {
+            byte[] image = new byte[mImageLength];
+            System.arraycopy(mImage, mImageOffset, image, 0, mImageLength);
+            mImage = image;
+            mImageOffset = 0;
+        }
+        
         return mImage;
     }
 
 
+    /**
+     * Gets the buffer containing the image.
+     *
+     * @return the buffer. The image starts at {@link #getImageOffset()}.
+     */
+    public byte[] getImageBuffer()
+    {
+        return mImage;
+    }
+
+
+    /**
+     * Gets the offset of the image in the buffer returned by {@link #getImageBuffer()}.
+     *
+     * @return the offset.
+     */
+    public int getImageOffset()
+    {
+        return mImageOffset;
+    }
+
+
+    /**
+     * Gets the length of the image.
+     *
+     * @return the length.
+     */
+    public int getImageLength()
+    {
+        return mImageLength;
+    }
+
+
     public long getOID()
     {
         return mOID;
@@ -94,6 +197,79 @@ public class SerializedObject implements Serializable
         return mCID;
     }
 
+    /**
+     * Gets the commit version of the image.
+     *
+     * @return the version.
+     */
+    public long getVersion()
+    {
+        return mVersion;
+    }
+
+    /**
+     * Sets the commit version of the image.
+     *
+     * @param aVersion the version.
+     */
+    public void setVersion(long aVersion)
+    {
+        mVersion = aVersion;
+    }
+
+    /**
+     * Gets the format of the image. If the image is a delta, this is the format of the image 
+     * that results from applying the delta.
+     *
+     * @return {@link ObjectSerializer#IMAGE_FORMAT_V1} or {@link ObjectSerializer#IMAGE_FORMAT_V2}.
+     */
+    public int getImageFormat()
+    {
+        return mImageFormat;
+    }
+
+    /**
+     * Sets the format of the image.
+     *
+     * @param aFormat {@link ObjectSerializer#IMAGE_FORMAT_V1} or {@link ObjectSerializer#IMAGE_FORMAT_V2}.
+     */
+    public void setImageFormat(int aFormat)
+    {
+        mImageFormat = aFormat;
+    }
+
+    /**
+     * Determines if the image is a delta created by {@link org.enerj.util.ImageDeltaUtil} against 
+     * the currently stored image of the object. If so, the version of the stored image must be
+     * one less than this object's version.
+     *
+     * @return true if the image is a delta.
+     */
+    public boolean isDelta()
+    {
+        return mIsDelta;
+    }
+
+    /**
+     * Sets whether the image is a delta against the currently stored image of the object.
+     *
+     * @param isDelta true if the image is a delta.
+     */
+    public void setIsDelta(boolean isDelta)
+    {
+        mIsDelta = isDelta;
+    }
+
+    /**
+     * Only the image is serialized, not the entire buffer it may be a slice of.
+     */
+    private void writeObject(ObjectOutputStream anOutputStream) throws IOException
+    {
+        getImage();
+        anOutputStream.defaultWriteObject();
+    }
+
+
     @Override
     public int hashCode()
     {
@@ -25,7 +25,9 @@ package org.enerj.server.bdb;
 import java.util.List;
 import java.util.NoSuchElementException;
 
-import org.enerj.server.DBIterator;
+import org.enerj.server.DBObjectIterator;
+import org.enerj.server.SerializedObject;
+import org.enerj.util.OIDUtil;
 import org.odmg.ODMGRuntimeException;
 
 import com.sleepycatje.bind.tuple.TupleBinding;
@@ -35,11 +37,11 @@ import com.sleepycatje.je.DatabaseException;
 import com.sleepycatje.je.OperationStatus;
 
 /**
- * BDB DBIterator implementation for extents.
+ * BDB DBIterator implementation for extents. The images of the objects are available along with their OIDs.
  *
  * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
  */
-public class BDBExtentIterator implements DBIterator
+public class BDBExtentIterator implements DBObjectIterator
 {
     private Cursor cursor;
     /** List of CIDs to iterate over. */
@@ -50,6 +52,8 @@ public class BDBExtentIterator implements DBIterator
     private DatabaseEntry nextOIDToReturn = null;
     private boolean isOpen = true;
     private BDBObjectServer.Session session;
+    /** The key that ends the iteration, exclusive. Null to iterate to the end of each CIDX. */
+    private OIDKey endKey = null;
 
 
     /**
@@ -70,6 +74,24 @@ public class BDBExtentIterator implements DBIterator
         this.session = session;
     }
 
+    /**
+     * Constructs a BDBExtentIterator over an OID range.
+     *
+     * @param session the session that owns this extent iterator.
+     * @param cursor the cursor to use.
+     * @param cidxs a List of CIDXs corresponding to cidxKeys
+     * @param cidxKeys the keys to start iterating from for each CIDX. These are partial OID keys, or
+     *  full OID keys to start part way into a CIDX.
+     * @param endOID the OID that ends the iteration, exclusive.
+     *
+     * @throws ODMGRuntimeException if an error occurs.
+     */
+    public BDBExtentIterator(BDBObjectServer.Session session, Cursor cursor, List<Integer> cidxs, List<DatabaseEntry> cidxKeys, long endOID) throws ODMGRuntimeException
+    {
+        this(session, cursor, cidxs, cidxKeys);
+        endKey = new OIDKey(OIDUtil.getCIDX(endOID), OIDUtil.getOIDX(endOID));
+    }
+
     /**
      * Verifies that the iterator is open.
      */
@@ -80,6 +102,22 @@ public class BDBExtentIterator implements DBIterator
         }
     }
 
+    /**
+     * Determines if the cursor's key is still within the current CIDX and before the end key.
+     *
+     * @param oidKey the key at the cursor.
+     * 
+     * @return true if oidKey is in range.
+     */
+    private boolean isInRange(OIDKey oidKey)
+    {
+        if (oidKey.cidx != cidxs.get(cidxKeyIdx)) {
+            return false;
+        }
+        
+        return endKey == null || oidKey.cidx < endKey.cidx || (oidKey.cidx == endKey.cidx && oidKey.oidx < endKey.oidx);
+    }
+
     public boolean isOpen()
     {
         return isOpen;
@@ -103,7 +141,7 @@ public class BDBExtentIterator implements DBIterator
                         // Found one, but make sure CIDX matches.
                         TupleBinding binding = new OIDKeyTupleBinding(true);
                         OIDKey oidKey = (OIDKey)binding.entryToObject(cidxKeys.get(cidxKeyIdx));
-                        if (oidKey.cidx == cidxs.get(cidxKeyIdx)) {
+                        if (isInRange(oidKey)) {
                             break;
                         }
                     }
@@ -137,8 +175,55 @@ public class BDBExtentIterator implements DBIterator
      */
     public long[] next(int aMaxNumObjects) throws ODMGRuntimeException, NoSuchElementException
     {
-        // TODO This should return SerializedObjects, or at least oid and ClassInfo
-        if (aMaxNumObjects < 1) {
+        long[] oids = new long[aMaxNumObjects];
+        int numObjs = next(oids, null);
+        if (numObjs < oids.length) {
+            // Resize the array.
+            long[] tmpOIDs = new long[numObjs];
+            System.arraycopy(oids, 0, tmpOIDs, 0, numObjs);
+            oids = tmpOIDs;
+        }
+
+        return oids;
+    }
+
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The cursor reads the image of each object as it moves over the object's OID, so this 
+     * costs no more than {@link #next(int)}.
+     */
+    public SerializedObject[] nextObjects(int aMaxNumObjects) throws ODMGRuntimeException, NoSuchElementException
+    {
+        SerializedObject[] objects = new SerializedObject[aMaxNumObjects];
+        int numObjs = next(null, objects);
+        if (numObjs < objects.length) {
+            // Resize the array.
+            SerializedObject[] tmpObjects = new SerializedObject[numObjs];
+            System.arraycopy(objects, 0, tmpObjects, 0, numObjs);
+            objects = tmpObjects;
+        }
+
+        return objects;
+    }
+
+
+    /**
+     * Gets, at most, the next N objects from the iterator, where N is the length of the given array.
+     *
+     * @param someOIDs the array to receive the OIDs. May be null if someObjects is not.
+     * @param someObjects the array to receive the SerializedObjects. May be null if someOIDs is not.
+     *
+     * @return the number of objects retrieved, from 1 to the length of the array.
+     *
+     * @throws ODMGRuntimeException if an error occurs.
+     * @throws NoSuchElementException if there are no more objects available from the iterator.
+     */
+    private int next(long[] someOIDs, SerializedObject[] someObjects) throws ODMGRuntimeException, NoSuchElementException
+    {
+        int maxNumObjects = (someOIDs == null ? someObjects.length : someOIDs.length);
+        if (maxNumObjects < 1) {
             throw new IllegalArgumentException("Maximum Number of objects must be >= 1");
         }
 
@@ -147,14 +232,22 @@ public class BDBExtentIterator implements DBIterator
             throw new NoSuchElementException("Attempted to go past the end of the Extent iterator.");
         }
 
-        long[] oids = new long[aMaxNumObjects];
         int numObjs;
         TupleBinding binding = new OIDKeyTupleBinding(true);
        
-        for (numObjs = 0; numObjs < aMaxNumObjects && hasNext(); ) {
+        for (numObjs = 0; numObjs < maxNumObjects && hasNext(); ) {
             DatabaseEntry key = cidxKeys.get(cidxKeyIdx);
             OIDKey oidKey = (OIDKey)binding.entryToObject(key);
-            oids[numObjs++] = oidKey.getOID();
+            long oid = oidKey.getOID();
+            if (someOIDs != null) {
+                someOIDs[numObjs] = oid;
+            }
+            else {
+                // nextOIDToReturn holds the data of the object at the cursor. 
+                someObjects[numObjs] = session.createSerializedObject(oid, nextOIDToReturn);
+            }
+            
+            ++numObjs;
 
             try {
                 // Prime next OID.
@@ -164,7 +257,7 @@ public class BDBExtentIterator implements DBIterator
                 }
 
                 oidKey = (OIDKey)binding.entryToObject(key);
-                if (oidKey.cidx != cidxs.get(cidxKeyIdx)) {
+                if (!isInRange(oidKey)) {
                     nextOIDToReturn = null; // Move to next CIDX.
                     continue;
                 }
@@ -174,14 +267,7 @@ public class BDBExtentIterator implements DBIterator
             }
         }
 
-        if (numObjs < oids.length) {
-            // Resize the array.
-            long[] tmpOIDs = new long[numObjs];
-            System.arraycopy(oids, 0, tmpOIDs, 0, numObjs);
-            oids = tmpOIDs;
-        }
-
-        return oids;
+        return numObjs;
     }
 
 
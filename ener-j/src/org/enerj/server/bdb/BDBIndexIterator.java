@@ -50,6 +50,10 @@ public class BDBIndexIterator implements DBIterator
     private BDBObjectServer.Session session;
     private GenericKey startKey;
     private GenericKey endKey;
+    // If keys are compared as bytes, these are the start and end key bytes, which may be null.
+    private boolean encoded;
+    private byte[] encodedStartKey = null;
+    private byte[] encodedEndKey = null;
     // Current OID key in the iteration.
     private DatabaseEntry currKey = null;
     private boolean exhusted = false;
@@ -60,17 +64,30 @@ public class BDBIndexIterator implements DBIterator
      *
      * @param session the session that owns this iterator.
      * @param cursor the cursor to use.
+     * @param keyCreator the index's key creator, which creates the bytes of the start and end keys.
      * @param startKey the starting key, inclusive. May be null to start at the first key.
      * @param endKey the ending key, inclusive. May be null to iterator through the last key in the index.
      *
      * @throws ODMGRuntimeException if an error occurs.
      */
-    public BDBIndexIterator(BDBObjectServer.Session session, SecondaryCursor cursor, GenericKey startKey, GenericKey endKey) throws ODMGRuntimeException
+    public BDBIndexIterator(BDBObjectServer.Session session, SecondaryCursor cursor, BDBJEKeyCreator keyCreator, GenericKey startKey, GenericKey endKey) throws ODMGRuntimeException
     {
         this.cursor = cursor;
         this.session = session;
+        this.encoded = keyCreator.isEncoded() || keyCreator.isHashed();
         this.startKey = startKey;
         this.endKey = endKey;
+        if (encoded) {
+            // Null components are allowed so that a range may extend to nulls.
+            if (startKey != null) {
+                encodedStartKey = keyCreator.createKeyBytes(startKey, true);
+            }
+            
+            if (endKey != null) {
+                // The end of a hash index lookup is the same as its start.
+                encodedEndKey = (keyCreator.isHashed() ? encodedStartKey : keyCreator.createKeyBytes(endKey, true));
+            }
+        }
     }
 
     /**
@@ -100,6 +117,20 @@ public class BDBIndexIterator implements DBIterator
             return true;  
         }
         
+        if (encoded) {
+            if (encodedStartKey != null && 
+                GenericKeyEncoder.compare(key.getData(), key.getOffset(), key.getSize(), encodedStartKey) < 0) {
+                return false;
+            }
+
+            if (encodedEndKey != null && 
+                GenericKeyEncoder.compare(key.getData(), key.getOffset(), key.getSize(), encodedEndKey) > 0) {
+                return false;
+            }
+            
+            return true;
+        }
+        
         Persister persister = PersisterRegistry.getCurrentPersisterForThread();
         GenericKey genericKey = new GenericKey();
         PersistableHelper.loadSerializedImage(persister, (Persistable)genericKey, key.getData());
@@ -145,7 +176,14 @@ public class BDBIndexIterator implements DBIterator
                     status = cursor.getFirst(searchKey, currKey, new DatabaseEntry(), null);
                 }
                 else {
-                    byte[] keyBytes = PersistableHelper.createSerializedImage((Persistable)(Object)startKey);
+                    byte[] keyBytes;
+                    if (encoded) {
+                        keyBytes = encodedStartKey;
+                    }
+                    else {
+                        keyBytes = PersistableHelper.createSerializedImage((Persistable)(Object)startKey);
+                    }
+                    
                     searchKey = new DatabaseEntry(keyBytes);
                     status = cursor.getSearchKeyRange(searchKey, currKey, new DatabaseEntry(), null);
                 }
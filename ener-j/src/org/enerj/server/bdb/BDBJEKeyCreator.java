@@ -3,15 +3,18 @@
  */
 package org.enerj.server.bdb;
 
-import java.util.Collections;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.Map;
 
+import org.enerj.annotations.Index;
 import org.enerj.core.GenericKey;
 import org.enerj.core.IndexSchema;
+import org.enerj.core.PartialImageDecoder;
 import org.enerj.core.Persistable;
 import org.enerj.core.PersistableHelper;
 import org.enerj.core.Persister;
 import org.enerj.core.PersisterRegistry;
+import org.odmg.ODMGRuntimeException;
 
 import com.sleepycatje.je.DatabaseEntry;
 import com.sleepycatje.je.DatabaseException;
@@ -20,34 +23,266 @@ import com.sleepycatje.je.SecondaryKeyCreator;
 
 
 /**
- * A SecondaryKeyCreator that generates a GenericKey for BDB JE.
+ * A SecondaryKeyCreator that generates a GenericKey for BDB JE. Keys are either encoded by 
+ * GenericKeyEncoder, so that BDB can compare them as bytes, or are serialized GenericKeys
+ * that require the GenericKeyBDBComparator.<p>
+ * 
+ * Keys of a hash index ({@link Index.Type#Hash}) are a hash of the key followed by the key, 
+ * encoded if possible, or else serialized. BDB compares these as bytes, which orders them 
+ * by hash. A hash index only supports lookups of equal keys.<p>
+ * 
+ * The class of an object is resolved from the class names of the valid CIDXs, which are taken from 
+ * the schema. If the indexed properties can be decoded directly from the image, neither the object 
+ * nor a Persister is needed. Otherwise the image is loaded into a new instance using the current
+ * Persister of the thread.
  * 
  * @author Dan Syrstad
  */
 class BDBJEKeyCreator implements SecondaryKeyCreator
 {
-    // This set is synchronized.
-    private Set<Integer> validCIDXs;
+    // Class names of the valid CIDXs. Access is synchronized on the map.
+    private Map<Integer, String> classNames;
+    // Classes resolved from classNames. Access is synchronized on classNames.
+    private Map<Integer, Class> classes = new HashMap<Integer, Class>();
     private IndexSchema indexSchema;
+    // True if keys are encoded by GenericKeyEncoder.
+    private boolean encoded;
+    // True if this is a hash index.
+    private boolean hashed;
+    // PartialImageDecoders by class. The value is null if the class' images cannot be partially decoded.
+    // Access is synchronized on the map.
+    private Map<Class, PartialImageDecoder> decoders = new HashMap<Class, PartialImageDecoder>();
 
     /**
      * Construct a new BDBJEKeyCreator.
      *
+     * @param classNames the class names of the CIDXs whose objects are indexed, keyed by CIDX.
+     * @param indexSchema the index.
+     * @param encoded true if keys are encoded by GenericKeyEncoder.
      */
-    public BDBJEKeyCreator(Set<Integer> validCIDXs, IndexSchema indexSchema)
+    public BDBJEKeyCreator(Map<Integer, String> classNames, IndexSchema indexSchema, boolean encoded)
     {
-        this.validCIDXs = Collections.synchronizedSet(validCIDXs);
+        this.classNames = classNames;
         this.indexSchema = indexSchema;
+        this.encoded = encoded;
+        this.hashed = (indexSchema.getType() == Index.Type.Hash);
+    }
+    
+    /**
+     * Answers whether this is a hash index, whose keys are prefixed by their hash.
+     *
+     * @return true if this is a hash index.
+     */
+    boolean isHashed()
+    {
+        return hashed;
+    }
+
+    /**
+     * Sets whether this is a hash index. This is determined when an existing index is opened,
+     * because a {@link Index.Type#Hash} index created before hash indexes were supported is a 
+     * regular index.
+     *
+     * @param hashed true if keys are prefixed by their hash.
+     */
+    void setHashed(boolean hashed)
+    {
+        this.hashed = hashed;
+    }
+
+    /**
+     * Answers whether keys are encoded by GenericKeyEncoder.
+     *
+     * @return true if keys are encoded, false if they are serialized GenericKeys.
+     */
+    boolean isEncoded()
+    {
+        return encoded;
+    }
+
+    /**
+     * Sets whether keys are encoded by GenericKeyEncoder. This is determined when an existing 
+     * index is opened.
+     *
+     * @param encoded true if keys are encoded, false if they are serialized GenericKeys.
+     */
+    void setEncoded(boolean encoded)
+    {
+        this.encoded = encoded;
+    }
+    
+    /**
+     * Creates the bytes of an index key. 
+     *
+     * @param key the key.
+     * @param allowNullKeys true if components of the key may be null. Only used if keys are encoded.
+     * 
+     * @return the key's bytes.
+     */
+    byte[] createKeyBytes(GenericKey key, boolean allowNullKeys)
+    {
+        return createKeyBytes(key.getComponents(), allowNullKeys);
+    }
+    
+    /**
+     * Creates the bytes of an index key from its components. 
+     *
+     * @param components the key's components.
+     * @param allowNullKeys true if components of the key may be null. Only used if keys are encoded.
+     * 
+     * @return the key's bytes.
+     */
+    private byte[] createKeyBytes(Object[] components, boolean allowNullKeys)
+    {
+        if (hashed) {
+            return createHashKeyBytes(components, allowNullKeys);
+        }
+        
+        if (encoded) {
+            return GenericKeyEncoder.encode(components, allowNullKeys);
+        }
+        
+        return PersistableHelper.createSerializedImage((Persistable)(Object)new GenericKey(components));
     }
     
     /**
      * Adds a valid class index for this index's key creator.
      *
      * @param cidx the new Class Index to be added.
+     * @param className the name of the class of cidx.
      */
-    void addValidClassIndex(int cidx)
+    void addValidClassIndex(int cidx, String className)
     {
-        validCIDXs.add(cidx);
+        synchronized (classNames) {
+            classNames.put(cidx, className);
+        }
+    }
+
+    /**
+     * Creates the bytes of a hash index key. The key is a 4 byte hash, followed by a 
+     * marker byte and the encoded key, or by a different marker byte and the serialized key 
+     * if a component cannot be encoded. Equal numeric keys of different types encode to the
+     * same bytes, but serialized keys are only equal if their components are of the same type.
+     *
+     * @param components the key's components.
+     * @param allowNullKeys true if components of the key may be null.
+     * 
+     * @return the key's bytes.
+     */
+    private byte[] createHashKeyBytes(Object[] components, boolean allowNullKeys)
+    {
+        byte[] keyBytes;
+        byte marker;
+        if (GenericKeyEncoder.canEncode(components)) {
+            keyBytes = GenericKeyEncoder.encode(components, allowNullKeys);
+            marker = 0;
+        }
+        else {
+            keyBytes = PersistableHelper.createSerializedImage((Persistable)(Object)new GenericKey(components));
+            marker = 1;
+        }
+        
+        int hash = hash(keyBytes, 0, keyBytes.length);
+        byte[] result = new byte[keyBytes.length + 5];
+        result[0] = (byte)(hash >>> 24);
+        result[1] = (byte)(hash >>> 16);
+        result[2] = (byte)(hash >>> 8);
+        result[3] = (byte)hash;
+        result[4] = marker;
+        System.arraycopy(keyBytes, 0, result, 5, keyBytes.length);
+        return result;
+    }
+
+    /**
+     * Determines whether bytes are a key created by {@link #createHashKeyBytes(Object[], boolean)}.
+     * Used to determine the layout of an existing index.
+     *
+     * @param bytes the buffer containing the key.
+     * @param offset the offset of the key in bytes.
+     * @param length the length of the key.
+     * 
+     * @return true if the key starts with the hash of the rest of the key.
+     */
+    static boolean isHashKey(byte[] bytes, int offset, int length)
+    {
+        if (length < 5 || (bytes[offset + 4] != 0 && bytes[offset + 4] != 1)) {
+            return false;
+        }
+        
+        int hash = hash(bytes, offset + 5, length - 5);
+        return bytes[offset] == (byte)(hash >>> 24) && bytes[offset + 1] == (byte)(hash >>> 16) &&
+            bytes[offset + 2] == (byte)(hash >>> 8) && bytes[offset + 3] == (byte)hash;
+    }
+
+    /**
+     * Computes the FNV-1a hash of a key.
+     *
+     * @param bytes the buffer containing the key.
+     * @param offset the offset of the key in bytes.
+     * @param length the length of the key.
+     * 
+     * @return the hash.
+     */
+    private static int hash(byte[] bytes, int offset, int length)
+    {
+        int hash = 0x811c9dc5;
+        for (int i = offset; i < offset + length; i++) {
+            hash = (hash ^ (bytes[i] & 0xff)) * 0x01000193;
+        }
+        
+        return hash;
+    }
+
+    /**
+     * Gets the PartialImageDecoder for a class, creating it the first time the class is seen.
+     *
+     * @param aClass the class of the indexed object.
+     * 
+     * @return the PartialImageDecoder, or null if the indexed properties cannot be decoded from 
+     *  an image of aClass. 
+     */
+    private PartialImageDecoder getDecoder(Class aClass)
+    {
+        synchronized (decoders) {
+            if (!decoders.containsKey(aClass)) {
+                decoders.put(aClass, PartialImageDecoder.create(aClass, indexSchema.getProperties()) );
+            }
+            
+            return decoders.get(aClass);
+        }
+    }
+
+    /**
+     * Gets the class of the objects of a CIDX.
+     *
+     * @param cidx the CIDX.
+     * 
+     * @return the class, or null if cidx is not indexed by this index.
+     * 
+     * @throws ODMGRuntimeException if the class cannot be loaded.
+     */
+    private Class getClassForCIDX(int cidx)
+    {
+        synchronized (classNames) {
+            Class objClass = classes.get(cidx);
+            if (objClass == null) {
+                String className = classNames.get(cidx);
+                if (className == null) {
+                    return null;
+                }
+
+                try {
+                    objClass = Class.forName(className);
+                }
+                catch (ClassNotFoundException e) {
+                    throw new ODMGRuntimeException("Cannot find class " + className + " for index " + indexSchema.getName(), e);
+                }
+                
+                classes.put(cidx, objClass);
+            }
+            
+            return objClass;
+        }
     }
 
     /**
@@ -60,18 +295,32 @@ class BDBJEKeyCreator implements SecondaryKeyCreator
     {
         OIDKeyTupleBinding binding = new OIDKeyTupleBinding(true);
         OIDKey oidKey = (OIDKey)binding.entryToObject(key);
-        if (!validCIDXs.contains(oidKey.cidx)) {
+        Class objClass = getClassForCIDX(oidKey.cidx);
+        if (objClass == null) {
             // Object not for this class - don't add to index.
             return false;
         }
         
-        Persister persister = PersisterRegistry.getCurrentPersisterForThread();
-        Persistable obj = persister.getObjectForOID(oidKey.getOID());
-        PersistableHelper.loadSerializedImage(persister, obj, data.getData());
-        Object idxKey = GenericKey.createKey(indexSchema, obj);
-        byte[] keyBytes = PersistableHelper.createSerializedImage((Persistable)idxKey);
-        result.setData(keyBytes);
+        // The entry's trailing version and CID are ignored by the image reader.
+        int format = BDBObjectServer.getImageFormat(data.getData(), data.getSize());
+        PartialImageDecoder decoder = getDecoder(objClass);
+        if (decoder != null) {
+            // Only read the indexed fields from the image.
+            Object[] components = decoder.decode(oidKey.getOID(), data.getData(), format);
+            result.setData( createKeyBytes(components, indexSchema.allowsNullKeys()) );
+            return true;
+        }
 
+        // The properties may depend on any part of the object, so load all of it into a new instance.
+        Persister persister = PersisterRegistry.getCurrentPersisterForThread();
+        if (persister == null) {
+            throw new ODMGRuntimeException("No Persister is available to load OID " + oidKey.getOID() + 
+                " for index " + indexSchema.getName());
+        }
+        
+        Persistable obj = PersistableHelper.createHollowPersistable(objClass, oidKey.getOID(), persister);
+        PersistableHelper.loadSerializedImage(persister, obj, data.getData(), format);
+        result.setData( createKeyBytes(GenericKey.createKey(indexSchema, obj), indexSchema.allowsNullKeys()) );
         return true;
     }
 
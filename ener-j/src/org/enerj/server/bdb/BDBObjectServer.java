@@ -26,7 +26,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -34,8 +37,12 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+import org.enerj.annotations.Index;
 import org.enerj.core.ClassSchema;
 import org.enerj.core.ClassVersionSchema;
 import org.enerj.core.GenericKey;
@@ -44,22 +51,29 @@ import org.enerj.core.ObjectSerializer;
 import org.enerj.core.Persistable;
 import org.enerj.core.Schema;
 import org.enerj.core.SystemCIDMap;
+import org.enerj.core.TransactionConflictException;
 import org.enerj.server.ClassInfo;
 import org.enerj.server.DBIterator;
 import org.enerj.server.ObjectServer;
 import org.enerj.server.ObjectServerSession;
 import org.enerj.server.SerializedObject;
 import org.enerj.util.FileUtil;
+import org.enerj.util.ImageDeltaUtil;
 import org.enerj.util.OIDUtil;
 import org.odmg.DatabaseClosedException;
+import org.odmg.DatabaseIsReadOnlyException;
 import org.odmg.LockNotGrantedException;
 import org.odmg.ODMGException;
 import org.odmg.ODMGRuntimeException;
 import org.odmg.ObjectNameNotFoundException;
 import org.odmg.ObjectNameNotUniqueException;
 import org.odmg.ObjectNotPersistentException;
+import org.odmg.TransactionInProgressException;
 import org.odmg.TransactionNotInProgressException;
 
+import com.sleepycatje.bind.tuple.IntegerBinding;
+import com.sleepycatje.bind.tuple.LongBinding;
+import com.sleepycatje.bind.tuple.StringBinding;
 import com.sleepycatje.bind.tuple.TupleBinding;
 import com.sleepycatje.bind.tuple.TupleInput;
 import com.sleepycatje.bind.tuple.TupleOutput;
@@ -69,6 +83,7 @@ import com.sleepycatje.je.Database;
 import com.sleepycatje.je.DatabaseConfig;
 import com.sleepycatje.je.DatabaseEntry;
 import com.sleepycatje.je.DatabaseException;
+import com.sleepycatje.je.DeadlockException;
 import com.sleepycatje.je.Environment;
 import com.sleepycatje.je.EnvironmentConfig;
 import com.sleepycatje.je.LockMode;
@@ -79,6 +94,7 @@ import com.sleepycatje.je.SecondaryDatabase;
 import com.sleepycatje.je.Sequence;
 import com.sleepycatje.je.SequenceConfig;
 import com.sleepycatje.je.Transaction;
+import com.sleepycatje.je.TransactionConfig;
 
 /** 
  * Ener-J ObjectServer based on Berkeley DB Java Edition. Stores objects in BDB databases.
@@ -95,6 +111,39 @@ public class BDBObjectServer extends BaseObjectServer
     private static final Logger sLogger = Logger.getLogger(BDBObjectServer.class.getName());
     
     private static final String BINDERY_SUFFIX = ":Bindery";
+    private static final String EXTENT_COUNTS_SUFFIX = ":ExtentCounts";
+    private static final String FORMAT_SUFFIX = ":Format";
+    /** Key of the record format version in the format database. */
+    private static final String RECORD_FORMAT_KEY = "recordFormat";
+    /** Key of the last object record converted by an incomplete conversion, in the format database. */
+    private static final String CONVERTED_THROUGH_KEY = "convertedThrough";
+    /** 
+     * The layout of object records. Version 0 (no format database) is [image][CID]. Version 1 is 
+     * [image][version and image format][CID]. 
+     */
+    private static final int RECORD_FORMAT_VERSION = 1;
+    /** Number of records converted per transaction when converting the record format. */
+    private static final int sRecordConversionBatchSize = 1000;
+    /** Number of OIDs the OID Sequence allocates at a time. Values not allocated when the server closes are lost. */
+    private static final int sOIDSequenceCacheSize = 10000;
+    /** Maximum number of returned OIDXs that are kept for reallocation. */
+    private static final int sMaxReturnedOIDXs = 100000;
+    /** 
+     * Number of records that the extent count of a CIDX is split across. Each session adds to one 
+     * of them, so that sessions creating objects of the same class don't wait for each other's 
+     * commit to update the count. 
+     */
+    private static final int sExtentCountStripes = 16;
+    
+    /** Orders SerializedObjects by OID. */
+    private static final Comparator<SerializedObject> sOIDComparator = new Comparator<SerializedObject>() {
+        public int compare(SerializedObject anObject1, SerializedObject anObject2)
+        {
+            long oid1 = anObject1.getOID();
+            long oid2 = anObject2.getOID();
+            return (oid1 < oid2 ? -1 : (oid1 == oid2 ? 0 : 1));
+        }
+    };
     
     /** HashMap of database names to BDBObjectServers. */
     private static HashMap<String, BDBObjectServer> sCurrentServers = new HashMap<String, BDBObjectServer>(20);
@@ -115,8 +164,17 @@ public class BDBObjectServer extends BaseObjectServer
     private Database bdbDatabase = null;
     /** Bindery Database. Key is binding name, value is OID. */
     private Database bdbBinderyDatabase = null;
+    /** Extent count Database. Key is a CIDX and a stripe, value is a part of the number of objects stored with the CIDX. */
+    private Database bdbExtentCountDatabase = null;
+    /** The extent count stripe of the next session. */
+    private AtomicInteger mNextExtentCountStripe = new AtomicInteger();
     /** The OID Sequence. */
     private Sequence oidSequence = null; 
+    /** OIDXs returned by sessions, which are allocated before new ones. Guarded by mReturnedOIDXLock. */
+    private long[] mReturnedOIDXs = new long[64];
+    /** The number of OIDXs in mReturnedOIDXs. */
+    private int mReturnedOIDXCount = 0;
+    private Object mReturnedOIDXLock = new Object();
     /** Map of all open indexes. Key is the CIDX of the index(es). Value is a List of SecondaryDatabase. */
     private Map<Integer, List<SecondaryDatabase>> bdbIndexes = new HashMap<Integer, List<SecondaryDatabase>>(); 
     
@@ -141,6 +199,9 @@ public class BDBObjectServer extends BaseObjectServer
      * start. 
      */
     private boolean mQuiescent = false;
+    
+    /** The session that has exclusive use of the server for a bulk load, or null. Guarded by mTransactionLock. */
+    private Session mBulkLoadSession = null;
 
     
     /**
@@ -182,9 +243,22 @@ public class BDBObjectServer extends BaseObjectServer
 
             bdbDatabase = bdbEnvironment.openDatabase(null, mDBName, bdbDBConfig);
             bdbBinderyDatabase = bdbEnvironment.openDatabase(null, mDBName + BINDERY_SUFFIX, bdbDBConfig);
+            convertRecordFormat();
+            
+            // Databases created before extent counts were maintained get their counts from a scan of the objects.
+            String extentCountDBName = mDBName + EXTENT_COUNTS_SUFFIX;
+            boolean hasExtentCounts = bdbEnvironment.getDatabaseNames().contains(extentCountDBName);
+            DatabaseConfig extentCountConfig = new DatabaseConfig();
+            extentCountConfig.setTransactional(true);
+            extentCountConfig.setAllowCreate(true);
+            bdbExtentCountDatabase = bdbEnvironment.openDatabase(null, extentCountDBName, extentCountConfig);
+            if (!hasExtentCounts) {
+                initExtentCounts();
+            }
 
             SequenceConfig config = new SequenceConfig();
-            config.setCacheSize(1);
+            // Caching avoids updating the sequence record, which all sessions contend for, for every block.
+            config.setCacheSize(sOIDSequenceCacheSize);
             DatabaseEntry key = new DatabaseEntry();
             new OIDKeyTupleBinding(true).objectToEntry( new OIDKey(0, NEXT_OID_NUM_OID), key);
             oidSequence = bdbDatabase.openSequence(null, key, config);
@@ -212,6 +286,11 @@ public class BDBObjectServer extends BaseObjectServer
                         bdbBinderyDatabase = null;
                     }
     
+                    if (bdbExtentCountDatabase != null) {
+                        bdbExtentCountDatabase.close();
+                        bdbExtentCountDatabase = null;
+                    }
+    
                     if (bdbEnvironment != null) {
                         bdbEnvironment.close();
                         bdbEnvironment = null;
@@ -234,19 +313,22 @@ public class BDBObjectServer extends BaseObjectServer
      * @param classSchema
      * @param indexSchema
      * 
+     * @param encoded true if the index's keys are encoded by GenericKeyEncoder.
+     * 
      * @return a BDBJEKeyCreator.
      */
-    private BDBJEKeyCreator createKeyCreator(ClassSchema classSchema, IndexSchema indexSchema)
+    private BDBJEKeyCreator createKeyCreator(ClassSchema classSchema, IndexSchema indexSchema, boolean encoded)
     {
-        // Build a list of valid CIDXs for this index. Any subclasses of the given class are eligible.
-        Set<Integer> cidxs = new HashSet<Integer>();
-        cidxs.add( classSchema.getClassIndex() );
+        // Build a map of valid CIDXs for this index to their class names. Any subclasses of the given class are eligible.
+        Map<Integer, String> classNames = new HashMap<Integer, String>();
+        classNames.put(classSchema.getClassIndex(), classSchema.getClassName());
         
         // Note: This only detects sub-classes available at the time the index is created. We also have to
         // actively monitor schema changes for sub-class additions and add their cidxs to the key creator.
         Schema schema = classSchema.getSchema();
         for (ClassVersionSchema versionSchema : schema.getPersistableSubclasses(classSchema.getClassName())) {
-            cidxs.add( versionSchema.getClassSchema().getClassIndex() );
+            ClassSchema subclassSchema = versionSchema.getClassSchema();
+            classNames.put(subclassSchema.getClassIndex(), subclassSchema.getClassName());
         }
 
 
@@ -257,7 +339,7 @@ public class BDBObjectServer extends BaseObjectServer
         indexSchemaPersistable.enerj_SetLoaded(true);
         indexSchemaPersistable.enerj_SetPersister(null);
         
-        return new BDBJEKeyCreator(cidxs, indexSchema);
+        return new BDBJEKeyCreator(classNames, indexSchema, encoded);
     }
 
     /**
@@ -314,6 +396,23 @@ public class BDBObjectServer extends BaseObjectServer
             bdbDB.close();
             bdbDB = null;
 
+            // The extent count database's key is a CIDX and a stripe, the data is the part of the number 
+            // of objects counted by the stripe. Databases created before the counts were striped have 
+            // a key of only a CIDX, which is summed with the stripes.
+            bdbDB = bdbEnv.openDatabase(null, aDBName + EXTENT_COUNTS_SUFFIX, bdbDBConfig);
+            bdbDB.close();
+            bdbDB = null;
+
+            // The format database's key is a name, the data is a value.
+            bdbDB = bdbEnv.openDatabase(null, aDBName + FORMAT_SUFFIX, bdbDBConfig);
+            DatabaseEntry formatKey = new DatabaseEntry();
+            DatabaseEntry formatData = new DatabaseEntry();
+            StringBinding.stringToEntry(RECORD_FORMAT_KEY, formatKey);
+            IntegerBinding.intToEntry(RECORD_FORMAT_VERSION, formatData);
+            bdbDB.put(null, formatKey, formatData);
+            bdbDB.close();
+            bdbDB = null;
+
             bdbEnv.close();
             bdbEnv = null;
             
@@ -358,6 +457,29 @@ public class BDBObjectServer extends BaseObjectServer
         }
 	}
 
+    /**
+     * Determines if the keys of an index can be encoded by GenericKeyEncoder. 
+     *
+     * @param aClassSchema the indexed class.
+     * @param anIndexSchema the index.
+     * 
+     * @return true if the keys can be encoded, false if they must be serialized GenericKeys.
+     */
+    private boolean canEncodeKeys(ClassSchema aClassSchema, IndexSchema anIndexSchema)
+    {
+        if (anIndexSchema.getComparatorClassName() != null) {
+            return false;
+        }
+        
+        try {
+            Class indexedClass = Class.forName(aClassSchema.getClassName(), false, Thread.currentThread().getContextClassLoader());
+            return GenericKeyEncoder.canEncode(indexedClass, anIndexSchema.getProperties());
+        }
+        catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
 	@Override
 	protected void createPhysicalIndex(ClassSchema aClassSchema, IndexSchema anIndexSchema) throws ODMGException
 	{
@@ -372,10 +494,16 @@ public class BDBObjectServer extends BaseObjectServer
         indexConfig.setAllowPopulate(true); // Build index if DB not empty.
         indexConfig.setNodeMaxEntries(512); // TODO Tunable
         indexConfig.setSortedDuplicates( anIndexSchema.allowsDuplicateKeys() );
-        indexConfig.setBtreeComparator(GenericKeyBDBComparator.class);
-        indexConfig.setKeyCreator( createKeyCreator(aClassSchema, anIndexSchema)  );
+        // Encoded keys are compared as bytes by BDB. Otherwise the key is a serialized GenericKey
+        // which must be compared by de-serializing it. Hash index keys are always compared as bytes.
+        boolean encoded = canEncodeKeys(aClassSchema, anIndexSchema);
+        if (!encoded && anIndexSchema.getType() != Index.Type.Hash) {
+            indexConfig.setBtreeComparator(GenericKeyBDBComparator.class);
+        }
+        
+        indexConfig.setKeyCreator( createKeyCreator(aClassSchema, anIndexSchema, encoded)  );
 
-        // The index's key is a serialized GenericKey and value is an OID.
+        // The index's key is an encoded or serialized GenericKey and value is an OID.
         try {
             SecondaryDatabase indexDB = bdbEnvironment.openSecondaryDatabase(null, indexDBName, bdbDatabase, indexConfig); 
             addIndexToOpenMap(aClassSchema.getClassIndex(), indexDB);
@@ -403,7 +531,7 @@ public class BDBObjectServer extends BaseObjectServer
                     if (indexes != null) {
                         for (SecondaryDatabase indexDB : indexes) {
                             BDBJEKeyCreator keyCreator = (BDBJEKeyCreator)indexDB.getSecondaryConfig().getKeyCreator();
-                            keyCreator.addValidClassIndex(cidx);
+                            keyCreator.addValidClassIndex(cidx, classSchema.getClassName());
                         }
                     }
                 }
@@ -444,6 +572,164 @@ public class BDBObjectServer extends BaseObjectServer
 	    return mDBName + ':' + className + ':' + indexName;	    
 	}
 	
+    /**
+     * Converts object records written by an older version to the current record format. A database 
+     * without a format database has version 0 records, which don't have a version. They are converted
+     * to version 0 objects in the V1 image format. The conversion is done in batches and records its 
+     * progress with each batch so that it resumes where it left off if it is interrupted.
+     * 
+     * @throws DatabaseException if an error occurs.
+     * @throws ODMGException if the record format is newer than this server supports.
+     */
+    private void convertRecordFormat() throws DatabaseException, ODMGException
+    {
+        DatabaseConfig formatConfig = new DatabaseConfig();
+        formatConfig.setTransactional(true);
+        formatConfig.setAllowCreate(true);
+        Database formatDB = bdbEnvironment.openDatabase(null, mDBName + FORMAT_SUFFIX, formatConfig);
+        try {
+            DatabaseEntry formatKey = new DatabaseEntry();
+            DatabaseEntry formatData = new DatabaseEntry();
+            StringBinding.stringToEntry(RECORD_FORMAT_KEY, formatKey);
+            if (formatDB.get(null, formatKey, formatData, null) == OperationStatus.SUCCESS) {
+                int version = IntegerBinding.entryToInt(formatData);
+                if (version > RECORD_FORMAT_VERSION) {
+                    throw new ODMGException("Database " + mDBName + " has record format " + version + 
+                        ", which is newer than the supported format " + RECORD_FORMAT_VERSION);
+                }
+                
+                if (version == RECORD_FORMAT_VERSION) {
+                    return;
+                }
+            }
+            
+            sLogger.info("Converting object records of " + mDBName + " to record format " + RECORD_FORMAT_VERSION);
+            DatabaseEntry positionKey = new DatabaseEntry();
+            StringBinding.stringToEntry(CONVERTED_THROUGH_KEY, positionKey);
+            DatabaseEntry sequenceKey = new DatabaseEntry();
+            new OIDKeyTupleBinding(true).objectToEntry( new OIDKey(0, NEXT_OID_NUM_OID), sequenceKey);
+
+            boolean isDone = false;
+            while (!isDone) {
+                Transaction txn = bdbEnvironment.beginTransaction(null, null);
+                boolean isCommitted = false;
+                try {
+                    DatabaseEntry position = new DatabaseEntry();
+                    boolean hasPosition = (formatDB.get(txn, positionKey, position, null) == OperationStatus.SUCCESS);
+                    DatabaseEntry key = new DatabaseEntry();
+                    DatabaseEntry data = new DatabaseEntry();
+                    Cursor cursor = bdbDatabase.openCursor(txn, null);
+                    try {
+                        OperationStatus status;
+                        if (hasPosition) {
+                            key.setData( position.getData() );
+                            status = cursor.getSearchKeyRange(key, data, LockMode.RMW);
+                            if (status == OperationStatus.SUCCESS && key.equals(position)) {
+                                // Already converted.
+                                status = cursor.getNext(key, data, LockMode.RMW);
+                            }
+                        }
+                        else {
+                            status = cursor.getFirst(key, data, LockMode.RMW);
+                        }
+                        
+                        for (int i = 0; i < sRecordConversionBatchSize && status == OperationStatus.SUCCESS; i++) {
+                            if (!key.equals(sequenceKey)) {
+                                // [image][CID] becomes [image][version 0, V1 format][CID].
+                                int imageLength = data.getSize() - 8;
+                                byte[] record = new byte[data.getSize() + 8];
+                                System.arraycopy(data.getData(), data.getOffset(), record, 0, imageLength);
+                                System.arraycopy(data.getData(), data.getOffset() + imageLength, record, imageLength + 8, 8);
+                                cursor.putCurrent( new DatabaseEntry(record) );
+                            }
+                            
+                            byte[] positionBytes = new byte[ key.getSize() ];
+                            System.arraycopy(key.getData(), key.getOffset(), positionBytes, 0, positionBytes.length);
+                            position.setData(positionBytes);
+                            status = cursor.getNext(key, data, LockMode.RMW);
+                        }
+                        
+                        isDone = (status != OperationStatus.SUCCESS);
+                    }
+                    finally {
+                        cursor.close();
+                    }
+                    
+                    if (isDone) {
+                        formatDB.delete(txn, positionKey);
+                        IntegerBinding.intToEntry(RECORD_FORMAT_VERSION, formatData);
+                        formatDB.put(txn, formatKey, formatData);
+                    }
+                    else {
+                        formatDB.put(txn, positionKey, position);
+                    }
+                    
+                    txn.commitSync();
+                    isCommitted = true;
+                }
+                finally {
+                    if (!isCommitted) {
+                        txn.abort();
+                    }
+                }
+            }
+        }
+        finally {
+            formatDB.close();
+        }
+    }
+
+    /**
+     * Initializes the extent count database by counting the objects of each CIDX.
+     * 
+     * @throws DatabaseException if an error occurs.
+     */
+    private void initExtentCounts() throws DatabaseException
+    {
+        sLogger.info("Initializing extent counts for " + mDBName);
+        TreeMap<Integer, Long> counts = new TreeMap<Integer, Long>();
+        Transaction txn = bdbEnvironment.beginTransaction(null, null);
+        boolean isCommitted = false;
+        try {
+            Cursor cursor = bdbDatabase.openCursor(txn, null);
+            try {
+                OIDKeyTupleBinding binding = new OIDKeyTupleBinding(true);
+                DatabaseEntry key = new DatabaseEntry();
+                DatabaseEntry data = new DatabaseEntry();
+                // Only the keys are needed.
+                data.setPartial(0, 0, true);
+                while (cursor.getNext(key, data, null) == OperationStatus.SUCCESS) {
+                    OIDKey oidKey = (OIDKey)binding.entryToObject(key);
+                    if (oidKey.cidx == 0 && oidKey.oidx == NEXT_OID_NUM_OID) {
+                        // The OID sequence is not an object.
+                        continue;
+                    }
+                    
+                    Long count = counts.get(oidKey.cidx);
+                    counts.put(oidKey.cidx, count == null ? 1L : count + 1L);
+                }
+            }
+            finally {
+                cursor.close();
+            }
+
+            DatabaseEntry data = new DatabaseEntry();
+            for (Map.Entry<Integer, Long> entry : counts.entrySet()) {
+                DatabaseEntry key = createExtentCountKey(entry.getKey(), 0);
+                LongBinding.longToEntry(entry.getValue(), data);
+                bdbExtentCountDatabase.put(txn, key, data);
+            }
+            
+            txn.commitSync();
+            isCommitted = true;
+        }
+        finally {
+            if (!isCommitted) {
+                txn.abort();
+            }
+        }
+    }
+    
     /**
      * Creates a DatabaseEntry key from an OID.
      *
@@ -476,6 +762,27 @@ public class BDBObjectServer extends BaseObjectServer
         return key;
     }
     
+    /**
+     * Creates the key of a stripe of the extent count of a CIDX. The key starts with the 
+     * key of the CIDX alone, which is used by databases created before the counts were striped,
+     * so the keys of a CIDX are adjacent. 
+     *
+     * @param cidx the CIDX.
+     * @param stripe the stripe, in the range [0..sExtentCountStripes).
+     * 
+     * @return the key.
+     */
+    private static DatabaseEntry createExtentCountKey(int cidx, int stripe)
+    {
+        TupleOutput output = new TupleOutput();
+        output.writeInt(cidx);
+        output.writeInt(stripe);
+        
+        DatabaseEntry key = new DatabaseEntry();
+        TupleBinding.outputToEntry(output, key);
+        return key;
+    }
+    
     /**
      * Shuts down this server.
      */
@@ -542,6 +849,10 @@ public class BDBObjectServer extends BaseObjectServer
                 bdbBinderyDatabase.close();
             }
             
+            if (bdbExtentCountDatabase != null) {
+                bdbExtentCountDatabase.close();
+            }
+            
             if (bdbEnvironment != null) {
                 bdbEnvironment.close();
             }
@@ -647,6 +958,108 @@ public class BDBObjectServer extends BaseObjectServer
         } // End synchronized (sCurrentServers)
     }
     
+    /**
+     * Determines if the indexes of a class hold objects of any of the given classes, i.e., if any 
+     * of the CIDXs is the class or one of its subclasses.
+     *
+     * @param aClassSchema the indexed class.
+     * @param someCIDXs the CIDXs of the classes.
+     * 
+     * @return true if the indexes of aClassSchema hold objects of some of the classes.
+     */
+    private static boolean isIndexingAnyClass(ClassSchema aClassSchema, Set<Integer> someCIDXs)
+    {
+        if (someCIDXs.contains(aClassSchema.getClassIndex())) {
+            return true;
+        }
+        
+        for (ClassVersionSchema versionSchema : aClassSchema.getSchema().getPersistableSubclasses(aClassSchema.getClassName())) {
+            if (someCIDXs.contains(versionSchema.getClassSchema().getClassIndex())) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Closes the secondary databases of the open indexes that hold objects of the given classes, 
+     * so that they are no longer updated. The caller must have exclusive use of the server.
+     *
+     * @param someCIDXs the CIDXs of the classes.
+     *
+     * @throws ODMGException if an error occurs.
+     */
+    private void closeIndexes(Set<Integer> someCIDXs) throws ODMGException
+    {
+        for (ClassSchema classSchema : getSchema().getClassSchemas()) {
+            if (isIndexingAnyClass(classSchema, someCIDXs)) {
+                List<SecondaryDatabase> indexDBs = bdbIndexes.remove(classSchema.getClassIndex());
+                if (indexDBs != null) {
+                    try {
+                        for (SecondaryDatabase indexDB : indexDBs) {
+                            indexDB.close();
+                        }
+                    }
+                    catch (DatabaseException e) {
+                        throw new ODMGException("Error closing indexes on class " + classSchema.getClassName(), e);
+                    }
+                }
+            }
+        }
+    }
+    
+    /**
+     * Rebuilds the secondary databases of the indexes that hold objects of the given classes from 
+     * the object database. The caller must have exclusive use of the server.
+     *
+     * @param someCIDXs the CIDXs of the classes.
+     *
+     * @throws ODMGException if an error occurs.
+     */
+    private void rebuildIndexes(Set<Integer> someCIDXs) throws ODMGException
+    {
+        // Indexes may have been created since they were closed.
+        closeIndexes(someCIDXs);
+
+        Schema schema = getSchema();
+        synchronized (mSchemaLock) {
+            // The key creators resolve objects through the schema session, as when an index is added.
+            BaseObjectServerSession schemaSession = getSchemaSession();
+            schemaSession.pushAsPersister();
+            try {
+                schemaSession.beginTransaction();
+                try {
+                    for (ClassSchema classSchema : schema.getClassSchemas()) {
+                        if (!isIndexingAnyClass(classSchema, someCIDXs)) {
+                            continue;
+                        }
+                        
+                        for (IndexSchema indexSchema : classSchema.getIndexes()) {
+                            String indexDBName = createIndexDBName(classSchema.getClassName(), indexSchema.getName());
+                            try {
+                                bdbEnvironment.removeDatabase(null, indexDBName);
+                            }
+                            catch (DatabaseException e) {
+                                throw new ODMGException("Error removing index '" + indexSchema.getName() + "' on class " +
+                                                classSchema.getClassName(), e);
+                            }
+                            
+                            // Populates the new index from the object database.
+                            createPhysicalIndex(classSchema, indexSchema);
+                        }
+                    }
+                }
+                finally {
+                    schemaSession.rollbackTransaction();
+                }
+            }
+            finally {
+                schemaSession.popAsPersister();
+            }
+        }
+    }
+    
     /**
      * Opens the secondary databases for indexes.
      *
@@ -662,10 +1075,17 @@ public class BDBObjectServer extends BaseObjectServer
                     String indexDBName = createIndexDBName(classSchema.getClassName(), indexSchema.getName());
                     SecondaryConfig indexConfig = new SecondaryConfig();
                     indexConfig.setSortedDuplicates( indexSchema.allowsDuplicateKeys() );
-                    indexConfig.setKeyCreator( createKeyCreator(classSchema, indexSchema) );
+                    BDBJEKeyCreator keyCreator = createKeyCreator(classSchema, indexSchema, false);
+                    indexConfig.setKeyCreator(keyCreator);
                     indexConfig.setTransactional(true);
     
                     SecondaryDatabase indexDB = bdbEnvironment.openSecondaryDatabase(null, indexDBName, bdbDatabase, indexConfig); 
+                    // The stored comparator tells whether the index was created with encoded keys.
+                    boolean hasComparator = (indexDB.getConfig().getBtreeComparator() != null);
+                    keyCreator.setEncoded(!hasComparator);
+                    // A hash index created before hash indexes were supported is a regular index, which 
+                    // must still be treated as one.
+                    keyCreator.setHashed(indexSchema.getType() == Index.Type.Hash && !hasComparator && hasHashKeys(indexDB));
                     addIndexToOpenMap(classSchema.getClassIndex(), indexDB);
                 }
             }
@@ -676,6 +1096,35 @@ public class BDBObjectServer extends BaseObjectServer
     }
     
     
+    /**
+     * Determines whether an index without a comparator has the layout of a hash index. Only the 
+     * first key is checked. An empty index is assumed to be a hash index.
+     *
+     * @param anIndexDB the index.
+     * 
+     * @return true if the keys of anIndexDB are prefixed by their hash.
+     * 
+     * @throws DatabaseException if an error occurs.
+     */
+    private boolean hasHashKeys(SecondaryDatabase anIndexDB) throws DatabaseException
+    {
+        DatabaseEntry key = new DatabaseEntry();
+        DatabaseEntry data = new DatabaseEntry();
+        data.setPartial(0, 0, true);
+        SecondaryCursor cursor = anIndexDB.openSecondaryCursor(null, null);
+        try {
+            if (cursor.getFirst(key, data, LockMode.READ_UNCOMMITTED) != OperationStatus.SUCCESS) {
+                return true;
+            }
+            
+            return BDBJEKeyCreator.isHashKey(key.getData(), key.getOffset(), key.getSize());
+        }
+        finally {
+            cursor.close();
+        }
+    }
+    
+    
     /**
      * Removes a session from the active session list.
      */
@@ -711,6 +1160,29 @@ public class BDBObjectServer extends BaseObjectServer
         /** If true, this is a privileged session that may update the schema. */
         private boolean isSchemaSession = false;
         private List<DBIterator> sessionIterators = new ArrayList<DBIterator>(); 
+        /** True if the session is in bulk-load mode. */
+        private boolean mIsBulkLoading = false;
+        /** True if index updates are deferred until the bulk load ends. */
+        private boolean mIsDeferringIndexes = false;
+        /** True if the active transaction is read-only. */
+        private boolean mIsReadOnly = false;
+        /** True if the active transaction is optimistic. */
+        private boolean mIsOptimistic = false;
+        /** For an optimistic transaction, the version that each object read or written must have in the database
+         * at commit, keyed by OID. Ordered by OID so that objects are always locked in the same order. */
+        private TreeMap<Long, Long> mOptimisticVersions = new TreeMap<Long, Long>();
+        /** For an optimistic transaction, the full images of stored objects that have not been written yet, keyed by OID. */
+        private TreeMap<Long, SerializedObject> mOptimisticWrites = new TreeMap<Long, SerializedObject>();
+        /** The number of objects created by the active transaction, keyed by CIDX. These are added to the extent counts 
+         * at commit. Ordered by CIDX so that the counts are always locked in the same order. */
+        private TreeMap<Integer, Long> mExtentCountDeltas = new TreeMap<Integer, Long>();
+        /** For a bulk load that defers index updates, the CIDXs of the objects stored so far. Only the indexes 
+         * holding objects of these classes are closed and rebuilt. */
+        private TreeSet<Integer> mBulkLoadCIDXs = new TreeSet<Integer>();
+        /** The stripe of the extent counts that this session adds to. */
+        private int mExtentCountStripe;
+        /** The CIDXs whose extent count has a record for mExtentCountStripe. */
+        private HashSet<Integer> mExtentCountStripeCIDXs = new HashSet<Integer>();
 
         /**
          * Constructs a new Session in a connected state.
@@ -721,6 +1193,7 @@ public class BDBObjectServer extends BaseObjectServer
         {
             super(anObjectServer);
             this.isSchemaSession = isSchemaSession;
+            mExtentCountStripe = (anObjectServer.mNextExtentCountStripe.getAndIncrement() & Integer.MAX_VALUE) % sExtentCountStripes;
         }
         
         /**
@@ -769,6 +1242,11 @@ public class BDBObjectServer extends BaseObjectServer
                 throw new DatabaseClosedException("Session is not connected");
             }
 
+            if (mIsBulkLoading) {
+                sLogger.warning("Ending bulk load on session disconnect");
+                endBulkLoad();
+            }
+
             // If transaction is active on session, roll it back.
             if (txn != null) {
                 sLogger.warning("Forcing rollback on session disconnect");
@@ -780,6 +1258,9 @@ public class BDBObjectServer extends BaseObjectServer
         }
         
         /**
+         * Optimistic transactions also read committed data. Their versions could not detect a read of an
+         * uncommitted image, because a version that is rolled back is assigned again by the next commit.
+         * 
          * @return the LockMode to use for reads.
          */
         private LockMode getReadLockMode()
@@ -904,26 +1385,82 @@ public class BDBObjectServer extends BaseObjectServer
         public void storeObjects(SerializedObject[] someObjects) throws ODMGException
         {
             Transaction txn = getTransaction();
+            checkWritable();
             
-            // TODO - SerializedObject should contain the version #. We should compare the object's version
-            // to the current version before writing.
-            SerializedObjectTupleBinding binding = new SerializedObjectTupleBinding(true);
             for (SerializedObject object : someObjects) {
-                long oid = object.getOID();
-                
                 // Prevent schema OIDs from being stored unless this is the schema session.
-                if (!isSchemaSession && oid == SCHEMA_OID) {
+                if (!isSchemaSession && object.getOID() == SCHEMA_OID) {
                     throw new ODMGException("Client is not allowed to update schema via object modification.");
                 }
-                
+            }
+            
+            if (mIsBulkLoading) {
+                storeBulkLoadObjects(someObjects);
+            }
+            else if (mIsOptimistic) {
+                for (SerializedObject object : someObjects) {
+                    holdOptimisticWrite(object);
+                }
+            }
+            else {
+                // Versions are only validated for optimistic transactions. Otherwise the objects are write-locked.
+                putObjects(txn, someObjects);
+            }
+        }
+
+        /**
+         * Writes objects to the database. The version of each object is assigned here as the next version
+         * after the stored one, so that another client's commit cannot be given the same version. A client 
+         * that wrote a stale object finds that its version is out of date the next time it validates it.
+         *
+         * @param txn the transaction.
+         * @param someObjects the objects to be written.
+         * 
+         * @throws ODMGException if an error occurs.
+         */
+        private void putObjects(Transaction txn, SerializedObject[] someObjects) throws ODMGException
+        {
+            SerializedObjectTupleBinding binding = new SerializedObjectTupleBinding(true);
+            for (SerializedObject object : someObjects) {
+                long oid = object.getOID();
                 DatabaseEntry oidKey = createOIDKey(oid);
+                if (object.isDelta()) {
+                    // The delta's version was checked to follow the stored version.
+                    object = applyDelta(txn, oidKey, object);
+                }
+                else if (object.isNew()) {
+                    object.setVersion(SerializedObject.FIRST_VERSION);
+                }
+                else {
+                    object.setVersion( getNextVersion(txn, oidKey) );
+                }
+                
                 DatabaseEntry data = new DatabaseEntry();
                 binding.objectToEntry(object, data);
                 
                 try {
                     // Because the Extent is implicitly part of the OID index (via the CIDX), this also makes the object part of
                     // the extent for the class.
-                    OperationStatus status = bdbDatabase.put(txn, oidKey, data);
+                    OperationStatus status = null;
+                    if (object.isNew()) {
+                        // A new object may have already been stored by this transaction. Only count it once.
+                        status = bdbDatabase.putNoOverwrite(txn, oidKey, data);
+                        if (status == OperationStatus.SUCCESS) {
+                            int cidx = OIDUtil.getCIDX(oid);
+                            Long delta = mExtentCountDeltas.get(cidx);
+                            mExtentCountDeltas.put(cidx, delta == null ? 1L : delta + 1L);
+                        }
+                        else {
+                            object.setVersion( getNextVersion(txn, oidKey) );
+                            data = new DatabaseEntry();
+                            binding.objectToEntry(object, data);
+                        }
+                    }
+                    
+                    if (status != OperationStatus.SUCCESS) {
+                        status = bdbDatabase.put(txn, oidKey, data);
+                    }
+                    
                     if (status != OperationStatus.SUCCESS) {
                         throw new ODMGException("Error writing object. Status is " + status);
                     }
@@ -934,55 +1471,516 @@ public class BDBObjectServer extends BaseObjectServer
             }
         }
 
-        public byte[][] loadObjects(long[] someOIDs) throws ODMGException
+        /**
+         * Gets the version that an object is given when it is written. The object is write-locked.
+         *
+         * @param txn the transaction.
+         * @param oidKey the key of the object.
+         * 
+         * @return the version after the stored version, or {@link SerializedObject#FIRST_VERSION} if the 
+         *  object is not stored.
+         * 
+         * @throws ODMGException if an error occurs.
+         */
+        private long getNextVersion(Transaction txn, DatabaseEntry oidKey) throws ODMGException
         {
-            Transaction txn = getTransaction();
-            SerializedObjectTupleBinding binding = new SerializedObjectTupleBinding(true);
-
-            byte[][] objects = new byte[someOIDs.length][];
-            int idx = 0;
-            for (long oid : someOIDs) {
-                DatabaseEntry data = readObjectEntry(oid);
-                if (data == null) {
-                    throw new ODMGException("Cannot find object for OID " + oid);
+            DatabaseEntry data = new DatabaseEntry();
+            try {
+                if (bdbDatabase.get(txn, oidKey, data, LockMode.RMW) != OperationStatus.SUCCESS) {
+                    return SerializedObject.FIRST_VERSION;
                 }
-                
-                SerializedObject serializedObj = (SerializedObject)binding.entryToObject(data);
-                objects[idx++] = serializedObj.getImage();
+            }
+            catch (DatabaseException e) {
+                throw new ODMGException("Error reading object", e);
             }
             
-            return objects;
+            return ((SerializedObject)new SerializedObjectTupleBinding(false).entryToObject(data)).getVersion() + 1;
         }
 
-        public long[] getNewOIDXBlock(int anOIDCount) throws ODMGException
+        /**
+         * Stores objects in bulk-load mode. The objects are written in OID order, so that the keys of 
+         * new objects are appended to the B-tree, and committed without syncing. A new transaction is then
+         * begun for the next call.
+         *
+         * @param someObjects the objects to be stored.
+         * 
+         * @throws ODMGException if an error occurs. The objects are not stored.
+         */
+        private void storeBulkLoadObjects(SerializedObject[] someObjects) throws ODMGException
         {
-            // Validate txn active - interface requirement
-            getTransaction();
-
-            long oidNum;
+            SerializedObject[] objects = someObjects.clone();
+            Arrays.sort(objects, sOIDComparator);
+            
+            Transaction txn = getTransaction();
+            boolean isCommitted = false;
             try {
-                oidNum = oidSequence.get(null, anOIDCount);
+                if (mIsDeferringIndexes) {
+                    deferIndexes(objects);
+                }
+                
+                putObjects(txn, objects);
+                writeExtentCounts(txn);
+                txn.commitNoSync();
+                isCommitted = true;
             }
             catch (DatabaseException e) {
-                throw new ODMGException("Unable to get an OID block", e);
+                throw new ODMGException("Error committing bulk load objects", e);
             }
-            
-            long[] oids = new long[anOIDCount];
-            for (int i = 0; i < anOIDCount; i++, oidNum++) {
-                oids[i] = oidNum; 
+            finally {
+                if (!isCommitted) {
+                    try {
+                        txn.abort();
+                    }
+                    catch (DatabaseException e) {
+                        sLogger.warning("Error aborting bulk load transaction: " + e);
+                    }
+                }
+                
+                synchronized (mTransactionLock) {
+                    mActiveTransactions.remove(txn);
+                } // ...end synchronized (mTransactionLock).
+
+                mExtentCountDeltas.clear();
+                setTransaction(null);
+                beginTransaction();
             }
-            
-            return oids;
         }
 
-
-        public void beginTransaction() throws ODMGRuntimeException 
-        {
+        /**
+         * Closes the indexes holding objects of classes that the bulk load has not stored before, 
+         * so that they are not updated by the given objects. These indexes are rebuilt when the bulk load ends.
+         *
+         * @param someObjects the objects about to be stored.
+         * 
+         * @throws ODMGException if an error occurs.
+         */
+        private void deferIndexes(SerializedObject[] someObjects) throws ODMGException
+        {
+            Set<Integer> newCIDXs = new TreeSet<Integer>();
+            for (SerializedObject object : someObjects) {
+                int cidx = OIDUtil.getCIDX( object.getOID() );
+                if (mBulkLoadCIDXs.add(cidx)) {
+                    newCIDXs.add(cidx);
+                }
+            }
+            
+            if (!newCIDXs.isEmpty()) {
+                closeIndexes(newCIDXs);
+            }
+        }
+
+        /**
+         * Holds an object stored by an optimistic transaction until commit. A delta image is applied to
+         * the held image, or to the committed image, so that only full images are held.
+         *
+         * @param anObject the stored object.
+         * 
+         * @throws ODMGException if an error occurs.
+         * @throws TransactionConflictException if a delta's base version is not the current version.
+         */
+        private void holdOptimisticWrite(SerializedObject anObject) throws ODMGException
+        {
+            long oid = anObject.getOID();
+            if (anObject.isDelta()) {
+                SerializedObject baseObj = mOptimisticWrites.get(oid);
+                if (baseObj == null) {
+                    DatabaseEntry data = readObjectEntry(oid);
+                    if (data == null) {
+                        throw new ODMGException("Cannot apply delta to object for OID " + oid + ". Object does not exist.");
+                    }
+                    
+                    baseObj = (SerializedObject)new SerializedObjectTupleBinding(true).entryToObject(data);
+                }
+                
+                if (baseObj.getVersion() != anObject.getVersion() - 1) {
+                    throw new TransactionConflictException("Object for OID " + oid + " was changed by another transaction. Version " + 
+                                baseObj.getVersion() + " is not the base version of the delta.");
+                }
+
+                byte[] image = ImageDeltaUtil.applyDelta(baseObj.getImageBuffer(), baseObj.getImageOffset(), baseObj.getImageLength(), anObject.getImage());
+                SerializedObject fullObj = new SerializedObject(oid, anObject.getCID(), image, false, anObject.getVersion());
+                fullObj.setImageFormat( anObject.getImageFormat() );
+                anObject = fullObj;
+            }
+            else {
+                // The caller may reuse the buffer of the image once storeObjects() returns.
+                byte[] image = new byte[ anObject.getImageLength() ];
+                System.arraycopy(anObject.getImageBuffer(), anObject.getImageOffset(), image, 0, image.length);
+                SerializedObject heldObj = new SerializedObject(oid, anObject.getCID(), image, anObject.isNew(), anObject.getVersion());
+                heldObj.setImageFormat( anObject.getImageFormat() );
+                anObject = heldObj;
+            }
+            
+            recordOptimisticVersion(oid, anObject.isNew() ? SerializedObject.NO_VERSION : anObject.getVersion() - 1);
+            mOptimisticWrites.put(oid, anObject);
+        }
+
+        /**
+         * Records the version that an object must have at commit if the active transaction
+         * is optimistic and the object's version has not already been recorded.
+         *
+         * @param anOID the object's OID.
+         * @param aVersion the object's version, or {@link SerializedObject#NO_VERSION} if it doesn't exist.
+         */
+        private void recordOptimisticVersion(long anOID, long aVersion)
+        {
+            if (mIsOptimistic && !mOptimisticVersions.containsKey(anOID)) {
+                mOptimisticVersions.put(anOID, aVersion);
+            }
+        }
+        
+        /**
+         * Validates the recorded versions of objects against the database. Each object is write-locked 
+         * so that it cannot change before the transaction ends.
+         *
+         * @param txn the transaction.
+         * @param someOIDs the OIDs of the objects to be validated, in OID order.
+         * 
+         * @throws ODMGException if an error occurs.
+         * @throws TransactionConflictException if an object has changed, or the lock on an object cannot be granted.
+         */
+        private void validateOptimisticVersions(Transaction txn, Collection<Long> someOIDs) throws ODMGException
+        {
+            SerializedObjectTupleBinding binding = new SerializedObjectTupleBinding(false);
+            DatabaseEntry data = new DatabaseEntry();
+            for (long oid : someOIDs) {
+                OperationStatus status;
+                try {
+                    status = bdbDatabase.get(txn, createOIDKey(oid), data, LockMode.RMW);
+                }
+                catch (DeadlockException e) {
+                    throw new TransactionConflictException("Lock not granted for object OID " + oid, e);
+                }
+                catch (DatabaseException e) {
+                    throw new ODMGException("Error reading object for OID " + oid, e);
+                }
+                
+                long version = SerializedObject.NO_VERSION; 
+                if (status == OperationStatus.SUCCESS) {
+                    version = ((SerializedObject)binding.entryToObject(data)).getVersion();
+                }
+
+                long expectedVersion = mOptimisticVersions.get(oid);
+                if (version != expectedVersion) {
+                    throw new TransactionConflictException("Object for OID " + oid + " was changed by another transaction. Expected version " + 
+                                expectedVersion + ", but found " + version);
+                }
+            }
+        }
+        
+        /**
+         * Validates and writes the objects held by an optimistic transaction. The written objects
+         * remain locked until the transaction ends, so their versions do not need to be validated again.
+         * This is done before queries so that they see the objects stored by the transaction.
+         *
+         * @throws ODMGRuntimeException if an error occurs.
+         * @throws TransactionConflictException if an object has changed.
+         */
+        private void writeOptimisticObjects() throws ODMGRuntimeException
+        {
+            if (!mIsOptimistic || mOptimisticWrites.isEmpty()) {
+                return;
+            }
+            
+            Transaction txn = getTransaction();
+            try {
+                validateOptimisticVersions(txn, mOptimisticWrites.keySet());
+                putObjects(txn, mOptimisticWrites.values().toArray( new SerializedObject[mOptimisticWrites.size()] ));
+            }
+            catch (ODMGException e) {
+                throw new ODMGRuntimeException(e);
+            }
+            
+            mOptimisticVersions.keySet().removeAll( mOptimisticWrites.keySet() );
+            mOptimisticWrites.clear();
+        }
+
+        /**
+         * Ends read-only and optimistic modes and discards their state, along with the extent count deltas.
+         */
+        private void clearTransactionModes()
+        {
+            mIsReadOnly = false;
+            mIsOptimistic = false;
+            mOptimisticVersions.clear();
+            mOptimisticWrites.clear();
+            mExtentCountDeltas.clear();
+        }
+        
+        /**
+         * Adds the number of objects created by the transaction to the extent counts. The counts
+         * are write-locked until the transaction ends, so this is done just before commit. Only this
+         * session's stripe of each count is locked, so concurrent sessions creating objects of the 
+         * same class don't serialize on it.
+         *
+         * @param txn the transaction.
+         * 
+         * @throws ODMGException if an error occurs.
+         */
+        private void writeExtentCounts(Transaction txn) throws ODMGException
+        {
+            // Inserting a record also locks the next key, which may be another session's stripe that stays 
+            // locked until that session commits. Missing stripes are inserted first, each committed on its own,
+            // so that the transaction only updates records and cannot deadlock with other sessions here.
+            for (Integer cidx : mExtentCountDeltas.keySet()) {
+                createExtentCountStripe(cidx);
+            }
+            
+            DatabaseEntry data = new DatabaseEntry();
+            for (Map.Entry<Integer, Long> entry : mExtentCountDeltas.entrySet()) {
+                DatabaseEntry key = createExtentCountKey(entry.getKey(), mExtentCountStripe);
+                try {
+                    long count = 0;
+                    if (bdbExtentCountDatabase.get(txn, key, data, LockMode.RMW) == OperationStatus.SUCCESS) {
+                        count = LongBinding.entryToLong(data);
+                    }
+                    
+                    LongBinding.longToEntry(count + entry.getValue(), data);
+                    OperationStatus status = bdbExtentCountDatabase.put(txn, key, data);
+                    if (status != OperationStatus.SUCCESS) {
+                        throw new ODMGException("Error writing extent count. Status is " + status);
+                    }
+                }
+                catch (DatabaseException e) {
+                    throw new ODMGException("Error writing extent count for CIDX " + entry.getKey(), e);
+                }
+            }
+        }
+        
+        /**
+         * Creates this session's stripe of the extent count of a CIDX, if it doesn't exist, with a count of zero. 
+         * The record is committed immediately, outside of the session's transaction.
+         *
+         * @param cidx the CIDX.
+         * 
+         * @throws ODMGException if an error occurs.
+         */
+        private void createExtentCountStripe(int cidx) throws ODMGException
+        {
+            if (mExtentCountStripeCIDXs.contains(cidx)) {
+                return;
+            }
+            
+            DatabaseEntry key = createExtentCountKey(cidx, mExtentCountStripe);
+            DatabaseEntry data = new DatabaseEntry();
+            LongBinding.longToEntry(0L, data);
+            try {
+                OperationStatus status = bdbExtentCountDatabase.putNoOverwrite(null, key, data);
+                if (status != OperationStatus.SUCCESS && status != OperationStatus.KEYEXIST) {
+                    throw new ODMGException("Error creating extent count. Status is " + status);
+                }
+            }
+            catch (DatabaseException e) {
+                throw new ODMGException("Error creating extent count for CIDX " + cidx, e);
+            }
+            
+            mExtentCountStripeCIDXs.add(cidx);
+        }
+        
+        /**
+         * Applies a delta image to the currently stored image of an object.
+         *
+         * @param txn the transaction.
+         * @param oidKey the key of the object.
+         * @param aDeltaObject the SerializedObject containing the delta.
+         * 
+         * @return a SerializedObject containing the full new image.
+         * 
+         * @throws ODMGException if an error occurs or the stored image is not the delta's base version.
+         */
+        private SerializedObject applyDelta(Transaction txn, DatabaseEntry oidKey, SerializedObject aDeltaObject) throws ODMGException
+        {
+            long oid = aDeltaObject.getOID();
+            DatabaseEntry data = new DatabaseEntry();
+            OperationStatus status;
+            try {
+                status = bdbDatabase.get(txn, oidKey, data, LockMode.RMW);
+            }
+            catch (DatabaseException e) {
+                throw new ODMGException("Error reading object for OID " + oid, e);
+            }
+
+            if (status != OperationStatus.SUCCESS) {
+                throw new ODMGException("Cannot apply delta to object for OID " + oid + ". Operation status=" + status);
+            }
+            
+            SerializedObject storedObj = (SerializedObject)new SerializedObjectTupleBinding(true).entryToObject(data);
+            if (storedObj.getVersion() != aDeltaObject.getVersion() - 1) {
+                throw new ODMGException("Cannot apply delta to object for OID " + oid + ". Stored version " + 
+                            storedObj.getVersion() + " is not the base version of the delta.");
+            }
+            
+            byte[] image = ImageDeltaUtil.applyDelta(storedObj.getImageBuffer(), storedObj.getImageOffset(), storedObj.getImageLength(), aDeltaObject.getImage());
+            SerializedObject fullObj = new SerializedObject(oid, aDeltaObject.getCID(), image, false, aDeltaObject.getVersion());
+            fullObj.setImageFormat( aDeltaObject.getImageFormat() );
+            return fullObj;
+        }
+
+        public byte[][] loadObjects(long[] someOIDs) throws ODMGException
+        {
+            SerializedObject[] serializedObjs = loadSerializedObjects(someOIDs);
+            byte[][] objects = new byte[serializedObjs.length][];
+            for (int i = 0; i < serializedObjs.length; i++) {
+                objects[i] = serializedObjs[i].getImage();
+            }
+            
+            return objects;
+        }
+
+        public SerializedObject[] loadSerializedObjects(long[] someOIDs) throws ODMGException
+        {
+            SerializedObject[] objects = new SerializedObject[someOIDs.length];
+            int idx = 0;
+            for (long oid : someOIDs) {
+                DatabaseEntry data = null;
+                if (!mOptimisticWrites.containsKey(oid)) {
+                    data = readObjectEntry(oid);
+                    if (data == null) {
+                        throw new ODMGException("Cannot find object for OID " + oid);
+                    }
+                }
+                
+                objects[idx++] = createSerializedObject(oid, data);
+            }
+            
+            return objects;
+        }
+
+        /**
+         * Creates the SerializedObject returned to the client for an object read by this session.
+         * An image held by an optimistic transaction takes precedence over the stored image.
+         *
+         * @param anOID the OID of the object.
+         * @param aData the object's entry as read from the database. This may be null if the object's 
+         *  image is held by an optimistic transaction.
+         * 
+         * @return the SerializedObject.
+         */
+        SerializedObject createSerializedObject(long anOID, DatabaseEntry aData)
+        {
+            SerializedObject serializedObj = mOptimisticWrites.get(anOID);
+            if (serializedObj == null) {
+                serializedObj = (SerializedObject)new SerializedObjectTupleBinding(true).entryToObject(aData);
+                recordOptimisticVersion(anOID, serializedObj.getVersion());
+            }
+            
+            SerializedObject object = new SerializedObject(anOID, serializedObj.getCID(), serializedObj.getImageBuffer(), 
+                        serializedObj.getImageOffset(), serializedObj.getImageLength(), false, serializedObj.getVersion());
+            object.setImageFormat( serializedObj.getImageFormat() );
+            return object;
+        }
+
+        public long[] getObjectVersions(long[] someOIDs) throws ODMGException
+        {
+            SerializedObjectTupleBinding binding = new SerializedObjectTupleBinding(false);
+
+            long[] versions = new long[someOIDs.length];
+            int idx = 0;
+            for (long oid : someOIDs) {
+                versions[idx++] = getObjectVersion(oid, binding);
+            }
+            
+            return versions;
+        }
+
+        /**
+         * Gets the current version of an object and records it for an optimistic transaction.
+         *
+         * @param anOID the object's OID.
+         * @param aBinding the binding used to read the object entry.
+         * 
+         * @return the version, or {@link SerializedObject#NO_VERSION} if the object does not exist.
+         * 
+         * @throws ODMGException if an error occurs.
+         */
+        private long getObjectVersion(long anOID, SerializedObjectTupleBinding aBinding) throws ODMGException
+        {
+            SerializedObject heldObj = mOptimisticWrites.get(anOID);
+            if (heldObj != null) {
+                return heldObj.getVersion();
+            }
+            
+            DatabaseEntry data = readObjectEntry(anOID);
+            long version = SerializedObject.NO_VERSION;
+            if (data != null) {
+                version = ((SerializedObject)aBinding.entryToObject(data)).getVersion();
+            }
+            
+            recordOptimisticVersion(anOID, version);
+            return version;
+        }
+
+        public long[] getNewOIDXBlock(int anOIDCount) throws ODMGException
+        {
+            // Validate txn active - interface requirement
+            getTransaction();
+            checkWritable();
+
+            long[] oids = new long[anOIDCount];
+            int numReturned;
+            synchronized (mReturnedOIDXLock) {
+                numReturned = Math.min(anOIDCount, mReturnedOIDXCount);
+                mReturnedOIDXCount -= numReturned;
+                System.arraycopy(mReturnedOIDXs, mReturnedOIDXCount, oids, 0, numReturned);
+            }
+            
+            if (numReturned == anOIDCount) {
+                return oids;
+            }
+            
+            long oidNum;
+            try {
+                oidNum = oidSequence.get(null, anOIDCount - numReturned);
+            }
+            catch (DatabaseException e) {
+                throw new ODMGException("Unable to get an OID block", e);
+            }
+            
+            for (int i = numReturned; i < anOIDCount; i++, oidNum++) {
+                oids[i] = oidNum; 
+            }
+            
+            return oids;
+        }
+
+
+        public void returnUnusedOIDXs(long[] someOIDXs) throws ODMGException
+        {
+            synchronized (mReturnedOIDXLock) {
+                int count = Math.min(someOIDXs.length, sMaxReturnedOIDXs - mReturnedOIDXCount);
+                if (mReturnedOIDXCount + count > mReturnedOIDXs.length) {
+                    long[] oidxs = new long[ Math.max(mReturnedOIDXCount + count, mReturnedOIDXs.length * 2) ];
+                    System.arraycopy(mReturnedOIDXs, 0, oidxs, 0, mReturnedOIDXCount);
+                    mReturnedOIDXs = oidxs;
+                }
+                
+                System.arraycopy(someOIDXs, 0, mReturnedOIDXs, mReturnedOIDXCount, count);
+                mReturnedOIDXCount += count;
+            }
+        }
+
+
+        public void beginTransaction() throws ODMGRuntimeException 
+        {
+            beginTransaction(null);
+        }
+
+
+        /**
+         * Begins a BDB transaction for this session. 
+         *
+         * @param aConfig the BDB TransactionConfig, or null for the default configuration.
+         * 
+         * @throws ODMGRuntimeException in the event on an error.
+         */
+        private void beginTransaction(TransactionConfig aConfig) throws ODMGRuntimeException 
+        {
             super.beginTransaction();
 
             synchronized (mTransactionLock) {
-                // Wait if the server is quiescent.
-                while (mQuiescent) {
+                // Wait if the server is quiescent, or another session has exclusive use of it for a bulk load.
+                // The schema session must be allowed so that schema can be updated during a bulk load.
+                while (mQuiescent || (mBulkLoadSession != null && mBulkLoadSession != this && !isSchemaSession)) {
                     try {
                         mTransactionLock.wait();
                     }
@@ -996,7 +1994,7 @@ public class BDBObjectServer extends BaseObjectServer
             try {
                 // TODO Nested transactions are allowed by BDB (JE doesn't support them as of 3.2.23)
                 // TODO BDB can handle txn semantics.
-                txn = bdbEnvironment.beginTransaction(null, null);
+                txn = bdbEnvironment.beginTransaction(null, aConfig);
                 setTransaction(txn);
             }
             catch (DatabaseException e) {
@@ -1009,6 +2007,111 @@ public class BDBObjectServer extends BaseObjectServer
         }
 
 
+        public void beginOptimisticTransaction() throws ODMGRuntimeException 
+        {
+            beginTransaction();
+            mIsOptimistic = true;
+        }
+
+
+        public void beginBulkLoad(boolean shouldDeferIndexes) throws ODMGException 
+        {
+            if (isTransactionActive()) { 
+                throw new TransactionInProgressException("Transaction already in progress.");
+            }
+            
+            if (shouldDeferIndexes) {
+                synchronized (mTransactionLock) {
+                    // Wait for exclusive use of the server.
+                    while (mBulkLoadSession != null || !mActiveTransactions.isEmpty()) {
+                        try {
+                            mTransactionLock.wait();
+                        }
+                        catch (InterruptedException e) {
+                            // Ignore
+                        }
+                    }
+                    
+                    mBulkLoadSession = this;
+                } // ...end synchronized (mTransactionLock).
+                
+                try {
+                    // Indexes are closed as the bulk load stores objects of their classes.
+                    mBulkLoadCIDXs.clear();
+                    beginTransaction();
+                }
+                catch (RuntimeException e) {
+                    releaseBulkLoadSession();
+                    throw e;
+                }
+            }
+            else {
+                beginTransaction();
+            }
+            
+            mIsBulkLoading = true;
+            mIsDeferringIndexes = shouldDeferIndexes;
+        }
+
+
+        public void endBulkLoad() throws ODMGException 
+        {
+            if (!mIsBulkLoading) {
+                throw new ODMGException("Bulk load is not in progress");
+            }
+            
+            mIsBulkLoading = false;
+            try {
+                // Syncing this commit also makes the unsynced commits of storeObjects() durable.
+                commitTransaction();
+                if (mIsDeferringIndexes) {
+                    rebuildIndexes(mBulkLoadCIDXs);
+                }
+            }
+            finally {
+                if (mIsDeferringIndexes) {
+                    mIsDeferringIndexes = false;
+                    mBulkLoadCIDXs.clear();
+                    releaseBulkLoadSession();
+                }
+            }
+        }
+        
+        
+        /**
+         * Releases this session's exclusive use of the server for a bulk load.
+         */
+        private void releaseBulkLoadSession()
+        {
+            synchronized (mTransactionLock) {
+                mBulkLoadSession = null;
+                mTransactionLock.notifyAll();
+            } // ...end synchronized (mTransactionLock).
+        }
+
+
+        public void beginReadOnlyTransaction() throws ODMGRuntimeException 
+        {
+            TransactionConfig config = new TransactionConfig();
+            config.setReadCommitted(true);
+            beginTransaction(config);
+            mIsReadOnly = true;
+        }
+        
+        
+        /**
+         * Checks that the active transaction is not read-only.
+         *
+         * @throws DatabaseIsReadOnlyException if the transaction is read-only.
+         */
+        private void checkWritable() throws DatabaseIsReadOnlyException
+        {
+            if (mIsReadOnly) {
+                throw new DatabaseIsReadOnlyException("Transaction is read-only");
+            }
+        }
+
+
         public void checkpointTransaction() throws ODMGRuntimeException 
         {
             // TODO Hmmmm... How to support this? Suppose to be like a commit, but with locks retained and txn stays active. 
@@ -1024,6 +2127,25 @@ public class BDBObjectServer extends BaseObjectServer
             Transaction txn = getTransaction();
             
             closeActiveIterators();
+            if (mIsOptimistic) {
+                // Validate everything read or written in OID order, then apply the held writes. On a conflict,
+                // the transaction remains active so that it can be rolled back.
+                try {
+                    validateOptimisticVersions(txn, mOptimisticVersions.keySet());
+                    putObjects(txn, mOptimisticWrites.values().toArray( new SerializedObject[mOptimisticWrites.size()] ));
+                }
+                catch (ODMGException e) {
+                    throw new ODMGRuntimeException("Error committing transaction", e);
+                }
+            }
+
+            try {
+                writeExtentCounts(txn);
+            }
+            catch (ODMGException e) {
+                throw new ODMGRuntimeException("Error committing transaction", e);
+            }
+
             try {
                 // commitSync is because the environment is set to txnWriteNoSync() which doesn't flush OS buffers by default.
                 txn.commitSync(); 
@@ -1039,6 +2161,7 @@ public class BDBObjectServer extends BaseObjectServer
 
             // Transaction no longer active.
             setTransaction(null);
+            clearTransactionModes();
         }
 
 
@@ -1063,10 +2186,31 @@ public class BDBObjectServer extends BaseObjectServer
 
             // Transaction no longer active.
             setTransaction(null);
+            clearTransactionModes();
         }
 
         public void getLock(long anOID, int aLockLevel, long aWaitTime) throws LockNotGrantedException 
         {
+            if (mIsReadOnly) {
+                if (aLockLevel != org.odmg.Transaction.READ) {
+                    throw new LockNotGrantedException("Transaction is read-only");
+                }
+                
+                return;
+            }
+            
+            if (mIsOptimistic) {
+                // The object's version is validated at commit instead.
+                try {
+                    getObjectVersion(anOID, new SerializedObjectTupleBinding(false));
+                }
+                catch (ODMGException e) {
+                    throw new LockNotGrantedException("Error reading object", e);
+                }
+                
+                return;
+            }
+            
             if (getAllowNontransactionalReads() && aLockLevel == org.odmg.Transaction.READ) {
                 // Don't bother to check for a txn or get read locks if we're doing non-transactional reads.
                 return;
@@ -1108,6 +2252,7 @@ public class BDBObjectServer extends BaseObjectServer
         public void bind(long anOID, String aName) throws ObjectNameNotUniqueException
         {
             Transaction txn = getTransaction();
+            checkWritable();
             
             try {
                 DatabaseEntry key = new DatabaseEntry();
@@ -1155,6 +2300,7 @@ public class BDBObjectServer extends BaseObjectServer
         public void unbind(String aName) throws ObjectNameNotFoundException
         {
             Transaction txn = getTransaction();
+            checkWritable();
             
             try {
                 DatabaseEntry key = new DatabaseEntry();
@@ -1176,6 +2322,7 @@ public class BDBObjectServer extends BaseObjectServer
         public void removeFromExtent(long anOID) throws ObjectNotPersistentException
         {
             Transaction txn = getTransaction();
+            checkWritable();
             // TODO Hmmm... The object is implicitly part of its extent. Mark as deleted from extent/indexes?
         }
 
@@ -1201,39 +2348,177 @@ public class BDBObjectServer extends BaseObjectServer
          */
         public long getExtentSize(String aClassName, boolean wantSubclasses) throws ODMGRuntimeException
         {
+            writeOptimisticObjects();
+            List<Integer> cidxs = getExtentCIDXs(aClassName, wantSubclasses);
+            
+            long size = 0;
+            for (Integer cidx : cidxs) {
+                size += getExtentCount(cidx);
+            }
+            
+            return size;
+        }
+
+        /**
+         * Gets the number of objects with a CIDX. This is the sum of the committed count's stripes, plus 
+         * the objects created by this transaction.
+         *
+         * @param cidx the CIDX.
+         * 
+         * @return the number of objects.
+         * 
+         * @throws ODMGRuntimeException if an error occurs.
+         */
+        private long getExtentCount(int cidx) throws ODMGRuntimeException
+        {
+            long count = 0;
+            DatabaseEntry cidxKey = new DatabaseEntry();
+            IntegerBinding.intToEntry(cidx, cidxKey);
+            Cursor cursor = null;
+            try {
+                cursor = bdbExtentCountDatabase.openCursor(getTransaction(), getCursorConfig());
+                // The key of the CIDX alone, if any, comes first, followed by the stripes. The cursor's
+                // configuration determines the isolation.
+                DatabaseEntry key = new DatabaseEntry(cidxKey.getData(), cidxKey.getOffset(), cidxKey.getSize());
+                DatabaseEntry data = new DatabaseEntry();
+                OperationStatus status = cursor.getSearchKeyRange(key, data, null);
+                while (status == OperationStatus.SUCCESS && key.getSize() >= cidxKey.getSize() &&
+                       IntegerBinding.entryToInt(key) == cidx) {
+                    count += LongBinding.entryToLong(data);
+                    status = cursor.getNext(key, data, null);
+                }
+            }
+            catch (DatabaseException e) {
+                throw new ODMGRuntimeException("Error reading extent count", e);
+            }
+            finally {
+                if (cursor != null) {
+                    try { cursor.close(); } catch (DatabaseException e) { /* Ignore */ }
+                }
+            }
+            
+            Long delta = mExtentCountDeltas.get(cidx);
+            if (delta != null) {
+                count += delta;
+            }
+            
+            return count;
+        }
+        
+        /** 
+         * {@inheritDoc}
+         * <p>
+         * The ranges are estimated from the extent count of each class and the first and last OIDX of the class, 
+         * assuming that OIDXs are evenly distributed between them. This is the case for objects
+         * allocated from the OID sequence.
+         *  
+         * @see org.enerj.server.ObjectServerSession#splitExtent(java.lang.String, boolean, int)
+         */
+        public long[] splitExtent(String aClassName, boolean wantSubclasses, int aMaxNumRanges) throws ODMGRuntimeException
+        {
+            if (aMaxNumRanges < 1) {
+                throw new IllegalArgumentException("Maximum number of ranges must be >= 1");
+            }
+            
+            writeOptimisticObjects();
+            // Ranges are in key order, which is CIDX order.
             List<Integer> cidxs = getExtentCIDXs(aClassName, wantSubclasses);
+            Collections.sort(cidxs);
             
+            List<Integer> rangeCIDXs = new ArrayList<Integer>(cidxs.size());
+            List<long[]> rangeOIDXs = new ArrayList<long[]>(cidxs.size());
+            List<Long> counts = new ArrayList<Long>(cidxs.size());
+            long totalCount = 0;
             Cursor cursor = null;
             try {
-                long size = 0;
                 cursor = bdbDatabase.openCursor(getTransaction(), getCursorConfig());
                 OIDKeyTupleBinding binding = new OIDKeyTupleBinding(true);
-                for (Integer cidx : cidxs) {
-                    DatabaseEntry partialKey = createPartialOIDKey(cidx);
-                    DatabaseEntry data = new DatabaseEntry();
-                    if (cursor.getSearchKeyRange(partialKey, data, null) == OperationStatus.SUCCESS) {
-                        do {
-                            OIDKey oidKey = (OIDKey)binding.entryToObject(partialKey);
-                            if (oidKey.cidx != cidx) {
-                                break;
-                            }
-                            
-                            ++size;
-                        }
-                        while (cursor.getNext(partialKey, data, null) == OperationStatus.SUCCESS);
+                DatabaseEntry data = new DatabaseEntry();
+                // Only the keys are needed.
+                data.setPartial(0, 0, true);
+                for (int cidx : cidxs) {
+                    long count = getExtentCount(cidx);
+                    if (count <= 0) {
+                        continue;
+                    }
+
+                    DatabaseEntry key = createPartialOIDKey(cidx);
+                    if (cursor.getSearchKeyRange(key, data, null) != OperationStatus.SUCCESS) {
+                        continue;
+                    }
+
+                    OIDKey firstKey = (OIDKey)binding.entryToObject(key);
+                    if (firstKey.cidx != cidx) {
+                        continue;
+                    }
+                    
+                    // The last key of the CIDX is just before the first key of the next CIDX.
+                    key = createPartialOIDKey(cidx + 1);
+                    OperationStatus status = cursor.getSearchKeyRange(key, data, null);
+                    if (status == OperationStatus.SUCCESS) {
+                        status = cursor.getPrev(key, data, null);
+                    }
+                    else {
+                        status = cursor.getLast(key, data, null);
                     }
+                    
+                    OIDKey lastKey = (OIDKey)binding.entryToObject(key);
+                    if (status != OperationStatus.SUCCESS || lastKey.cidx != cidx) {
+                        continue;
+                    }
+                    
+                    rangeCIDXs.add(cidx);
+                    rangeOIDXs.add( new long[] { firstKey.oidx, lastKey.oidx } );
+                    counts.add(count);
+                    totalCount += count;
                 }
-                
-                return size;
             }
             catch (DatabaseException e) {
-                throw new ODMGRuntimeException("Error opening extent", e);
+                throw new ODMGRuntimeException("Error splitting extent", e);
             }
             finally {
                 if (cursor != null) {
                     try { cursor.close(); } catch (DatabaseException e) { /* Ignore */ }
                 }
             }
+            
+            if (rangeCIDXs.isEmpty()) {
+                return new long[0];
+            }
+            
+            long countPerRange = (totalCount + aMaxNumRanges - 1) / aMaxNumRanges;
+            List<Long> boundaries = new ArrayList<Long>(aMaxNumRanges + 1);
+            boundaries.add( OIDUtil.createOID(rangeCIDXs.get(0), rangeOIDXs.get(0)[0]) );
+            long countSoFar = 0;
+            long nextBoundaryCount = countPerRange;
+            for (int i = 0; i < rangeCIDXs.size(); i++) {
+                long count = counts.get(i);
+                long firstOIDX = rangeOIDXs.get(i)[0];
+                long lastOIDX = rangeOIDXs.get(i)[1];
+                while (countSoFar + count > nextBoundaryCount && boundaries.size() < aMaxNumRanges) {
+                    // The boundary is in this CIDX.
+                    long offset = nextBoundaryCount - countSoFar;
+                    long oidx = firstOIDX + (long)((double)(lastOIDX - firstOIDX + 1) * offset / count);
+                    long oid = OIDUtil.createOID(rangeCIDXs.get(i), oidx);
+                    if (oid > boundaries.get(boundaries.size() - 1)) {
+                        boundaries.add(oid);
+                    }
+                    
+                    nextBoundaryCount += countPerRange;
+                }
+                
+                countSoFar += count;
+            }
+            
+            int lastIdx = rangeCIDXs.size() - 1;
+            boundaries.add( OIDUtil.createOID(rangeCIDXs.get(lastIdx), rangeOIDXs.get(lastIdx)[1] + 1) );
+            
+            long[] result = new long[ boundaries.size() ];
+            for (int i = 0; i < result.length; i++) {
+                result[i] = boundaries.get(i);
+            }
+            
+            return result;
         }
 
         /**
@@ -1278,6 +2563,7 @@ public class BDBObjectServer extends BaseObjectServer
          */
         public DBIterator createExtentIterator(String aClassName, boolean wantSubclasses) throws ODMGRuntimeException
         {
+            writeOptimisticObjects();
             List<Integer> cidxs = getExtentCIDXs(aClassName, wantSubclasses);
             List<DatabaseEntry> cidxKeys = new ArrayList<DatabaseEntry>(cidxs.size());
             for (Integer cidx : cidxs) {
@@ -1296,6 +2582,39 @@ public class BDBObjectServer extends BaseObjectServer
             }
             
         }
+
+        /** 
+         * {@inheritDoc}
+         * @see org.enerj.server.ObjectServerSession#createExtentIterator(java.lang.String, boolean, long, long)
+         */
+        public DBIterator createExtentIterator(String aClassName, boolean wantSubclasses, long aStartOID, long anEndOID) throws ODMGRuntimeException
+        {
+            writeOptimisticObjects();
+            int startCIDX = OIDUtil.getCIDX(aStartOID);
+            int endCIDX = OIDUtil.getCIDX(anEndOID);
+            List<Integer> cidxs = new ArrayList<Integer>();
+            List<DatabaseEntry> cidxKeys = new ArrayList<DatabaseEntry>();
+            for (Integer cidx : getExtentCIDXs(aClassName, wantSubclasses)) {
+                if (cidx < startCIDX || cidx > endCIDX) {
+                    continue;
+                }
+                
+                cidxs.add(cidx);
+                // The range may start part way into its first CIDX.
+                cidxKeys.add( cidx == startCIDX ? createOIDKey(aStartOID) : createPartialOIDKey(cidx) );
+            }
+
+            try {
+                Cursor cursor = bdbDatabase.openCursor(getTransaction(), getCursorConfig());
+                BDBExtentIterator iter = new BDBExtentIterator(this, cursor, cidxs, cidxKeys, anEndOID);
+                sessionIterators.add(iter);
+                mActiveIterators.add(iter);
+                return iter;
+            }
+            catch (DatabaseException e) {
+                throw new ODMGRuntimeException("Error creating extent iterator", e);
+            }
+        }
         
         void closeActiveIterators()
         {
@@ -1338,6 +2657,7 @@ public class BDBObjectServer extends BaseObjectServer
         public DBIterator createIndexIterator(String aClassName, String anIndexName, GenericKey aStartKey,
                         GenericKey anEndKey) throws ODMGRuntimeException
         {
+            writeOptimisticObjects();
             Schema schema;
             try {
                 schema = getSchema();
@@ -1371,8 +2691,15 @@ public class BDBObjectServer extends BaseObjectServer
                     throw new ODMGRuntimeException("Cannot find index " + anIndexName + " for class " + aClassName);
                 }
                 
+                BDBJEKeyCreator keyCreator = (BDBJEKeyCreator)index.getSecondaryConfig().getKeyCreator();
+                if (keyCreator.isHashed() && !(aStartKey == null && anEndKey == null) &&
+                    !(aStartKey != null && anEndKey != null && aStartKey.equals(anEndKey))) {
+                    throw new ODMGRuntimeException("Index " + anIndexName + " for class " + aClassName + 
+                        " is a hash index. The start and end keys must be equal, or both null.");
+                }
+                
                 SecondaryCursor cursor = index.openSecondaryCursor(getTransaction(), getCursorConfig());
-                BDBIndexIterator iterator = new BDBIndexIterator(this, cursor, aStartKey, anEndKey);
+                BDBIndexIterator iterator = new BDBIndexIterator(this, cursor, keyCreator, aStartKey, anEndKey);
                 sessionIterators.add(iterator);
                 mActiveIterators.add(iterator);
                 return iterator;
@@ -1413,12 +2740,31 @@ public class BDBObjectServer extends BaseObjectServer
         }
     }
 
+    /**
+     * Gets the ObjectSerializer image format of an object entry.
+     *
+     * @param anEntry the bytes of the entry.
+     * @param aLength the length of the entry.
+     * 
+     * @return the image format.
+     */
+    static int getImageFormat(byte[] anEntry, int aLength)
+    {
+        return SerializedObjectTupleBinding.getImageFormat( new TupleInput(anEntry, aLength - 16, 8).readLong() );
+    }
+
     /**
      * Serialize and deserialize the internal object entry. A SerializedObject is returned, but OID will be zero.
-     * Optionally, the serialized object's bytes can be ignored.
+     * Optionally, the serialized object's bytes can be ignored. The entry is the object's image followed
+     * by its commit version and CID. The most significant byte of the version holds the image format. 
+     * Zero means {@link ObjectSerializer#IMAGE_FORMAT_V1}. Entries of databases created without versions
+     * are converted to this layout by {@link BDBObjectServer#convertRecordFormat()} when the database is opened.
      */
     private static final class SerializedObjectTupleBinding extends TupleBinding
     {
+        private static final int FORMAT_SHIFT = 56;
+        private static final long VERSION_MASK = (1L << FORMAT_SHIFT) - 1;
+        
         private boolean readObjBytes;
         
         SerializedObjectTupleBinding(boolean readObjBytes)
@@ -1429,22 +2775,44 @@ public class BDBObjectServer extends BaseObjectServer
         @Override
         public SerializedObject entryToObject(TupleInput input)
         {
-            int len = input.getBufferLength();
-            byte[] obj = null;
-            if (readObjBytes) {
-                obj = input.getBufferBytes(); // Avoid copying this buffer. Use it directly.
-            }
+            // The buffer length is the end of the entry in the buffer, not its size.
+            byte[] buffer = input.getBufferBytes();
+            int offset = input.getBufferOffset();
+            int imageLength = input.getBufferLength() - offset - 16;
+            input.skipFast(imageLength);
 
-            input.skipFast(len - 8);
+            long version = input.readLong();
             long cid = input.readLong();
-            return new SerializedObject(0, cid, obj, false);
+            // The image is a slice of the entry's buffer. SerializedObject.getImage() copies it only if 
+            // an exact array is needed, such as for a base image that deltas are created against.
+            SerializedObject serializedObj;
+            if (readObjBytes) {
+                serializedObj = new SerializedObject(0, cid, buffer, offset, imageLength, false, version & VERSION_MASK);
+            }
+            else {
+                serializedObj = new SerializedObject(0, cid, null, false, version & VERSION_MASK);
+            }
+            
+            serializedObj.setImageFormat( getImageFormat(version) );
+            return serializedObj;
+        }
+        
+        /**
+         * Gets the image format from a stored version.
+         */
+        static int getImageFormat(long aStoredVersion)
+        {
+            int format = (int)(aStoredVersion >>> FORMAT_SHIFT);
+            return (format == 0 ? ObjectSerializer.IMAGE_FORMAT_V1 : format);
         }
 
         @Override
         public void objectToEntry(Object object, TupleOutput output)
         {
             SerializedObject serializedObj = (SerializedObject)object;
-            output.writeFast(serializedObj.getImage());
+            output.writeFast(serializedObj.getImageBuffer(), serializedObj.getImageOffset(), serializedObj.getImageLength());
+            long format = (serializedObj.getImageFormat() == ObjectSerializer.IMAGE_FORMAT_V1 ? 0 : serializedObj.getImageFormat());
+            output.writeLong( (format << FORMAT_SHIFT) | serializedObj.getVersion() );
             output.writeLong(serializedObj.getCID());
         }
     }
@@ -67,7 +67,7 @@ abstract public class BaseObjectServer implements ObjectServer
     private Properties mProperties;
     
     /** Schema synchronization lock. */
-    private Object mSchemaLock = new Object();
+    protected Object mSchemaLock = new Object();
     /** The privileged schema session. Do not use this directly! */
     private BaseObjectServerSession mSchemaSession = null;
     /** Cached write-thru copy of the schema. */
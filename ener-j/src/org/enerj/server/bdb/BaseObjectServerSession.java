@@ -145,8 +145,10 @@ abstract public class BaseObjectServerSession implements ObjectServerSession, Pe
                 int nextIndex = mFlushIterator.nextIndex();
 
                 byte[] image = PersistableHelper.createSerializedImage(persistable);
+                long version = persistable.enerj_GetVersion() + 1;
                 images.add( new SerializedObject(persistable.enerj_GetPrivateOID(), persistable.enerj_GetClassId(), 
-                                image, persistable.enerj_IsNew()) );
+                                image, persistable.enerj_IsNew(), version) );
+                persistable.enerj_SetVersion(version);
                 
                 // Mark object as not new and and not modified now that it will be flushed.
                 persistable.enerj_SetModified(false);
@@ -546,8 +548,10 @@ abstract public class BaseObjectServerSession implements ObjectServerSession, Pe
         mObjectCache.add(oid, aPersistable);
         
         try {
-            byte[] image = loadObjects( new long[] { oid } )[0];
-            PersistableHelper.loadSerializedImage(this, aPersistable, image);
+            SerializedObject serializedObj = loadSerializedObjects( new long[] { oid } )[0];
+            PersistableHelper.loadSerializedImage(this, aPersistable, serializedObj.getImageBuffer(), serializedObj.getImageOffset(), 
+                        serializedObj.getImageLength(), serializedObj.getImageFormat());
+            aPersistable.enerj_SetVersion( serializedObj.getVersion() );
         }
         catch (ODMGException e) {
             throw new ODMGRuntimeException(e);
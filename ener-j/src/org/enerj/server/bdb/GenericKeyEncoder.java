@@ -0,0 +1,375 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.server.bdb;
+
+import java.beans.BeanInfo;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.sql.Timestamp;
+import java.util.Date;
+
+import org.enerj.core.GenericKey;
+import org.odmg.ODMGRuntimeException;
+
+/**
+ * Encodes GenericKeys so that comparing the encoded bytes as unsigned bytes gives the same 
+ * order as comparing the keys. An index using this encoding needs no B-tree comparator, so 
+ * BDB compares keys without de-serializing them.<p>
+ * 
+ * Each component is a type tag followed by the value:
+ * <ul>
+ * <li>Booleans are one byte.</li>
+ * <li>Numbers are the value as a double, with the sign flipped so that the bits order like the value, 
+ *  followed by the value as a long to order integral values that have the same double. Numbers of 
+ *  different types are comparable, like TypeUtil.makeComparable() makes them.</li>
+ * <li>Dates are the milliseconds with the sign flipped, followed by the nanoseconds within the millisecond.</li>
+ * <li>Strings and Characters are each character plus one, in a variable length form that preserves order, 
+ *  terminated by a zero byte. A string therefore sorts before any string that it is a prefix of.</li>
+ * <li>Enums are their ordinal.</li>
+ * <li>Null is a tag that sorts higher than any other tag.</li>
+ * </ul>
+ * A key with fewer components encodes to a prefix of the keys that it partially matches, so it 
+ * sorts before them, as in GenericKey.compare().
+ *
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+final class GenericKeyEncoder
+{
+    private static final int BOOLEAN_TAG = 0x10;
+    private static final int NUMBER_TAG = 0x20;
+    private static final int DATE_TAG = 0x30;
+    private static final int STRING_TAG = 0x40;
+    private static final int ENUM_TAG = 0x50;
+    /** Nulls sort high, as with NullComparator.COMPARABLE_INSTANCE_NULLS_HIGH. */
+    private static final int NULL_TAG = 0xFF;
+
+    private byte[] mBuffer = new byte[64];
+    private int mLength = 0;
+    
+
+    /**
+     * Construct a GenericKeyEncoder.
+     */
+    private GenericKeyEncoder()
+    {
+    }
+
+
+    /**
+     * Encodes a key.
+     *
+     * @param aKey the key to encode.
+     * @param allowNullKeys true if components may be null. 
+     * 
+     * @return the encoded key.
+     * 
+     * @throws ODMGRuntimeException if a component cannot be encoded, or a component is null and allowNullKeys is false.
+     */
+    static byte[] encode(GenericKey aKey, boolean allowNullKeys) throws ODMGRuntimeException
+    {
+        return encode(aKey.getComponents(), allowNullKeys);
+    }
+
+
+    /**
+     * Encodes the components of a key.
+     *
+     * @param someComponents the components to encode.
+     * @param allowNullKeys true if components may be null. 
+     * 
+     * @return the encoded key.
+     * 
+     * @throws ODMGRuntimeException if a component cannot be encoded, or a component is null and allowNullKeys is false.
+     */
+    static byte[] encode(Object[] someComponents, boolean allowNullKeys) throws ODMGRuntimeException
+    {
+        GenericKeyEncoder encoder = new GenericKeyEncoder();
+        for (Object component : someComponents) {
+            encoder.writeComponent(component, allowNullKeys);
+        }
+        
+        byte[] result = new byte[encoder.mLength];
+        System.arraycopy(encoder.mBuffer, 0, result, 0, encoder.mLength);
+        return result;
+    }
+    
+
+    /**
+     * Compares an encoded key to another as unsigned bytes. This is the same comparison that BDB uses 
+     * when a database has no B-tree comparator.
+     *
+     * @param someBytes1 the buffer containing the first key.
+     * @param anOffset1 the offset of the first key in someBytes1.
+     * @param aLength1 the length of the first key.
+     * @param someBytes2 the second key.
+     * 
+     * @return a negative value, zero, or a positive value as the first key is less than, equal to, 
+     *  or greater than the second key.
+     */
+    static int compare(byte[] someBytes1, int anOffset1, int aLength1, byte[] someBytes2)
+    {
+        int length = Math.min(aLength1, someBytes2.length);
+        for (int i = 0; i < length; i++) {
+            int b1 = someBytes1[anOffset1 + i] & 0xff;
+            int b2 = someBytes2[i] & 0xff;
+            if (b1 != b2) {
+                return b1 - b2;
+            }
+        }
+        
+        return aLength1 - someBytes2.length;
+    }
+
+
+    /**
+     * Determines if the keys of an index can be encoded. The declared type of each property 
+     * must be one that can be encoded. 
+     *
+     * @param aClass the indexed class.
+     * @param someProperties the indexed properties. These may be nested properties, such as "address.city".
+     * 
+     * @return true if the keys can be encoded, false if the type of a property is not encodable or cannot be determined. 
+     */
+    static boolean canEncode(Class aClass, String[] someProperties)
+    {
+        for (String property : someProperties) {
+            Class type = aClass;
+            for (String name : property.split("\\.")) {
+                type = getPropertyType(type, name);
+                if (type == null) {
+                    return false;
+                }
+            }
+
+            if (!isEncodable(type)) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+
+    /**
+     * Gets the declared type of a bean property.
+     *
+     * @param aClass the class of the bean.
+     * @param aName the name of the property.
+     * 
+     * @return the type, or null if the property is not found.
+     */
+    private static Class getPropertyType(Class aClass, String aName)
+    {
+        try {
+            BeanInfo beanInfo = Introspector.getBeanInfo(aClass);
+            for (PropertyDescriptor descriptor : beanInfo.getPropertyDescriptors()) {
+                if (descriptor.getName().equals(aName)) {
+                    return descriptor.getPropertyType();
+                }
+            }
+        }
+        catch (IntrospectionException e) {
+            // Fall thru.
+        }
+        
+        return null;
+    }
+    
+
+    /**
+     * Determines if the components of a key can be encoded.
+     *
+     * @param aKey the key.
+     * 
+     * @return true if each component is null or of a type that can be encoded.
+     */
+    static boolean canEncode(GenericKey aKey)
+    {
+        return canEncode( aKey.getComponents() );
+    }
+    
+
+    /**
+     * Determines if the components of a key can be encoded.
+     *
+     * @param someComponents the components.
+     * 
+     * @return true if each component is null or of a type that can be encoded.
+     */
+    static boolean canEncode(Object[] someComponents)
+    {
+        for (Object component : someComponents) {
+            if (component != null && !isEncodable( component.getClass() )) {
+                return false;
+            }
+        }
+        
+        return true;
+    }
+    
+
+    /**
+     * Determines if values of a type can be encoded.
+     *
+     * @param aType the type.
+     * 
+     * @return true if values of aType can be encoded.
+     */
+    static boolean isEncodable(Class aType)
+    {
+        return aType.isPrimitive() || aType == Boolean.class || aType == Byte.class || aType == Short.class || 
+            aType == Integer.class || aType == Long.class || aType == Float.class || aType == Double.class || 
+            aType == Character.class || aType == String.class || Date.class.isAssignableFrom(aType) || aType.isEnum();
+    }
+    
+
+    /**
+     * Ensures that the buffer can hold aLength more bytes.
+     */
+    private void ensureCapacity(int aLength)
+    {
+        if (mLength + aLength > mBuffer.length) {
+            byte[] buffer = new byte[ Math.max(mBuffer.length * 2, mLength + aLength) ];
+            System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+            mBuffer = buffer;
+        }
+    }
+    
+
+    private void writeByte(int aByte)
+    {
+        ensureCapacity(1);
+        mBuffer[mLength++] = (byte)aByte;
+    }
+    
+
+    private void writeInt(int anInt)
+    {
+        ensureCapacity(4);
+        mBuffer[mLength++] = (byte)(anInt >>> 24);
+        mBuffer[mLength++] = (byte)(anInt >>> 16);
+        mBuffer[mLength++] = (byte)(anInt >>> 8);
+        mBuffer[mLength++] = (byte)anInt;
+    }
+    
+
+    private void writeLong(long aLong)
+    {
+        writeInt((int)(aLong >>> 32));
+        writeInt((int)aLong);
+    }
+
+    
+    /**
+     * Writes a character plus one, so that zero can terminate a string. Values up to 0x7f are one byte, 
+     * up to 0x3fff are two bytes starting with 0x80-0xbf, and the rest are three bytes starting with 0xc0 or 0xc1. 
+     */
+    private void writeChar(char aChar)
+    {
+        int value = aChar + 1;
+        if (value <= 0x7f) {
+            writeByte(value);
+        }
+        else if (value <= 0x3fff) {
+            writeByte(0x80 | (value >>> 8));
+            writeByte(value);
+        }
+        else {
+            writeByte(0xc0 | (value >>> 16));
+            writeByte(value >>> 8);
+            writeByte(value);
+        }
+    }
+    
+
+    /**
+     * Writes one key component.
+     *
+     * @param aComponent the component.
+     * @param allowNullKeys true if aComponent may be null.
+     * 
+     * @throws ODMGRuntimeException if the component cannot be encoded.
+     */
+    private void writeComponent(Object aComponent, boolean allowNullKeys) throws ODMGRuntimeException
+    {
+        if (aComponent == null) {
+            if (!allowNullKeys) {
+                throw new ODMGRuntimeException("Index does not allow null keys");
+            }
+            
+            writeByte(NULL_TAG);
+        }
+        else if (aComponent instanceof Boolean) {
+            writeByte(BOOLEAN_TAG);
+            writeByte( ((Boolean)aComponent).booleanValue() ? 1 : 0 );
+        }
+        else if (aComponent instanceof Double || aComponent instanceof Float) {
+            double value = ((Number)aComponent).doubleValue();
+            writeByte(NUMBER_TAG);
+            writeDouble(value);
+            // A cast of NaN or an infinity is still consistent with the double.
+            writeLong((long)value ^ Long.MIN_VALUE);
+        }
+        else if (aComponent instanceof Long || aComponent instanceof Integer || aComponent instanceof Short || aComponent instanceof Byte) {
+            long value = ((Number)aComponent).longValue();
+            writeByte(NUMBER_TAG);
+            writeDouble((double)value);
+            writeLong(value ^ Long.MIN_VALUE);
+        }
+        else if (aComponent instanceof String || aComponent instanceof Character) {
+            writeByte(STRING_TAG);
+            String value = aComponent.toString();
+            for (int i = 0; i < value.length(); i++) {
+                writeChar( value.charAt(i) );
+            }
+            
+            writeByte(0);
+        }
+        else if (aComponent instanceof Date) {
+            Date date = (Date)aComponent;
+            writeByte(DATE_TAG);
+            writeLong(date.getTime() ^ Long.MIN_VALUE);
+            writeInt(date instanceof Timestamp ? ((Timestamp)date).getNanos() % 1000000 : 0);
+        }
+        else if (aComponent instanceof Enum) {
+            writeByte(ENUM_TAG);
+            writeInt( ((Enum)aComponent).ordinal() );
+        }
+        else {
+            throw new ODMGRuntimeException("Cannot encode index key component of type " + aComponent.getClass().getName());
+        }
+    }
+
+
+    /**
+     * Writes a double so that the bits order like the values. Negative values have all bits
+     * flipped. Positive values have the sign bit flipped.
+     */
+    private void writeDouble(double aDouble)
+    {
+        long bits = Double.doubleToLongBits(aDouble);
+        writeLong(bits < 0 ? ~bits : bits ^ Long.MIN_VALUE);
+    }
+}
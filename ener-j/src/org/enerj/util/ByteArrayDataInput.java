@@ -0,0 +1,322 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.util;
+
+import java.io.DataInput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A DataInput that reads directly from a byte array. It reads the same encoding as 
+ * DataInputStream, without an intermediate stream. Primitive arrays can be read in bulk.
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad </a>
+ */
+public class ByteArrayDataInput implements DataInput
+{
+    protected byte[] mBuffer;
+    protected int mIdx;
+    protected int mEnd;
+    
+
+    /**
+     * Constructs a ByteArrayDataInput.
+     *
+     * @param aBuffer the buffer to read.
+     * @param anOffset the offset of the first byte to read.
+     * @param aLength the number of bytes that may be read.
+     */
+    public ByteArrayDataInput(byte[] aBuffer, int anOffset, int aLength)
+    {
+        mBuffer = aBuffer;
+        mIdx = anOffset;
+        mEnd = anOffset + aLength;
+    }
+
+
+    /**
+     * Ensures that aLength bytes can be read.
+     *
+     * @param aLength the number of bytes to be read.
+     * 
+     * @throws EOFException if there are not enough bytes.
+     */
+    protected void checkAvailable(int aLength) throws EOFException
+    {
+        if (aLength > mEnd - mIdx) {
+            throw new EOFException();
+        }
+    }
+
+
+    /**
+     * Gets a ByteBuffer view of the next aLength bytes and skips over them.
+     *
+     * @param aLength the number of bytes.
+     * 
+     * @return the ByteBuffer.
+     * 
+     * @throws EOFException if there are not enough bytes.
+     */
+    private ByteBuffer getBulkBuffer(int aLength) throws EOFException
+    {
+        checkAvailable(aLength);
+        ByteBuffer buffer = ByteBuffer.wrap(mBuffer, mIdx, aLength);
+        mIdx += aLength;
+        return buffer;
+    }
+
+
+    /**
+     * Reads big-endian shorts into an array.
+     *
+     * @param anArray the array to fill.
+     * 
+     * @throws IOException if an error occurs.
+     */
+    public void readShortArray(short[] anArray) throws IOException
+    {
+        getBulkBuffer(anArray.length * 2).asShortBuffer().get(anArray);
+    }
+
+
+    /**
+     * Reads big-endian chars into an array.
+     *
+     * @param anArray the array to fill.
+     * 
+     * @throws IOException if an error occurs.
+     */
+    public void readCharArray(char[] anArray) throws IOException
+    {
+        getBulkBuffer(anArray.length * 2).asCharBuffer().get(anArray);
+    }
+
+
+    /**
+     * Reads big-endian ints into an array.
+     *
+     * @param anArray the array to fill.
+     * 
+     * @throws IOException if an error occurs.
+     */
+    public void readIntArray(int[] anArray) throws IOException
+    {
+        getBulkBuffer(anArray.length * 4).asIntBuffer().get(anArray);
+    }
+
+
+    /**
+     * Reads big-endian longs into an array.
+     *
+     * @param anArray the array to fill.
+     * 
+     * @throws IOException if an error occurs.
+     */
+    public void readLongArray(long[] anArray) throws IOException
+    {
+        getBulkBuffer(anArray.length * 8).asLongBuffer().get(anArray);
+    }
+
+
+    /**
+     * Reads big-endian floats into an array.
+     *
+     * @param anArray the array to fill.
+     * 
+     * @throws IOException if an error occurs.
+     */
+    public void readFloatArray(float[] anArray) throws IOException
+    {
+        getBulkBuffer(anArray.length * 4).asFloatBuffer().get(anArray);
+    }
+
+
+    /**
+     * Reads big-endian doubles into an array.
+     *
+     * @param anArray the array to fill.
+     * 
+     * @throws IOException if an error occurs.
+     */
+    public void readDoubleArray(double[] anArray) throws IOException
+    {
+        getBulkBuffer(anArray.length * 8).asDoubleBuffer().get(anArray);
+    }
+
+
+    /**
+     * Reads booleans, one byte each, into an array.
+     *
+     * @param anArray the array to fill.
+     * 
+     * @throws IOException if an error occurs.
+     */
+    public void readBooleanArray(boolean[] anArray) throws IOException
+    {
+        checkAvailable(anArray.length);
+        for (int i = 0; i < anArray.length; i++) {
+            anArray[i] = (mBuffer[mIdx++] != 0);
+        }
+    }
+
+
+    public void readFully(byte[] b) throws IOException
+    {
+        readFully(b, 0, b.length);
+    }
+
+
+    public void readFully(byte[] b, int off, int len) throws IOException
+    {
+        checkAvailable(len);
+        System.arraycopy(mBuffer, mIdx, b, off, len);
+        mIdx += len;
+    }
+
+
+    public int skipBytes(int n)
+    {
+        int skipped = Math.max(0, Math.min(n, mEnd - mIdx));
+        mIdx += skipped;
+        return skipped;
+    }
+
+
+    public boolean readBoolean() throws IOException
+    {
+        return readByte() != 0;
+    }
+
+
+    public byte readByte() throws IOException
+    {
+        checkAvailable(1);
+        return mBuffer[mIdx++];
+    }
+
+
+    public int readUnsignedByte() throws IOException
+    {
+        return readByte() & 0xff;
+    }
+
+
+    public short readShort() throws IOException
+    {
+        checkAvailable(2);
+        short value = ByteArrayUtil.getShort(mBuffer, mIdx);
+        mIdx += 2;
+        return value;
+    }
+
+
+    public int readUnsignedShort() throws IOException
+    {
+        return readShort() & 0xffff;
+    }
+
+
+    public char readChar() throws IOException
+    {
+        return (char)readUnsignedShort();
+    }
+
+
+    public int readInt() throws IOException
+    {
+        checkAvailable(4);
+        int value = ByteArrayUtil.getInt(mBuffer, mIdx);
+        mIdx += 4;
+        return value;
+    }
+
+
+    public long readLong() throws IOException
+    {
+        checkAvailable(8);
+        long value = ByteArrayUtil.getLong(mBuffer, mIdx);
+        mIdx += 8;
+        return value;
+    }
+
+
+    public float readFloat() throws IOException
+    {
+        checkAvailable(4);
+        int bits = ByteArrayUtil.getInt(mBuffer, mIdx);
+        mIdx += 4;
+        return Float.intBitsToFloat(bits);
+    }
+
+
+    public double readDouble() throws IOException
+    {
+        checkAvailable(8);
+        long bits = ByteArrayUtil.getLong(mBuffer, mIdx);
+        mIdx += 8;
+        return Double.longBitsToDouble(bits);
+    }
+
+
+    public String readLine() throws IOException
+    {
+        if (mIdx >= mEnd) {
+            return null;
+        }
+        
+        StringBuilder line = new StringBuilder();
+        while (mIdx < mEnd) {
+            char c = (char)(mBuffer[mIdx++] & 0xff);
+            if (c == '\n') {
+                break;
+            }
+            
+            if (c == '\r') {
+                if (mIdx < mEnd && mBuffer[mIdx] == '\n') {
+                    mIdx++;
+                }
+                
+                break;
+            }
+            
+            line.append(c);
+        }
+        
+        return line.toString();
+    }
+
+
+    public String readUTF() throws IOException
+    {
+        checkAvailable(2);
+        int length = ByteArrayUtil.getUnsignedShort(mBuffer, mIdx);
+        mIdx += 2;
+        checkAvailable(length);
+        String value = ByteArrayUtil.getModifiedUTF8(mBuffer, mIdx, length);
+        mIdx += length;
+        return value;
+    }
+}
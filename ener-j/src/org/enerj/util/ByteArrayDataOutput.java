@@ -0,0 +1,342 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.util;
+
+import java.io.DataOutput;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * A DataOutput that writes directly to a growable byte array. Unlike a DataOutputStream over a
+ * ByteArrayOutputStream, there is no intermediate stream and the buffer can be used directly,
+ * without being copied. The buffer may be reused by calling {@link #reset()}. <p>
+ * 
+ * When the buffer grows, a new array is allocated. Arrays previously returned by {@link #getBuffer()}
+ * remain valid for the bytes written before the growth. <p>
+ * 
+ * Primitive arrays can be written in bulk. The encoding is the same as writing each element
+ * with DataOutput.
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad </a>
+ */
+public class ByteArrayDataOutput implements DataOutput
+{
+    protected byte[] mBuffer;
+    protected int mSize = 0;
+
+
+    /**
+     * Constructs a ByteArrayDataOutput.
+     *
+     * @param anInitialCapacity the initial capacity of the buffer.
+     */
+    public ByteArrayDataOutput(int anInitialCapacity)
+    {
+        mBuffer = new byte[anInitialCapacity];
+    }
+
+
+    /**
+     * Gets the current buffer. Only the first {@link #size()} bytes are valid.
+     *
+     * @return the buffer.
+     */
+    public byte[] getBuffer()
+    {
+        return mBuffer;
+    }
+
+
+    /**
+     * Gets the number of bytes written.
+     *
+     * @return the number of bytes written.
+     */
+    public int size()
+    {
+        return mSize;
+    }
+
+
+    /**
+     * Resets the number of bytes written to zero so that the buffer can be reused.
+     */
+    public void reset()
+    {
+        mSize = 0;
+    }
+
+
+    /**
+     * Gets a copy of the bytes written.
+     *
+     * @param anOffset the offset of the first byte to be copied.
+     * 
+     * @return a new array containing the bytes from anOffset to {@link #size()}.
+     */
+    public byte[] toByteArray(int anOffset)
+    {
+        byte[] bytes = new byte[mSize - anOffset];
+        System.arraycopy(mBuffer, anOffset, bytes, 0, bytes.length);
+        return bytes;
+    }
+
+
+    /**
+     * Ensures that the buffer can hold aLength more bytes.
+     *
+     * @param aLength the number of bytes to be written.
+     */
+    protected void ensureCapacity(int aLength)
+    {
+        int required = mSize + aLength;
+        if (required > mBuffer.length) {
+            byte[] newBuffer = new byte[ Math.max(required, mBuffer.length * 2) ];
+            System.arraycopy(mBuffer, 0, newBuffer, 0, mSize);
+            mBuffer = newBuffer;
+        }
+    }
+
+
+    /**
+     * Writes a String as an int length followed by its modified UTF-8 bytes. This is equivalent to
+     * encoding the String with {@link ByteArrayUtil#putModifiedUTF8(byte[], int, String)} and
+     * writing the length and bytes, but the String is encoded directly into the buffer.
+     *
+     * @param aString the String to be written.
+     */
+    public void writeIntLengthModifiedUTF8(String aString)
+    {
+        ensureCapacity(4 + aString.length() * 3);
+        int lengthIdx = mSize;
+        int length = ByteArrayUtil.putModifiedUTF8(mBuffer, lengthIdx + 4, aString);
+        ByteArrayUtil.putInt(mBuffer, lengthIdx, length);
+        mSize += 4 + length;
+    }
+
+
+    /**
+     * Gets a ByteBuffer view of the next aLength bytes of the buffer and advances past them.
+     *
+     * @param aLength the number of bytes to be written.
+     * 
+     * @return the ByteBuffer.
+     */
+    private ByteBuffer getBulkBuffer(int aLength)
+    {
+        ensureCapacity(aLength);
+        ByteBuffer buffer = ByteBuffer.wrap(mBuffer, mSize, aLength);
+        mSize += aLength;
+        return buffer;
+    }
+
+
+    /**
+     * Writes an array of shorts in big-endian order.
+     *
+     * @param anArray the array.
+     */
+    public void writeShortArray(short[] anArray)
+    {
+        getBulkBuffer(anArray.length * 2).asShortBuffer().put(anArray);
+    }
+
+
+    /**
+     * Writes an array of chars in big-endian order.
+     *
+     * @param anArray the array.
+     */
+    public void writeCharArray(char[] anArray)
+    {
+        getBulkBuffer(anArray.length * 2).asCharBuffer().put(anArray);
+    }
+
+
+    /**
+     * Writes an array of ints in big-endian order.
+     *
+     * @param anArray the array.
+     */
+    public void writeIntArray(int[] anArray)
+    {
+        getBulkBuffer(anArray.length * 4).asIntBuffer().put(anArray);
+    }
+
+
+    /**
+     * Writes an array of longs in big-endian order.
+     *
+     * @param anArray the array.
+     */
+    public void writeLongArray(long[] anArray)
+    {
+        getBulkBuffer(anArray.length * 8).asLongBuffer().put(anArray);
+    }
+
+
+    /**
+     * Writes an array of floats in big-endian order.
+     *
+     * @param anArray the array.
+     */
+    public void writeFloatArray(float[] anArray)
+    {
+        getBulkBuffer(anArray.length * 4).asFloatBuffer().put(anArray);
+    }
+
+
+    /**
+     * Writes an array of doubles in big-endian order.
+     *
+     * @param anArray the array.
+     */
+    public void writeDoubleArray(double[] anArray)
+    {
+        getBulkBuffer(anArray.length * 8).asDoubleBuffer().put(anArray);
+    }
+
+
+    /**
+     * Writes an array of booleans, one byte each.
+     *
+     * @param anArray the array.
+     */
+    public void writeBooleanArray(boolean[] anArray)
+    {
+        ensureCapacity(anArray.length);
+        for (int i = 0; i < anArray.length; i++) {
+            mBuffer[mSize++] = (byte)(anArray[i] ? 1 : 0);
+        }
+    }
+
+
+    public void write(int b)
+    {
+        ensureCapacity(1);
+        mBuffer[mSize++] = (byte)b;
+    }
+
+
+    public void write(byte[] b)
+    {
+        write(b, 0, b.length);
+    }
+
+
+    public void write(byte[] b, int off, int len)
+    {
+        ensureCapacity(len);
+        System.arraycopy(b, off, mBuffer, mSize, len);
+        mSize += len;
+    }
+
+
+    public void writeBoolean(boolean v)
+    {
+        write(v ? 1 : 0);
+    }
+
+
+    public void writeByte(int v)
+    {
+        write(v);
+    }
+
+
+    public void writeShort(int v)
+    {
+        ensureCapacity(2);
+        mBuffer[mSize++] = (byte)(v >>> 8);
+        mBuffer[mSize++] = (byte)v;
+    }
+
+
+    public void writeChar(int v)
+    {
+        writeShort(v);
+    }
+
+
+    public void writeInt(int v)
+    {
+        ensureCapacity(4);
+        mSize += ByteArrayUtil.putInt(mBuffer, mSize, v);
+    }
+
+
+    public void writeLong(long v)
+    {
+        ensureCapacity(8);
+        mSize += ByteArrayUtil.putLong(mBuffer, mSize, v);
+    }
+
+
+    public void writeFloat(float v)
+    {
+        writeInt( Float.floatToIntBits(v) );
+    }
+
+
+    public void writeDouble(double v)
+    {
+        writeLong( Double.doubleToLongBits(v) );
+    }
+
+
+    public void writeBytes(String s)
+    {
+        int len = s.length();
+        ensureCapacity(len);
+        for (int i = 0; i < len; i++) {
+            mBuffer[mSize++] = (byte)s.charAt(i);
+        }
+    }
+
+
+    public void writeChars(String s)
+    {
+        int len = s.length();
+        ensureCapacity(len * 2);
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            mBuffer[mSize++] = (byte)(c >>> 8);
+            mBuffer[mSize++] = (byte)c;
+        }
+    }
+
+
+    public void writeUTF(String str) throws UTFDataFormatException
+    {
+        ensureCapacity(2 + str.length() * 3);
+        int lengthIdx = mSize;
+        int length = ByteArrayUtil.putModifiedUTF8(mBuffer, lengthIdx + 2, str);
+        if (length > 65535) {
+            throw new UTFDataFormatException("Encoded string too long: " + length + " bytes");
+        }
+        
+        ByteArrayUtil.putUnsignedShort(mBuffer, lengthIdx, length);
+        mSize += 2 + length;
+    }
+}
@@ -240,8 +240,9 @@ public class ByteArrayUtil
         // In the worst case there is one char for every UTF byte. 
         char[] chars = new char[length];
         int charsIdx = 0;
+        int end = idx + length;
         
-        while (idx < length) {
+        while (idx < end) {
             int byte1 = (int) buf[idx] & 0xff;
             switch (byte1 >> 4) {
             case 0:
@@ -261,7 +262,7 @@ public class ByteArrayUtil
             case 13:
                 // 110x xxxx, 10xx xxxx
                 idx += 2;
-                if (idx > length) {
+                if (idx > end) {
                     throw new UTFDataFormatException(UTF_MSG);
                 }
                 
@@ -277,7 +278,7 @@ public class ByteArrayUtil
             case 14:
                 // 1110 xxxx, 10xx xxxx, 10xx xxxx 
                 idx += 3;
-                if (idx > length) {
+                if (idx > end) {
                     throw new UTFDataFormatException(UTF_MSG);
                 }
                 
@@ -140,6 +140,31 @@ public class ClassUtil
         return null;
     }
 
+    /**
+     * Attempts to find a declared field of any access on the given class, searching its superclasses 
+     * if necessary. The returned Field is made accessible.
+     * 
+     * @param aClass the class.
+     * @param aFieldName the field name to search for.
+     * 
+     * @return the Field, or null if no field can be found.
+     */
+    public static Field findDeclaredField(Class aClass, String aFieldName)
+    {
+        for (Class targetClass = aClass; targetClass != null; targetClass = targetClass.getSuperclass()) {
+            try {
+                Field field = targetClass.getDeclaredField(aFieldName);
+                field.setAccessible(true);
+                return field;
+            }
+            catch (NoSuchFieldException e) {
+                // Ignore - try the superclass.
+            }
+        }
+
+        return null;
+    }
+
     /**
      * Get all of the declared fields for all classes in the class hierarchy. This is like
      * {@link Class#getDeclaredFields()}, but does it for the entire class heirarchy. 
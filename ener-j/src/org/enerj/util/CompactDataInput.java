@@ -0,0 +1,221 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.util;
+
+import java.io.IOException;
+
+/**
+ * A DataInput that reads the compact encoding written by {@link CompactDataOutput} directly
+ * from a byte array.
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad </a>
+ */
+public class CompactDataInput extends ByteArrayDataInput
+{
+    /**
+     * Constructs a CompactDataInput.
+     *
+     * @param aBuffer the buffer to read.
+     * @param anOffset the offset of the first byte to read.
+     * @param aLength the number of bytes that may be read.
+     */
+    public CompactDataInput(byte[] aBuffer, int anOffset, int aLength)
+    {
+        super(aBuffer, anOffset, aLength);
+    }
+
+
+    /**
+     * Reads an unsigned varint.
+     *
+     * @return the value.
+     * 
+     * @throws IOException if an error occurs.
+     */
+    public int readUnsignedVarInt() throws IOException
+    {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = readByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        
+        throw new IOException("Malformed varint");
+    }
+
+
+    /**
+     * Reads an unsigned varlong.
+     *
+     * @return the value.
+     * 
+     * @throws IOException if an error occurs.
+     */
+    public long readUnsignedVarLong() throws IOException
+    {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int b = readByte();
+            value |= (long)(b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        
+        throw new IOException("Malformed varint");
+    }
+
+
+    /**
+     * Reads a String written by {@link CompactDataOutput#writeCompactString(String)}.
+     *
+     * @return the String.
+     * 
+     * @throws IOException if an error occurs.
+     */
+    public String readCompactString() throws IOException
+    {
+        int header = readUnsignedVarInt();
+        int length = header >>> 1;
+        checkAvailable(length);
+        String value;
+        if ((header & 1) == 0) {
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = (char)(mBuffer[mIdx++] & 0xff);
+            }
+            
+            value = new String(chars);
+        }
+        else {
+            value = ByteArrayUtil.getModifiedUTF8(mBuffer, mIdx, length);
+            mIdx += length;
+        }
+        
+        return value;
+    }
+
+
+    /**
+     * Reads an int array written by {@link CompactDataOutput#writePackedIntArray(int[])}.
+     *
+     * @param anArray the array to fill.
+     * 
+     * @throws IOException if an error occurs.
+     */
+    public void readPackedIntArray(int[] anArray) throws IOException
+    {
+        if (readByte() == CompactDataOutput.ARRAY_ENCODING_RAW) {
+            readIntArray(anArray);
+            return;
+        }
+        
+        int value = 0;
+        for (int i = 0; i < anArray.length; i++) {
+            value += readInt();
+            anArray[i] = value;
+        }
+    }
+
+
+    /**
+     * Reads a long array written by {@link CompactDataOutput#writePackedLongArray(long[])}.
+     *
+     * @param anArray the array to fill.
+     * 
+     * @throws IOException if an error occurs.
+     */
+    public void readPackedLongArray(long[] anArray) throws IOException
+    {
+        if (readByte() == CompactDataOutput.ARRAY_ENCODING_RAW) {
+            readLongArray(anArray);
+            return;
+        }
+        
+        long value = 0;
+        for (int i = 0; i < anArray.length; i++) {
+            value += readLong();
+            anArray[i] = value;
+        }
+    }
+
+
+    public short readShort() throws IOException
+    {
+        return (short)decodeZigZag( readUnsignedVarInt() );
+    }
+
+
+    public int readUnsignedShort() throws IOException
+    {
+        return readShort() & 0xffff;
+    }
+
+
+    public char readChar() throws IOException
+    {
+        return (char)readUnsignedVarInt();
+    }
+
+
+    public int readInt() throws IOException
+    {
+        return decodeZigZag( readUnsignedVarInt() );
+    }
+
+
+    public long readLong() throws IOException
+    {
+        return decodeZigZag( readUnsignedVarLong() );
+    }
+
+
+    /**
+     * Decodes a zig-zag encoded int.
+     *
+     * @param aValue the encoded value.
+     * 
+     * @return the decoded value.
+     */
+    public static int decodeZigZag(int aValue)
+    {
+        return (aValue >>> 1) ^ -(aValue & 1);
+    }
+
+
+    /**
+     * Decodes a zig-zag encoded long.
+     *
+     * @param aValue the encoded value.
+     * 
+     * @return the decoded value.
+     */
+    public static long decodeZigZag(long aValue)
+    {
+        return (aValue >>> 1) ^ -(aValue & 1);
+    }
+}
@@ -0,0 +1,271 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.util;
+
+
+/**
+ * A ByteArrayDataOutput that writes the compact encoding read by {@link CompactDataInput}. 
+ * Shorts, ints and longs are written as zig-zag varints, so small values of either sign take
+ * one or two bytes. Chars are written as unsigned varints. Other types are written as by
+ * DataOutput. <p>
+ * 
+ * A varint is written seven bits per byte, least significant group first. The high bit of each
+ * byte is set if more bytes follow. Zig-zag encoding maps signed values to unsigned values
+ * so that values near zero have small encodings: 0, -1, 1, -2, ... become 0, 1, 2, 3, ... <p>
+ * 
+ * The bulk array methods inherited from ByteArrayDataOutput write fixed-width elements.
+ * Int and long arrays may also be written packed, as varint deltas between elements.
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad </a>
+ */
+public class CompactDataOutput extends ByteArrayDataOutput
+{
+    /** Maximum length of a varint-encoded long. */
+    private static final int MAX_VARLONG_LENGTH = 10;
+    /** Packed array encoding: fixed-width elements. */
+    public static final byte ARRAY_ENCODING_RAW = 0;
+    /** Packed array encoding: zig-zag varint deltas from the previous element. */
+    public static final byte ARRAY_ENCODING_DELTA = 1;
+    
+
+    /**
+     * Constructs a CompactDataOutput.
+     *
+     * @param anInitialCapacity the initial capacity of the buffer.
+     */
+    public CompactDataOutput(int anInitialCapacity)
+    {
+        super(anInitialCapacity);
+    }
+
+
+    /**
+     * Writes an int as an unsigned varint. Negative values take five bytes.
+     *
+     * @param aValue the value.
+     */
+    public void writeUnsignedVarInt(int aValue)
+    {
+        ensureCapacity(5);
+        while ((aValue & ~0x7f) != 0) {
+            mBuffer[mSize++] = (byte)((aValue & 0x7f) | 0x80);
+            aValue >>>= 7;
+        }
+        
+        mBuffer[mSize++] = (byte)aValue;
+    }
+
+
+    /**
+     * Writes a long as an unsigned varint. Negative values take ten bytes.
+     *
+     * @param aValue the value.
+     */
+    public void writeUnsignedVarLong(long aValue)
+    {
+        ensureCapacity(MAX_VARLONG_LENGTH);
+        while ((aValue & ~0x7fL) != 0) {
+            mBuffer[mSize++] = (byte)((aValue & 0x7f) | 0x80);
+            aValue >>>= 7;
+        }
+        
+        mBuffer[mSize++] = (byte)aValue;
+    }
+
+
+    /**
+     * Writes a String. If every character is in the range 0 - 0xff, the String is written 
+     * as a varint of (length &lt;&lt; 1) followed by one byte per character (Latin-1). Otherwise it is 
+     * written as a varint of ((encoded length &lt;&lt; 1) | 1) followed by its modified UTF-8 encoding.
+     *
+     * @param aString the String.
+     */
+    public void writeCompactString(String aString)
+    {
+        int length = aString.length();
+        boolean isLatin1 = true;
+        for (int i = 0; i < length; i++) {
+            if (aString.charAt(i) > 0xff) {
+                isLatin1 = false;
+                break;
+            }
+        }
+        
+        if (isLatin1) {
+            writeUnsignedVarInt(length << 1);
+            ensureCapacity(length);
+            for (int i = 0; i < length; i++) {
+                mBuffer[mSize++] = (byte)aString.charAt(i);
+            }
+        }
+        else {
+            // Encode after the largest possible header and move it back if the header is shorter.
+            ensureCapacity(5 + length * 3);
+            int headerIdx = mSize;
+            int utfLength = ByteArrayUtil.putModifiedUTF8(mBuffer, headerIdx + 5, aString);
+            writeUnsignedVarInt((utfLength << 1) | 1);
+            System.arraycopy(mBuffer, headerIdx + 5, mBuffer, mSize, utfLength);
+            mSize += utfLength;
+        }
+    }
+
+
+    /**
+     * Writes an int array preceded by an encoding byte. The elements are written as zig-zag 
+     * varint deltas from the previous element if that is smaller than writing them at fixed width, 
+     * as is typical for monotonic arrays. Otherwise they are written at fixed width.
+     *
+     * @param anArray the array.
+     */
+    public void writePackedIntArray(int[] anArray)
+    {
+        int rawSize = anArray.length * 4;
+        int packedSize = 0;
+        int previous = 0;
+        for (int i = 0; i < anArray.length && packedSize < rawSize; i++) {
+            packedSize += getVarLongLength( encodeZigZag(anArray[i] - previous) & 0xffffffffL );
+            previous = anArray[i];
+        }
+        
+        if (packedSize >= rawSize) {
+            write(ARRAY_ENCODING_RAW);
+            writeIntArray(anArray);
+            return;
+        }
+        
+        write(ARRAY_ENCODING_DELTA);
+        previous = 0;
+        for (int i = 0; i < anArray.length; i++) {
+            writeInt(anArray[i] - previous);
+            previous = anArray[i];
+        }
+    }
+
+
+    /**
+     * Writes a long array preceded by an encoding byte. The elements are written as zig-zag 
+     * varint deltas from the previous element if that is smaller than writing them at fixed width, 
+     * as is typical for monotonic arrays such as time stamps. Otherwise they are written at fixed width.
+     *
+     * @param anArray the array.
+     */
+    public void writePackedLongArray(long[] anArray)
+    {
+        long rawSize = anArray.length * 8L;
+        long packedSize = 0;
+        long previous = 0;
+        for (int i = 0; i < anArray.length && packedSize < rawSize; i++) {
+            packedSize += getVarLongLength( encodeZigZag(anArray[i] - previous) );
+            previous = anArray[i];
+        }
+        
+        if (packedSize >= rawSize) {
+            write(ARRAY_ENCODING_RAW);
+            writeLongArray(anArray);
+            return;
+        }
+        
+        write(ARRAY_ENCODING_DELTA);
+        previous = 0;
+        for (int i = 0; i < anArray.length; i++) {
+            writeLong(anArray[i] - previous);
+            previous = anArray[i];
+        }
+    }
+
+
+    /**
+     * Gets the length of a value encoded as an unsigned varint.
+     *
+     * @param aValue the value.
+     * 
+     * @return the length in bytes.
+     */
+    private static int getVarLongLength(long aValue)
+    {
+        return 1 + (63 - Long.numberOfLeadingZeros(aValue | 1)) / 7;
+    }
+
+
+    public void writeShort(int v)
+    {
+        writeUnsignedVarInt( encodeZigZag((short)v) );
+    }
+
+
+    public void writeChar(int v)
+    {
+        writeUnsignedVarInt(v & 0xffff);
+    }
+
+
+    public void writeInt(int v)
+    {
+        writeUnsignedVarInt( encodeZigZag(v) );
+    }
+
+
+    public void writeLong(long v)
+    {
+        writeUnsignedVarLong( encodeZigZag(v) );
+    }
+
+
+    public void writeFloat(float v)
+    {
+        super.writeInt( Float.floatToIntBits(v) );
+    }
+
+
+    public void writeDouble(double v)
+    {
+        super.writeLong( Double.doubleToLongBits(v) );
+    }
+
+
+    /**
+     * Zig-zag encodes an int.
+     *
+     * @param aValue the value.
+     * 
+     * @return the encoded value.
+     */
+    public static int encodeZigZag(int aValue)
+    {
+        return (aValue << 1) ^ (aValue >> 31);
+    }
+
+
+    /**
+     * Zig-zag encodes a long.
+     *
+     * @param aValue the value.
+     * 
+     * @return the encoded value.
+     */
+    public static long encodeZigZag(long aValue)
+    {
+        return (aValue << 1) ^ (aValue >> 63);
+    }
+}
@@ -0,0 +1,186 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.util;
+
+
+/**
+ * Creates and applies deltas between two serialized object images. A delta is a list of byte ranges
+ * that replace ranges in the base image. It is independent of the object's class, so it can be applied
+ * by a server that does not interpret images. <p>
+ * 
+ * The delta format is: the int length of the new image, followed by zero or more runs. Each run is
+ * an int offset into the new image, an int run length, and the run's bytes. Bytes not covered
+ * by a run are copied from the base image. If the image lengths differ, the bytes after the single run
+ * are copied from the end of the base image. 
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad </a>
+ */
+public class ImageDeltaUtil
+{
+    /** Size of the header of a run: offset and length. */
+    private static final int RUN_HEADER_SIZE = 8;
+    
+    // No construction
+    private ImageDeltaUtil()
+    {
+    }
+    
+    /**
+     * Creates a delta that transforms aBaseImage into aNewImage.
+     *
+     * @param aBaseImage the image currently stored.
+     * @param aNewImage the new image.
+     * 
+     * @return the delta, or null if the delta would not be significantly smaller than aNewImage.
+     */
+    public static byte[] createDelta(byte[] aBaseImage, byte[] aNewImage)
+    {
+        int newLen = aNewImage.length;
+        int baseLen = aBaseImage.length;
+        // Runs are accumulated as (offset, length) pairs.
+        int[] runs = new int[16];
+        int numRuns = 0;
+        int deltaSize = 4;
+        
+        if (newLen == baseLen) {
+            // Same layout. Find each differing range, merging ranges separated by less than a run header.
+            int idx = 0;
+            while (idx < newLen) {
+                if (aBaseImage[idx] == aNewImage[idx]) {
+                    ++idx;
+                    continue;
+                }
+
+                int start = idx;
+                int end = idx + 1;
+                for (idx = end; idx < newLen && idx - end <= RUN_HEADER_SIZE; idx++) {
+                    if (aBaseImage[idx] != aNewImage[idx]) {
+                        end = idx + 1;
+                    }
+                }
+                
+                if (numRuns * 2 == runs.length) {
+                    int[] newRuns = new int[runs.length * 2];
+                    System.arraycopy(runs, 0, newRuns, 0, runs.length);
+                    runs = newRuns;
+                }
+                
+                runs[numRuns * 2] = start;
+                runs[numRuns * 2 + 1] = end - start;
+                ++numRuns;
+                deltaSize += RUN_HEADER_SIZE + (end - start);
+                idx = end;
+            }
+        }
+        else {
+            // The layout shifted. Send a single run between the common prefix and suffix.
+            int minLen = Math.min(newLen, baseLen);
+            int prefixLen = 0;
+            while (prefixLen < minLen && aBaseImage[prefixLen] == aNewImage[prefixLen]) {
+                ++prefixLen;
+            }
+            
+            int suffixLen = 0;
+            while (suffixLen < minLen - prefixLen && aBaseImage[baseLen - suffixLen - 1] == aNewImage[newLen - suffixLen - 1]) {
+                ++suffixLen;
+            }
+            
+            runs[0] = prefixLen;
+            runs[1] = newLen - suffixLen - prefixLen;
+            numRuns = 1;
+            deltaSize += RUN_HEADER_SIZE + runs[1];
+        }
+        
+        // Not worth it unless it saves at least a quarter of the image.
+        if (deltaSize > newLen - (newLen / 4)) {
+            return null;
+        }
+        
+        byte[] delta = new byte[deltaSize];
+        int idx = ByteArrayUtil.putInt(delta, 0, newLen);
+        for (int i = 0; i < numRuns; i++) {
+            int offset = runs[i * 2];
+            int len = runs[i * 2 + 1];
+            idx += ByteArrayUtil.putInt(delta, idx, offset);
+            idx += ByteArrayUtil.putInt(delta, idx, len);
+            System.arraycopy(aNewImage, offset, delta, idx, len);
+            idx += len;
+        }
+        
+        return delta;
+    }
+    
+    /**
+     * Applies a delta created by {@link #createDelta(byte[], byte[])} to a base image.
+     *
+     * @param aBaseImage the buffer containing the base image. 
+     * @param aBaseLength the length of the base image in aBaseImage, starting at offset zero.
+     * @param aDelta the delta.
+     * 
+     * @return the new image.
+     */
+    public static byte[] applyDelta(byte[] aBaseImage, int aBaseLength, byte[] aDelta)
+    {
+        return applyDelta(aBaseImage, 0, aBaseLength, aDelta);
+    }
+    
+    /**
+     * Applies a delta created by {@link #createDelta(byte[], byte[])} to a base image that is
+     * a slice of a larger buffer.
+     *
+     * @param aBaseImage the buffer containing the base image. 
+     * @param aBaseOffset the offset of the base image in aBaseImage.
+     * @param aBaseLength the length of the base image.
+     * @param aDelta the delta.
+     * 
+     * @return the new image.
+     */
+    public static byte[] applyDelta(byte[] aBaseImage, int aBaseOffset, int aBaseLength, byte[] aDelta)
+    {
+        int newLen = ByteArrayUtil.getInt(aDelta, 0);
+        byte[] newImage = new byte[newLen];
+        int idx = 4;
+        if (newLen == aBaseLength) {
+            System.arraycopy(aBaseImage, aBaseOffset, newImage, 0, newLen);
+            while (idx < aDelta.length) {
+                int offset = ByteArrayUtil.getInt(aDelta, idx);
+                int len = ByteArrayUtil.getInt(aDelta, idx + 4);
+                idx += RUN_HEADER_SIZE;
+                System.arraycopy(aDelta, idx, newImage, offset, len);
+                idx += len;
+            }
+        }
+        else {
+            int prefixLen = ByteArrayUtil.getInt(aDelta, idx);
+            int len = ByteArrayUtil.getInt(aDelta, idx + 4);
+            idx += RUN_HEADER_SIZE;
+            int suffixLen = newLen - prefixLen - len;
+            System.arraycopy(aBaseImage, aBaseOffset, newImage, 0, prefixLen);
+            System.arraycopy(aDelta, idx, newImage, prefixLen, len);
+            System.arraycopy(aBaseImage, aBaseOffset + aBaseLength - suffixLen, newImage, prefixLen + len, suffixLen);
+        }
+        
+        return newImage;
+    }
+}
@@ -339,4 +339,39 @@ public abstract class AbstractLargeListTest extends AbstractLargeCollectionTest
         }
     }
 
+
+    /**
+     * Tests split(int).
+     */
+    public final void testSplit() throws Exception
+    {
+        LargeList testLargeList = (LargeList)createLargeCollection();
+        long[] boundaries = testLargeList.split(4);
+        assertEquals(1, boundaries.length);
+        assertEquals(0L, boundaries[0]);
+        
+        final long listSize = 1000;
+        for (long i = 0; i < listSize; i++) {
+            testLargeList.add( new CollectionTestObject("Obj-" + i) );
+        }
+
+        for (int maxNumPartitions = 1; maxNumPartitions <= 16; maxNumPartitions++) {
+            boundaries = testLargeList.split(maxNumPartitions);
+            assertTrue(boundaries.length >= 2);
+            assertTrue(boundaries.length <= maxNumPartitions + 1);
+            assertEquals(0L, boundaries[0]);
+            assertEquals(listSize, boundaries[boundaries.length - 1]);
+            for (int i = 1; i < boundaries.length; i++) {
+                assertTrue(boundaries[i] > boundaries[i - 1]);
+            }
+        }
+        
+        try {
+            testLargeList.split(0);
+            fail("Should have thrown IllegalArgumentException");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
 }
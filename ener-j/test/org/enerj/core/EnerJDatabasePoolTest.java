@@ -0,0 +1,280 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.core;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+import org.enerj.annotations.Persist;
+import org.enerj.annotations.SchemaAnnotation;
+import org.odmg.Database;
+import org.odmg.DatabaseClosedException;
+
+/**
+ * Tests EnerJDatabasePool. <p>
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+public class EnerJDatabasePoolTest extends TestCase
+{
+    private Exception mThreadException;
+    
+
+    /**
+     * Construct a EnerJDatabasePoolTest. 
+     *
+     * @param name
+     */
+    public EnerJDatabasePoolTest(String name)
+    {
+        super(name);
+    }
+
+    public void setUp() throws Exception
+    {
+        DatabaseTestCase.createDatabase1();
+    }
+
+    public void tearDown() throws Exception
+    {
+        DatabaseTestCase.clearDBFiles();
+    }
+    
+    public void testReuse() throws Exception
+    {
+        EnerJDatabasePool pool = new EnerJDatabasePool(DatabaseTestCase.DATABASE_URI, Database.OPEN_READ_WRITE, 2);
+        EnerJDatabase db1 = pool.acquire();
+        assertTrue( db1.isOpen() );
+        assertSame(db1, EnerJDatabase.getCurrentDatabaseForThread());
+        EnerJTransaction txn = new EnerJTransaction();
+        txn.begin(db1);
+        try {
+            db1.bind(new TestObj(1), "reuse");
+        }
+        finally {
+            txn.commit();
+        }
+        
+        pool.release(db1);
+        assertNull( EnerJDatabase.getCurrentDatabaseForThread() );
+        assertEquals(1, pool.getIdleCount());
+
+        EnerJDatabase db2 = pool.acquire();
+        assertSame(db1, db2);
+        EnerJDatabase db3 = pool.acquire();
+        assertNotSame(db1, db3);
+        assertEquals(2, pool.getOpenCount());
+        assertEquals(0, pool.getIdleCount());
+        
+        txn.begin(db3);
+        try {
+            assertEquals(1, ((TestObj)db3.lookup("reuse")).getValue());
+        }
+        finally {
+            txn.commit();
+        }
+        
+        pool.release(db3);
+        pool.release(db2);
+        pool.close();
+        assertEquals(0, pool.getOpenCount());
+        assertFalse( db1.isOpen() );
+        assertFalse( db3.isOpen() );
+        
+        try {
+            pool.acquire();
+            fail("Expected exception");
+        }
+        catch (DatabaseClosedException e) {
+            // Expected
+        }
+    }
+    
+    public void testConcurrentTransactions() throws Exception
+    {
+        final int numThreads = 6;
+        final int numTxns = 10;
+        final EnerJDatabasePool pool = new EnerJDatabasePool(DatabaseTestCase.DATABASE_URI, Database.OPEN_READ_WRITE, 3);
+        mThreadException = null;
+        
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            final int threadNum = i;
+            Thread thread = new Thread("Test" + i) {
+                public void run() {
+                    try {
+                        for (int j = 0; j < numTxns; j++) {
+                            EnerJDatabase db = pool.acquire();
+                            try {
+                                EnerJTransaction txn = new EnerJTransaction();
+                                txn.begin(db);
+                                try {
+                                    db.bind(new TestObj(threadNum * numTxns + j), "obj" + threadNum + '-' + j);
+                                }
+                                finally {
+                                    txn.commit();
+                                }
+                            }
+                            finally {
+                                pool.release(db);
+                            }
+                        }
+                    }
+                    catch (Exception e) {
+                        mThreadException = e;
+                        e.printStackTrace();
+                    }
+                }
+            };
+
+            threads.add(thread);
+            thread.start();
+        }
+        
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        
+        assertNull("Thread Exception was not expected", mThreadException);
+        assertTrue( pool.getOpenCount() <= 3 );
+        
+        EnerJDatabase db = pool.acquire();
+        EnerJTransaction txn = new EnerJTransaction();
+        txn.begin(db);
+        try {
+            for (int i = 0; i < numThreads; i++) {
+                for (int j = 0; j < numTxns; j++) {
+                    assertEquals(i * numTxns + j, ((TestObj)db.lookup("obj" + i + '-' + j)).getValue());
+                }
+            }
+        }
+        finally {
+            txn.commit();
+            pool.release(db);
+            pool.close();
+        }
+    }
+    
+    public void testMaxSize() throws Exception
+    {
+        final EnerJDatabasePool pool = new EnerJDatabasePool(DatabaseTestCase.DATABASE_URI, Database.OPEN_READ_WRITE, 1);
+        final EnerJDatabase db = pool.acquire();
+        final EnerJDatabase[] acquired = new EnerJDatabase[1];
+        mThreadException = null;
+        
+        Thread thread = new Thread("Test") {
+            public void run() {
+                try {
+                    acquired[0] = pool.acquire();
+                    pool.release(acquired[0]);
+                }
+                catch (Exception e) {
+                    mThreadException = e;
+                }
+            }
+        };
+        
+        thread.start();
+        thread.join(200);
+        // Still waiting for the database.
+        assertTrue( thread.isAlive() );
+        
+        pool.release(db);
+        thread.join();
+        assertNull("Thread Exception was not expected", mThreadException);
+        assertSame(db, acquired[0]);
+        pool.close();
+    }
+
+
+    /**
+     * Tests that a class added to the schema by a transaction is only known to the other pooled 
+     * databases once the transaction commits.
+     */
+    public void testSharedSchemaCIDs() throws Exception
+    {
+        EnerJDatabasePool pool = new EnerJDatabasePool(DatabaseTestCase.DATABASE_URI, Database.OPEN_READ_WRITE, 2);
+        EnerJDatabase db1 = pool.acquire();
+        EnerJDatabase db2 = pool.acquire();
+        long cid = TestObj2.class.getAnnotation(SchemaAnnotation.class).classID();
+        
+        EnerJTransaction txn = new EnerJTransaction();
+        txn.begin(db1);
+        db1.makePersistent( new TestObj2() );
+        assertFalse( getKnownSchemaCIDs(db2).contains(cid) );
+        txn.abort();
+        assertFalse( getKnownSchemaCIDs(db2).contains(cid) );
+        
+        txn.begin(db1);
+        try {
+            db1.makePersistent( new TestObj2() );
+        }
+        finally {
+            txn.commit();
+        }
+        
+        assertTrue( getKnownSchemaCIDs(db2).contains(cid) );
+        pool.release(db2);
+        pool.release(db1);
+        pool.close();
+    }
+
+
+    private static Set<Long> getKnownSchemaCIDs(EnerJDatabase aDatabase) throws Exception
+    {
+        Field field = EnerJDatabase.class.getDeclaredField("mKnownSchemaCIDs");
+        field.setAccessible(true);
+        return (Set<Long>)field.get(aDatabase);
+    }
+
+
+    @Persist
+    private static class TestObj
+    {
+        private int mValue;
+        
+
+        TestObj(int aValue)
+        {
+            mValue = aValue;
+        }
+            
+
+        int getValue()
+        {
+            return mValue;
+        }
+    }
+
+
+    @Persist
+    private static class TestObj2
+    {
+        private int mValue;
+    }
+}
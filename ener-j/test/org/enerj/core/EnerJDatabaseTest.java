@@ -24,16 +24,37 @@
 
 package org.enerj.core;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
 
 import org.enerj.annotations.Persist;
+import org.enerj.server.ObjectServerSession;
+import org.enerj.util.OIDUtil;
+import org.odmg.ClassNotPersistenceCapableException;
 import org.odmg.Database;
+import org.odmg.DatabaseIsReadOnlyException;
 import org.odmg.Implementation;
 import org.odmg.ODMGRuntimeException;
+import org.odmg.ObjectNameNotFoundException;
 import org.odmg.Transaction;
+import org.odmg.TransactionInProgressException;
 
 /**
  * Tests EnerJDatabase. This class does not repeat the basic ODMG Database tests
@@ -373,58 +394,1271 @@ public class EnerJDatabaseTest extends DatabaseTestCase
             // Expected
         }
 
+        db.close();
     }
     
 
+    /**
+     * Tests that object values are retained across transactions when the second-level
+     * cache is enabled and that stale values are refreshed.
+     */
+    public void testSecondLevelCache() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        db.setSecondLevelCacheEnabled(true);
+        assertTrue( db.isSecondLevelCacheEnabled() );
 
- 
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.setRetainValues(false);
+        txn.begin(db);
+        TestClass1 obj;
+        long oid;
+        try {
+            obj = new TestClass1(10);
+            db.bind(obj, "cachedobj");
+            oid = db.getOID(obj);
+        }
+        finally {
+            txn.commit();
+        }
+        
+        long version = ((Persistable)obj).enerj_GetVersion();
+        assertTrue(version > 0);
 
-    @Persist
-    private static class TestClass1
+        // Values are retained, but must be validated.
+        assertFalse( ((Persistable)obj).enerj_IsLoaded() );
+
+        txn.begin(db);
+        try {
+            assertSame(obj, db.getObjectForOID(oid));
+            assertEquals(10, obj.getValue());
+            assertEquals(version, ((Persistable)obj).enerj_GetVersion());
+        }
+        finally {
+            txn.commit();
+        }
+
+        // Make the cached image look stale. It should be refreshed from the database.
+        ((Persistable)obj).enerj_SetVersion(version + 100);
+        txn.begin(db);
+        try {
+            assertEquals(10, obj.getValue());
+            assertEquals(version, ((Persistable)obj).enerj_GetVersion());
+            obj.setValue(30);
+        }
+        finally {
+            txn.abort();
+        }
+
+        // Modified values are not retained on abort.
+        txn.begin(db);
+        try {
+            assertEquals(10, obj.getValue());
+            
+            // Write the object as if it were stale. The server assigns the version after the stored one.
+            obj.setValue(40);
+            ((Persistable)obj).enerj_SetVersion(version - 1);
+        }
+        finally {
+            txn.commit();
+        }
+
+        txn.begin(db);
+        try {
+            assertEquals(40, obj.getValue());
+            assertEquals(version + 1, ((Persistable)obj).enerj_GetVersion());
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+    
+
+    /**
+     * Tests that FCO references within arrays and collections resolve to the proper 
+     * instances when they are resolved as a batch.
+     */
+    public void testBatchedReferenceResolution() throws Exception
     {
-        private int mValue;
-        
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
 
-        TestClass1(int aValue)
-        {
-            mValue = aValue;
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.setRetainValues(false);
+        txn.begin(db);
+        try {
+            TestClass1 shared = new TestClass1(1);
+            TestClass1[] array = new TestClass1[] { shared, new TestClass1(2), null, shared };
+            ArrayList<Object> list = new ArrayList<Object>();
+            list.add(shared);
+            list.add("String");
+            list.add(new TestClass1(3));
+            list.add(shared);
+            db.bind(new TestClass3(array, list), "refs");
         }
+        finally {
+            txn.commit();
+        }
+
+        txn.begin(db);
+        try {
+            TestClass3 obj = (TestClass3)db.lookup("refs");
+            TestClass1[] array = obj.getArray();
+            assertEquals(4, array.length);
+            assertSame(array[0], array[3]);
+            assertNull(array[2]);
+            assertEquals(1, array[0].getValue());
+            assertEquals(2, array[1].getValue());
             
+            List<Object> list = obj.getList();
+            assertEquals(4, list.size());
+            assertSame(array[0], list.get(0));
+            assertSame(array[0], list.get(3));
+            assertEquals("String", list.get(1));
+            assertEquals(3, ((TestClass1)list.get(2)).getValue());
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+    
 
-        int getValue()
-        {
-            return mValue;
+    /**
+     * Tests that modified objects sent as deltas are stored properly.
+     */
+    public void testDeltaImages() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        db.setDeltaImagesEnabled(true);
+        assertTrue( db.isDeltaImagesEnabled() );
+
+        int[] data = new int[500];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = i;
+        }
+        
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.begin(db);
+        TestClass4 obj;
+        try {
+            obj = new TestClass4("Name1", data);
+            db.bind(obj, "deltaobj");
+        }
+        finally {
+            txn.commit();
         }
 
+        // Same image length.
+        txn.begin(db);
+        try {
+            obj.setName("Name2");
+            obj.setData(10, -10);
+        }
+        finally {
+            txn.commit();
+        }
 
-        void setValue(int aValue)
-        {
-            mValue = aValue;
+        // Different image length.
+        txn.begin(db);
+        try {
+            obj.setName("A longer name");
+            obj.setData(490, -490);
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+        
+        db = (EnerJDatabase)impl.newDatabase();
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        txn.begin(db);
+        try {
+            obj = (TestClass4)db.lookup("deltaobj");
+            assertEquals("A longer name", obj.getName());
+            data[10] = -10;
+            data[490] = -490;
+            assertTrue( Arrays.equals(data, obj.getData()) );
+        }
+        finally {
+            txn.commit();
+            db.close();
         }
     }
+    
 
+    /**
+     * Tests prefetch().
+     */
+    public void testPrefetch() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
 
-    @Persist
-    private static class TestClass2
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.setRetainValues(false);
+        txn.begin(db);
+        try {
+            TestClass5 head = null;
+            for (int i = 5; i >= 1; i--) {
+                head = new TestClass5(i, head);
+            }
+            
+            TestClass1[] array = new TestClass1[] { new TestClass1(1), new TestClass1(2) };
+            ArrayList<Object> list = new ArrayList<Object>();
+            list.add( new TestClass2(new TestClass1(3)) );
+            list.add("String");
+            db.bind(new TestClass3(array, list), "prefetchRefs");
+            db.bind(head, "prefetchChain");
+        }
+        finally {
+            txn.commit();
+        }
+
+        txn.begin(db);
+        try {
+            TestClass3 obj = (TestClass3)db.lookup("prefetchRefs");
+            db.prefetch(obj, "mArray", 1);
+            db.prefetch(obj, "mList.mValue", 1);
+            assertTrue( ((Persistable)obj).enerj_IsLoaded() );
+            TestClass1[] array = obj.getArray();
+            assertTrue( ((Persistable)array[0]).enerj_IsLoaded() );
+            assertTrue( ((Persistable)array[1]).enerj_IsLoaded() );
+            TestClass2 obj2 = (TestClass2)obj.getList().get(0);
+            assertTrue( ((Persistable)obj2).enerj_IsLoaded() );
+            assertTrue( ((Persistable)obj2.getValue()).enerj_IsLoaded() );
+            assertEquals(3, obj2.getValue().getValue());
+            
+            // Recursive path.
+            TestClass5 head = (TestClass5)db.lookup("prefetchChain");
+            db.prefetch(head, "mNext", 3);
+            TestClass5 node = head;
+            for (int i = 1; i <= 4; i++) {
+                assertTrue( ((Persistable)node).enerj_IsLoaded() );
+                node = node.getNext();
+            }
+            
+            assertFalse( ((Persistable)node).enerj_IsLoaded() );
+            assertEquals(5, node.getValue());
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+    
+
+    /**
+     * Tests serializing objects in parallel when they are flushed.
+     */
+    public void testParallelFlush() throws Exception
     {
-        private TestClass1 mValue;
-        
+        checkParallelFlush(ObjectSerializer.IMAGE_FORMAT_V2);
+        checkParallelFlush(ObjectSerializer.IMAGE_FORMAT_V1);
+    }
+    
 
-        TestClass2(TestClass1 aValue)
-        {
-            mValue = aValue;
+    /**
+     * Flushes objects in parallel with a given image format, and checks that they can be loaded.
+     *
+     * @param aFormat the image format written by the database.
+     */
+    private void checkParallelFlush(int aFormat) throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        Field imageWriterField = EnerJDatabase.class.getDeclaredField("mImageWriter");
+        imageWriterField.setAccessible(true);
+        imageWriterField.set(db, new ImageWriter(aFormat) );
+        db.setFlushThreadCount(4);
+        assertEquals(4, db.getFlushThreadCount());
+
+        final int numObjs = 300;
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.setRetainValues(false);
+        txn.begin(db);
+        try {
+            // The heads are first reached when the root is serialized, and the tails 
+            // when the heads are serialized in parallel.
+            ArrayList<Object> list = new ArrayList<Object>();
+            for (int i = 0; i < numObjs; i++) {
+                list.add( new TestClass5(i, new TestClass5(-i, null)) );
+            }
+            
+            db.bind(new TestClass3(null, list), "parallelFlush" + aFormat);
+        }
+        finally {
+            txn.commit();
         }
+
+        txn.begin(db);
+        try {
+            TestClass3 obj = (TestClass3)db.lookup("parallelFlush" + aFormat);
+            List<Object> list = obj.getList();
+            assertEquals(numObjs, list.size());
+            Set<Long> oids = new HashSet<Long>();
+            for (int i = 0; i < numObjs; i++) {
+                TestClass5 head = (TestClass5)list.get(i);
+                assertEquals(i, head.getValue());
+                assertEquals(-i, head.getNext().getValue());
+                assertNull( head.getNext().getNext() );
+                oids.add( db.getOID(head) );
+                oids.add( db.getOID(head.getNext()) );
+            }
             
+            assertEquals(numObjs * 2, oids.size());
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+    
 
-        TestClass1 getValue()
-        {
-            return mValue;
+    /**
+     * Tests that unused OIDXs are returned to the server and reused.
+     */
+    public void testUnusedOIDXsReused() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.begin(db);
+        TestClass1 obj1 = new TestClass1(1);
+        try {
+            db.bind(obj1, "oidx1");
+        }
+        finally {
+            txn.commit();
         }
 
+        txn.begin(db);
+        TestClass1 obj2 = new TestClass1(2);
+        Set<Long> oids = new HashSet<Long>();
+        try {
+            db.bind(obj2, "oidx2");
+            oids.add( db.getOID(obj1) );
+            oids.add( db.getOID(obj2) );
+            
+            // Enough objects to use several growing blocks.
+            for (int i = 0; i < 1000; i++) {
+                assertTrue( oids.add( db.getOID( new TestClass1(i) ) ) );
+            }
+            
+            assertEquals(OIDUtil.getOIDX( db.getOID(obj1) ) + 1, OIDUtil.getOIDX( db.getOID(obj2) ));
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+    
 
-        void setValue(TestClass1 aValue)
-        {
-            mValue = aValue;
+    /**
+     * Tests that a failure to return unused OIDXs after commit or abort doesn't fail the transaction.
+     */
+    public void testReturnUnusedOIDXsFailure() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+
+        // Make returnUnusedOIDXs() fail on the session.
+        Field sessionField = EnerJDatabase.class.getDeclaredField("mObjectServerSession");
+        sessionField.setAccessible(true);
+        final ObjectServerSession session = (ObjectServerSession)sessionField.get(db);
+        sessionField.set(db, Proxy.newProxyInstance(ObjectServerSession.class.getClassLoader(), 
+            new Class[] { ObjectServerSession.class }, new InvocationHandler() {
+                public Object invoke(Object aProxy, Method aMethod, Object[] someArgs) throws Throwable
+                {
+                    if (aMethod.getName().equals("returnUnusedOIDXs")) {
+                        throw new ODMGRuntimeException("Test failure");
+                    }
+                    
+                    try {
+                        return aMethod.invoke(session, someArgs);
+                    }
+                    catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                }
+            }) );
+        
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.begin(db);
+        TestClass1 obj1 = new TestClass1(1);
+        db.bind(obj1, "oidxFailure1");
+        txn.commit();
+        
+        txn.begin(db);
+        TestClass1 obj2 = new TestClass1(2);
+        db.bind(obj2, "oidxFailure2");
+        txn.abort();
+
+        txn.begin(db);
+        try {
+            db.bind(new TestClass1(3), "oidxFailure3");
+        }
+        finally {
+            txn.commit();
+        }
+        
+        sessionField.set(db, session);
+        db.close();
+        
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        txn.begin(db);
+        try {
+            assertEquals(1, ((TestClass1)db.lookup("oidxFailure1")).getValue());
+            assertEquals(3, ((TestClass1)db.lookup("oidxFailure3")).getValue());
+            try {
+                db.lookup("oidxFailure2");
+                fail("Expected exception");
+            }
+            catch (ObjectNameNotFoundException e) {
+                // Expected
+            }
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+    
+
+    /**
+     * Tests releasing memory held by a transaction at the memory watermarks.
+     */
+    public void testMemoryWatermarks() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        try {
+            db.setMemoryWatermarks(100, 200);
+            fail("Expected exception");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+
+        db.setMemoryWatermarks(20000, 5000);
+        assertEquals(20000, db.getHighWatermark());
+        assertEquals(5000, db.getLowWatermark());
+
+        final int numObjs = 200;
+        int[] data = new int[100];
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.setRetainValues(true);
+        txn.begin(db);
+        TestClass3 root;
+        try {
+            ArrayList<Object> list = new ArrayList<Object>();
+            for (int i = 0; i < numObjs; i++) {
+                list.add( new TestClass4("Obj" + i, data) );
+            }
+            
+            root = new TestClass3(null, list);
+            db.bind(root, "watermarks");
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+
+        // Reopen so that the root and its list SCO are loaded from the database.
+        db = (EnerJDatabase)impl.newDatabase();
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        db.setMemoryWatermarks(20000, 5000);
+        txn.begin(db);
+        try {
+            root = (TestClass3)db.lookup("watermarks");
+        }
+        finally {
+            txn.commit();
+        }
+
+        // Saved images are moved to a file and objects are flushed, but the abort restores them.
+        txn.setRestoreValues(true);
+        txn.begin(db);
+        List<Object> list = root.getList();
+        TestClass4 newObj = new TestClass4("New", data);
+        for (int i = 0; i < numObjs; i++) {
+            TestClass4 obj = (TestClass4)list.get(i);
+            obj.setName("Modified" + i);
+            if (i == 10) {
+                obj.setData(0, -1);
+                db.makePersistent(newObj);
+            }
+        }
+        
+        // The saved image file is deleted when the transaction ends.
+        File savedImageFile = getSavedImageFile(db);
+        assertTrue( savedImageFile.exists() );
+        txn.abort();
+        assertFalse( savedImageFile.exists() );
+        
+        assertEquals(ObjectSerializer.NULL_OID, ((Persistable)newObj).enerj_GetPrivateOID());
+        txn.setRestoreValues(false);
+        txn.begin(db);
+        try {
+            // The restored root has a new list.
+            list = root.getList();
+            assertEquals(numObjs, list.size());
+            for (int i = 0; i < numObjs; i++) {
+                TestClass4 obj = (TestClass4)list.get(i);
+                assertEquals("Obj" + i, obj.getName());
+                assertEquals(0, obj.getData()[0]);
+            }
+            
+            // The modified objects are flushed, but clean objects are not hollowed, so the 
+            // SCO of the clean root that is held here can still be updated.
+            TestClass4 cleanObj = (TestClass4)list.get(0);
+            for (int i = 1; i < numObjs; i++) {
+                ((TestClass4)list.get(i)).setName("Updated" + i);
+            }
+            
+            assertTrue( ((Persistable)cleanObj).enerj_IsLoaded() );
+            assertTrue( ((Persistable)root).enerj_IsLoaded() );
+            assertFalse( ((Persistable)root).enerj_IsModified() );
+            list.add( new TestClass4("Added", data) );
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+        
+        db = (EnerJDatabase)impl.newDatabase();
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        txn.begin(db);
+        try {
+            root = (TestClass3)db.lookup("watermarks");
+            list = root.getList();
+            assertEquals(numObjs + 1, list.size());
+            assertEquals("Obj0", ((TestClass4)list.get(0)).getName());
+            for (int i = 1; i < numObjs; i++) {
+                assertEquals("Updated" + i, ((TestClass4)list.get(i)).getName());
+            }
+            
+            assertEquals("Added", ((TestClass4)list.get(numObjs)).getName());
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+
+
+    /**
+     * Gets the file holding the saved images of a database's transaction.
+     *
+     * @param aDatabase the database.
+     * 
+     * @return the file.
+     * 
+     * @throws Exception when something unexpected occurs.
+     */
+    private static File getSavedImageFile(EnerJDatabase aDatabase) throws Exception
+    {
+        Field savedImageFileField = EnerJDatabase.class.getDeclaredField("mSavedImageFile");
+        savedImageFileField.setAccessible(true);
+        Object savedImageFile = savedImageFileField.get(aDatabase);
+        assertNotNull(savedImageFile);
+        Field fileField = SavedImageFile.class.getDeclaredField("mFile");
+        fileField.setAccessible(true);
+        return (File)fileField.get(savedImageFile);
+    }
+    
+
+    /**
+     * Tests storing objects in the background.
+     */
+    public void testWriteBehind() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        db.setWriteBehindEnabled(true);
+        assertTrue( db.isWriteBehindEnabled() );
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+
+        // Enough data for several batches.
+        final int numObjs = 500;
+        int[] data = new int[200];
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.setRetainValues(false);
+        txn.begin(db);
+        try {
+            ArrayList<Object> list = new ArrayList<Object>();
+            for (int i = 0; i < numObjs; i++) {
+                data[0] = i;
+                list.add( new TestClass4("Obj" + i, data) );
+            }
+            
+            db.bind(new TestClass3(null, list), "writeBehind");
+        }
+        finally {
+            txn.commit();
+        }
+
+        // Flush, then modify the same objects again in the transaction.
+        txn.begin(db);
+        try {
+            try {
+                db.setWriteBehindEnabled(false);
+                fail("Expected exception");
+            }
+            catch (TransactionInProgressException e) {
+                // Expected
+            }
+            
+            TestClass3 obj = (TestClass3)db.lookup("writeBehind");
+            List<Object> list = obj.getList();
+            for (int i = 0; i < numObjs; i++) {
+                ((TestClass4)list.get(i)).setName("Update1");
+            }
+            
+            db.flush();
+            
+            for (int i = 0; i < numObjs; i++) {
+                ((TestClass4)list.get(i)).setName("Update" + i);
+            }
+        }
+        finally {
+            txn.commit();
+        }
+        
+        db.setWriteBehindEnabled(false);
+        txn.begin(db);
+        try {
+            TestClass3 obj = (TestClass3)db.lookup("writeBehind");
+            List<Object> list = obj.getList();
+            assertEquals(numObjs, list.size());
+            for (int i = 0; i < numObjs; i++) {
+                TestClass4 obj4 = (TestClass4)list.get(i);
+                assertEquals("Update" + i, obj4.getName());
+                assertEquals(i, obj4.getData()[0]);
+            }
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+    
+    
+
+    /**
+     * Tests optimistic transactions.
+     */
+    public void testOptimisticTransaction() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.setRetainValues(false);
+        txn.begin(db);
+        try {
+            db.bind(new TestClass4("Initial", new int[1]), "optimistic");
+        }
+        finally {
+            txn.commit();
+        }
+
+        txn.setOptimistic(true);
+        assertTrue( txn.isOptimistic() );
+        
+        // A conflict on an object that was written.
+        txn.begin(db);
+        TestClass4 obj = (TestClass4)db.lookup("optimistic");
+        obj.setName("Optimistic1");
+        // The stored object is not locked, so the other transaction doesn't block.
+        db.flush();
+        updateNameInThread("optimistic", "Other1");
+        try {
+            txn.commit();
+            fail("Expected exception");
+        }
+        catch (TransactionConflictException e) {
+            // Expected
+        }
+        
+        assertFalse( txn.isOpen() );
+
+        // The retry sees the other transaction's update.
+        txn.begin(db);
+        try {
+            obj = (TestClass4)db.lookup("optimistic");
+            assertEquals("Other1", obj.getName());
+            obj.setName("Optimistic2");
+            obj.setData(0, 2);
+        }
+        finally {
+            txn.commit();
+        }
+
+        // A conflict on an object that was only read.
+        txn.begin(db);
+        obj = (TestClass4)db.lookup("optimistic");
+        assertEquals("Optimistic2", obj.getName());
+        updateNameInThread("optimistic", "Other2");
+        try {
+            txn.commit();
+            fail("Expected exception");
+        }
+        catch (TransactionConflictException e) {
+            // Expected
+        }
+
+        // Objects stored by the transaction are visible to it before commit.
+        txn.begin(db);
+        try {
+            obj = (TestClass4)db.lookup("optimistic");
+            assertEquals("Other2", obj.getName());
+            assertEquals(2, obj.getData()[0]);
+            obj.setName("Optimistic3");
+            db.bind(new TestClass4("New", new int[1]), "optimisticNew");
+            db.flush();
+            ((Persistable)obj).enerj_Hollow();
+            assertEquals("Optimistic3", obj.getName());
+            db.bind(new TestClass4("Delta", new int[1000]), "optimisticDelta");
+        }
+        finally {
+            txn.commit();
+        }
+        
+        // A conflict on the base version of a delta is detected while flushing.
+        db.setDeltaImagesEnabled(true);
+        txn.begin(db);
+        obj = (TestClass4)db.lookup("optimisticDelta");
+        obj.setData(0, 4);
+        updateNameInThread("optimisticDelta", "Other4");
+        try {
+            txn.commit();
+            fail("Expected exception");
+        }
+        catch (TransactionConflictException e) {
+            // Expected
+        }
+        
+        assertFalse( txn.isOpen() );
+        db.setDeltaImagesEnabled(false);
+        
+        txn.setOptimistic(false);
+        txn.begin(db);
+        try {
+            assertEquals("Optimistic3", ((TestClass4)db.lookup("optimistic")).getName());
+            obj = (TestClass4)db.lookup("optimisticDelta");
+            assertEquals("Other4", obj.getName());
+            assertEquals(0, obj.getData()[0]);
+            assertEquals("New", ((TestClass4)db.lookup("optimisticNew")).getName());
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+    
+
+    /**
+     * Tests bulkLoad().
+     */
+    public void testBulkLoad() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+
+        final int numRoots = 100;
+        final int numListObjs = 10;
+        TestClass4 sharedObj = new TestClass4("Shared", new int[1]);
+        List<Object> roots = new ArrayList<Object>();
+        int[] data = new int[1];
+        for (int i = 0; i < numRoots; i++) {
+            ArrayList<Object> list = new ArrayList<Object>();
+            for (int j = 0; j < numListObjs; j++) {
+                data[0] = j;
+                list.add( new TestClass4("Obj" + i + '-' + j, data) );
+            }
+            
+            list.add(sharedObj);
+            roots.add( new TestClass3(null, list) );
+        }
+        
+        // The shared object is stored once, even though it is also in the iterator.
+        roots.add(sharedObj);
+        assertEquals(numRoots * (numListObjs + 1) + 1, db.bulkLoad(roots.iterator(), false));
+        assertFalse( ((Persistable)sharedObj).enerj_IsNew() );
+        
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.begin(db);
+        try {
+            try {
+                db.bulkLoad(roots.iterator(), false);
+                fail("Expected exception");
+            }
+            catch (TransactionInProgressException e) {
+                // Expected
+            }
+            
+            db.bind(roots.get(0), "bulk0");
+            db.bind(roots.get(numRoots - 1), "bulkLast");
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        txn.begin(db);
+        try {
+            TestClass3 first = (TestClass3)db.lookup("bulk0");
+            TestClass3 last = (TestClass3)db.lookup("bulkLast");
+            List firstList = first.getList();
+            List lastList = last.getList();
+            assertEquals(numListObjs + 1, firstList.size());
+            assertEquals(numListObjs + 1, lastList.size());
+            for (int j = 0; j < numListObjs; j++) {
+                TestClass4 obj = (TestClass4)lastList.get(j);
+                assertEquals("Obj" + (numRoots - 1) + '-' + j, obj.getName());
+                assertEquals(j, obj.getData()[0]);
+            }
+            
+            assertSame(firstList.get(numListObjs), lastList.get(numListObjs));
+            assertEquals("Shared", ((TestClass4)lastList.get(numListObjs)).getName());
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+    
+
+    /**
+     * Tests that the objects of a failed bulkLoad() that were not stored are new again.
+     */
+    public void testBulkLoadFailure() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+
+        ArrayList<Object> list = new ArrayList<Object>();
+        TestClass4 listObj = new TestClass4("Listed", new int[1]);
+        list.add(listObj);
+        TestClass3 root = new TestClass3(null, list);
+        List<Object> objects = new ArrayList<Object>();
+        objects.add(root);
+        objects.add("Not persistable");
+        try {
+            db.bulkLoad(objects.iterator(), false);
+            fail("Expected exception");
+        }
+        catch (ClassNotPersistenceCapableException e) {
+            // Expected
+        }
+        
+        for (Object object : new Object[] { root, listObj }) {
+            Persistable persistable = (Persistable)object;
+            assertTrue( persistable.enerj_IsNew() );
+            assertEquals(ObjectSerializer.NULL_OID, persistable.enerj_GetPrivateOID());
+            assertNull( persistable.enerj_GetPersister() );
+        }
+        
+        objects.remove(1);
+        assertEquals(2L, db.bulkLoad(objects.iterator(), false));
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.begin(db);
+        try {
+            db.bind(root, "bulkRetry");
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        txn.begin(db);
+        try {
+            TestClass3 retried = (TestClass3)db.lookup("bulkRetry");
+            assertEquals("Listed", ((TestClass4)retried.getList().get(0)).getName());
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+    
+
+    /**
+     * Tests read-only transactions.
+     */
+    public void testReadOnlyTransaction() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.setRetainValues(false);
+        txn.begin(db);
+        try {
+            db.bind(new TestClass4("Initial", new int[1]), "readOnly");
+        }
+        finally {
+            txn.commit();
+        }
+
+        txn.setReadOnly(true);
+        assertTrue( txn.isReadOnly() );
+        txn.begin(db);
+        TestClass4 obj;
+        try {
+            obj = (TestClass4)db.lookup("readOnly");
+            assertEquals("Initial", obj.getName());
+            
+            try {
+                obj.setName("Modified");
+                fail("Expected exception");
+            }
+            catch (DatabaseIsReadOnlyException e) {
+                // Expected
+            }
+            
+            // The modification was rejected before it was made.
+            assertEquals("Initial", obj.getName());
+            assertFalse( ((Persistable)obj).enerj_IsModified() );
+
+            try {
+                db.bind(new TestClass1(1), "readOnly2");
+                fail("Expected exception");
+            }
+            catch (DatabaseIsReadOnlyException e) {
+                // Expected
+            }
+            
+            // Reads don't hold locks, so writers are not blocked.
+            updateNameInThread("readOnly", "Other");
+        }
+        finally {
+            txn.commit();
+        }
+
+        // Loaded objects are retained, even though retain values is false.
+        assertTrue( ((Persistable)obj).enerj_IsLoaded() );
+        assertEquals("Initial", obj.getName());
+        
+        txn.setReadOnly(false);
+        txn.begin(db);
+        try {
+            try {
+                db.lookup("readOnly2");
+                fail("Expected exception");
+            }
+            catch (ObjectNameNotFoundException e) {
+                // Expected
+            }
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+    
+
+    /**
+     * Tests the client-side metrics and their JMX registration.
+     */
+    public void testMetrics() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        db.setMetricsEnabled(true);
+        assertTrue( db.isMetricsEnabled() );
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        DatabaseMetrics metrics = db.getMetrics();
+        ObjectName name = metrics.getObjectName();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        assertTrue( server.isRegistered(name) );
+        
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.begin(db);
+        try {
+            TestClass1[] array = new TestClass1[20];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = new TestClass1(i);
+            }
+            
+            db.bind(new TestClass3(array, new ArrayList<Object>()), "metricsroot");
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+
+        assertFalse( server.isRegistered(name) );
+        assertTrue(metrics.getFlushes() >= 1);
+        assertTrue(metrics.getObjectsSerialized() >= 21);
+        assertTrue(metrics.getBytesSerialized() > 0);
+        assertTrue(metrics.getStoreObjectsRequests() >= 1);
+        assertEquals(metrics.getStoreObjectsRequests(), sum( metrics.getStoreObjectsLatencyHistogram() ));
+
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        // Metrics survive reopening.
+        assertSame(metrics, db.getMetrics());
+        name = metrics.getObjectName();
+        assertEquals(metrics.getFlushes(), server.getAttribute(name, "Flushes"));
+        metrics.reset();
+        assertEquals(0L, metrics.getFlushes());
+        
+        txn.begin(db);
+        try {
+            TestClass3 root = (TestClass3)db.lookup("metricsroot");
+            assertSame(root, db.lookup("metricsroot"));
+            int sum = 0;
+            for (TestClass1 obj : root.getArray()) {
+                sum += obj.getValue();
+            }
+            
+            assertEquals(190, sum);
+        }
+        finally {
+            txn.commit();
+        }
+        
+        assertTrue(metrics.getCacheHits() > 0);
+        assertTrue(metrics.getCacheMisses() > 0);
+        assertTrue(metrics.getCacheHitRatio() > 0. && metrics.getCacheHitRatio() < 1.);
+        assertTrue(metrics.getHollowFaults() >= 2);
+        assertTrue(metrics.getHollowFaults(TestClass1.class.getName()) >= 1);
+        assertTrue(metrics.getHollowFaultsByClass()[0].indexOf('=') > 0);
+        // Elements are prefetched along with the first one that is faulted in.
+        assertTrue(metrics.getHollowFaults() < 21);
+        assertTrue(metrics.getObjectsPrefetched() > 0);
+        assertTrue(metrics.getObjectsLoaded() >= 21);
+        assertEquals(metrics.getHollowFaults(), metrics.getLoadObjectsRequests());
+        assertEquals(metrics.getLoadObjectsRequests(), sum( metrics.getLoadObjectsLatencyHistogram() ));
+        assertTrue(metrics.getLoadObjectsMaxLatencyMicros() >= metrics.getLoadObjectsMeanLatencyMicros());
+        
+        db.setMetricsEnabled(false);
+        assertNull( db.getMetrics() );
+        assertFalse( server.isRegistered(name) );
+        db.close();
+    }
+    
+
+    /**
+     * Sums the values of an array.
+     *
+     * @param someValues the values.
+     * 
+     * @return the sum.
+     */
+    private static long sum(long[] someValues)
+    {
+        long sum = 0;
+        for (long value : someValues) {
+            sum += value;
+        }
+        
+        return sum;
+    }
+
+
+    /**
+     * Updates the name of a bound TestClass4 in a transaction on another thread and database.
+     *
+     * @param aBindName the bound name of the object.
+     * @param aName the new name.
+     */
+    private void updateNameInThread(final String aBindName, final String aName) throws Exception
+    {
+        Thread thread = new Thread("Test") {
+            public void run() {
+                Implementation impl = EnerJImplementation.getInstance();
+                EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+                try {
+                    db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+                    EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+                    txn.begin(db);
+                    try {
+                        ((TestClass4)db.lookup(aBindName)).setName(aName);
+                    }
+                    finally {
+                        txn.commit();
+                        db.close();
+                    }
+                }
+                catch (Exception e) {
+                    mThreadException = e;
+                    e.printStackTrace();
+                }
+            }
+        };
+        
+        mThreadException = null;
+        thread.start();
+        thread.join();
+        assertNull("Thread Exception was not expected", mThreadException);
+    }
+    
+
+
+ 
+
+    @Persist
+    private static class TestClass1
+    {
+        private int mValue;
+        
+
+        TestClass1(int aValue)
+        {
+            mValue = aValue;
+        }
+            
+
+        int getValue()
+        {
+            return mValue;
+        }
+
+
+        void setValue(int aValue)
+        {
+            mValue = aValue;
+        }
+    }
+
+
+    @Persist
+    private static class TestClass2
+    {
+        private TestClass1 mValue;
+        
+
+        TestClass2(TestClass1 aValue)
+        {
+            mValue = aValue;
+        }
+            
+
+        TestClass1 getValue()
+        {
+            return mValue;
+        }
+
+
+        void setValue(TestClass1 aValue)
+        {
+            mValue = aValue;
+        }
+    }
+
+
+    @Persist
+    private static class TestClass3
+    {
+        private TestClass1[] mArray;
+        private ArrayList<Object> mList;
+        
+
+        TestClass3(TestClass1[] anArray, ArrayList<Object> aList)
+        {
+            mArray = anArray;
+            mList = aList;
+        }
+            
+
+        TestClass1[] getArray()
+        {
+            return mArray;
+        }
+
+
+        List<Object> getList()
+        {
+            return mList;
+        }
+    }
+
+
+    @Persist
+    private static class TestClass4
+    {
+        private String mName;
+        private int[] mData;
+        
+
+        TestClass4(String aName, int[] someData)
+        {
+            mName = aName;
+            mData = (int[])someData.clone();
+        }
+            
+
+        String getName()
+        {
+            return mName;
+        }
+
+
+        void setName(String aName)
+        {
+            mName = aName;
+        }
+        
+
+        int[] getData()
+        {
+            return mData;
+        }
+
+
+        void setData(int anIndex, int aValue)
+        {
+            // Replace the array so that the modification is detected.
+            int[] data = (int[])mData.clone();
+            data[anIndex] = aValue;
+            mData = data;
+        }
+    }
+
+
+    @Persist
+    private static class TestClass5
+    {
+        private int mValue;
+        private TestClass5 mNext;
+        
+
+        TestClass5(int aValue, TestClass5 aNext)
+        {
+            mValue = aValue;
+            mNext = aNext;
+        }
+            
+
+        int getValue()
+        {
+            return mValue;
+        }
+
+
+        TestClass5 getNext()
+        {
+            return mNext;
         }
     }
 }
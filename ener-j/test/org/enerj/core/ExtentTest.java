@@ -24,11 +24,14 @@
 
 package org.enerj.core;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.Set;
 
 import junit.framework.Test;
 import junit.framework.TestSuite;
@@ -760,6 +763,272 @@ public class ExtentTest extends DatabaseTestCase
 
 
 
+    /**
+     * Tests that extent sizes include the objects created by the transaction, and only those committed 
+     * by other transactions.
+     */
+    public void testExtentSize() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.begin(db);
+
+        try {
+            assertEquals(0, db.getExtentSize(TestClass1.class, true));
+            List list = new PersistentArrayList();
+            for (int i = 0; i < 10; i++) {
+                list.add(new TestClass1(i));
+            }
+
+            for (int i = 0; i < 5; i++) {
+                list.add(new TestClass3(i, -i));
+            }
+
+            db.bind(list, "list");
+            txn.flush();
+            assertEquals(15, db.getExtentSize(TestClass1.class, true));
+            assertEquals(10, db.getExtentSize(TestClass1.class, false));
+            
+            // Storing the objects again must not count them again.
+            ((TestClass1)list.get(0)).setValue(100);
+            TestClass1 obj = new TestClass1(11);
+            db.makePersistent(obj);
+            txn.flush();
+            obj.setValue(12);
+            txn.flush();
+            assertEquals(16, db.getExtentSize(TestClass1.class, true));
+        }
+        finally {
+            txn.commit();
+        }
+
+        txn.begin(db);
+        try {
+            assertEquals(16, db.getExtentSize(TestClass1.class, true));
+            assertEquals(5, db.getExtentSize(TestClass3.class, true));
+            assertEquals(0, db.getExtentSize(TestClass2.class, true));
+            
+            db.makePersistent(new TestClass3(6, -6));
+            txn.flush();
+            assertEquals(17, db.getExtentSize(TestClass1.class, true));
+            assertEquals(6, db.getExtentSize(TestClass3.class, false));
+        }
+        finally {
+            txn.abort();
+        }
+
+        txn.begin(db);
+        try {
+            // The aborted object is not counted.
+            assertEquals(16, db.getExtentSize(TestClass1.class, true));
+            assertEquals(5, db.getExtentSize(TestClass3.class, true));
+            assertEquals(16, db.getExtent(TestClass1.class, true).size());
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+
+        // Each session adds to its own part of the count. The parts are summed. 
+        for (int i = 0; i < 3; i++) {
+            db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+            txn.begin(db);
+            try {
+                assertEquals(16 + i, db.getExtentSize(TestClass1.class, true));
+                db.makePersistent(new TestClass1(20 + i));
+            }
+            finally {
+                txn.commit();
+                db.close();
+            }
+        }
+
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        txn.begin(db);
+        try {
+            assertEquals(19, db.getExtentSize(TestClass1.class, true));
+            assertEquals(14, db.getExtentSize(TestClass1.class, false));
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+
+
+
+    /**
+     * Tests that the extent iterator loads the objects without faulting each one in.
+     */
+    public void testIteratorLoadsObjects() throws Exception
+    {
+        final int NUM_OBJS = 300;
+        
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+
+        Transaction txn = impl.newTransaction();
+        txn.begin();
+
+        try {
+            List list = new PersistentArrayList(NUM_OBJS);
+            for (int i = 0; i < NUM_OBJS; i++) {
+                list.add(new TestClass2(i));
+            }
+
+            db.bind(list, "list");
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+
+        db = (EnerJDatabase)impl.newDatabase();
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        db.setMetricsEnabled(true);
+
+        txn = impl.newTransaction();
+        txn.begin();
+
+        try {
+            Extent extent = db.getExtent(TestClass2.class, false);
+            Iterator iterator = extent.iterator();
+            HashSet<Integer> values = new HashSet<Integer>();
+            while (iterator.hasNext()) {
+                TestClass2 obj = (TestClass2)iterator.next();
+                assertTrue( ((Persistable)(Object)obj).enerj_IsLoaded() );
+                values.add(obj.getValue());
+            }
+
+            extent.close(iterator);
+            assertEquals(NUM_OBJS, values.size());
+            assertEquals(0, db.getMetrics().getLoadObjectsRequests());
+            assertEquals(NUM_OBJS, db.getMetrics().getObjectsPrefetched());
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+
+
+
+    /**
+     * Tests splitting an extent and iterating the partitions in parallel, each with its own database.
+     */
+    public void testSplit() throws Exception
+    {
+        final int NUM_OBJS1 = 1000;
+        final int NUM_OBJS3 = 500;
+        
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+
+        Transaction txn = impl.newTransaction();
+        txn.begin();
+
+        List<ExtentPartition> partitions;
+        try {
+            assertTrue( db.getExtent(TestClass1.class, true).split(4).isEmpty() );
+            
+            List list = new PersistentArrayList(NUM_OBJS1 + NUM_OBJS3);
+            for (int i = 0; i < NUM_OBJS1; i++) {
+                list.add(new TestClass1(i));
+            }
+
+            for (int i = 0; i < NUM_OBJS3; i++) {
+                list.add(new TestClass3(NUM_OBJS1 + i, 0));
+            }
+
+            db.bind(list, "list");
+            ((EnerJTransaction)txn).flush();
+            
+            partitions = db.getExtent(TestClass1.class, true).split(4);
+            assertTrue(partitions.size() > 1);
+            assertTrue(partitions.size() <= 4);
+            try {
+                db.getExtent(partitions.get(0)).split(2);
+                fail("Expected UnsupportedOperationException");
+            }
+            catch (UnsupportedOperationException e) {
+                // Expected
+            }
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+        
+        final Set<Integer> values = Collections.synchronizedSet( new HashSet<Integer>() );
+        final List<Throwable> failures = Collections.synchronizedList( new ArrayList<Throwable>() );
+        final int[] sizes = new int[ partitions.size() ];
+        Thread[] threads = new Thread[ partitions.size() ];
+        for (int i = 0; i < threads.length; i++) {
+            final ExtentPartition partition = partitions.get(i);
+            final int partitionIdx = i;
+            threads[i] = new Thread() {
+                public void run()
+                {
+                    try {
+                        Implementation impl = EnerJImplementation.getInstance();
+                        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+                        db.open(DATABASE_URI, Database.OPEN_READ_ONLY);
+                        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+                        txn.setReadOnly(true);
+                        txn.begin(db);
+                        try {
+                            Extent extent = db.getExtent(partition);
+                            sizes[partitionIdx] = extent.size();
+                            Iterator iterator = extent.iterator();
+                            int count = 0;
+                            while (iterator.hasNext()) {
+                                values.add( ((TestClass1)iterator.next()).getValue() );
+                                ++count;
+                            }
+                            
+                            extent.close(iterator);
+                            assertEquals(sizes[partitionIdx], count);
+                        }
+                        finally {
+                            txn.commit();
+                            db.close();
+                        }
+                    }
+                    catch (Throwable t) {
+                        failures.add(t);
+                    }
+                }
+            };
+            
+            threads[i].start();
+        }
+        
+        int totalSize = 0;
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            assertTrue(sizes[i] > 0);
+            totalSize += sizes[i];
+        }
+        
+        if (!failures.isEmpty()) {
+            throw new Exception("Partition failed", failures.get(0));
+        }
+        
+        // The partitions are disjoint and cover the extent.
+        assertEquals(NUM_OBJS1 + NUM_OBJS3, totalSize);
+        assertEquals(NUM_OBJS1 + NUM_OBJS3, values.size());
+    }
+
+
+
     @Persist
     private static class TestClass1
     {
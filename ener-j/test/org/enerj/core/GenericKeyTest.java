@@ -126,7 +126,48 @@ public class GenericKeyTest extends TestCase
         assertFalse( key2.equals(key1) );
     }
 
-    
+
+    /**
+     * Tests the KeyExtractors generated for createKey().
+     */
+    public void testKeyExtractor()
+    {
+        KeyExtractor extractor = KeyExtractorGenerator.generate(Employee.class, mIndexSchemaComposite.getProperties());
+        assertNotNull(extractor);
+        assertTrue( extractor.getClass().getName().startsWith(KeyExtractor.class.getName()) );
+        Object[] components = extractor.getComponents(mEmployee1);
+        assertEquals(3, components.length);
+        assertEquals("Dan", components[0]);
+        assertEquals("Syrstad", components[1]);
+        assertEquals("Mpls", components[2]);
+        
+        // Primitives are boxed.
+        extractor = KeyExtractorGenerator.generate(Employee.class, mIndexSchemaEmplNum.getProperties());
+        components = extractor.getComponents(mEmployee2);
+        assertEquals(1, components.length);
+        assertEquals(Integer.valueOf(6), components[0]);
+        
+        // The extractor is cached.
+        assertSame(mIndexSchemaComposite.getKeyExtractor(Employee.class), mIndexSchemaComposite.getKeyExtractor(Employee.class));
+        
+        // A null intermediate property cannot be traversed. createKey() reports it like PropertyUtils.
+        Employee employee = new Employee(7, "No", "Address", null);
+        assertNull( mIndexSchemaComposite.getKeyExtractor(Employee.class).getComponents(employee) );
+        try {
+            GenericKey.createKey(mIndexSchemaComposite, employee);
+            fail("Expected exception");
+        }
+        catch (IllegalArgumentException e) {
+            // Expected
+        }
+        
+        // Non-public classes and unknown properties fall back to PropertyUtils.
+        assertNull( KeyExtractorGenerator.generate(PrivateEmployee.class, new String[] { "employeeNumber" }) );
+        assertNull( KeyExtractorGenerator.generate(Employee.class, new String[] { "address.zip" }) );
+        assertNull( KeyExtractorGenerator.generate(Employee.class, new String[] { "employeeNumber.value" }) );
+        assertNull( mIndexSchemaEmplNum.getKeyExtractor(PrivateEmployee.class).getComponents(new PrivateEmployee()) );
+    }
+
 
     @Indexes( {
         @Index(type=Index.Type.BTree, name="emplNum", properties={ "employeeNumber" } ),
@@ -169,6 +210,14 @@ public class GenericKeyTest extends TestCase
         } 
     }
 
+    private static final class PrivateEmployee 
+    {
+        public int getEmployeeNumber()
+        {
+            return 9;
+        }
+    }
+
     public static final class Address 
     {
         private String city;
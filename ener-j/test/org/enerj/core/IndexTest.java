@@ -21,6 +21,7 @@
 
 package org.enerj.core;
 
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -34,6 +35,7 @@ import org.enerj.annotations.Indexes;
 import org.enerj.annotations.Persist;
 import org.odmg.Database;
 import org.odmg.Implementation;
+import org.odmg.ODMGRuntimeException;
 import org.odmg.Transaction;
 
 /**
@@ -318,6 +320,225 @@ public class IndexTest extends DatabaseTestCase
         }
     }
 
+    /**
+     * Tests that indexes are maintained when objects are stored by the write-behind thread.
+     */
+    public void testWriteBehind() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        db.setWriteBehindEnabled(true);
+
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.begin();
+        try {
+            for (int i = 0; i < 500; i++) {
+                db.makePersistent( new TestClass1(i, "wb" + i) );
+                // The amount can't be decoded from the image, so TestClass3 is fully loaded to create keys.
+                db.makePersistent( new TestClass3("wb" + i, new BigDecimal(i)) );
+                if ((i % 100) == 99) {
+                    db.flush();
+                }
+            }
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        db.setWriteBehindEnabled(true);
+        txn = (EnerJTransaction)impl.newTransaction();
+        txn.begin();
+        try {
+            IndexIterator<TestClass1> iter = db.getIndexIterator(TestClass1.class, "valueIndex", null, null);
+            while (iter.hasNext()) {
+                TestClass1 obj = iter.next();
+                obj.setValue( obj.getValue() + 1000 );
+            }
+            
+            iter.close();
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        txn = (EnerJTransaction)impl.newTransaction();
+        txn.begin();
+        try {
+            assertEquals(500L, db.getIndexKeyRangeSize(TestClass1.class, "valueIndex", null, null));
+            assertEquals(500L, db.getIndexKeyRangeSize(TestClass1.class, "stringIndex", null, null));
+            assertEquals(500L, db.getIndexKeyRangeSize(TestClass3.class, "amountIndex", null, null));
+            GenericKey key = new GenericKey(new Object[] { new BigDecimal(7) });
+            assertEquals(1L, db.getIndexKeyRangeSize(TestClass3.class, "amountIndex", key, key));
+            IndexIterator<TestClass1> iter = db.getIndexIterator(TestClass1.class, "valueIndex", null, null);
+            for (int i = 0; i < 500; i++) {
+                TestClass1 obj = iter.next();
+                assertEquals(i + 1000, obj.getValue());
+                assertEquals("wb" + i, obj.getString());
+            }
+            
+            assertFalse(iter.hasNext());
+            iter.close();
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+
+    /**
+     * Tests that indexes are complete after bulk loads, with and without deferred index updates.
+     */
+    public void testBulkLoad() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+
+        try {
+            // Deferred. The first load creates the indexes. 
+            List<TestClass1> objs = new ArrayList<TestClass1>();
+            for (int i = 0; i < 500; i++) {
+                objs.add( new TestClass1(i, "Obj" + i) );
+            }
+            
+            assertEquals(500L, db.bulkLoad(objs.iterator(), true));
+            
+            objs.clear();
+            for (int i = 500; i < 600; i++) {
+                objs.add( new TestClass1(i, "Obj" + i) );
+            }
+            
+            assertEquals(100L, db.bulkLoad(objs.iterator(), false));
+
+            objs.clear();
+            for (int i = 600; i < 700; i++) {
+                objs.add( new TestClass1(i, "Obj" + i) );
+            }
+            
+            assertEquals(100L, db.bulkLoad(objs.iterator(), true));
+        }
+        finally {
+            db.close();
+        }
+
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+
+        Transaction txn = impl.newTransaction();
+        txn.begin();
+        try {
+            assertEquals(700L, db.getIndexKeyRangeSize(TestClass1.class, "valueIndex", null, null));
+            assertEquals(700L, db.getIndexKeyRangeSize(TestClass1.class, "stringIndex", null, null));
+
+            IndexIterator<TestClass1> iter = db.getIndexIterator(TestClass1.class, "valueIndex", null, null);
+            int expectedValue = 0;
+            while (iter.hasNext()) {
+                TestClass1 obj = iter.next();
+                assertEquals(expectedValue, obj.getValue());
+                assertEquals("Obj" + expectedValue, obj.getString());
+                ++expectedValue;
+            }
+            
+            iter.close();
+            assertEquals(700, expectedValue);
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+
+    /**
+     * Tests equality lookups on hash indexes.
+     */
+    public void testHashIndex() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+
+        Transaction txn = impl.newTransaction();
+        txn.begin();
+        try {
+            for (int i = 0; i < 200; i++) {
+                db.makePersistent( new TestClass3("id-" + i, new BigDecimal(i % 50)) );
+            }
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+
+        // Re-open, look up and update keys.
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+
+        txn = impl.newTransaction();
+        txn.begin();
+        try {
+            assertEquals(200L, db.getIndexKeyRangeSize(TestClass3.class, "idIndex", null, null));
+
+            GenericKey key = new GenericKey(new Object[] { "id-7" });
+            IndexIterator<TestClass3> iter = db.getIndexIterator(TestClass3.class, "idIndex", key, key);
+            assertTrue(iter.hasNext());
+            TestClass3 obj = iter.next();
+            assertEquals("id-7", obj.getId());
+            assertFalse(iter.hasNext());
+            iter.close();
+            
+            obj.setId("changed");
+
+            key = new GenericKey(new Object[] { "id-200" });
+            assertEquals(0L, db.getIndexKeyRangeSize(TestClass3.class, "idIndex", key, key));
+            
+            // The amount is not encodable, so its key is serialized.
+            key = new GenericKey(new Object[] { new BigDecimal(3) });
+            iter = db.getIndexIterator(TestClass3.class, "amountIndex", key, key);
+            int count = 0;
+            while (iter.hasNext()) {
+                assertEquals(new BigDecimal(3), iter.next().getAmount());
+                ++count;
+            }
+            
+            iter.close();
+            assertEquals(4, count);
+            
+            try {
+                db.getIndexIterator(TestClass3.class, "idIndex", new GenericKey(new Object[] { "id-1" }), 
+                    new GenericKey(new Object[] { "id-2" }));
+                fail("Expected exception");
+            }
+            catch (ODMGRuntimeException e) {
+                // Expected
+            }
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+
+        txn = impl.newTransaction();
+        txn.begin();
+        try {
+            GenericKey key = new GenericKey(new Object[] { "id-7" });
+            assertEquals(0L, db.getIndexKeyRangeSize(TestClass3.class, "idIndex", key, key));
+            key = new GenericKey(new Object[] { "changed" });
+            assertEquals(1L, db.getIndexKeyRangeSize(TestClass3.class, "idIndex", key, key));
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+
     @Persist
     @Indexes( {
         @Index(name="stringIndex", properties={ "string" }),
@@ -365,4 +586,40 @@ public class IndexTest extends DatabaseTestCase
             return "value=" + mValue + " String=" + mString;
         }
     }
+
+    @Persist
+    @Indexes( {
+        @Index(type=Index.Type.Hash, name="idIndex", properties={ "id" }, allowDuplicateKeys=false),
+        @Index(type=Index.Type.Hash, name="amountIndex", properties={ "amount" })
+    } )
+    public static class TestClass3
+    {
+        private String mId;
+        private BigDecimal mAmount;
+        
+
+        TestClass3(String anId, BigDecimal anAmount)
+        {
+            mId = anId;
+            mAmount = anAmount;
+        }
+            
+
+        public String getId()
+        {
+            return mId;
+        }
+
+
+        public void setId(String anId)
+        {
+            mId = anId;
+        }
+
+
+        public BigDecimal getAmount()
+        {
+            return mAmount;
+        }
+    }
 }
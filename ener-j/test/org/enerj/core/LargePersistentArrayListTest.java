@@ -25,6 +25,7 @@
 package org.enerj.core;
 
 import java.util.Collection;
+import java.util.Arrays;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -66,6 +67,22 @@ public class LargePersistentArrayListTest extends TestCase
         //  TODO  test large lists to a real database
     }
 
+    
+    /**
+     * Tests that split() aligns ranges to leaf nodes.
+     */
+    public void testSplitAlignsToNodes() throws Exception
+    {
+        LargePersistentArrayList list = new LargePersistentArrayList(100);
+        list.resize(1050L);
+        long[] boundaries = list.split(4);
+        assertTrue( Arrays.equals(new long[] { 0L, 300L, 600L, 900L, 1050L }, boundaries) );
+
+        boundaries = list.split(100);
+        assertEquals(12, boundaries.length);
+        assertEquals(1000L, boundaries[10]);
+    }
+
 
     // Inner classes used to test interfaces and abstract classes.
 
@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.core;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.enerj.annotations.Index;
+import org.enerj.annotations.Indexes;
+import org.enerj.annotations.Persist;
+
+/**
+ * Tests PartialImageDecoder. <p>
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+public class PartialImageDecoderTest extends TestCase
+{
+    /**
+     * Construct a PartialImageDecoderTest. 
+     *
+     * @param name
+     */
+    public PartialImageDecoderTest(String name)
+    {
+        super(name);
+    }
+    
+    /**
+     * Tests decoding indexed fields from images in each format.
+     */
+    public void testDecode() throws Exception
+    {
+        TestClass2 obj = new TestClass2(42, "Dan", new Date(123456L));
+        IndexSchema indexSchema = new IndexSchema(TestClass2.class.getAnnotation(Indexes.class).value()[0], null);
+        PartialImageDecoder decoder = PartialImageDecoder.create(TestClass2.class, indexSchema.getProperties());
+        assertNotNull(decoder);
+        
+        int[] formats = { ObjectSerializer.IMAGE_FORMAT_V1, ObjectSerializer.IMAGE_FORMAT_V2 };
+        for (int format : formats) {
+            ImageWriter writer = new ImageWriter(format);
+            int offset = writer.write((Persistable)(Object)obj);
+            byte[] image = writer.getImageCopy(offset);
+            
+            Object[] components = decoder.decode( ((Persistable)(Object)obj).enerj_GetPrivateOID(), image, format);
+            assertEquals(4, components.length);
+            assertEquals("Dan", components[0]);
+            assertEquals(Integer.valueOf(42), components[1]);
+            assertEquals(new Date(123456L), components[2]);
+            assertEquals(Long.valueOf(-7L), components[3]);
+            
+            // Keys are the same as those created from the object.
+            assertEquals(0, GenericKey.createKey(indexSchema, obj).compareTo( new GenericKey(components) ));
+        }
+        
+        assertNotNull( PartialImageDecoder.create(IndexTest.TestClass1.class, new String[] { "value", "string" }) );
+    }
+    
+    /**
+     * Tests properties that cannot be decoded from the image.
+     */
+    public void testNotDecodable() throws Exception
+    {
+        // Getter doesn't just return a field.
+        assertNull( PartialImageDecoder.create(TestClass2.class, new String[] { "number", "upperName" }) );
+        // Transient field.
+        assertNull( PartialImageDecoder.create(TestClass2.class, new String[] { "cached" }) );
+        // Not a key type.
+        assertNull( PartialImageDecoder.create(TestClass2.class, new String[] { "names" }) );
+        // Nested or unknown property.
+        assertNull( PartialImageDecoder.create(TestClass2.class, new String[] { "date.time" }) );
+        assertNull( PartialImageDecoder.create(TestClass2.class, new String[] { "unknown" }) );
+        // Not enhanced.
+        assertNull( PartialImageDecoder.create(GenericKeyTest.Employee.class, new String[] { "firstName" }) );
+    }
+
+
+    @Persist
+    public static class TestBase
+    {
+        private long mBase = -7L;
+        
+        public long getBase()
+        {
+            return mBase;
+        }
+    }
+
+
+    @Persist
+    @Indexes( {
+        @Index(name="decoded", properties={ "name", "number", "date", "base" } )
+    } )
+    public static class TestClass2 extends TestBase
+    {
+        private List<String> mNames = new ArrayList<String>();
+        private int mNumber;
+        private double mSkipped = 1.5;
+        private String mName;
+        private Date mDate;
+        private String mTail = "tail";
+        private transient String mCached = "cached";
+        
+        TestClass2(int aNumber, String aName, Date aDate)
+        {
+            mNumber = aNumber;
+            mName = aName;
+            mDate = aDate;
+            mNames.add(aName);
+        }
+        
+        public List<String> getNames()
+        {
+            return mNames;
+        }
+        
+        public int getNumber()
+        {
+            return mNumber;
+        }
+        
+        public String getName()
+        {
+            return mName;
+        }
+        
+        public String getUpperName()
+        {
+            return mName.toUpperCase();
+        }
+        
+        public Date getDate()
+        {
+            return mDate;
+        }
+        
+        public String getCached()
+        {
+            return mCached;
+        }
+        
+        public String getTail()
+        {
+            return mTail;
+        }
+        
+        public double getSkipped()
+        {
+            return mSkipped;
+        }
+    }
+}
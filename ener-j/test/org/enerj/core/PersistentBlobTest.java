@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.core;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import org.enerj.annotations.Persist;
+import org.odmg.Database;
+import org.odmg.Implementation;
+
+/**
+ * Tests PersistentBlob.
+ *
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+public class PersistentBlobTest extends DatabaseTestCase
+{
+    private static final int CHUNK_SIZE = 1000;
+    
+    
+    public PersistentBlobTest(String aTestName) 
+    {
+        super(aTestName);
+    }
+    
+
+    public static Test suite() 
+    {
+        return new TestSuite(PersistentBlobTest.class);
+    }
+
+
+    /**
+     * Tests reading and writing content across transactions.
+     */
+    public void testReadWrite() throws Exception
+    {
+        byte[] expected = new byte[5500];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte)(i * 7);
+        }
+        
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.begin(db);
+        try {
+            PersistentBlob blob = new PersistentBlob(CHUNK_SIZE);
+            OutputStream out = blob.getOutputStream(0);
+            // Byte-at-a-time, then a bulk write larger than a chunk.
+            for (int i = 0; i < 10; i++) {
+                out.write(expected[i]);
+            }
+            
+            out.write(expected, 10, expected.length - 10);
+            out.close();
+            assertEquals(expected.length, blob.length());
+            db.bind(new Document("Title", blob), "document");
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        db.setMetricsEnabled(true);
+        txn.begin(db);
+        try {
+            Document document = (Document)db.lookup("document");
+            assertEquals("Title", document.getTitle());
+            PersistentBlob blob = document.getBlob();
+            assertEquals(expected.length, blob.length());
+            // The chunks have not been loaded yet.
+            long objectsLoaded = db.getMetrics().getObjectsLoaded();
+            for (String count : db.getMetrics().getHollowFaultsByClass()) {
+                assertFalse(count, count.contains("Chunk"));
+            }
+            
+            byte[] actual = new byte[expected.length];
+            InputStream in = blob.getInputStream();
+            int length = 0;
+            int numRead;
+            while ((numRead = in.read(actual, length, Math.min(700, actual.length - length))) > 0) {
+                length += numRead;
+            }
+            
+            assertEquals(expected.length, length);
+            assertEquals(-1, in.read());
+            assertTrue( Arrays.equals(expected, actual) );
+            assertTrue(db.getMetrics().getObjectsLoaded() > objectsLoaded);
+            
+            // A direct buffer across a chunk boundary.
+            ByteBuffer buffer = ByteBuffer.allocateDirect(200);
+            assertEquals(200, blob.read(1900, buffer));
+            assertFalse( buffer.hasRemaining() );
+            buffer.flip();
+            for (int i = 0; i < 200; i++) {
+                assertEquals(expected[1900 + i], buffer.get());
+            }
+            
+            // Overwrite a range, then write beyond the end leaving a gap.
+            byte[] range = new byte[1500];
+            Arrays.fill(range, (byte)-1);
+            blob.write(2500, ByteBuffer.wrap(range));
+            System.arraycopy(range, 0, expected, 2500, range.length);
+            blob.write(7000, new byte[] { 1, 2, 3 }, 0, 3);
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+        
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        txn.begin(db);
+        try {
+            PersistentBlob blob = ((Document)db.lookup("document")).getBlob();
+            assertEquals(7003, blob.length());
+            byte[] actual = new byte[7003];
+            assertEquals(actual.length, blob.read(0, actual, 0, actual.length));
+            byte[] written = new byte[expected.length];
+            System.arraycopy(actual, 0, written, 0, written.length);
+            assertTrue( Arrays.equals(expected, written) );
+            byte[] gap = new byte[7000 - expected.length];
+            System.arraycopy(actual, expected.length, gap, 0, gap.length);
+            assertTrue( Arrays.equals(new byte[gap.length], gap) );
+            assertEquals(3, actual[7002]);
+            assertEquals(-1, blob.read(7003, actual, 0, 1));
+            
+            InputStream in = blob.getInputStream(7000);
+            assertEquals(3, in.skip(5));
+            assertEquals(-1, in.read());
+            
+            // Truncated bytes read as zeros when the content is extended again.
+            blob.truncate(2600);
+            assertEquals(2600, blob.length());
+            blob.write(2700, new byte[] { 9 }, 0, 1);
+            ByteBuffer buffer = ByteBuffer.allocate(101);
+            assertEquals(101, blob.read(2600, buffer));
+            for (int i = 0; i < 100; i++) {
+                assertEquals(0, buffer.get(i));
+            }
+            
+            assertEquals(9, buffer.get(100));
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+    
+
+    @Persist
+    private static class Document
+    {
+        private String mTitle;
+        private PersistentBlob mBlob;
+        
+
+        Document(String aTitle, PersistentBlob aBlob)
+        {
+            mTitle = aTitle;
+            mBlob = aBlob;
+        }
+        
+
+        String getTitle()
+        {
+            return mTitle;
+        }
+        
+
+        PersistentBlob getBlob()
+        {
+            return mBlob;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.core;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.enerj.server.ObjectServerSession;
+import org.enerj.server.SerializedObject;
+import org.odmg.ODMGException;
+import org.odmg.ODMGRuntimeException;
+
+/**
+ * Tests WriteBehindSessionProxy. <p>
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+public class WriteBehindSessionProxyTest extends TestCase
+{
+    /**
+     * Construct a WriteBehindSessionProxyTest. 
+     *
+     * @param name
+     */
+    public WriteBehindSessionProxyTest(String name)
+    {
+        super(name);
+    }
+
+    private static SerializedObject createObject(long anOID, boolean isNew, boolean isDelta)
+    {
+        SerializedObject object = new SerializedObject(anOID, 1L, new byte[] { (byte)anOID }, isNew, 1L);
+        object.setIsDelta(isDelta);
+        return object;
+    }
+    
+    public void testCoalesce() throws Exception
+    {
+        RecordingSession recorder = new RecordingSession();
+        ObjectServerSession session = WriteBehindSessionProxy.newInstance(recorder.createSession(), null, 10);
+        
+        // Hold the first batch so that later batches are pending.
+        recorder.block();
+        session.storeObjects( new SerializedObject[] { createObject(1, true, false) } );
+        recorder.waitForStoreToStart();
+        
+        SerializedObject obj2New = createObject(2, true, false);
+        SerializedObject obj3 = createObject(3, false, false);
+        session.storeObjects( new SerializedObject[] { obj2New, obj3 } );
+        
+        // 1 is being stored, so it is not replaced. 2 is replaced by a full image. 3 cannot be replaced by a delta.
+        SerializedObject obj1 = createObject(1, false, false);
+        SerializedObject obj2 = createObject(2, false, false);
+        SerializedObject obj3Delta = createObject(3, false, true);
+        // Same OID twice in one batch.
+        SerializedObject obj4a = createObject(4, true, false);
+        SerializedObject obj4b = createObject(4, false, false);
+        session.storeObjects( new SerializedObject[] { obj1, obj2, obj3Delta, obj4a, obj4b } );
+        assertTrue( obj2.isNew() );
+        assertTrue( obj4b.isNew() );
+        
+        recorder.unblock();
+        session.commitTransaction();
+        
+        List<SerializedObject[]> batches = recorder.getBatches();
+        assertEquals(3, batches.size());
+        assertEquals(1, batches.get(0).length);
+        assertEquals(1, batches.get(1).length);
+        assertSame(obj3, batches.get(1)[0]);
+        assertEquals(4, batches.get(2).length);
+        assertSame(obj1, batches.get(2)[0]);
+        assertSame(obj2, batches.get(2)[1]);
+        assertSame(obj3Delta, batches.get(2)[2]);
+        assertSame(obj4b, batches.get(2)[3]);
+        assertEquals("commitTransaction", recorder.getLastMethodName());
+        
+        session.disconnect();
+    }
+    
+    public void testFailure() throws Exception
+    {
+        RecordingSession recorder = new RecordingSession();
+        recorder.setFailStores(true);
+        ObjectServerSession session = WriteBehindSessionProxy.newInstance(recorder.createSession(), null, 1);
+        
+        session.storeObjects( new SerializedObject[] { createObject(1, true, false) } );
+        try {
+            session.commitTransaction();
+            fail("Expected exception");
+        }
+        catch (ODMGRuntimeException e) {
+            // Expected
+        }
+
+        assertNull( recorder.getLastMethodName() );
+
+        try {
+            session.storeObjects( new SerializedObject[] { createObject(2, true, false) } );
+            fail("Expected exception");
+        }
+        catch (ODMGException e) {
+            // Expected
+        }
+
+        // Rollback clears the failure.
+        session.rollbackTransaction();
+        assertEquals("rollbackTransaction", recorder.getLastMethodName());
+        
+        recorder.setFailStores(false);
+        session.storeObjects( new SerializedObject[] { createObject(3, true, false) } );
+        session.commitTransaction();
+        assertEquals(1, recorder.getBatches().size());
+        
+        session.disconnect();
+    }
+    
+    public void testRollbackDiscardsPendingBatches() throws Exception
+    {
+        final RecordingSession recorder = new RecordingSession();
+        ObjectServerSession session = WriteBehindSessionProxy.newInstance(recorder.createSession(), null, 10);
+        
+        recorder.block();
+        session.storeObjects( new SerializedObject[] { createObject(1, true, false) } );
+        recorder.waitForStoreToStart();
+        session.storeObjects( new SerializedObject[] { createObject(2, true, false) } );
+        
+        // Unblock the store in progress after the rollback discards the pending batch.
+        new Thread() {
+            public void run()
+            {
+                try {
+                    Thread.sleep(100);
+                }
+                catch (InterruptedException e) {
+                    // Ignore
+                }
+                
+                recorder.unblock();
+            }
+        }.start();
+        
+        session.rollbackTransaction();
+        assertEquals(1, recorder.getBatches().size());
+        assertEquals(1L, recorder.getBatches().get(0)[0].getOID());
+        
+        session.disconnect();
+    }
+
+
+    /**
+     * Records the calls to a dynamic proxy ObjectServerSession. Stores can be blocked or failed.
+     */
+    private static final class RecordingSession implements InvocationHandler
+    {
+        private List<SerializedObject[]> mBatches = new ArrayList<SerializedObject[]>();
+        private String mLastMethodName = null;
+        private boolean mIsBlocked = false;
+        private boolean mIsStoreStarted = false;
+        private boolean mFailStores = false;
+        
+
+        ObjectServerSession createSession()
+        {
+            return (ObjectServerSession)Proxy.newProxyInstance(ObjectServerSession.class.getClassLoader(),
+                            new Class[] { ObjectServerSession.class }, this);
+        }
+        
+
+        synchronized void block()
+        {
+            mIsBlocked = true;
+            mIsStoreStarted = false;
+        }
+        
+
+        synchronized void unblock()
+        {
+            mIsBlocked = false;
+            notifyAll();
+        }
+        
+
+        synchronized void waitForStoreToStart() throws InterruptedException
+        {
+            while (!mIsStoreStarted) {
+                wait();
+            }
+        }
+        
+
+        synchronized void setFailStores(boolean shouldFail)
+        {
+            mFailStores = shouldFail;
+        }
+        
+
+        synchronized List<SerializedObject[]> getBatches()
+        {
+            return mBatches;
+        }
+
+
+        synchronized String getLastMethodName()
+        {
+            return mLastMethodName;
+        }
+        
+
+        public synchronized Object invoke(Object aProxy, Method aMethod, Object[] someArgs) throws Throwable
+        {
+            if (!aMethod.getName().equals("storeObjects")) {
+                mLastMethodName = aMethod.getName();
+                return null;
+            }
+
+            mIsStoreStarted = true;
+            notifyAll();
+            while (mIsBlocked) {
+                wait();
+            }
+            
+            if (mFailStores) {
+                throw new ODMGException("Store failed");
+            }
+            
+            mBatches.add( (SerializedObject[])someArgs[0] );
+            return null;
+        }
+    }
+}
@@ -24,7 +24,15 @@
 
 package org.enerj.sco;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
@@ -41,6 +49,8 @@ import org.enerj.annotations.Persist;
 import org.enerj.core.DatabaseTestCase;
 import org.enerj.core.EnerJDatabase;
 import org.enerj.core.EnerJImplementation;
+import org.enerj.core.EnerJTransaction;
+import org.enerj.core.ObjectSerializer;
 import org.enerj.core.Persistable;
 import org.enerj.core.PersistableHelper;
 
@@ -118,6 +128,281 @@ public class SCOTest extends DatabaseTestCase
 
 
 
+    /**
+     * Tests that large ArrayLists and HashMaps are decoded on first access.
+     *
+     * @throws Exception when something unexpected occurs.
+     */
+    public void testLazySCOs() throws Exception
+    {
+        EnerJImplementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase database = (EnerJDatabase)impl.newDatabase();
+        database.open(DATABASE_URI, EnerJDatabase.OPEN_READ_WRITE);
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.begin(database);
+        try {
+            database.bind(new TestClass2(1, 1000), "lazySCOs");
+        }
+        finally {
+            txn.commit();
+            database.close();
+        }
+
+        // Change the owner without touching its collections.
+        database.open(DATABASE_URI, EnerJDatabase.OPEN_READ_WRITE);
+        txn.begin(database);
+        try {
+            TestClass2 obj = (TestClass2)database.lookup("lazySCOs");
+            assertEquals(1, obj.getValue());
+            assertNotNull( ((LazySCO)getField(obj, "mMap")).getUnloadedImage() );
+            assertNotNull( ((LazySCO)getField(obj, "mList")).getUnloadedImage() );
+            assertNull( ((LazySCO)getField(obj, "mSmallList")).getUnloadedImage() );
+            obj.setValue(2);
+        }
+        finally {
+            txn.commit();
+            database.close();
+        }
+
+        // The unchanged collections were copied. Change the collections.
+        database.open(DATABASE_URI, EnerJDatabase.OPEN_READ_WRITE);
+        txn.begin(database);
+        try {
+            TestClass2 obj = (TestClass2)database.lookup("lazySCOs");
+            assertEquals(2, obj.getValue());
+            obj.checkValues(1000);
+            assertNull( ((LazySCO)obj.getMap()).getUnloadedImage() );
+            
+            Persistable persistable = (Persistable)(Object)obj;
+            assertFalse( persistable.enerj_IsModified() );
+            obj.getMap().put(1000, "1000");
+            assertTrue( persistable.enerj_IsModified() );
+            obj.getList().add("1000");
+        }
+        finally {
+            txn.commit();
+            database.close();
+        }
+
+        database.open(DATABASE_URI, EnerJDatabase.OPEN_READ_WRITE);
+        txn.begin(database);
+        try {
+            TestClass2 obj = (TestClass2)database.lookup("lazySCOs");
+            obj.checkValues(1001);
+            
+            // Clearing does not decode.
+            obj = obj.getChild();
+            assertEquals(1, obj.getValue());
+            List list = (List)getField(obj, "mList");
+            assertNotNull( ((LazySCO)list).getUnloadedImage() );
+            list.clear();
+            assertNull( ((LazySCO)list).getUnloadedImage() );
+            assertTrue( obj.getList().isEmpty() );
+        }
+        finally {
+            txn.commit();
+            database.close();
+        }
+    }
+    
+
+    /**
+     * Tests that large ArrayLists and HashMaps are decoded before the application can reach
+     * methods that they do not override.
+     *
+     * @throws Exception when something unexpected occurs.
+     */
+    public void testLazySCOsDecodedOnAccess() throws Exception
+    {
+        EnerJImplementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase database = (EnerJDatabase)impl.newDatabase();
+        database.open(DATABASE_URI, EnerJDatabase.OPEN_READ_WRITE);
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.begin(database);
+        try {
+            database.bind(new TestClass2(1, 1000), "lazySCOs");
+            database.bind(new TestClass3(100), "nestedLazySCOs");
+        }
+        finally {
+            txn.commit();
+            database.close();
+        }
+
+        database.open(DATABASE_URI, EnerJDatabase.OPEN_READ_WRITE);
+        txn.begin(database);
+        try {
+            TestClass2 obj = (TestClass2)database.lookup("lazySCOs");
+            assertEquals(1, obj.getValue());
+            
+            // Methods added to HashMap after the SCO was written, called on an undecoded map 
+            // through the field's accessor.
+            obj = obj.getChild();
+            assertEquals(1, obj.getValue());
+            assertNotNull( ((LazySCO)getField(obj, "mMap")).getUnloadedImage() );
+            Method getOrDefault = getMethod(HashMap.class, "getOrDefault", Object.class, Object.class);
+            if (getOrDefault != null) {
+                assertEquals("50", getOrDefault.invoke(obj.getMap(), 50, null));
+                Method putIfAbsent = getMethod(HashMap.class, "putIfAbsent", Object.class, Object.class);
+                assertEquals("50", putIfAbsent.invoke(obj.getMap(), 50, "x"));
+                assertNull( putIfAbsent.invoke(obj.getMap(), 100, "100") );
+                assertEquals(101, obj.getMap().size());
+                assertEquals("50", obj.getMap().get(50));
+            }
+            
+            // Lazy collections nested in another collection are decoded when it is.
+            TestClass3 nested = (TestClass3)database.lookup("nestedLazySCOs");
+            nested.checkLists(nested.getLists(), 2, 100);
+            
+            // Java serialization writes the inherited storage directly.
+            List lists = (List)getField(nested, "mManyLists");
+            assertNotNull( ((LazySCO)lists).getUnloadedImage() );
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(lists);
+            out.close();
+            List copy = (List)new ObjectInputStream( new ByteArrayInputStream(bytes.toByteArray()) ).readObject();
+            nested.checkLists(copy, 100, 100);
+            nested.checkLists(nested.getManyLists(), 100, 100);
+        }
+        finally {
+            txn.commit();
+            database.close();
+        }
+    }
+    
+
+    /**
+     * Tests that the lazy collections of an owner retained after commit can be decoded 
+     * outside of a transaction.
+     *
+     * @throws Exception when something unexpected occurs.
+     */
+    public void testLazySCOsDecodedOutsideTransaction() throws Exception
+    {
+        EnerJImplementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase database = (EnerJDatabase)impl.newDatabase();
+        database.open(DATABASE_URI, EnerJDatabase.OPEN_READ_WRITE);
+        EnerJTransaction txn = (EnerJTransaction)impl.newTransaction();
+        txn.begin(database);
+        try {
+            database.bind(new TestClass2(1, 1000), "lazySCOs");
+        }
+        finally {
+            txn.commit();
+            database.close();
+        }
+
+        database.open(DATABASE_URI, EnerJDatabase.OPEN_READ_WRITE);
+        try {
+            TestClass2 obj;
+            txn.begin(database);
+            try {
+                obj = (TestClass2)database.lookup("lazySCOs");
+                assertEquals(1, obj.getValue());
+                assertNotNull( ((LazySCO)getField(obj, "mList")).getUnloadedImage() );
+            }
+            finally {
+                txn.commit();
+            }
+
+            // The retained list refers to its FCO element without a transaction.
+            List list = obj.getList();
+            assertNull( ((LazySCO)list).getUnloadedImage() );
+            assertEquals(1000, list.size());
+            assertEquals("999", list.get(999));
+            Object child = list.get(10);
+            assertTrue(child instanceof TestClass2);
+            
+            txn.begin(database);
+            try {
+                assertEquals(1, ((TestClass2)child).getValue());
+                assertEquals(100, ((TestClass2)child).getMap().size());
+            }
+            finally {
+                txn.commit();
+            }
+        }
+        finally {
+            database.close();
+        }
+    }
+    
+
+    /**
+     * Tests that large collections are written with their regular type ids in the V1 image format.
+     *
+     * @throws Exception when something unexpected occurs.
+     */
+    public void testNoLazySCOsInV1Images() throws Exception
+    {
+        Persistable owner = (Persistable)(Object)new TestClass2(1, 0);
+        ArrayList<Object> smallList = new ArrayList<Object>();
+        smallList.add("small");
+        HashMap<Integer, String> smallMap = new HashMap<Integer, String>();
+        smallMap.put(1, "small");
+        TestClass2 large = new TestClass2(1, 1000);
+        
+        assertEquals(getV1TypeId(smallList, owner), getV1TypeId(large.getList(), owner));
+        assertEquals(getV1TypeId(smallMap, owner), getV1TypeId(large.getMap(), owner));
+    }
+
+
+    /**
+     * Gets the type id written for a SCO in the V1 image format.
+     *
+     * @param aValue the SCO.
+     * @param anOwner the SCO's owner.
+     * 
+     * @return the type id.
+     * 
+     * @throws Exception when something unexpected occurs.
+     */
+    private static byte getV1TypeId(Object aValue, Persistable anOwner) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new ObjectSerializer( new DataOutputStream(bytes) ).writeObject(aValue, anOwner);
+        return bytes.toByteArray()[0];
+    }
+
+
+    /**
+     * Gets the value of a field of an object without going through the field's enhanced accessor.
+     *
+     * @param anObject the object. It must be loaded.
+     * @param aFieldName the field's name.
+     * 
+     * @return the value.
+     * 
+     * @throws Exception when something unexpected occurs.
+     */
+    private static Object getField(Object anObject, String aFieldName) throws Exception
+    {
+        Field field = anObject.getClass().getDeclaredField(aFieldName);
+        field.setAccessible(true);
+        return field.get(anObject);
+    }
+
+
+    /**
+     * Gets a public method that may not exist in the running JDK.
+     *
+     * @param aClass the class declaring the method.
+     * @param aMethodName the method name.
+     * @param someParameterTypes the parameter types.
+     * 
+     * @return the method, or null if it does not exist.
+     */
+    private static Method getMethod(Class aClass, String aMethodName, Class... someParameterTypes)
+    {
+        try {
+            return aClass.getMethod(aMethodName, someParameterTypes);
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+    
+
     @Persist
     private static class TestClass1
     {
@@ -570,4 +855,144 @@ public class SCOTest extends DatabaseTestCase
             assertTrue("Owner should be modified", persistable.enerj_IsModified());
         }
     }
+
+
+    @Persist
+    private static class TestClass2
+    {
+        private int mValue;
+        private HashMap<Integer, String> mMap;
+        private ArrayList<Object> mList;
+        private ArrayList<Object> mSmallList;
+        private TestClass2 mChild;
+        
+
+        TestClass2(int aValue, int aSize)
+        {
+            mValue = aValue;
+            mMap = new HashMap<Integer, String>();
+            mList = new ArrayList<Object>();
+            for (int i = 0; i < aSize; i++) {
+                mMap.put(i, String.valueOf(i));
+                mList.add( String.valueOf(i) );
+            }
+            
+            mSmallList = new ArrayList<Object>();
+            mSmallList.add("small");
+            if (aSize > 100) {
+                mChild = new TestClass2(aValue, 100);
+                mList.set(10, mChild);
+            }
+        }
+
+
+        int getValue()
+        {
+            return mValue;
+        }
+
+
+        void setValue(int aValue)
+        {
+            mValue = aValue;
+        }
+
+
+        HashMap<Integer, String> getMap()
+        {
+            return mMap;
+        }
+
+
+        ArrayList<Object> getList()
+        {
+            return mList;
+        }
+
+
+        ArrayList<Object> getSmallList()
+        {
+            return mSmallList;
+        }
+
+
+        TestClass2 getChild()
+        {
+            return mChild;
+        }
+        
+        
+        void checkValues(int aSize)
+        {
+            assertEquals(aSize, mMap.size());
+            assertEquals(aSize, mList.size());
+            for (int i = 0; i < aSize; i++) {
+                assertEquals(String.valueOf(i), mMap.get(i));
+                if (i != 10) {
+                    assertEquals(String.valueOf(i), mList.get(i));
+                }
+            }
+            
+            assertSame(mChild, mList.get(10));
+            assertEquals(100, mChild.getMap().size());
+            assertEquals("small", mSmallList.get(0));
+        }
+    }
+
+
+    @Persist
+    private static class TestClass3 implements Serializable
+    {
+        private ArrayList<Object> mLists;
+        private ArrayList<Object> mManyLists;
+        
+
+        TestClass3(int aSize)
+        {
+            mLists = createLists(2, aSize);
+            mManyLists = createLists(100, aSize);
+        }
+        
+        
+        private static ArrayList<Object> createLists(int aListCount, int aSize)
+        {
+            ArrayList<Object> lists = new ArrayList<Object>();
+            for (int i = 0; i < aListCount; i++) {
+                ArrayList<Object> list = new ArrayList<Object>();
+                for (int j = 0; j < aSize; j++) {
+                    list.add( String.valueOf(j) );
+                }
+                
+                lists.add(list);
+            }
+            
+            return lists;
+        }
+
+
+        ArrayList<Object> getLists()
+        {
+            return mLists;
+        }
+
+
+        ArrayList<Object> getManyLists()
+        {
+            return mManyLists;
+        }
+        
+        
+        void checkLists(List someLists, int aListCount, int aSize)
+        {
+            assertEquals(aListCount, someLists.size());
+            for (Object list : someLists) {
+                if (list instanceof LazySCO) {
+                    assertNull( ((LazySCO)list).getUnloadedImage() );
+                }
+                
+                assertEquals(aSize, ((List)list).size());
+                assertEquals(String.valueOf(aSize - 1), ((List)list).get(aSize - 1));
+            }
+        }
+    }
 }
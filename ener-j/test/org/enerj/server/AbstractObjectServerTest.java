@@ -199,6 +199,36 @@ public abstract class AbstractObjectServerTest extends TestCase
     }
     
 
+    /**
+     * Tests returnUnusedOIDXs.
+     */
+    public void testReturnUnusedOIDXs() throws Exception
+    {
+        mSession.beginTransaction();
+        long[] oids1 = mSession.getNewOIDXBlock(10);
+        long[] unused = new long[5];
+        System.arraycopy(oids1, 5, unused, 0, 5);
+        mSession.returnUnusedOIDXs(unused);
+        mSession.commitTransaction();
+
+        mSession.beginTransaction();
+        long[] oids2 = mSession.getNewOIDXBlock(10);
+        verifyOIDs(oids2);
+        int numReused = 0;
+        for (int i = 0; i < oids2.length; i++) {
+            for (int j = 0; j < oids1.length; j++) {
+                if (oids2[i] == oids1[j]) {
+                    assertTrue(j >= 5);
+                    ++numReused;
+                }
+            }
+        }
+
+        assertEquals(5, numReused);
+        mSession.commitTransaction();
+    }
+
+
     /**
      * Tests getNewOIDBlock and getCIDForOID.
      */
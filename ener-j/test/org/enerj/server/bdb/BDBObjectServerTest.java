@@ -0,0 +1,589 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.server.bdb;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import org.enerj.annotations.Index;
+import org.enerj.annotations.Indexes;
+import org.enerj.annotations.Persist;
+import org.enerj.core.DatabaseTestCase;
+import org.enerj.core.EnerJDatabase;
+import org.enerj.core.EnerJImplementation;
+import org.enerj.core.GenericKey;
+import org.enerj.core.ImageWriter;
+import org.enerj.core.IndexIterator;
+import org.enerj.core.ObjectSerializer;
+import org.enerj.core.Persistable;
+import org.enerj.core.PersistableHelper;
+import org.odmg.Database;
+import org.odmg.Implementation;
+import org.odmg.Transaction;
+
+import com.sleepycatje.bind.tuple.IntegerBinding;
+import com.sleepycatje.bind.tuple.LongBinding;
+import com.sleepycatje.je.Cursor;
+import com.sleepycatje.je.DatabaseConfig;
+import com.sleepycatje.je.DatabaseEntry;
+import com.sleepycatje.je.Environment;
+import com.sleepycatje.je.EnvironmentConfig;
+import com.sleepycatje.je.OperationStatus;
+import com.sleepycatje.je.SecondaryConfig;
+import com.sleepycatje.je.SecondaryDatabase;
+import com.sleepycatje.je.SecondaryKeyCreator;
+
+/**
+ * Tests BDBObjectServer, including databases written by older versions. <p>
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+public class BDBObjectServerTest extends DatabaseTestCase
+{
+    public BDBObjectServerTest(String aTestName) 
+    {
+        super(aTestName);
+    }
+    
+
+    public static Test suite() 
+    {
+        return new TestSuite(BDBObjectServerTest.class);
+    }
+    
+    
+    /**
+     * Opens the BDB environment of the test database directly. The database must be closed.
+     */
+    private static Environment openEnvironment() throws Exception
+    {
+        EnvironmentConfig envConfig = new EnvironmentConfig();
+        envConfig.setTransactional(true);
+        return new Environment( new File(System.getProperty("enerj.dbpath"), DATABASE_URI), envConfig);
+    }
+
+
+    /**
+     * Tests that a database whose object records don't have versions, the layout before versions 
+     * were stored, is converted when it is opened.
+     */
+    public void testConvertRecordFormat() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        // Versionless records always held V1 images.
+        Field imageWriterField = EnerJDatabase.class.getDeclaredField("mImageWriter");
+        imageWriterField.setAccessible(true);
+        imageWriterField.set(db, new ImageWriter(ObjectSerializer.IMAGE_FORMAT_V1) );
+        Transaction txn = impl.newTransaction();
+        txn.begin();
+        try {
+            for (int i = 0; i < 3; i++) {
+                db.bind(new TestClass1("Object" + i, i), "Object" + i);
+            }
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+
+        // Rewrite every record as [image][CID] and remove the format database.
+        Environment env = openEnvironment();
+        try {
+            DatabaseConfig dbConfig = new DatabaseConfig();
+            dbConfig.setTransactional(true);
+            com.sleepycatje.je.Database bdbDB = env.openDatabase(null, DATABASE_URI, dbConfig);
+            com.sleepycatje.je.Transaction bdbTxn = env.beginTransaction(null, null);
+            Cursor cursor = bdbDB.openCursor(bdbTxn, null);
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry data = new DatabaseEntry();
+            DatabaseEntry sequenceKey = new DatabaseEntry();
+            new OIDKeyTupleBinding(true).objectToEntry( new OIDKey(0, BaseObjectServer.NEXT_OID_NUM_OID), sequenceKey);
+            int numRecords = 0;
+            try {
+                while (cursor.getNext(key, data, null) == OperationStatus.SUCCESS) {
+                    if (key.equals(sequenceKey)) {
+                        continue;
+                    }
+                    
+                    byte[] record = new byte[data.getSize() - 8];
+                    System.arraycopy(data.getData(), data.getOffset(), record, 0, record.length - 8);
+                    System.arraycopy(data.getData(), data.getOffset() + data.getSize() - 8, record, record.length - 8, 8);
+                    cursor.putCurrent( new DatabaseEntry(record) );
+                    ++numRecords;
+                }
+            }
+            finally {
+                cursor.close();
+                bdbTxn.commit();
+                bdbDB.close();
+            }
+            
+            assertTrue(numRecords > 3);
+            env.removeDatabase(null, DATABASE_URI + ":Format");
+        }
+        finally {
+            env.close();
+        }
+
+        // Objects are readable and updatable after the conversion.
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        txn = impl.newTransaction();
+        txn.begin();
+        try {
+            for (int i = 0; i < 3; i++) {
+                TestClass1 obj = (TestClass1)db.lookup("Object" + i);
+                assertEquals("Object" + i, obj.getName());
+                assertEquals(i, obj.getValue());
+                obj.setValue(i + 10);
+            }
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        txn = impl.newTransaction();
+        txn.begin();
+        try {
+            for (int i = 0; i < 3; i++) {
+                TestClass1 obj = (TestClass1)db.lookup("Object" + i);
+                assertEquals("Object" + i, obj.getName());
+                assertEquals(i + 10, obj.getValue());
+            }
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+
+
+    /**
+     * Tests that a {@link Index.Type#Hash} index created before hash indexes were supported, which
+     * is a regular index, is still used as one when it is opened.
+     */
+    public void testLegacyHashIndex() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        
+        final Map<Long, Object[]> keys = new HashMap<Long, Object[]>();
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        Transaction txn = impl.newTransaction();
+        txn.begin();
+        try {
+            for (int i = 0; i < 100; i++) {
+                TestClass2 obj = new TestClass2("id-" + i, new BigDecimal(i % 10));
+                db.makePersistent(obj);
+                keys.put(db.getOID(obj), new Object[] { obj.getId(), obj.getAmount() });
+            }
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+
+        // Rebuild the indexes as they were built before hash indexes were supported: encoded keys if 
+        // possible, otherwise serialized keys compared by GenericKeyBDBComparator.
+        Environment env = openEnvironment();
+        try {
+            DatabaseConfig dbConfig = new DatabaseConfig();
+            dbConfig.setTransactional(true);
+            com.sleepycatje.je.Database bdbDB = env.openDatabase(null, DATABASE_URI, dbConfig);
+            try {
+                String[] indexNames = { "idIndex", "amountIndex" };
+                for (int i = 0; i < indexNames.length; i++) {
+                    final int component = i;
+                    final boolean encoded = (i == 0);
+                    String indexDBName = DATABASE_URI + ':' + TestClass2.class.getName() + ':' + indexNames[i];
+                    env.removeDatabase(null, indexDBName);
+                    
+                    SecondaryConfig indexConfig = new SecondaryConfig();
+                    indexConfig.setAllowCreate(true);
+                    indexConfig.setTransactional(true);
+                    indexConfig.setAllowPopulate(true);
+                    indexConfig.setSortedDuplicates(!encoded);
+                    if (!encoded) {
+                        indexConfig.setBtreeComparator(GenericKeyBDBComparator.class);
+                    }
+                    
+                    indexConfig.setKeyCreator( new SecondaryKeyCreator() {
+                        public boolean createSecondaryKey(SecondaryDatabase anIndexDB, DatabaseEntry aKey, 
+                                        DatabaseEntry aData, DatabaseEntry aResult)
+                        {
+                            long oid = ((OIDKey)new OIDKeyTupleBinding(true).entryToObject(aKey)).getOID();
+                            Object[] objKeys = keys.get(oid);
+                            if (objKeys == null) {
+                                return false;
+                            }
+                            
+                            Object[] components = { objKeys[component] };
+                            if (encoded) {
+                                aResult.setData( GenericKeyEncoder.encode(components, false) );
+                            }
+                            else {
+                                aResult.setData( PersistableHelper.createSerializedImage((Persistable)(Object)new GenericKey(components)) );
+                            }
+                            
+                            return true;
+                        }
+                    } );
+                    
+                    env.openSecondaryDatabase(null, indexDBName, bdbDB, indexConfig).close();
+                }
+            }
+            finally {
+                bdbDB.close();
+            }
+        }
+        finally {
+            env.close();
+        }
+
+        // The indexes are used as regular indexes, including by updates.
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        txn = impl.newTransaction();
+        txn.begin();
+        try {
+            checkLegacyHashIndex(db, "id-7", 7);
+            TestClass2 obj = (TestClass2)db.getIndexIterator(TestClass2.class, "idIndex", 
+                            new GenericKey(new Object[] { "id-7" }), new GenericKey(new Object[] { "id-7" }) ).next();
+            obj.setId("changed");
+            db.makePersistent( new TestClass2("id-100", new BigDecimal(3)) );
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        txn = impl.newTransaction();
+        txn.begin();
+        try {
+            checkLegacyHashIndex(db, "id-100", 3);
+            checkLegacyHashIndex(db, "changed", 7);
+            GenericKey key = new GenericKey(new Object[] { "id-7" });
+            assertEquals(0L, db.getIndexKeyRangeSize(TestClass2.class, "idIndex", key, key));
+            key = new GenericKey(new Object[] { new BigDecimal(3) });
+            assertEquals(11L, db.getIndexKeyRangeSize(TestClass2.class, "amountIndex", key, key));
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+    
+    
+    /**
+     * Tests that the extent counts of a database created before the counts were split into
+     * stripes are still used.
+     */
+    public void testLegacyExtentCounts() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        Transaction txn = impl.newTransaction();
+        txn.begin();
+        try {
+            for (int i = 0; i < 10; i++) {
+                db.makePersistent( new TestClass1("Object" + i, i) );
+            }
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+
+        // Replace the counts by a single count keyed by CIDX alone.
+        Environment env = openEnvironment();
+        try {
+            DatabaseConfig dbConfig = new DatabaseConfig();
+            dbConfig.setTransactional(true);
+            com.sleepycatje.je.Database bdbDB = env.openDatabase(null, DATABASE_URI + ":ExtentCounts", dbConfig);
+            com.sleepycatje.je.Transaction bdbTxn = env.beginTransaction(null, null);
+            Map<Integer, Long> counts = new HashMap<Integer, Long>();
+            Cursor cursor = bdbDB.openCursor(bdbTxn, null);
+            try {
+                DatabaseEntry key = new DatabaseEntry();
+                DatabaseEntry data = new DatabaseEntry();
+                while (cursor.getNext(key, data, null) == OperationStatus.SUCCESS) {
+                    int cidx = IntegerBinding.entryToInt(key);
+                    Long count = counts.get(cidx);
+                    counts.put(cidx, (count == null ? 0L : count) + LongBinding.entryToLong(data));
+                    cursor.delete();
+                }
+            }
+            finally {
+                cursor.close();
+            }
+            
+            for (Map.Entry<Integer, Long> entry : counts.entrySet()) {
+                DatabaseEntry key = new DatabaseEntry();
+                DatabaseEntry data = new DatabaseEntry();
+                IntegerBinding.intToEntry(entry.getKey(), key);
+                LongBinding.longToEntry(entry.getValue(), data);
+                bdbDB.put(bdbTxn, key, data);
+            }
+            
+            bdbTxn.commit();
+            bdbDB.close();
+        }
+        finally {
+            env.close();
+        }
+
+        for (int i = 0; i < 2; i++) {
+            db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+            txn = impl.newTransaction();
+            txn.begin();
+            try {
+                assertEquals(10 + i, db.getExtentSize(TestClass1.class, false));
+                db.makePersistent( new TestClass1("New" + i, i) );
+            }
+            finally {
+                txn.commit();
+                db.close();
+            }
+        }
+        
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        txn = impl.newTransaction();
+        txn.begin();
+        try {
+            assertEquals(12, db.getExtentSize(TestClass1.class, false));
+            assertEquals(12, db.getExtent(TestClass1.class, false).size());
+        }
+        finally {
+            txn.commit();
+            db.close();
+        }
+    }
+    
+    
+    /**
+     * Tests that a bulk load that defers index updates only rebuilds the indexes of the classes 
+     * that it stores.
+     */
+    public void testDeferredBulkLoadIndexes() throws Exception
+    {
+        Implementation impl = EnerJImplementation.getInstance();
+        EnerJDatabase db = (EnerJDatabase)impl.newDatabase();
+        
+        db.open(DATABASE_URI, Database.OPEN_READ_WRITE);
+        try {
+            Transaction txn = impl.newTransaction();
+            txn.begin();
+            try {
+                db.makePersistent( new TestClass2("Id1", new BigDecimal(1)) );
+                db.makePersistent( new TestClass3("Obj0", 0) );
+            }
+            finally {
+                txn.commit();
+            }
+            
+            List<SecondaryDatabase> indexDBs2 = getOpenIndexes(TestClass2.class);
+            List<SecondaryDatabase> indexDBs3 = getOpenIndexes(TestClass3.class);
+            assertEquals(2, indexDBs2.size());
+            assertEquals(1, indexDBs3.size());
+            
+            List<TestClass3> objs = new ArrayList<TestClass3>();
+            for (int i = 1; i < 100; i++) {
+                objs.add( new TestClass3("Obj" + i, i) );
+            }
+            
+            assertEquals(99L, db.bulkLoad(objs.iterator(), true));
+            
+            // The indexes of TestClass2 were not closed. 
+            assertEquals(indexDBs2, getOpenIndexes(TestClass2.class));
+            assertFalse( getOpenIndexes(TestClass3.class).contains( indexDBs3.get(0) ) );
+            
+            txn.begin();
+            try {
+                assertEquals(100L, db.getIndexKeyRangeSize(TestClass3.class, "valueIndex", null, null));
+                checkLegacyHashIndex(db, "Id1", 1);
+            }
+            finally {
+                txn.commit();
+            }
+        }
+        finally {
+            db.close();
+        }
+    }
+    
+    
+    /**
+     * Gets the secondary databases of the indexes of a class that are open in the server of the test database.
+     */
+    private static List<SecondaryDatabase> getOpenIndexes(Class aClass) throws Exception
+    {
+        Field serversField = BDBObjectServer.class.getDeclaredField("sCurrentServers");
+        serversField.setAccessible(true);
+        BDBObjectServer server = ((Map<String, BDBObjectServer>)serversField.get(null)).get(DATABASE_URI);
+        Field indexesField = BDBObjectServer.class.getDeclaredField("bdbIndexes");
+        indexesField.setAccessible(true);
+        int cidx = server.getSchema().findClassSchema( aClass.getName() ).getClassIndex();
+        List<SecondaryDatabase> indexDBs = ((Map<Integer, List<SecondaryDatabase>>)indexesField.get(server)).get(cidx);
+        return indexDBs == null ? new ArrayList<SecondaryDatabase>() : new ArrayList<SecondaryDatabase>(indexDBs);
+    }
+    
+    
+    /**
+     * Checks that an object can be found through both indexes of TestClass2.
+     */
+    private static void checkLegacyHashIndex(EnerJDatabase aDatabase, String anId, int anAmount) throws Exception
+    {
+        GenericKey key = new GenericKey(new Object[] { anId });
+        IndexIterator<TestClass2> iter = aDatabase.getIndexIterator(TestClass2.class, "idIndex", key, key);
+        try {
+            assertTrue(iter.hasNext());
+            assertEquals(new BigDecimal(anAmount), iter.next().getAmount());
+            assertFalse(iter.hasNext());
+        }
+        finally {
+            iter.close();
+        }
+        
+        key = new GenericKey(new Object[] { new BigDecimal(anAmount) });
+        iter = aDatabase.getIndexIterator(TestClass2.class, "amountIndex", key, key);
+        try {
+            boolean found = false;
+            while (iter.hasNext()) {
+                TestClass2 obj = iter.next();
+                assertEquals(new BigDecimal(anAmount), obj.getAmount());
+                found |= anId.equals(obj.getId());
+            }
+            
+            assertTrue(found);
+        }
+        finally {
+            iter.close();
+        }
+    }
+
+
+    @Persist
+    public static class TestClass1
+    {
+        private String mName;
+        private int mValue;
+        
+        TestClass1(String aName, int aValue)
+        {
+            mName = aName;
+            mValue = aValue;
+        }
+
+        public String getName()
+        {
+            return mName;
+        }
+
+        public int getValue()
+        {
+            return mValue;
+        }
+
+        public void setValue(int aValue)
+        {
+            mValue = aValue;
+        }
+    }
+
+
+    @Persist
+    @Indexes( {
+        @Index(type=Index.Type.Hash, name="idIndex", properties={ "id" }, allowDuplicateKeys=false),
+        @Index(type=Index.Type.Hash, name="amountIndex", properties={ "amount" })
+    } )
+    public static class TestClass2
+    {
+        private String mId;
+        private BigDecimal mAmount;
+        
+
+        TestClass2(String anId, BigDecimal anAmount)
+        {
+            mId = anId;
+            mAmount = anAmount;
+        }
+            
+
+        public String getId()
+        {
+            return mId;
+        }
+
+
+        public void setId(String anId)
+        {
+            mId = anId;
+        }
+
+
+        public BigDecimal getAmount()
+        {
+            return mAmount;
+        }
+    }
+
+
+    @Persist
+    @Index(name="valueIndex", properties={ "value" })
+    public static class TestClass3
+    {
+        private String mName;
+        private int mValue;
+        
+        TestClass3(String aName, int aValue)
+        {
+            mName = aName;
+            mValue = aValue;
+        }
+
+        public String getName()
+        {
+            return mName;
+        }
+
+        public int getValue()
+        {
+            return mValue;
+        }
+    }
+}
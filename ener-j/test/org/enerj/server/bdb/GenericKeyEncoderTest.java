@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright 2000, 2006 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+//$Header: $
+
+package org.enerj.server.bdb;
+
+import java.sql.Timestamp;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+import org.enerj.core.GenericKey;
+import org.odmg.ODMGRuntimeException;
+
+/**
+ * Tests GenericKeyEncoder. <p>
+ * 
+ * @version $Id: $
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad</a>
+ */
+public class GenericKeyEncoderTest extends TestCase
+{
+    /**
+     * Construct a GenericKeyEncoderTest. 
+     *
+     * @param name
+     */
+    public GenericKeyEncoderTest(String name)
+    {
+        super(name);
+    }
+    
+    /**
+     * Asserts that the encoded keys order the same as the keys, for every pair of keys.
+     */
+    private void assertSameOrder(GenericKey[] someKeys)
+    {
+        byte[][] encodedKeys = new byte[someKeys.length][];
+        for (int i = 0; i < someKeys.length; i++) {
+            encodedKeys[i] = GenericKeyEncoder.encode(someKeys[i], true);
+        }
+        
+        for (int i = 0; i < someKeys.length; i++) {
+            for (int j = 0; j < someKeys.length; j++) {
+                int expected = Integer.signum( someKeys[i].compareTo(someKeys[j]) );
+                int actual = Integer.signum( GenericKeyEncoder.compare(encodedKeys[i], 0, encodedKeys[i].length, encodedKeys[j]) );
+                assertEquals("Comparing " + someKeys[i] + " to " + someKeys[j], expected, actual);
+            }
+        }
+    }
+    
+    private static GenericKey key(Object... someComponents)
+    {
+        return new GenericKey(someComponents);
+    }
+
+    /**
+     * Tests the order of numbers, including numbers of different types.
+     */
+    public void testNumbers() throws Exception
+    {
+        assertSameOrder(new GenericKey[] { 
+            key(Integer.MIN_VALUE), key(-1000000L), key(-2.5), key(-1), key(-0.5f), key(0), key((short)0), key(0.25), 
+            key((byte)1), key(1L), key(1.5), key(127), key(128L), key(Integer.MAX_VALUE), key(Long.MAX_VALUE - 1), 
+            key(Long.MAX_VALUE), key(Long.MIN_VALUE), key(1e300), key(-1e300), key(Double.POSITIVE_INFINITY), 
+            key(Double.NEGATIVE_INFINITY),
+        });
+    }
+
+    /**
+     * Tests the order of strings, including prefixes and characters of each encoded length. 
+     */
+    public void testStrings() throws Exception
+    {
+        assertSameOrder(new GenericKey[] { 
+            key(""), key("\u0000"), key("a"), key("a\u0000"), key("ab"), key("abc"), key("b"), key("~"), 
+            key("\u007f"), key("\u0080"), key("\u3ffe"), key("\u3fff"), key("\u4000"), key("\uffff"), 
+            key("\uffffa"), key('a'), key('\u1234'),
+        });
+    }
+
+    /**
+     * Tests dates, nulls, and keys with multiple components.
+     */
+    public void testMixed() throws Exception
+    {
+        Timestamp timestamp1 = new Timestamp(1000L);
+        timestamp1.setNanos(1);
+        Timestamp timestamp2 = new Timestamp(1000L);
+        timestamp2.setNanos(2);
+        
+        assertSameOrder(new GenericKey[] { 
+            key(new Date(-5000L)), key(new Date(0L)), key(new Date(1000L)), key(timestamp1), key(timestamp2), key(new Date(2000L)), 
+            key((Object)null), 
+        });
+
+        assertSameOrder(new GenericKey[] { 
+            key("a"), key("a", 1), key("a", 2), key("a", 2, null), key("a", null), key("ab"), key("ab", 0), key(null, 0), 
+            key((Object)null), key(null, null), 
+        });
+        
+        assertSameOrder(new GenericKey[] { 
+            key(Boolean.FALSE), key(Boolean.TRUE), key(Boolean.TRUE, "x"), 
+        });
+
+        assertSameOrder(new GenericKey[] { 
+            key(Thread.State.NEW), key(Thread.State.RUNNABLE), key(Thread.State.TERMINATED), 
+        });
+    }
+
+    /**
+     * Tests that nulls are rejected if not allowed, as are types that cannot be encoded.
+     */
+    public void testUnsupported() throws Exception
+    {
+        try {
+            GenericKeyEncoder.encode(key("a", null), false);
+            fail("Expected exception");
+        }
+        catch (ODMGRuntimeException e) {
+            // Expected
+        }
+        
+        try {
+            GenericKeyEncoder.encode(key(new java.math.BigDecimal(1)), true);
+            fail("Expected exception");
+        }
+        catch (ODMGRuntimeException e) {
+            // Expected
+        }
+    }
+    
+    /**
+     * Tests canEncode on property types.
+     */
+    public void testCanEncode() throws Exception
+    {
+        assertTrue( GenericKeyEncoder.canEncode(Bean.class, new String[] { "number", "name", "date", "nested.name" }) );
+        assertFalse( GenericKeyEncoder.canEncode(Bean.class, new String[] { "name", "amount" }) );
+        assertFalse( GenericKeyEncoder.canEncode(Bean.class, new String[] { "nested.unknown" }) );
+        assertFalse( GenericKeyEncoder.canEncode(Bean.class, new String[] { "nested" }) );
+    }
+    
+    
+    public static final class Bean
+    {
+        public int getNumber() { return 0; }
+        public String getName() { return null; }
+        public Date getDate() { return null; }
+        public java.math.BigDecimal getAmount() { return null; }
+        public Bean getNested() { return null; }
+    }
+}
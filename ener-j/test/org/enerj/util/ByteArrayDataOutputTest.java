@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright 2000, 2007 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+
+
+package org.enerj.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ByteArrayDataOutput. <p>
+ * 
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad </a>
+ */
+public class ByteArrayDataOutputTest extends TestCase
+{
+    private static final String sTestString = "Test \u0000 \u00e9 \u20ac string";
+    
+    /**
+     * Construct a ByteArrayDataOutputTest. 
+     *
+     * @param name
+     */
+    public ByteArrayDataOutputTest(String name)
+    {
+        super(name);
+    }
+
+    private static void writeAll(DataOutput anOutput) throws Exception
+    {
+        anOutput.write(5);
+        anOutput.write(new byte[] { 1, 2, 3 });
+        anOutput.write(new byte[] { 1, 2, 3, 4, 5 }, 1, 3);
+        anOutput.writeBoolean(true);
+        anOutput.writeBoolean(false);
+        anOutput.writeByte(-3);
+        anOutput.writeShort(-12345);
+        anOutput.writeChar('\u20ac');
+        anOutput.writeInt(0x12345678);
+        anOutput.writeLong(-1234567890123456789L);
+        anOutput.writeFloat(1.5F);
+        anOutput.writeDouble(-2.25);
+        anOutput.writeBytes("bytes");
+        anOutput.writeChars(sTestString);
+        anOutput.writeUTF(sTestString);
+    }
+    
+    /**
+     * Tests that the output is the same as DataOutputStream's.
+     */
+    public void testCompatibility() throws Exception
+    {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream dataStream = new DataOutputStream(byteStream);
+        writeAll(dataStream);
+        dataStream.flush();
+        byte[] expected = byteStream.toByteArray();
+        
+        // Start small to force the buffer to grow.
+        ByteArrayDataOutput output = new ByteArrayDataOutput(1);
+        writeAll(output);
+        assertEquals(expected.length, output.size());
+        assertTrue( Arrays.equals(expected, output.toByteArray(0)) );
+        
+        output.reset();
+        assertEquals(0, output.size());
+        output.writeInt(7);
+        writeAll(output);
+        assertTrue( Arrays.equals(expected, output.toByteArray(4)) );
+    }
+    
+    /**
+     * Tests writeIntLengthModifiedUTF8.
+     */
+    public void testWriteIntLengthModifiedUTF8() throws Exception
+    {
+        ByteArrayDataOutput output = new ByteArrayDataOutput(1);
+        output.writeIntLengthModifiedUTF8(sTestString);
+        byte[] bytes = output.toByteArray(0);
+        int length = ByteArrayUtil.getInt(bytes, 0);
+        assertEquals(bytes.length - 4, length);
+        
+        byte[] expected = new byte[sTestString.length() * 3];
+        assertEquals(length, ByteArrayUtil.putModifiedUTF8(expected, 0, sTestString));
+        for (int i = 0; i < length; i++) {
+            assertEquals(expected[i], bytes[i + 4]);
+        }
+    }
+    
+    /**
+     * Tests that bulk array writes are the same as writing each element and that 
+     * ByteArrayDataInput reads them back.
+     */
+    public void testArrays() throws Exception
+    {
+        short[] shorts = { 1, -2, Short.MAX_VALUE };
+        char[] chars = { 'a', '\uffff' };
+        int[] ints = { 1, -2, Integer.MIN_VALUE };
+        long[] longs = { 1L, -2L, Long.MAX_VALUE };
+        float[] floats = { 1.5F, -2F };
+        double[] doubles = { Math.E, -2.0 };
+        boolean[] booleans = { true, false, true };
+        
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream dataStream = new DataOutputStream(byteStream);
+        for (short value : shorts) {
+            dataStream.writeShort(value);
+        }
+        
+        for (char value : chars) {
+            dataStream.writeChar(value);
+        }
+        
+        for (int value : ints) {
+            dataStream.writeInt(value);
+        }
+        
+        for (long value : longs) {
+            dataStream.writeLong(value);
+        }
+        
+        for (float value : floats) {
+            dataStream.writeFloat(value);
+        }
+        
+        for (double value : doubles) {
+            dataStream.writeDouble(value);
+        }
+        
+        for (boolean value : booleans) {
+            dataStream.writeBoolean(value);
+        }
+        
+        dataStream.flush();
+        
+        ByteArrayDataOutput output = new ByteArrayDataOutput(1);
+        output.writeShortArray(shorts);
+        output.writeCharArray(chars);
+        output.writeIntArray(ints);
+        output.writeLongArray(longs);
+        output.writeFloatArray(floats);
+        output.writeDoubleArray(doubles);
+        output.writeBooleanArray(booleans);
+        assertTrue( Arrays.equals(byteStream.toByteArray(), output.toByteArray(0)) );
+        
+        ByteArrayDataInput input = new ByteArrayDataInput(output.getBuffer(), 0, output.size());
+        short[] shorts2 = new short[shorts.length];
+        input.readShortArray(shorts2);
+        assertTrue( Arrays.equals(shorts, shorts2) );
+        char[] chars2 = new char[chars.length];
+        input.readCharArray(chars2);
+        assertTrue( Arrays.equals(chars, chars2) );
+        int[] ints2 = new int[ints.length];
+        input.readIntArray(ints2);
+        assertTrue( Arrays.equals(ints, ints2) );
+        long[] longs2 = new long[longs.length];
+        input.readLongArray(longs2);
+        assertTrue( Arrays.equals(longs, longs2) );
+        float[] floats2 = new float[floats.length];
+        input.readFloatArray(floats2);
+        assertTrue( Arrays.equals(floats, floats2) );
+        double[] doubles2 = new double[doubles.length];
+        input.readDoubleArray(doubles2);
+        assertTrue( Arrays.equals(doubles, doubles2) );
+        boolean[] booleans2 = new boolean[booleans.length];
+        input.readBooleanArray(booleans2);
+        assertTrue( Arrays.equals(booleans, booleans2) );
+        
+        try {
+            input.readIntArray(new int[1]);
+            fail("Expected EOFException");
+        }
+        catch (EOFException e) {
+            // Expected
+        }
+    }
+}
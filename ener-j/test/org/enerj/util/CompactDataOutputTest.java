@@ -0,0 +1,203 @@
+/*******************************************************************************
+ * Copyright 2000, 2007 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+
+
+package org.enerj.util;
+
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests CompactDataOutput and CompactDataInput. <p>
+ * 
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad </a>
+ */
+public class CompactDataOutputTest extends TestCase
+{
+    /**
+     * Construct a CompactDataOutputTest. 
+     *
+     * @param name
+     */
+    public CompactDataOutputTest(String name)
+    {
+        super(name);
+    }
+
+    private static CompactDataInput createInput(CompactDataOutput anOutput)
+    {
+        return new CompactDataInput(anOutput.getBuffer(), 0, anOutput.size());
+    }
+    
+    /**
+     * Tests that values are read back as they were written.
+     */
+    public void testRoundTrip() throws Exception
+    {
+        int[] ints = { 0, 1, -1, 63, -64, 64, 127, 128, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        long[] longs = { 0L, 1L, -1L, 300L, Long.MAX_VALUE, Long.MIN_VALUE, 0x123456789aL };
+        short[] shorts = { 0, -1, Short.MAX_VALUE, Short.MIN_VALUE };
+        char[] chars = { 0, 'a', '\u00ff', '\uffff' };
+        
+        CompactDataOutput output = new CompactDataOutput(1);
+        for (int value : ints) {
+            output.writeInt(value);
+        }
+        
+        for (long value : longs) {
+            output.writeLong(value);
+        }
+
+        for (short value : shorts) {
+            output.writeShort(value);
+        }
+
+        for (char value : chars) {
+            output.writeChar(value);
+        }
+
+        output.writeBoolean(true);
+        output.writeByte(-5);
+        output.writeFloat(-1.5F);
+        output.writeDouble(Math.PI);
+        output.writeUTF("UTF \u20ac");
+        output.write(new byte[] { 1, 2, 3 });
+        
+        CompactDataInput input = createInput(output);
+        for (int value : ints) {
+            assertEquals(value, input.readInt());
+        }
+        
+        for (long value : longs) {
+            assertEquals(value, input.readLong());
+        }
+
+        for (short value : shorts) {
+            assertEquals(value, input.readShort());
+        }
+
+        for (char value : chars) {
+            assertEquals(value, input.readChar());
+        }
+
+        assertTrue( input.readBoolean() );
+        assertEquals(-5, input.readByte());
+        assertEquals(-1.5F, input.readFloat());
+        assertEquals(Math.PI, input.readDouble());
+        assertEquals("UTF \u20ac", input.readUTF());
+        byte[] bytes = new byte[3];
+        input.readFully(bytes);
+        assertEquals(3, bytes[2]);
+        
+        try {
+            input.readByte();
+            fail("Expected EOFException");
+        }
+        catch (EOFException e) {
+            // Expected
+        }
+    }
+    
+    /**
+     * Tests that small values are encoded compactly.
+     */
+    public void testSize() throws Exception
+    {
+        CompactDataOutput output = new CompactDataOutput(16);
+        output.writeInt(-63);
+        assertEquals(1, output.size());
+        output.writeLong(1000L);
+        assertEquals(3, output.size());
+        output.writeUnsignedVarInt(127);
+        assertEquals(4, output.size());
+    }
+    
+    /**
+     * Tests writeCompactString.
+     */
+    public void testCompactString() throws Exception
+    {
+        String[] strings = { "", "Latin-1 \u00e9\u00ff", "Wide \u20ac\u0000 string" };
+        
+        CompactDataOutput output = new CompactDataOutput(1);
+        for (String value : strings) {
+            output.writeCompactString(value);
+        }
+        
+        CompactDataInput input = createInput(output);
+        for (String value : strings) {
+            assertEquals(value, input.readCompactString());
+        }
+
+        // A Latin-1 string is one byte per character plus a one byte header.
+        output = new CompactDataOutput(1);
+        output.writeCompactString(strings[1]);
+        assertEquals(1 + strings[1].length(), output.size());
+    }
+    
+    /**
+     * Tests writePackedIntArray and writePackedLongArray.
+     */
+    public void testPackedArrays() throws Exception
+    {
+        long[] timeStamps = new long[1000];
+        int[] counts = new int[1000];
+        long[] randomLongs = new long[100];
+        Random random = new Random(1);
+        for (int i = 0; i < timeStamps.length; i++) {
+            timeStamps[i] = 1160000000000L + i * 1000L + random.nextInt(10);
+            counts[i] = i * 3;
+        }
+        
+        for (int i = 0; i < randomLongs.length; i++) {
+            randomLongs[i] = random.nextLong();
+        }
+        
+        CompactDataOutput output = new CompactDataOutput(1);
+        output.writePackedLongArray(timeStamps);
+        // Deltas fit in two bytes, apart from the first element.
+        assertTrue(output.size() < timeStamps.length * 3);
+        int size = output.size();
+        output.writePackedIntArray(counts);
+        assertTrue(output.size() - size < counts.length * 2);
+        size = output.size();
+        output.writePackedLongArray(randomLongs);
+        // Raw encoding plus the encoding byte.
+        assertEquals(1 + randomLongs.length * 8, output.size() - size);
+        output.writePackedIntArray(new int[0]);
+        
+        CompactDataInput input = createInput(output);
+        long[] longs = new long[timeStamps.length];
+        input.readPackedLongArray(longs);
+        assertTrue( Arrays.equals(timeStamps, longs) );
+        int[] ints = new int[counts.length];
+        input.readPackedIntArray(ints);
+        assertTrue( Arrays.equals(counts, ints) );
+        longs = new long[randomLongs.length];
+        input.readPackedLongArray(longs);
+        assertTrue( Arrays.equals(randomLongs, longs) );
+        input.readPackedIntArray(new int[0]);
+        assertEquals(0, input.skipBytes(1));
+    }
+}
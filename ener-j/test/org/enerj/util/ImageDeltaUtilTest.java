@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright 2000, 2007 Visual Systems Corporation.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the GNU Public License version 2
+ * which accompanies this distribution in a file named "COPYING".
+ * 
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *      
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *      
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ *******************************************************************************/
+
+
+package org.enerj.util;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests ImageDeltaUtil. <p>
+ * 
+ * @author <a href="mailto:dsyrstad@ener-j.org">Dan Syrstad </a>
+ */
+public class ImageDeltaUtilTest extends TestCase
+{
+    /**
+     * Construct a ImageDeltaUtilTest. 
+     *
+     * @param name
+     */
+    public ImageDeltaUtilTest(String name)
+    {
+        super(name);
+    }
+
+    private static byte[] createImage(int aLength, long aSeed)
+    {
+        byte[] image = new byte[aLength];
+        new Random(aSeed).nextBytes(image);
+        return image;
+    }
+    
+    private static void checkDelta(byte[] aBaseImage, byte[] aNewImage)
+    {
+        byte[] delta = ImageDeltaUtil.createDelta(aBaseImage, aNewImage);
+        assertNotNull(delta);
+        assertTrue(delta.length < aNewImage.length);
+        assertTrue( Arrays.equals(aNewImage, ImageDeltaUtil.applyDelta(aBaseImage, aBaseImage.length, delta)) );
+    }
+    
+    public void testSameLength()
+    {
+        byte[] base = createImage(1000, 1);
+        byte[] newImage = (byte[])base.clone();
+        newImage[0] = (byte)~newImage[0];
+        newImage[500] = (byte)~newImage[500];
+        newImage[504] = (byte)~newImage[504];
+        newImage[999] = (byte)~newImage[999];
+        checkDelta(base, newImage);
+        
+        // No change
+        checkDelta(base, (byte[])base.clone());
+    }
+    
+    public void testDifferentLength()
+    {
+        byte[] base = createImage(1000, 2);
+        
+        // Grow in the middle
+        byte[] newImage = new byte[1010];
+        System.arraycopy(base, 0, newImage, 0, 400);
+        System.arraycopy(base, 400, newImage, 410, 600);
+        checkDelta(base, newImage);
+        
+        // Shrink at the end
+        newImage = new byte[990];
+        System.arraycopy(base, 0, newImage, 0, 990);
+        checkDelta(base, newImage);
+        
+        // Grow at the start
+        newImage = new byte[1001];
+        System.arraycopy(base, 0, newImage, 1, 1000);
+        checkDelta(base, newImage);
+    }
+
+    public void testBaseBufferLongerThanImage()
+    {
+        byte[] base = createImage(100, 3);
+        byte[] newImage = (byte[])base.clone();
+        newImage[50] = (byte)~newImage[50];
+        byte[] delta = ImageDeltaUtil.createDelta(base, newImage);
+        
+        byte[] baseBuffer = new byte[116];
+        System.arraycopy(base, 0, baseBuffer, 0, 100);
+        assertTrue( Arrays.equals(newImage, ImageDeltaUtil.applyDelta(baseBuffer, 100, delta)) );
+    }
+
+    public void testBaseImageSlice()
+    {
+        byte[] base = createImage(100, 6);
+        byte[] baseBuffer = new byte[132];
+        System.arraycopy(base, 0, baseBuffer, 16, 100);
+
+        byte[] newImage = (byte[])base.clone();
+        newImage[0] = (byte)~newImage[0];
+        newImage[99] = (byte)~newImage[99];
+        byte[] delta = ImageDeltaUtil.createDelta(base, newImage);
+        assertTrue( Arrays.equals(newImage, ImageDeltaUtil.applyDelta(baseBuffer, 16, 100, delta)) );
+
+        // Grow in the middle
+        newImage = new byte[110];
+        System.arraycopy(base, 0, newImage, 0, 40);
+        System.arraycopy(base, 40, newImage, 50, 60);
+        delta = ImageDeltaUtil.createDelta(base, newImage);
+        assertTrue( Arrays.equals(newImage, ImageDeltaUtil.applyDelta(baseBuffer, 16, 100, delta)) );
+    }
+
+    public void testNotWorthwhile()
+    {
+        assertNull( ImageDeltaUtil.createDelta(createImage(100, 4), createImage(100, 5)) );
+        assertNull( ImageDeltaUtil.createDelta(createImage(100, 4), createImage(50, 5)) );
+    }
+}